@@ -6,6 +6,8 @@ import android.media.MediaFormat;
 import android.os.Build;
 import androidx.annotation.NonNull;
 import com.pedro.encoder.utils.CodecUtil;
+import com.pedro.encoder.utils.metrics.Histogram;
+import com.pedro.encoder.utils.trace.FrameTracer;
 import java.nio.ByteBuffer;
 
 /**
@@ -20,6 +22,10 @@ public abstract class BaseEncoder implements EncoderCallback {
   protected volatile boolean running = false;
   protected boolean isBufferMode = true;
   protected CodecUtil.Force force = CodecUtil.Force.FIRST_COMPATIBLE_FOUND;
+  //time from queue input to output buffer in us (buffer mode only) and output size
+  protected Histogram encodeTime;
+  protected Histogram frameSize;
+  protected boolean isVideo = false;
 
   public void start() {
     start(true);
@@ -27,6 +33,15 @@ public abstract class BaseEncoder implements EncoderCallback {
 
   public abstract void start(boolean resetTs);
 
+  /**
+   * Start using the time base of other encoder so both produce comparable timestamps.
+   * Used by encoders fed with the same image, like simulcast layers.
+   */
+  public void start(BaseEncoder timeBase) {
+    presentTimeUs = timeBase.presentTimeUs;
+    start(false);
+  }
+
   protected abstract void stopImp();
 
   public void stop() {
@@ -73,6 +88,10 @@ public abstract class BaseEncoder implements EncoderCallback {
       byteBuffer.put(frame.getBuffer(), frame.getOffset(), frame.getSize());
       long pts = System.nanoTime() / 1000 - presentTimeUs;
       mediaCodec.queueInputBuffer(inBufferIndex, 0, frame.getSize(), pts, 0);
+      if (frame.getCaptureTimeNs() != 0) {
+        FrameTracer.trace(FrameTracer.Stage.CAPTURE, isVideo, pts / 1000,
+            frame.getCaptureTimeNs());
+      }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
@@ -86,8 +105,21 @@ public abstract class BaseEncoder implements EncoderCallback {
 
   private void processOutput(@NonNull ByteBuffer byteBuffer, @NonNull MediaCodec mediaCodec,
       int outBufferIndex, @NonNull MediaCodec.BufferInfo bufferInfo) throws IllegalStateException {
+    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+      //in buffer mode pts is the time input was queued
+      if (isBufferMode && encodeTime != null) {
+        encodeTime.record(System.nanoTime() / 1000 - presentTimeUs - bufferInfo.presentationTimeUs);
+      }
+      if (frameSize != null) frameSize.record(bufferInfo.size);
+    }
+    long outputNs = FrameTracer.isEnabled() ? System.nanoTime() : 0;
     checkBuffer(byteBuffer, bufferInfo);
     sendBuffer(byteBuffer, bufferInfo);
+    //after sendBuffer, surface mode replace pts there
+    if (outputNs != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+      FrameTracer.trace(FrameTracer.Stage.ENCODED, isVideo, bufferInfo.presentationTimeUs / 1000,
+          outputNs);
+    }
     mediaCodec.releaseOutputBuffer(outBufferIndex, false);
   }
 
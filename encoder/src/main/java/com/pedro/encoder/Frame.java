@@ -14,6 +14,7 @@ public class Frame {
   private int orientation;
   private boolean flip;
   private int format = ImageFormat.NV21; //nv21 or yv12 supported
+  private long captureTimeNs; //System.nanoTime() when captured, only set while tracing
 
   /**
    * Used with video frame
@@ -83,4 +84,12 @@ public class Frame {
   public void setSize(int size) {
     this.size = size;
   }
+
+  public long getCaptureTimeNs() {
+    return captureTimeNs;
+  }
+
+  public void setCaptureTimeNs(long captureTimeNs) {
+    this.captureTimeNs = captureTimeNs;
+  }
 }
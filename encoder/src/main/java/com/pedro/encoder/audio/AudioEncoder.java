@@ -9,6 +9,9 @@ import com.pedro.encoder.BaseEncoder;
 import com.pedro.encoder.Frame;
 import com.pedro.encoder.input.audio.GetMicrophoneData;
 import com.pedro.encoder.utils.CodecUtil;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import com.pedro.encoder.utils.trace.FrameTracer;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -31,6 +34,9 @@ public class AudioEncoder extends BaseEncoder implements GetMicrophoneData {
 
   public AudioEncoder(GetAacData getAacData) {
     this.getAacData = getAacData;
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    encodeTime = registry.histogram(MetricNames.AUDIO_ENCODE_TIME, MetricNames.LATENCY_BUCKETS);
+    frameSize = registry.histogram(MetricNames.AUDIO_FRAME_SIZE, MetricNames.SIZE_BUCKETS);
   }
 
   /**
@@ -111,6 +117,7 @@ public class AudioEncoder extends BaseEncoder implements GetMicrophoneData {
    */
   @Override
   public void inputPCMData(Frame frame) {
+    if (FrameTracer.isEnabled()) frame.setCaptureTimeNs(System.nanoTime());
     if (running) {
       try {
         getDataFromEncoder(frame);
@@ -0,0 +1,83 @@
+package com.pedro.encoder.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Find Annex-B start codes (00 00 01 or 00 00 00 01) in encoder output without copying it.
+ * Buffer is read 8 bytes at a time and only words that contain a zero byte are checked byte by
+ * byte, so the search is mostly word reads for NAL unit payloads. All offsets are absolute and
+ * buffer position is not modified.
+ */
+public final class NalUnitScanner {
+
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private NalUnitScanner() {
+  }
+
+  /**
+   * @return offset of the first 00 00 01 sequence in [from, to) or -1 if not found.
+   */
+  public static int findStartCode(ByteBuffer buffer, int from, int to) {
+    int i = from;
+    //word at a time, any start code that begin in the word has a zero byte in it
+    while (i + 8 <= to) {
+      long word = buffer.getLong(i);
+      if (((word - LOW_BITS) & ~word & HIGH_BITS) == 0) {
+        i += 8;
+        continue;
+      }
+      for (int end = i + 8; i < end; i++) {
+        if (isStartCode(buffer, i, to)) return i;
+      }
+    }
+    for (; i < to; i++) {
+      if (isStartCode(buffer, i, to)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @return offset of the first byte of the next NAL unit (after its start code) in [from, to)
+   * or -1 if not found.
+   */
+  public static int findNalUnit(ByteBuffer buffer, int from, int to) {
+    int startCode = findStartCode(buffer, from, to);
+    return startCode == -1 ? -1 : startCode + 3;
+  }
+
+  /**
+   * @param startCode offset returned by {@link #findStartCode(ByteBuffer, int, int)}.
+   * @return offset where the start code begins, including the leading zero of a 4 bytes start
+   * code.
+   */
+  public static int getStartCodeBegin(ByteBuffer buffer, int from, int startCode) {
+    return startCode > from && buffer.get(startCode - 1) == 0 ? startCode - 1 : startCode;
+  }
+
+  /**
+   * Split a buffer in NAL units.
+   *
+   * @param offsets filled with offset of each NAL unit (after start code).
+   * @param sizes filled with size of each NAL unit (without next start code).
+   * @return number of NAL units found, limited to arrays length.
+   */
+  public static int split(ByteBuffer buffer, int from, int to, int[] offsets, int[] sizes) {
+    int count = 0;
+    int nalUnit = findNalUnit(buffer, from, to);
+    while (nalUnit != -1 && count < offsets.length) {
+      int next = findStartCode(buffer, nalUnit, to);
+      int end = next == -1 ? to : getStartCodeBegin(buffer, nalUnit, next);
+      offsets[count] = nalUnit;
+      sizes[count] = end - nalUnit;
+      count++;
+      nalUnit = next == -1 ? -1 : next + 3;
+    }
+    return count;
+  }
+
+  private static boolean isStartCode(ByteBuffer buffer, int i, int to) {
+    return i + 2 < to && buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1;
+  }
+}
@@ -0,0 +1,36 @@
+package com.pedro.encoder.utils.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic count of events, safe to update from any thread.
+ */
+public final class Counter {
+
+  private final String name;
+  private final AtomicLong value = new AtomicLong();
+
+  Counter(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void increment() {
+    value.incrementAndGet();
+  }
+
+  public void add(long delta) {
+    value.addAndGet(delta);
+  }
+
+  public long get() {
+    return value.get();
+  }
+
+  public void reset() {
+    value.set(0);
+  }
+}
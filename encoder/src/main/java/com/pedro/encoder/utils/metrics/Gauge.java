@@ -0,0 +1,30 @@
+package com.pedro.encoder.utils.metrics;
+
+/**
+ * Last value of something that goes up and down (bitrate, fps, queue size).
+ */
+public final class Gauge {
+
+  private final String name;
+  private volatile long value;
+
+  Gauge(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void set(long value) {
+    this.value = value;
+  }
+
+  public long get() {
+    return value;
+  }
+
+  public void reset() {
+    value = 0;
+  }
+}
@@ -0,0 +1,78 @@
+package com.pedro.encoder.utils.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of values in fixed buckets. Bucket i counts values <= bounds[i] and greater than
+ * bounds[i - 1], last bucket counts values greater than every bound. Recording never allocates
+ * and never locks.
+ */
+public final class Histogram {
+
+  private final String name;
+  private final long[] bounds;
+  private final AtomicLongArray buckets;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  Histogram(String name, long[] bounds) {
+    this.name = name;
+    this.bounds = Arrays.copyOf(bounds, bounds.length);
+    Arrays.sort(this.bounds);
+    buckets = new AtomicLongArray(bounds.length + 1);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void record(long value) {
+    int index = Arrays.binarySearch(bounds, value);
+    if (index < 0) index = -index - 1;
+    buckets.incrementAndGet(index);
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  long[] getBounds() {
+    return bounds;
+  }
+
+  int getBucketCount() {
+    return buckets.length();
+  }
+
+  void copyBuckets(long[] into) {
+    for (int i = 0; i < into.length; i++) {
+      into[i] = buckets.get(i);
+    }
+  }
+}
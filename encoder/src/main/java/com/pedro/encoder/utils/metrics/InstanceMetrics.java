@@ -0,0 +1,99 @@
+package com.pedro.encoder.utils.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Metrics of one muxer, sender or connection, named with
+ * {@link MetricNames#forInstance(String, int)}. The owner unregisters them when it stops, so a
+ * registry doesn't keep the metrics of every stream ever created, and registers them again if it
+ * starts again. Unregistered metrics keep working, they are only left out of snapshots.
+ */
+public final class InstanceMetrics {
+
+  private final MetricsRegistry registry;
+  private final int id;
+  private Counter[] counters = new Counter[0];
+  private Gauge[] gauges = new Gauge[0];
+  private Histogram[] histograms = new Histogram[0];
+  private boolean registered = true;
+
+  public InstanceMetrics(MetricsRegistry registry) {
+    this.registry = registry;
+    id = MetricsRegistry.newInstanceId();
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * @return counter of this instance with that name, created if needed.
+   */
+  public synchronized Counter counter(String name) {
+    String fullName = MetricNames.forInstance(name, id);
+    for (Counter counter : counters) {
+      if (counter.getName().equals(fullName)) return counter;
+    }
+    Counter counter = registry.counter(fullName);
+    counters = append(counters, counter);
+    if (!registered) registry.remove(new Counter[] { counter }, null, null);
+    return counter;
+  }
+
+  /**
+   * @return gauge of this instance with that name, created if needed.
+   */
+  public synchronized Gauge gauge(String name) {
+    String fullName = MetricNames.forInstance(name, id);
+    for (Gauge gauge : gauges) {
+      if (gauge.getName().equals(fullName)) return gauge;
+    }
+    Gauge gauge = registry.gauge(fullName);
+    gauges = append(gauges, gauge);
+    if (!registered) registry.remove(null, new Gauge[] { gauge }, null);
+    return gauge;
+  }
+
+  /**
+   * @param bounds upper bound of each bucket, ignored if the histogram already exists.
+   * @return histogram of this instance with that name, created if needed.
+   */
+  public synchronized Histogram histogram(String name, long[] bounds) {
+    String fullName = MetricNames.forInstance(name, id);
+    for (Histogram histogram : histograms) {
+      if (histogram.getName().equals(fullName)) return histogram;
+    }
+    Histogram histogram = registry.histogram(fullName, bounds);
+    histograms = append(histograms, histogram);
+    if (!registered) registry.remove(null, null, new Histogram[] { histogram });
+    return histogram;
+  }
+
+  /**
+   * Add the metrics of this instance back to the registry. Do nothing if already registered.
+   */
+  public synchronized void register() {
+    if (registered) return;
+    registry.add(counters, gauges, histograms);
+    registered = true;
+  }
+
+  /**
+   * Remove the metrics of this instance from the registry, values are kept.
+   */
+  public synchronized void unregister() {
+    if (!registered) return;
+    registry.remove(counters, gauges, histograms);
+    registered = false;
+  }
+
+  public synchronized boolean isRegistered() {
+    return registered;
+  }
+
+  private static <T> T[] append(T[] array, T element) {
+    T[] newArray = Arrays.copyOf(array, array.length + 1);
+    newArray[array.length] = element;
+    return newArray;
+  }
+}
@@ -0,0 +1,36 @@
+package com.pedro.encoder.utils.metrics;
+
+import android.util.Log;
+
+/**
+ * Write every snapshot to logcat, histograms as count, mean, p50, p99 and max.
+ */
+public class LogMetricsExporter implements MetricsExporter {
+
+  private static final String TAG = "Metrics";
+  private final StringBuilder builder = new StringBuilder();
+
+  @Override
+  public void export(MetricsSnapshot snapshot) {
+    builder.setLength(0);
+    for (int i = 0; i < snapshot.getCounterCount(); i++) {
+      builder.append(snapshot.getCounterName(i)).append('=')
+          .append(snapshot.getCounterValue(i)).append(' ');
+    }
+    for (int i = 0; i < snapshot.getGaugeCount(); i++) {
+      builder.append(snapshot.getGaugeName(i)).append('=')
+          .append(snapshot.getGaugeValue(i)).append(' ');
+    }
+    Log.i(TAG, builder.toString());
+    for (int i = 0; i < snapshot.getHistogramCount(); i++) {
+      builder.setLength(0);
+      builder.append(snapshot.getHistogramName(i))
+          .append(" count=").append(snapshot.getHistogramSamples(i))
+          .append(" mean=").append(snapshot.getHistogramMean(i))
+          .append(" p50=").append(snapshot.getHistogramPercentile(i, 50))
+          .append(" p99=").append(snapshot.getHistogramPercentile(i, 99))
+          .append(" max=").append(snapshot.getHistogramMax(i));
+      Log.i(TAG, builder.toString());
+    }
+  }
+}
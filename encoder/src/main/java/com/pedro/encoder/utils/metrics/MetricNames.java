@@ -0,0 +1,78 @@
+package com.pedro.encoder.utils.metrics;
+
+/**
+ * Names and bucket bounds of metrics registered by this library in
+ * {@link MetricsRegistry#getDefault()}. Times are in microseconds, sizes in bytes.
+ */
+public final class MetricNames {
+
+  //microseconds
+  public static final long[] LATENCY_BUCKETS = {
+      100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000
+  };
+  //bytes
+  public static final long[] SIZE_BUCKETS = {
+      256, 1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024
+  };
+
+  //encoder, time from input to output buffer (buffer mode only) and output size
+  public static final String VIDEO_ENCODE_TIME = "video.encode_time_us";
+  public static final String AUDIO_ENCODE_TIME = "audio.encode_time_us";
+  public static final String VIDEO_FRAME_SIZE = "video.frame_size_bytes";
+  public static final String AUDIO_FRAME_SIZE = "audio.frame_size_bytes";
+  public static final String VIDEO_FPS = "video.fps";
+  public static final String VIDEO_BITRATE = "video.bitrate";
+
+  //rtmp
+  public static final String RTMP_VIDEO_SENT = "rtmp.video.sent";
+  public static final String RTMP_AUDIO_SENT = "rtmp.audio.sent";
+  public static final String RTMP_VIDEO_DROPPED = "rtmp.video.dropped";
+  public static final String RTMP_AUDIO_DROPPED = "rtmp.audio.dropped";
+  public static final String RTMP_QUEUE_WAIT = "rtmp.queue_wait_us";
+  public static final String RTMP_WRITE_TIME = "rtmp.write_time_us";
+  public static final String RTMP_CACHE_SIZE = "rtmp.cache_size";
+  public static final String RTMP_BITRATE = "rtmp.bitrate";
+  public static final String RTMP_CHUNK_SIZE = "rtmp.chunk_size";
+  //chunk headers written, overhead of the chunk size in use
+  public static final String RTMP_HEADER_BYTES = "rtmp.header_bytes";
+  public static final String RTMP_AGGREGATES = "rtmp.aggregates";
+  //dts of last video tag sent minus dts of last audio tag sent and its max absolute value in ms,
+  //tags sent with a dts lower than the previous tag
+  public static final String RTMP_AV_SKEW = "rtmp.av_skew_ms";
+  public static final String RTMP_AV_SKEW_MAX = "rtmp.av_skew_max_ms";
+  public static final String RTMP_OUT_OF_ORDER = "rtmp.out_of_order";
+  //bytes waiting in the non blocking socket queue and times the high watermark was reached
+  public static final String RTMP_OUTBOUND_QUEUE = "rtmp.outbound_queue_bytes";
+  public static final String RTMP_WRITE_BLOCKED = "rtmp.write_blocked";
+  //from server acknowledgements, time from write to ack and bits per second received
+  public static final String RTMP_RTT = "rtmp.rtt_ms";
+  public static final String RTMP_DELIVERY_RATE = "rtmp.delivery_rate";
+
+  //rtsp
+  public static final String RTSP_VIDEO_SENT = "rtsp.video.sent";
+  public static final String RTSP_AUDIO_SENT = "rtsp.audio.sent";
+  public static final String RTSP_VIDEO_DROPPED = "rtsp.video.dropped";
+  public static final String RTSP_AUDIO_DROPPED = "rtsp.audio.dropped";
+  public static final String RTSP_WRITE_TIME = "rtsp.write_time_us";
+  public static final String RTSP_QUEUE_SIZE = "rtsp.queue_size";
+  public static final String RTSP_BITRATE = "rtsp.bitrate";
+
+  private MetricNames() {
+  }
+
+  /**
+   * Name of a video metric for a simulcast layer. Layer 0 (main encoder) use the plain name.
+   */
+  public static String forLayer(String name, int layer) {
+    return layer == 0 ? name : name + ".layer" + layer;
+  }
+
+  /**
+   * Name of a rtmp or rtsp metric for one stream, instance from
+   * {@link MetricsRegistry#newInstanceId()}. Metrics of an instance are removed from the registry
+   * while it is stopped, see {@link InstanceMetrics}.
+   */
+  public static String forInstance(String name, int instance) {
+    return name + ".stream" + instance;
+  }
+}
@@ -0,0 +1,10 @@
+package com.pedro.encoder.utils.metrics;
+
+/**
+ * Receive periodic snapshots from {@link MetricsRegistry#startExporting(MetricsExporter, long)}.
+ * Snapshot instance is reused between calls, copy what you need to keep.
+ */
+public interface MetricsExporter {
+
+  void export(MetricsSnapshot snapshot);
+}
@@ -0,0 +1,219 @@
+package com.pedro.encoder.utils.metrics;
+
+import android.util.Log;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Named counters, gauges and histograms shared by encoders, muxers, senders and rtplibrary.
+ * Metrics are created once (usually in a constructor) and then updated without locks or
+ * allocation. Muxers and senders register their metrics per instance
+ * ({@link MetricNames#forInstance(String, int)}) so streams never share or reset each other's
+ * counters, see {@link InstanceMetrics}. Names used by this library are in {@link MetricNames}.
+ */
+public final class MetricsRegistry {
+
+  private static final String TAG = "MetricsRegistry";
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+  private static final AtomicInteger INSTANCE_IDS = new AtomicInteger();
+
+  //copy on write, only replaced when a metric is created
+  private volatile Counter[] counters = new Counter[0];
+  private volatile Gauge[] gauges = new Gauge[0];
+  private volatile Histogram[] histograms = new Histogram[0];
+  private Thread exportThread;
+
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return new id to register the metrics of a muxer, sender or connection with
+   * {@link MetricNames#forInstance(String, int)}.
+   */
+  public static int newInstanceId() {
+    return INSTANCE_IDS.incrementAndGet();
+  }
+
+  /**
+   * @return counter with that name, created if needed.
+   */
+  public synchronized Counter counter(String name) {
+    for (Counter counter : counters) {
+      if (counter.getName().equals(name)) return counter;
+    }
+    Counter counter = new Counter(name);
+    Counter[] newCounters = Arrays.copyOf(counters, counters.length + 1);
+    newCounters[counters.length] = counter;
+    counters = newCounters;
+    return counter;
+  }
+
+  /**
+   * @return gauge with that name, created if needed.
+   */
+  public synchronized Gauge gauge(String name) {
+    for (Gauge gauge : gauges) {
+      if (gauge.getName().equals(name)) return gauge;
+    }
+    Gauge gauge = new Gauge(name);
+    Gauge[] newGauges = Arrays.copyOf(gauges, gauges.length + 1);
+    newGauges[gauges.length] = gauge;
+    gauges = newGauges;
+    return gauge;
+  }
+
+  /**
+   * @param bounds upper bound of each bucket, ignored if the histogram already exists.
+   * @return histogram with that name, created if needed.
+   */
+  public synchronized Histogram histogram(String name, long[] bounds) {
+    for (Histogram histogram : histograms) {
+      if (histogram.getName().equals(name)) return histogram;
+    }
+    Histogram histogram = new Histogram(name, bounds);
+    Histogram[] newHistograms = Arrays.copyOf(histograms, histograms.length + 1);
+    newHistograms[histograms.length] = histogram;
+    histograms = newHistograms;
+    return histogram;
+  }
+
+  /**
+   * Add back metrics removed by {@link #remove}. A metric whose name is registered again in
+   * between is not added.
+   */
+  synchronized void add(Counter[] addCounters, Gauge[] addGauges, Histogram[] addHistograms) {
+    for (Counter counter : addCounters) {
+      if (indexOf(counters, counter.getName()) == -1) counters = append(counters, counter);
+    }
+    for (Gauge gauge : addGauges) {
+      if (indexOf(gauges, gauge.getName()) == -1) gauges = append(gauges, gauge);
+    }
+    for (Histogram histogram : addHistograms) {
+      if (indexOf(histograms, histogram.getName()) == -1) {
+        histograms = append(histograms, histogram);
+      }
+    }
+  }
+
+  /**
+   * Remove metrics from snapshots, null arrays are ignored. See {@link InstanceMetrics}.
+   */
+  synchronized void remove(Counter[] removeCounters, Gauge[] removeGauges,
+      Histogram[] removeHistograms) {
+    if (removeCounters != null) counters = without(counters, removeCounters);
+    if (removeGauges != null) gauges = without(gauges, removeGauges);
+    if (removeHistograms != null) histograms = without(histograms, removeHistograms);
+  }
+
+  private static int indexOf(Object[] metrics, String name) {
+    for (int i = 0; i < metrics.length; i++) {
+      if (getName(metrics[i]).equals(name)) return i;
+    }
+    return -1;
+  }
+
+  private static String getName(Object metric) {
+    if (metric instanceof Counter) return ((Counter) metric).getName();
+    if (metric instanceof Gauge) return ((Gauge) metric).getName();
+    return ((Histogram) metric).getName();
+  }
+
+  private static <T> T[] append(T[] metrics, T metric) {
+    T[] newMetrics = Arrays.copyOf(metrics, metrics.length + 1);
+    newMetrics[metrics.length] = metric;
+    return newMetrics;
+  }
+
+  private static <T> T[] without(T[] metrics, T[] removed) {
+    T[] newMetrics = Arrays.copyOf(metrics, metrics.length);
+    int size = 0;
+    for (T metric : metrics) {
+      boolean keep = true;
+      for (T removedMetric : removed) {
+        if (metric == removedMetric) {
+          keep = false;
+          break;
+        }
+      }
+      if (keep) newMetrics[size++] = metric;
+    }
+    return size == metrics.length ? metrics : Arrays.copyOf(newMetrics, size);
+  }
+
+  /**
+   * Copy every metric value. Each value is read atomically but the snapshot as a whole is not.
+   *
+   * @param snapshot instance to fill, reuse it to avoid allocations. Null to create a new one.
+   */
+  public MetricsSnapshot snapshot(MetricsSnapshot snapshot) {
+    if (snapshot == null) snapshot = new MetricsSnapshot();
+    Counter[] counters = this.counters;
+    Gauge[] gauges = this.gauges;
+    Histogram[] histograms = this.histograms;
+    snapshot.ensureCapacity(counters.length, gauges.length, histograms);
+    snapshot.timestampNs = System.nanoTime();
+    snapshot.counterCount = counters.length;
+    for (int i = 0; i < counters.length; i++) {
+      snapshot.counterNames[i] = counters[i].getName();
+      snapshot.counterValues[i] = counters[i].get();
+    }
+    snapshot.gaugeCount = gauges.length;
+    for (int i = 0; i < gauges.length; i++) {
+      snapshot.gaugeNames[i] = gauges[i].getName();
+      snapshot.gaugeValues[i] = gauges[i].get();
+    }
+    snapshot.histogramCount = histograms.length;
+    for (int i = 0; i < histograms.length; i++) {
+      Histogram histogram = histograms[i];
+      snapshot.histogramNames[i] = histogram.getName();
+      histogram.copyBuckets(snapshot.histogramBuckets[i]);
+      snapshot.histogramCounts[i] = histogram.getCount();
+      snapshot.histogramSums[i] = histogram.getSum();
+      snapshot.histogramMaxs[i] = histogram.getMax();
+    }
+    return snapshot;
+  }
+
+  public void resetAll() {
+    for (Counter counter : counters) counter.reset();
+    for (Gauge gauge : gauges) gauge.reset();
+    for (Histogram histogram : histograms) histogram.reset();
+  }
+
+  /**
+   * Call exporter with a new snapshot every periodMs in a background thread. Replace previous
+   * exporter if any.
+   */
+  public synchronized void startExporting(final MetricsExporter exporter, final long periodMs) {
+    stopExporting();
+    exportThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        while (!Thread.interrupted()) {
+          try {
+            Thread.sleep(periodMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          try {
+            exporter.export(snapshot(snapshot));
+          } catch (RuntimeException e) {
+            Log.e(TAG, "export error: ", e);
+          }
+        }
+      }
+    }, TAG);
+    exportThread.setDaemon(true);
+    exportThread.start();
+  }
+
+  public synchronized void stopExporting() {
+    if (exportThread != null) {
+      exportThread.interrupt();
+      exportThread = null;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.pedro.encoder.utils.metrics;
+
+/**
+ * Point in time copy of every metric in a {@link MetricsRegistry}. Filled by
+ * {@link MetricsRegistry#snapshot(MetricsSnapshot)}, arrays are only reallocated when metrics
+ * were added since last snapshot so polling with the same instance doesn't allocate.
+ */
+public final class MetricsSnapshot {
+
+  long timestampNs;
+  int counterCount;
+  String[] counterNames = new String[0];
+  long[] counterValues = new long[0];
+  int gaugeCount;
+  String[] gaugeNames = new String[0];
+  long[] gaugeValues = new long[0];
+  int histogramCount;
+  String[] histogramNames = new String[0];
+  long[][] histogramBounds = new long[0][];
+  long[][] histogramBuckets = new long[0][];
+  long[] histogramCounts = new long[0];
+  long[] histogramSums = new long[0];
+  long[] histogramMaxs = new long[0];
+
+  /**
+   * @return System.nanoTime() when the snapshot was taken.
+   */
+  public long getTimestampNs() {
+    return timestampNs;
+  }
+
+  public int getCounterCount() {
+    return counterCount;
+  }
+
+  public String getCounterName(int index) {
+    return counterNames[index];
+  }
+
+  public long getCounterValue(int index) {
+    return counterValues[index];
+  }
+
+  /**
+   * @return counter value or 0 if there is no counter with that name.
+   */
+  public long getCounterValue(String name) {
+    for (int i = 0; i < counterCount; i++) {
+      if (counterNames[i].equals(name)) return counterValues[i];
+    }
+    return 0;
+  }
+
+  public int getGaugeCount() {
+    return gaugeCount;
+  }
+
+  public String getGaugeName(int index) {
+    return gaugeNames[index];
+  }
+
+  public long getGaugeValue(int index) {
+    return gaugeValues[index];
+  }
+
+  /**
+   * @return gauge value or 0 if there is no gauge with that name.
+   */
+  public long getGaugeValue(String name) {
+    for (int i = 0; i < gaugeCount; i++) {
+      if (gaugeNames[i].equals(name)) return gaugeValues[i];
+    }
+    return 0;
+  }
+
+  public int getHistogramCount() {
+    return histogramCount;
+  }
+
+  public String getHistogramName(int index) {
+    return histogramNames[index];
+  }
+
+  public long getHistogramSamples(int index) {
+    return histogramCounts[index];
+  }
+
+  public long getHistogramSum(int index) {
+    return histogramSums[index];
+  }
+
+  public long getHistogramMax(int index) {
+    return histogramMaxs[index];
+  }
+
+  public long getHistogramMean(int index) {
+    return histogramCounts[index] == 0 ? 0 : histogramSums[index] / histogramCounts[index];
+  }
+
+  /**
+   * Values are only known by bucket, so the percentile is the upper bound of the bucket where it
+   * falls (max recorded value for the overflow bucket).
+   *
+   * @param percentile from 0 to 100.
+   */
+  public long getHistogramPercentile(int index, double percentile) {
+    long count = histogramCounts[index];
+    if (count == 0) return 0;
+    long[] bounds = histogramBounds[index];
+    long[] buckets = histogramBuckets[index];
+    long target = (long) Math.ceil(count * percentile / 100.0);
+    long accumulated = 0;
+    for (int i = 0; i < bounds.length; i++) {
+      accumulated += buckets[i];
+      if (accumulated >= target) {
+        return Math.min(bounds[i], histogramMaxs[index]);
+      }
+    }
+    return histogramMaxs[index];
+  }
+
+  void ensureCapacity(int counters, int gauges, Histogram[] histograms) {
+    if (counterNames.length < counters) {
+      counterNames = new String[counters];
+      counterValues = new long[counters];
+    }
+    if (gaugeNames.length < gauges) {
+      gaugeNames = new String[gauges];
+      gaugeValues = new long[gauges];
+    }
+    int size = histograms.length;
+    if (histogramNames.length < size) {
+      histogramNames = new String[size];
+      histogramBounds = new long[size][];
+      histogramBuckets = new long[size][];
+      histogramCounts = new long[size];
+      histogramSums = new long[size];
+      histogramMaxs = new long[size];
+    }
+    for (int i = 0; i < size; i++) {
+      if (histogramBounds[i] != histograms[i].getBounds()) {
+        histogramBounds[i] = histograms[i].getBounds();
+        histogramBuckets[i] = new long[histograms[i].getBucketCount()];
+      }
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package com.pedro.encoder.utils.trace;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional per frame timestamps from capture to socket. Each stamp is frame pts in ms, track,
+ * stage and System.nanoTime() written to a preallocated ring so recording is an atomic increment
+ * and four array writes. When disabled a stamp is a single volatile read.
+ *
+ * Surface encoders have no capture stamp, their trace starts at encoder output.
+ * Export with {@link #writeChromeTrace(Writer)} and open in chrome://tracing or Perfetto.
+ */
+public final class FrameTracer {
+
+  public enum Stage {
+    //frame received from camera or microphone
+    CAPTURE,
+    //output buffer dequeued from MediaCodec
+    ENCODED,
+    //frame received by flv muxer or rtp packetizer
+    MUXED,
+    //added to sender queue
+    ENQUEUED,
+    //taken from sender queue
+    DEQUEUED,
+    //socket write returned
+    SENT
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+  private static volatile FrameTracer instance;
+
+  private final int mask;
+  private final long[] times;
+  private final long[] ptsList;
+  private final byte[] stages;
+  private final boolean[] videoTracks;
+  private final AtomicLong next = new AtomicLong();
+
+  private FrameTracer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2));
+    if (size < capacity) size <<= 1;
+    mask = size - 1;
+    times = new long[size];
+    ptsList = new long[size];
+    stages = new byte[size];
+    videoTracks = new boolean[size];
+  }
+
+  /**
+   * Start tracing, older stamps are overwritten when the ring is full.
+   *
+   * @param capacity number of stamps kept, 6 per frame. 65536 keep about 2 minutes of 30fps video
+   * with audio.
+   */
+  public static void enable(int capacity) {
+    instance = new FrameTracer(capacity);
+  }
+
+  public static void disable() {
+    instance = null;
+  }
+
+  public static boolean isEnabled() {
+    return instance != null;
+  }
+
+  /**
+   * @return current tracer, null if disabled.
+   */
+  public static FrameTracer getInstance() {
+    return instance;
+  }
+
+  public static void trace(Stage stage, boolean isVideo, long ptsMs) {
+    FrameTracer tracer = instance;
+    if (tracer != null) tracer.record(stage, isVideo, ptsMs, System.nanoTime());
+  }
+
+  /**
+   * @param timeNs System.nanoTime() when the stage happened.
+   */
+  public static void trace(Stage stage, boolean isVideo, long ptsMs, long timeNs) {
+    FrameTracer tracer = instance;
+    if (tracer != null) tracer.record(stage, isVideo, ptsMs, timeNs);
+  }
+
+  private void record(Stage stage, boolean isVideo, long ptsMs, long timeNs) {
+    int index = (int) next.getAndIncrement() & mask;
+    times[index] = timeNs;
+    ptsList[index] = ptsMs;
+    stages[index] = (byte) stage.ordinal();
+    videoTracks[index] = isVideo;
+  }
+
+  public void clear() {
+    next.set(0);
+  }
+
+  /**
+   * Write stamps as Chrome trace event JSON. Every pair of consecutive stages of the same frame
+   * is a complete event (for example ENCODED-MUXED). Each pair has its own lane (tid), video
+   * lanes are 1 to 5 and audio lanes 11 to 15, so frames in flight at the same time don't overlap.
+   * Stamps recorded while writing could be partially read, call
+   * {@link #disable()} first for an exact trace.
+   */
+  public void writeChromeTrace(Writer writer) throws IOException {
+    long recorded = next.get();
+    int count = (int) Math.min(recorded, times.length);
+    Integer[] order = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = (int) (recorded - count + i) & mask;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if (videoTracks[a] != videoTracks[b]) return videoTracks[a] ? -1 : 1;
+        if (ptsList[a] != ptsList[b]) return ptsList[a] < ptsList[b] ? -1 : 1;
+        if (times[a] != times[b]) return times[a] < times[b] ? -1 : 1;
+        return stages[a] - stages[b];
+      }
+    });
+    long origin = Long.MAX_VALUE;
+    for (int i = 0; i < count; i++) {
+      origin = Math.min(origin, times[order[i]]);
+    }
+    writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    boolean first = true;
+    for (int i = 1; i < count; i++) {
+      int previous = order[i - 1];
+      int current = order[i];
+      if (videoTracks[previous] != videoTracks[current] || ptsList[previous] != ptsList[current]
+          || stages[previous] >= stages[current]) {
+        continue;
+      }
+      if (!first) writer.write(',');
+      first = false;
+      writer.write("{\"name\":\"");
+      writer.write(STAGES[stages[previous]].name());
+      writer.write('-');
+      writer.write(STAGES[stages[current]].name());
+      writer.write("\",\"cat\":\"");
+      writer.write(videoTracks[current] ? "video" : "audio");
+      writer.write("\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+      writer.write(String.valueOf((videoTracks[current] ? 0 : 10) + stages[current]));
+      writer.write(",\"ts\":");
+      writer.write(String.valueOf((times[previous] - origin) / 1000));
+      writer.write(",\"dur\":");
+      writer.write(String.valueOf((times[current] - times[previous]) / 1000));
+      writer.write(",\"args\":{\"pts\":");
+      writer.write(String.valueOf(ptsList[current]));
+      writer.write("}}");
+    }
+    writer.write("]}");
+    writer.flush();
+  }
+}
@@ -18,6 +18,10 @@ import com.pedro.encoder.Frame;
 import com.pedro.encoder.input.video.FpsLimiter;
 import com.pedro.encoder.input.video.GetCameraData;
 import com.pedro.encoder.utils.CodecUtil;
+import com.pedro.encoder.utils.NalUnitScanner;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import com.pedro.encoder.utils.trace.FrameTracer;
 import com.pedro.encoder.utils.yuv.YUVUtil;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -57,7 +61,21 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
   private BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(80);
 
   public VideoEncoder(GetVideoData getVideoData) {
+    this(getVideoData, 0);
+  }
+
+  /**
+   * @param layer simulcast layer index, used to register metrics of each layer separately.
+   * 0 is the main encoder.
+   */
+  public VideoEncoder(GetVideoData getVideoData, int layer) {
     this.getVideoData = getVideoData;
+    isVideo = true;
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    encodeTime = registry.histogram(MetricNames.forLayer(MetricNames.VIDEO_ENCODE_TIME, layer),
+        MetricNames.LATENCY_BUCKETS);
+    frameSize = registry.histogram(MetricNames.forLayer(MetricNames.VIDEO_FRAME_SIZE, layer),
+        MetricNames.SIZE_BUCKETS);
   }
 
   public boolean prepareVideoEncoder(int width, int height, int fps, int bitRate, int rotation,
@@ -78,6 +96,7 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
     this.bitRate = bitRate;
     this.rotation = rotation;
     this.hardwareRotation = hardwareRotation;
+    this.iFrameInterval = iFrameInterval;
     this.formatVideoEncoder = formatVideoEncoder;
     this.avcProfile = avcProfile;
     this.avcProfileLevel = avcProfileLevel;
@@ -281,6 +300,10 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
     return bitRate;
   }
 
+  public int getIFrameInterval() {
+    return iFrameInterval;
+  }
+
   public String getType() {
     return type;
   }
@@ -291,6 +314,7 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
 
   @Override
   public void inputYUVData(Frame frame) {
+    if (FrameTracer.isEnabled()) frame.setCaptureTimeNs(System.nanoTime());
     if (running && !queue.offer(frame)) {
       Log.i(TAG, "frame discarded");
     }
@@ -344,33 +368,30 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
    * decode sps and pps if the encoder never call to MediaCodec.INFO_OUTPUT_FORMAT_CHANGED
    */
   private Pair<ByteBuffer, ByteBuffer> decodeSpsPpsFromBuffer(ByteBuffer outputBuffer, int length) {
-    byte[] mSPS = null, mPPS = null;
-    byte[] csd = new byte[length];
-    outputBuffer.get(csd, 0, length);
-    int i = 0;
-    int spsIndex = -1;
-    int ppsIndex = -1;
-    while (i < length - 4) {
-      if (csd[i] == 0 && csd[i + 1] == 0 && csd[i + 2] == 0 && csd[i + 3] == 1) {
-        if (spsIndex == -1) {
-          spsIndex = i;
-        } else {
-          ppsIndex = i;
-          break;
-        }
-      }
-      i++;
-    }
-    if (spsIndex != -1 && ppsIndex != -1) {
-      mSPS = new byte[ppsIndex];
-      System.arraycopy(csd, spsIndex, mSPS, 0, ppsIndex);
-      mPPS = new byte[length - ppsIndex];
-      System.arraycopy(csd, ppsIndex, mPPS, 0, length - ppsIndex);
-    }
-    if (mSPS != null && mPPS != null) {
-      return new Pair<>(ByteBuffer.wrap(mSPS), ByteBuffer.wrap(mPPS));
+    int start = outputBuffer.position();
+    int end = start + length;
+    int spsIndex = findLongStartCode(outputBuffer, start, end);
+    int ppsIndex = spsIndex == -1 ? -1 : findLongStartCode(outputBuffer, spsIndex + 4, end);
+    if (spsIndex == -1 || ppsIndex == -1) return null;
+    byte[] mSPS = new byte[ppsIndex - spsIndex];
+    outputBuffer.position(spsIndex);
+    outputBuffer.get(mSPS);
+    byte[] mPPS = new byte[end - ppsIndex];
+    outputBuffer.get(mPPS);
+    return new Pair<>(ByteBuffer.wrap(mSPS), ByteBuffer.wrap(mPPS));
+  }
+
+  /**
+   * @return offset of next 00 00 00 01 start code or -1 if not found.
+   */
+  private int findLongStartCode(ByteBuffer buffer, int from, int to) {
+    int startCode = NalUnitScanner.findStartCode(buffer, from, to);
+    while (startCode != -1) {
+      int begin = NalUnitScanner.getStartCodeBegin(buffer, from, startCode);
+      if (begin < startCode) return begin;
+      startCode = NalUnitScanner.findStartCode(buffer, startCode + 3, to);
     }
-    return null;
+    return -1;
   }
 
   /**
@@ -382,27 +403,10 @@ public class VideoEncoder extends BaseEncoder implements GetCameraData {
    */
   private List<ByteBuffer> extractVpsSpsPpsFromH265(ByteBuffer csd0byteBuffer) {
     List<ByteBuffer> byteBufferList = new ArrayList<>();
-    int vpsPosition = -1;
-    int spsPosition = -1;
-    int ppsPosition = -1;
-    int contBufferInitiation = 0;
     byte[] csdArray = csd0byteBuffer.array();
-    for (int i = 0; i < csdArray.length; i++) {
-      if (contBufferInitiation == 3 && csdArray[i] == 1) {
-        if (vpsPosition == -1) {
-          vpsPosition = i - 3;
-        } else if (spsPosition == -1) {
-          spsPosition = i - 3;
-        } else {
-          ppsPosition = i - 3;
-        }
-      }
-      if (csdArray[i] == 0) {
-        contBufferInitiation++;
-      } else {
-        contBufferInitiation = 0;
-      }
-    }
+    int vpsPosition = findLongStartCode(csd0byteBuffer, 0, csdArray.length);
+    int spsPosition = findLongStartCode(csd0byteBuffer, vpsPosition + 4, csdArray.length);
+    int ppsPosition = findLongStartCode(csd0byteBuffer, spsPosition + 4, csdArray.length);
     byte[] vps = new byte[spsPosition];
     byte[] sps = new byte[ppsPosition - spsPosition];
     byte[] pps = new byte[csdArray.length - ppsPosition];
@@ -0,0 +1,152 @@
+package com.pedro.encoder.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks start code search against a byte by byte scan and measures throughput on a 1080p IDR
+ * sized access unit.
+ */
+public class NalUnitScannerTest {
+
+  //typical 1080p IDR frame at 4-6 Mbps
+  private static final int IDR_SIZE = 200 * 1024;
+  private static final int ITERATIONS = 2000;
+
+  @Test
+  public void splitFindsThreeAndFourBytesStartCodes() {
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {
+        0, 0, 0, 1, 0x09, 0x10,
+        0, 0, 1, 0x67, 1, 2, 3,
+        0, 0, 0, 1, 0x68, 4,
+        0, 0, 1, 0x65, 5, 6, 7, 8, 9, 10, 11, 12
+    });
+    int[] offsets = new int[8];
+    int[] sizes = new int[8];
+
+    int count = NalUnitScanner.split(buffer, 0, buffer.limit(), offsets, sizes);
+
+    assertEquals(4, count);
+    assertEquals(4, offsets[0]);
+    assertEquals(2, sizes[0]);
+    assertEquals(9, offsets[1]);
+    assertEquals(4, sizes[1]);
+    assertEquals(17, offsets[2]);
+    assertEquals(2, sizes[2]);
+    assertEquals(22, offsets[3]);
+    assertEquals(9, sizes[3]);
+    assertEquals(0, buffer.position());
+  }
+
+  @Test
+  public void startCodeAtEveryAlignmentIsFound() {
+    for (int offset = 0; offset < 24; offset++) {
+      byte[] data = new byte[40];
+      for (int i = 0; i < data.length; i++) data[i] = (byte) 0xAA;
+      data[offset] = 0;
+      data[offset + 1] = 0;
+      data[offset + 2] = 1;
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      assertEquals(offset, NalUnitScanner.findStartCode(buffer, 0, data.length));
+      //start code cut by the end of the range
+      assertEquals(-1, NalUnitScanner.findStartCode(buffer, 0, offset + 2));
+    }
+  }
+
+  @Test
+  public void matchesByteByByteScanOnRandomData() {
+    Random random = new Random(42);
+    for (int n = 0; n < 200; n++) {
+      byte[] data = new byte[random.nextInt(300) + 1];
+      for (int i = 0; i < data.length; i++) {
+        //lots of zeros so start codes and near misses are frequent
+        data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(256));
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      int from = random.nextInt(data.length);
+      assertEquals(byteByByte(buffer, from, data.length),
+          NalUnitScanner.findStartCode(buffer, from, data.length));
+    }
+  }
+
+  @Test
+  public void benchmarkIdrFrame() {
+    ByteBuffer frame = createIdrFrame();
+    int[] offsets = new int[32];
+    int[] sizes = new int[32];
+    int expected = NalUnitScanner.split(frame, 0, frame.limit(), offsets, sizes);
+    assertEquals(8, expected);
+
+    long sink = 0;
+    for (int i = 0; i < ITERATIONS / 4; i++) {
+      sink += NalUnitScanner.split(frame, 0, frame.limit(), offsets, sizes);
+      sink += splitByteByByte(frame, offsets, sizes);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += NalUnitScanner.split(frame, 0, frame.limit(), offsets, sizes);
+    }
+    long wordNs = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += splitByteByByte(frame, offsets, sizes);
+    }
+    long byteNs = System.nanoTime() - start;
+
+    long bytes = (long) frame.limit() * ITERATIONS;
+    System.out.println("NalUnitScanner: " + bytes * 1000 / wordNs + " MB/s, byte by byte: "
+        + bytes * 1000 / byteNs + " MB/s (" + sink + ")");
+    assertEquals(expected * (ITERATIONS / 2 + 2 * ITERATIONS), sink);
+  }
+
+  /**
+   * AUD, SPS, PPS, SEI and 4 slices, payload without emulated start codes like an encoder output.
+   */
+  private static ByteBuffer createIdrFrame() {
+    Random random = new Random(7);
+    ByteBuffer frame = ByteBuffer.allocateDirect(IDR_SIZE);
+    int[] nalTypes = { 0x09, 0x67, 0x68, 0x06, 0x65, 0x65, 0x65, 0x65 };
+    int[] nalSizes = { 2, 20, 6, 30, 0, 0, 0, 0 };
+    int sliceSize = (IDR_SIZE - 8 * 4 - 58) / 4;
+    for (int n = 0; n < nalTypes.length; n++) {
+      frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+      frame.put((byte) nalTypes[n]);
+      int size = (nalSizes[n] == 0 ? sliceSize : nalSizes[n]) - 1;
+      int zeros = 0;
+      for (int i = 0; i < size; i++) {
+        byte value = (byte) random.nextInt(256);
+        if (zeros >= 2 && (value & 0xFF) <= 3) value = 3;
+        zeros = value == 0 ? zeros + 1 : 0;
+        frame.put(value);
+      }
+    }
+    frame.flip();
+    return frame;
+  }
+
+  private static int byteByByte(ByteBuffer buffer, int from, int to) {
+    for (int i = from; i + 2 < to; i++) {
+      if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) return i;
+    }
+    return -1;
+  }
+
+  private static int splitByteByByte(ByteBuffer buffer, int[] offsets, int[] sizes) {
+    int count = 0;
+    int to = buffer.limit();
+    int startCode = byteByByte(buffer, 0, to);
+    while (startCode != -1 && count < offsets.length) {
+      int nalUnit = startCode + 3;
+      int next = byteByByte(buffer, nalUnit, to);
+      int end = next == -1 ? to : next;
+      offsets[count] = nalUnit;
+      sizes[count] = end - nalUnit;
+      count++;
+      startCode = next;
+    }
+    return count;
+  }
+}
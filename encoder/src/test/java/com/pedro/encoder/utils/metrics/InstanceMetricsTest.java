@@ -0,0 +1,63 @@
+package com.pedro.encoder.utils.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Metrics of a stopped instance leave the registry, come back with their values when it starts
+ * again, and metrics of other instances are never touched.
+ */
+public class InstanceMetricsTest {
+
+  @Test
+  public void unregisterRemovesOnlyThisInstance() {
+    MetricsRegistry registry = new MetricsRegistry();
+    InstanceMetrics stopped = new InstanceMetrics(registry);
+    InstanceMetrics running = new InstanceMetrics(registry);
+    Counter sent = stopped.counter(MetricNames.RTMP_VIDEO_SENT);
+    stopped.gauge(MetricNames.RTMP_CACHE_SIZE);
+    stopped.histogram(MetricNames.RTMP_WRITE_TIME, MetricNames.LATENCY_BUCKETS);
+    running.counter(MetricNames.RTMP_VIDEO_SENT);
+    sent.add(5);
+
+    stopped.unregister();
+    MetricsSnapshot snapshot = registry.snapshot(null);
+    assertEquals(1, snapshot.getCounterCount());
+    assertEquals(MetricNames.forInstance(MetricNames.RTMP_VIDEO_SENT, running.getId()),
+        snapshot.getCounterName(0));
+    assertEquals(0, snapshot.getGaugeCount());
+    assertEquals(0, snapshot.getHistogramCount());
+
+    //updates while unregistered are kept
+    sent.increment();
+    stopped.register();
+    snapshot = registry.snapshot(snapshot);
+    assertEquals(2, snapshot.getCounterCount());
+    assertEquals(1, snapshot.getGaugeCount());
+    assertEquals(1, snapshot.getHistogramCount());
+    assertEquals(6, snapshot.getCounterValue(
+        MetricNames.forInstance(MetricNames.RTMP_VIDEO_SENT, stopped.getId())));
+  }
+
+  @Test
+  public void metricCreatedWhileUnregisteredStaysOut() {
+    MetricsRegistry registry = new MetricsRegistry();
+    InstanceMetrics metrics = new InstanceMetrics(registry);
+    Gauge gauge = metrics.gauge(MetricNames.RTMP_OUTBOUND_QUEUE);
+    metrics.unregister();
+    //transport created on each connect asks for its metrics again
+    assertSame(gauge, metrics.gauge(MetricNames.RTMP_OUTBOUND_QUEUE));
+    Counter counter = metrics.counter(MetricNames.RTMP_WRITE_BLOCKED);
+    assertEquals(0, registry.snapshot(null).getGaugeCount());
+    assertEquals(0, registry.snapshot(null).getCounterCount());
+
+    metrics.register();
+    metrics.register();
+    MetricsSnapshot snapshot = registry.snapshot(null);
+    assertEquals(1, snapshot.getGaugeCount());
+    assertEquals(1, snapshot.getCounterCount());
+    assertEquals(counter.getName(), snapshot.getCounterName(0));
+  }
+}
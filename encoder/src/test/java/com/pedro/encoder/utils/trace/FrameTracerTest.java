@@ -0,0 +1,185 @@
+package com.pedro.encoder.utils.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Chrome trace export: JSON shape, stamps paired by track, pts and stage whatever the order they
+ * were recorded, only the newest stamps once the ring wraps, and the cost of a stamp with tracing
+ * enabled and disabled.
+ */
+public class FrameTracerTest {
+
+  private static final String PREFIX = "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[";
+  private static final String SUFFIX = "]}";
+  private static final Pattern EVENT = Pattern.compile("\\{\"name\":\"([A-Z]+)-([A-Z]+)\","
+      + "\"cat\":\"(video|audio)\",\"ph\":\"X\",\"pid\":1,\"tid\":(\\d+),\"ts\":(\\d+),"
+      + "\"dur\":(\\d+),\"args\":\\{\"pts\":(\\d+)\\}\\}");
+  private static final int ITERATIONS = 10000000;
+
+  @After
+  public void tearDown() {
+    FrameTracer.disable();
+  }
+
+  @Test
+  public void everyStagePairIsACompleteEvent() throws IOException {
+    FrameTracer.enable(64);
+    FrameTracer.Stage[] stages = FrameTracer.Stage.values();
+    for (int i = 0; i < stages.length; i++) {
+      FrameTracer.trace(stages[i], true, 40, us(1000 + i * 100));
+    }
+    FrameTracer.trace(FrameTracer.Stage.ENCODED, false, 23, us(1050));
+    FrameTracer.trace(FrameTracer.Stage.SENT, false, 23, us(1250));
+
+    List<String[]> events = parse(write());
+
+    //5 video pairs and 1 audio pair
+    assertEquals(stages.length, events.size());
+    for (int i = 0; i < stages.length - 1; i++) {
+      String[] event = events.get(i);
+      assertEquals(stages[i].name(), event[0]);
+      assertEquals(stages[i + 1].name(), event[1]);
+      assertEquals("video", event[2]);
+      //lane of the later stage
+      assertEquals(String.valueOf(i + 1), event[3]);
+      //relative to the first stamp, in us
+      assertEquals(String.valueOf(i * 100), event[4]);
+      assertEquals("100", event[5]);
+      assertEquals("40", event[6]);
+    }
+    //stages not traced are skipped, audio lanes after video lanes
+    String[] audio = events.get(stages.length - 1);
+    assertEquals("ENCODED", audio[0]);
+    assertEquals("SENT", audio[1]);
+    assertEquals("audio", audio[2]);
+    assertEquals(String.valueOf(10 + FrameTracer.Stage.SENT.ordinal()), audio[3]);
+    assertEquals("50", audio[4]);
+    assertEquals("200", audio[5]);
+    assertEquals("23", audio[6]);
+  }
+
+  @Test
+  public void stampsArePairedByTrackAndPts() throws IOException {
+    FrameTracer.enable(64);
+    //two video frames in flight and an audio frame with the same pts, recorded interleaved
+    FrameTracer.trace(FrameTracer.Stage.ENCODED, true, 33, us(2000));
+    FrameTracer.trace(FrameTracer.Stage.ENCODED, true, 0, us(1000));
+    FrameTracer.trace(FrameTracer.Stage.MUXED, false, 0, us(1600));
+    FrameTracer.trace(FrameTracer.Stage.SENT, true, 33, us(2900));
+    FrameTracer.trace(FrameTracer.Stage.MUXED, true, 0, us(1500));
+    FrameTracer.trace(FrameTracer.Stage.ENCODED, false, 0, us(1100));
+    FrameTracer.trace(FrameTracer.Stage.SENT, true, 0, us(2500));
+    FrameTracer.trace(FrameTracer.Stage.MUXED, true, 33, us(2100));
+    //same stage twice is not a pair
+    FrameTracer.trace(FrameTracer.Stage.MUXED, true, 33, us(2200));
+
+    List<String[]> events = parse(write());
+
+    assertEquals(5, events.size());
+    assertEvent(events.get(0), "ENCODED-MUXED", "video", 0, 0, 500);
+    assertEvent(events.get(1), "MUXED-SENT", "video", 0, 500, 1000);
+    assertEvent(events.get(2), "ENCODED-MUXED", "video", 33, 1000, 100);
+    assertEvent(events.get(3), "MUXED-SENT", "video", 33, 1200, 700);
+    assertEvent(events.get(4), "ENCODED-MUXED", "audio", 0, 100, 500);
+  }
+
+  @Test
+  public void onlyNewestStampsAreWrittenAfterWrap() throws IOException {
+    FrameTracer.enable(8);
+    //6 frames of ENCODED and SENT, first 2 frames overwritten
+    for (int i = 0; i < 6; i++) {
+      FrameTracer.trace(FrameTracer.Stage.ENCODED, true, i * 10, us(1000 + i * 1000));
+      FrameTracer.trace(FrameTracer.Stage.SENT, true, i * 10, us(1400 + i * 1000));
+    }
+
+    List<String[]> events = parse(write());
+
+    assertEquals(4, events.size());
+    for (int i = 0; i < 4; i++) {
+      //origin is the oldest stamp kept
+      assertEvent(events.get(i), "ENCODED-SENT", "video", (i + 2) * 10, i * 1000, 400);
+    }
+
+    FrameTracer.getInstance().clear();
+    assertEquals(PREFIX + SUFFIX, write());
+  }
+
+  @Test
+  public void benchmarkTraceEnabledAndDisabled() {
+    FrameTracer.disable();
+    long disabledNs = timeTrace();
+    FrameTracer.enable(65536);
+    long enabledNs = timeTrace();
+    assertNotNull(FrameTracer.getInstance());
+
+    System.out.println("FrameTracer.trace: " + (double) disabledNs / ITERATIONS
+        + " ns/stamp disabled, " + (double) enabledNs / ITERATIONS + " ns/stamp enabled");
+    //a volatile read, far below a packet write
+    assertTrue(disabledNs / ITERATIONS < 100);
+  }
+
+  private static long timeTrace() {
+    FrameTracer.Stage[] stages = FrameTracer.Stage.values();
+    //warm up
+    for (int i = 0; i < ITERATIONS; i++) {
+      FrameTracer.trace(stages[i % stages.length], (i & 1) == 0, i, i);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      FrameTracer.trace(stages[i % stages.length], (i & 1) == 0, i, i);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long us(long us) {
+    return us * 1000;
+  }
+
+  private static String write() throws IOException {
+    StringWriter writer = new StringWriter();
+    FrameTracer.getInstance().writeChromeTrace(writer);
+    return writer.toString();
+  }
+
+  /**
+   * @return name parts, category, tid, ts, dur and pts of each event. Fails if anything else is
+   * written.
+   */
+  private static List<String[]> parse(String json) {
+    assertTrue(json, json.startsWith(PREFIX) && json.endsWith(SUFFIX));
+    String body = json.substring(PREFIX.length(), json.length() - SUFFIX.length());
+    List<String[]> events = new ArrayList<>();
+    Matcher matcher = EVENT.matcher(body);
+    int end = 0;
+    while (matcher.find()) {
+      assertEquals(body, end == 0 ? 0 : end + 1, matcher.start());
+      if (end > 0) assertEquals(',', body.charAt(end));
+      end = matcher.end();
+      String[] event = new String[7];
+      for (int i = 0; i < event.length; i++) event[i] = matcher.group(i + 1);
+      events.add(event);
+    }
+    assertEquals(body, body.length(), end);
+    return events;
+  }
+
+  private static void assertEvent(String[] event, String name, String category, long pts,
+      long ts, long dur) {
+    assertEquals(name, event[0] + "-" + event[1]);
+    assertEquals(category, event[2]);
+    assertEquals(String.valueOf(ts), event[4]);
+    assertEquals(String.valueOf(dur), event[5]);
+    assertEquals(String.valueOf(pts), event[6]);
+  }
+}
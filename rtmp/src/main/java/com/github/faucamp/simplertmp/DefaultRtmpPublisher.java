@@ -8,12 +8,16 @@ import net.ossrs.rtmp.ConnectCheckerRtmp;
  *
  * @author francois, leoma, pedro
  */
-public class DefaultRtmpPublisher implements RtmpPublisher {
+public class DefaultRtmpPublisher implements ExtendedRtmpPublisher {
 
   protected RtmpConnection rtmpConnection;
 
   public DefaultRtmpPublisher(ConnectCheckerRtmp connectCheckerRtmp) {
-    rtmpConnection = new RtmpConnection(connectCheckerRtmp);
+    this(new RtmpConnection(connectCheckerRtmp));
+  }
+
+  protected DefaultRtmpPublisher(RtmpConnection rtmpConnection) {
+    this.rtmpConnection = rtmpConnection;
   }
 
   @Override
@@ -46,6 +50,11 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
     rtmpConnection.setVideoResolution(width, height);
   }
 
+  @Override
+  public void setHevc(boolean hevc) {
+    rtmpConnection.setHevc(hevc);
+  }
+
   @Override
   public void setAuthorization(String user, String password) {
     rtmpConnection.setAuthorization(user, password);
@@ -55,4 +64,34 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
   public void setSendBufferSize(int bufferSize) {
     rtmpConnection.setSendBufferSize(bufferSize);
   }
+
+  @Override
+  public void publishAggregateData(byte[] data, int size, int dts) {
+    rtmpConnection.publishAggregateData(data, size, dts);
+  }
+
+  @Override
+  public void setChunkSize(int chunkSize) {
+    rtmpConnection.setChunkSize(chunkSize);
+  }
+
+  @Override
+  public void setAdaptiveChunkSize(boolean enabled) {
+    rtmpConnection.setAdaptiveChunkSize(enabled);
+  }
+
+  @Override
+  public boolean isWritable() {
+    return rtmpConnection.isWritable();
+  }
+
+  @Override
+  public void setWritabilityListener(WritabilityListener writabilityListener) {
+    rtmpConnection.setWritabilityListener(writabilityListener);
+  }
+
+  @Override
+  public void setDeliveryListener(DeliveryListener deliveryListener) {
+    rtmpConnection.setDeliveryListener(deliveryListener);
+  }
 }
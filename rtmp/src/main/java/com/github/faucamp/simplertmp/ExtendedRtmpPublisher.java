@@ -0,0 +1,76 @@
+package com.github.faucamp.simplertmp;
+
+/**
+ * Optional features of a {@link RtmpPublisher}: aggregate messages, H265, chunk size,
+ * backpressure and server acknowledgements. SrsFlvMuxer use them only if its publisher
+ * implements this interface so custom publishers written against {@link RtmpPublisher} keep
+ * working without changes.
+ */
+public interface ExtendedRtmpPublisher extends RtmpPublisher {
+
+  /**
+   * Bytes received by the server according to its acknowledgements.
+   */
+  interface DeliveryListener {
+    /**
+     * Called from the socket read thread for each acknowledgement.
+     *
+     * @param ackedBytes bytes acknowledged since previous acknowledgement.
+     * @param deliveryRate smoothed bits per second received by the server, 0 if unknown yet.
+     * @param rtt smoothed time from write to acknowledgement in ms, 0 if unknown yet.
+     */
+    void onDelivery(long ackedBytes, long deliveryRate, long rtt);
+  }
+
+  /**
+   * Backpressure of publishers that don't block on writes.
+   */
+  interface WritabilityListener {
+    /**
+     * Called from the socket thread or the thread that publish when writability change.
+     *
+     * @param writable false when too many bytes are waiting to be sent, media should not be
+     * published until it is true again.
+     */
+    void onWritabilityChanged(boolean writable);
+  }
+
+  /**
+   * publish an aggregate message (type 22) to server
+   *
+   * @param data FLV tags, each one followed by its previous tag size
+   * @param size aggregate byte size (not the whole length of byte array)
+   * @param dts decoding timestamp of the first tag
+   */
+  void publishAggregateData(byte[] data, int size, int dts);
+
+  /**
+   * Announce H265 video using Enhanced RTMP (FourCC hvc1) in connect and metadata.
+   * Have to be called before connecting to a stream.
+   */
+  void setHevc(boolean hevc);
+
+  /**
+   * Outbound chunk size announced with SetChunkSize after connect. 4096 by default.
+   * Have to be called before connecting to a stream.
+   *
+   * @throws IllegalArgumentException if chunkSize is lower than 128 or too big.
+   */
+  void setChunkSize(int chunkSize);
+
+  /**
+   * Announce new chunk sizes while streaming according to the measured video frame sizes
+   * (between 4KB and 64KB). Disabled by default, some servers don't support change it on fly.
+   */
+  void setAdaptiveChunkSize(boolean enabled);
+
+  /**
+   * @return false while the outbound queue is over its high watermark. Publishers using
+   * blocking sockets are always writable.
+   */
+  boolean isWritable();
+
+  void setWritabilityListener(WritabilityListener writabilityListener);
+
+  void setDeliveryListener(DeliveryListener deliveryListener);
+}
@@ -0,0 +1,23 @@
+package com.github.faucamp.simplertmp;
+
+import com.github.faucamp.simplertmp.io.RtmpConnection;
+import net.ossrs.rtmp.ConnectCheckerRtmp;
+
+/**
+ * RTMP publisher using a non blocking socket. Publish calls never wait for the network, bytes
+ * the socket can't accept are queued and {@link #isWritable()} report when the queue is too
+ * big. rtmps urls use a blocking socket.
+ */
+public class NioRtmpPublisher extends DefaultRtmpPublisher {
+
+  public NioRtmpPublisher(ConnectCheckerRtmp connectCheckerRtmp) {
+    super(new RtmpConnection(connectCheckerRtmp, true));
+  }
+
+  /**
+   * @see RtmpConnection#setWriteWatermarks(int, int)
+   */
+  public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+    rtmpConnection.setWriteWatermarks(lowWatermark, highWatermark);
+  }
+}
@@ -19,8 +19,14 @@ public class AmfArray implements AmfData {
   private int size = -1;
 
   @Override
-  public void writeTo(OutputStream out) {
-    throw new UnsupportedOperationException("Not supported yet.");
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(AmfType.STRICT_ARRAY.getValue());
+    Util.writeUnsignedInt32(out, getLength());
+    if (items != null) {
+      for (AmfData dataItem : items) {
+        dataItem.writeTo(out);
+      }
+    }
   }
 
   @Override
@@ -62,6 +68,7 @@ public class AmfArray implements AmfData {
   }
 
   public void addItem(AmfData dataItem) {
-    getItems().add(this);
+    getItems().add(dataItem);
+    size = -1;
   }
 }
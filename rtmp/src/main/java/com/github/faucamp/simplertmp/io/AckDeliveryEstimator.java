@@ -0,0 +1,119 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * Estimate round trip time and delivery rate from the acknowledgements sent by the server each
+ * time it receives a window of bytes (RTMP spec 5.4.3). Bytes written are timestamped and
+ * matched against the acknowledged sequence number, so the estimation only count bytes the
+ * server received, unlike device wide counters.
+ *
+ * Round trip time is measured from the write of the last acknowledged message, it include the
+ * time spent in local socket buffers.
+ */
+public class AckDeliveryEstimator {
+
+  //writes waiting for acknowledgement, oldest are discarded if the window is too big
+  private static final int MAX_SAMPLES = 512;
+
+  private final long[] sampleBytes = new long[MAX_SAMPLES];
+  private final long[] sampleNs = new long[MAX_SAMPLES];
+  private int head;
+  private int count;
+  private long bytesWritten;
+  private long ackedBytes;
+  private long lastAckNs;
+  private long lastAckDelta;
+  private long rttMs;
+  private long minRttMs;
+  private long deliveryRate;
+
+  /**
+   * @param size bytes written to the socket after the handshake.
+   */
+  public synchronized void onBytesWritten(int size, long nowNs) {
+    bytesWritten += size;
+    if (count == MAX_SAMPLES) {
+      head = (head + 1) % MAX_SAMPLES;
+      count--;
+    }
+    int index = (head + count) % MAX_SAMPLES;
+    sampleBytes[index] = bytesWritten;
+    sampleNs[index] = nowNs;
+    count++;
+  }
+
+  /**
+   * @param sequenceNumber bytes received by the server, 32 bits that wrap around.
+   */
+  public synchronized void onAcknowledgement(int sequenceNumber, long nowNs) {
+    long acked = (ackedBytes & ~0xFFFFFFFFL) | (sequenceNumber & 0xFFFFFFFFL);
+    if (acked < ackedBytes) {
+      acked += 1L << 32;
+    }
+    // some servers count handshake bytes too
+    if (acked > bytesWritten) {
+      acked = bytesWritten;
+    }
+    // newest write completely received
+    long sentNs = -1;
+    while (count > 0 && sampleBytes[head] <= acked) {
+      sentNs = sampleNs[head];
+      head = (head + 1) % MAX_SAMPLES;
+      count--;
+    }
+    if (sentNs >= 0) {
+      long sampleRttMs = (nowNs - sentNs) / 1000000;
+      rttMs = rttMs == 0 ? sampleRttMs : (7 * rttMs + sampleRttMs) / 8;
+      if (minRttMs == 0 || sampleRttMs < minRttMs) {
+        minRttMs = sampleRttMs;
+      }
+    }
+    lastAckDelta = acked - ackedBytes;
+    if (lastAckNs != 0 && nowNs > lastAckNs) {
+      long sampleRate = (long) (lastAckDelta * 8e9 / (nowNs - lastAckNs));
+      deliveryRate = deliveryRate == 0 ? sampleRate : (3 * deliveryRate + sampleRate) / 4;
+    }
+    lastAckNs = nowNs;
+    ackedBytes = acked;
+  }
+
+  /**
+   * @return smoothed round trip time in ms, 0 if unknown.
+   */
+  public synchronized long getRtt() {
+    return rttMs;
+  }
+
+  public synchronized long getMinRtt() {
+    return minRttMs;
+  }
+
+  /**
+   * @return smoothed bits per second received by the server, 0 if unknown.
+   */
+  public synchronized long getDeliveryRate() {
+    return deliveryRate;
+  }
+
+  /**
+   * @return bytes acknowledged by last acknowledgement.
+   */
+  public synchronized long getLastAckedBytes() {
+    return lastAckDelta;
+  }
+
+  public synchronized long getBytesInFlight() {
+    return bytesWritten - ackedBytes;
+  }
+
+  public synchronized void reset() {
+    head = 0;
+    count = 0;
+    bytesWritten = 0;
+    ackedBytes = 0;
+    lastAckNs = 0;
+    lastAckDelta = 0;
+    rttMs = 0;
+    minRttMs = 0;
+    deliveryRate = 0;
+  }
+}
@@ -0,0 +1,176 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable, growable output buffer used to lay out a whole chunked RTMP message (chunk headers
+ * interleaved with body slices) before handing it to the socket with a single write.
+ *
+ * By default every byte is copied in a heap array written with {@link #writeTo(OutputStream)}.
+ * In gathering mode chunk headers go to a direct buffer and body slices written with
+ * {@link #writeBody(byte[], int, int)} are referenced in place, {@link #buffers()} returns them
+ * in wire order for a gathering channel write. The body array must not change until the
+ * message is written.
+ *
+ * Not thread safe, callers must serialize access.
+ */
+public class ChunkBuffer extends OutputStream {
+
+  private byte[] buffer;
+  private int size;
+  private boolean gathering = false;
+  private ByteBuffer headers;
+  //chunk headers and body slices of the message, in wire order
+  private ByteBuffer[] segments = new ByteBuffer[16];
+  private int segmentCount;
+  //views of headers reused between messages, one per segment index
+  private ByteBuffer[] headerViews = new ByteBuffer[16];
+  private ByteBuffer openHeader;
+
+  public ChunkBuffer(int initialCapacity) {
+    buffer = new byte[initialCapacity];
+  }
+
+  /**
+   * Switch between heap and gathering layout. Only between messages.
+   */
+  public void setGathering(boolean gathering) {
+    this.gathering = gathering;
+    if (gathering && headers == null) {
+      headers = ByteBuffer.allocateDirect(1024);
+    }
+    reset();
+  }
+
+  public boolean isGathering() {
+    return gathering;
+  }
+
+  @Override
+  public void write(int b) {
+    if (gathering) {
+      ensureHeaderCapacity(1);
+      headers.put((byte) b);
+    } else {
+      ensureCapacity(size + 1);
+      buffer[size] = (byte) b;
+    }
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if (gathering) {
+      ensureHeaderCapacity(len);
+      headers.put(b, off, len);
+    } else {
+      ensureCapacity(size + len);
+      System.arraycopy(b, off, buffer, size, len);
+    }
+    size += len;
+  }
+
+  /**
+   * Write a slice of the message body. Copied in heap mode, referenced in gathering mode.
+   */
+  public void writeBody(byte[] body, int off, int len) {
+    if (!gathering) {
+      write(body, off, len);
+      return;
+    }
+    closeHeader();
+    addSegment(ByteBuffer.wrap(body, off, len));
+    size += len;
+  }
+
+  /**
+   * Write the buffered bytes to out in one call, heap mode only.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(array(), 0, size);
+  }
+
+  /**
+   * @return chunk headers and body slices in wire order, {@link #bufferCount()} are used.
+   * Gathering mode only.
+   */
+  public ByteBuffer[] buffers() {
+    if (!gathering) throw new IllegalStateException("Not in gathering mode");
+    closeHeader();
+    return segments;
+  }
+
+  public int bufferCount() {
+    return segmentCount;
+  }
+
+  public void reset() {
+    size = 0;
+    segmentCount = 0;
+    openHeader = null;
+    if (headers != null) headers.clear();
+    //drop references to body arrays of previous message
+    Arrays.fill(segments, null);
+  }
+
+  /**
+   * Heap mode only.
+   */
+  public byte[] array() {
+    if (gathering) throw new IllegalStateException("Gathering mode has no array");
+    return buffer;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+  }
+
+  /**
+   * Open a header segment if needed with room for len bytes. On growth segments already laid out
+   * keep pointing to the previous buffer so nothing is copied.
+   */
+  private void ensureHeaderCapacity(int len) {
+    if (headers.remaining() < len) {
+      closeHeader();
+      headers = ByteBuffer.allocateDirect(Math.max(len, headers.capacity() * 2));
+      Arrays.fill(headerViews, null);
+    }
+    if (openHeader == null) {
+      if (segmentCount == headerViews.length) {
+        headerViews = Arrays.copyOf(headerViews, segmentCount * 2);
+      }
+      ByteBuffer view = headerViews[segmentCount];
+      if (view == null) {
+        view = headers.duplicate();
+        headerViews[segmentCount] = view;
+      }
+      view.limit(view.capacity());
+      view.position(headers.position());
+      openHeader = view;
+      addSegment(view);
+    }
+  }
+
+  private void closeHeader() {
+    if (openHeader != null) {
+      openHeader.limit(headers.position());
+      openHeader = null;
+    }
+  }
+
+  private void addSegment(ByteBuffer segment) {
+    if (segmentCount == segments.length) {
+      segments = Arrays.copyOf(segments, segmentCount * 2);
+    }
+    segments[segmentCount++] = segment;
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * Choose outbound chunk size from the measured video frame sizes so most frames are sent in a
+ * single chunk. Average size of a window of frames is rounded up to a power of 2 and clamped,
+ * the power of 2 steps avoid announcing a new size for small variations.
+ *
+ * Not thread safe, must be used from the thread that publish video.
+ */
+public class ChunkSizeSelector {
+
+  public static final int MIN_CHUNK_SIZE = 4 * 1024;
+  public static final int MAX_CHUNK_SIZE = 64 * 1024;
+  //video frames used to calculate each average
+  private static final int WINDOW = 60;
+
+  private final int minChunkSize;
+  private final int maxChunkSize;
+  private int chunkSize;
+  private long bytes;
+  private int frames;
+
+  public ChunkSizeSelector() {
+    this(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+  }
+
+  public ChunkSizeSelector(int minChunkSize, int maxChunkSize) {
+    if (minChunkSize < 128 || maxChunkSize < minChunkSize) {
+      throw new IllegalArgumentException(
+          "Invalid chunk size range: " + minChunkSize + "-" + maxChunkSize);
+    }
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+  }
+
+  /**
+   * @param chunkSize chunk size currently announced to the server.
+   */
+  public void reset(int chunkSize) {
+    this.chunkSize = chunkSize;
+    bytes = 0;
+    frames = 0;
+  }
+
+  /**
+   * @return new chunk size to announce or 0 if it must not change.
+   */
+  public int onVideoFrame(int size) {
+    bytes += size;
+    if (++frames < WINDOW) {
+      return 0;
+    }
+    int average = (int) (bytes / frames);
+    bytes = 0;
+    frames = 0;
+    int selected = Integer.highestOneBit(Math.max(average, 1));
+    if (selected < average) {
+      selected <<= 1;
+    }
+    selected = Math.max(minChunkSize, Math.min(maxChunkSize, selected));
+    if (selected == chunkSize) {
+      return 0;
+    }
+    chunkSize = selected;
+    return selected;
+  }
+}
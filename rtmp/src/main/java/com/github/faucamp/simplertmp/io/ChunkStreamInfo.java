@@ -24,7 +24,6 @@ public class ChunkStreamInfo {
   private RtmpHeader prevHeaderRx;
   private RtmpHeader prevHeaderTx;
   private static long sessionBeginTimestamp;
-  private long realLastTimestamp = System.nanoTime() / 1000000;  // Do not use wall time!
   private ByteArrayOutputStream baos = new ByteArrayOutputStream(1024 * 128);
 
   /** @return the previous header that was received on this channel, or <code>null</code> if no previous header was received */
@@ -46,6 +45,29 @@ public class ChunkStreamInfo {
     return (prevHeaderTx != null && prevHeaderTx.getMessageType() == forMessageType);
   }
 
+  /**
+   * Choose the smallest header for the first chunk of a message sent on this channel, according
+   * to the previous message sent (RTMP spec 5.3.1.2). Type 1 if only length or type changed and
+   * type 2 if only timestamp changed. Type 3 is not used for new messages because servers don't
+   * agree about the delta that apply after a type 0 header.
+   */
+  public RtmpHeader.ChunkType getTxChunkType(RtmpHeader header) {
+    RtmpHeader prevHeader = prevHeaderTx;
+    if (prevHeader == null || prevHeader.getMessageStreamId() != header.getMessageStreamId()) {
+      return RtmpHeader.ChunkType.TYPE_0_FULL;
+    }
+    long delta = (long) header.getAbsoluteTimestamp() - prevHeader.getAbsoluteTimestamp();
+    // negative delta can't be represented, big delta need extended timestamp
+    if (delta < 0 || delta >= 0xffffff) {
+      return RtmpHeader.ChunkType.TYPE_0_FULL;
+    }
+    if (prevHeader.getPacketLength() != header.getPacketLength()
+        || prevHeader.getMessageType() != header.getMessageType()) {
+      return RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE;
+    }
+    return RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY;
+  }
+
   /** Sets the previous header that was transmitted on this channel */
   public void setPrevHeaderTx(RtmpHeader prevHeaderTx) {
     this.prevHeaderTx = prevHeaderTx;
@@ -61,14 +83,6 @@ public class ChunkStreamInfo {
     return System.nanoTime() / 1000000 - sessionBeginTimestamp;
   }
 
-  /** Utility method for calculating & synchronizing transmitted timestamp deltas */
-  public long markDeltaTimestampTx() {
-    long currentTimestamp = System.nanoTime() / 1000000;
-    long diffTimestamp = currentTimestamp - realLastTimestamp;
-    realLastTimestamp = currentTimestamp;
-    return diffTimestamp;
-  }
-
   /** @return <code>true</code> if all packet data has been stored, or <code>false</code> if not */
   public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
     final int remainingBytes = prevHeaderRx.getPacketLength() - baos.size();
@@ -84,6 +98,16 @@ public class ChunkStreamInfo {
     return bis;
   }
 
+  /** @return <code>true</code> if a message is partially stored, next chunk continue it */
+  public boolean hasStoredChunks() {
+    return baos.size() > 0;
+  }
+
+  /** @return bytes of the partially received message already stored */
+  public int getStoredSize() {
+    return baos.size();
+  }
+
   /** Clears all currently-stored packet chunks (used when an ABORT packet is received) */
   public void clearStoredChunks() {
     baos.reset();
@@ -0,0 +1,354 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+import com.github.faucamp.simplertmp.ExtendedRtmpPublisher;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.pedro.encoder.utils.metrics.Counter;
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non blocking transport. Connect and handshake are blocking, after that one selector thread read
+ * and decode packets and write the outbound queue.
+ *
+ * Writes never wait for the network. Bytes the socket can't accept are queued, when the queue
+ * reaches the high watermark the transport is not writable until the selector thread drains it
+ * below the low watermark. Writes are still accepted while not writable so control messages are
+ * never lost, publishers must stop sending media instead. Writes fail once the queue would
+ * exceed 8 times the high watermark.
+ */
+class NioTransport extends RtmpTransport {
+
+  private static final String TAG = "NioTransport";
+  private static final int INBOUND_BUFFER_SIZE = 64 * 1024;
+  //time to send queued bytes (closeStream command) before closing the socket
+  private static final long LINGER_MS = 100;
+  //queued bytes allowed over the high watermark, as a multiple of it, before writes fail
+  private static final int MAX_QUEUED_WATERMARKS = 8;
+
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final Gauge outboundQueueGauge;
+  private final Counter writeBlockedCounter;
+  private SocketChannel channel;
+  private Selector selector;
+  private SelectionKey selectionKey;
+  private Thread ioThread;
+  private volatile boolean running = false;
+  private boolean reading = true;
+  private RtmpDecoder rtmpDecoder;
+  private Listener listener;
+  private volatile ExtendedRtmpPublisher.WritabilityListener writabilityListener;
+  private ByteBuffer inboundBuffer = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+  //bytes not accepted by the socket yet, in write mode. Guarded by writeLock
+  private final Object writeLock = new Object();
+  private ByteBuffer outboundBuffer;
+  private IOException writeError;
+  private volatile boolean writable = true;
+
+  /**
+   * @param metrics metrics of the connection.
+   */
+  NioTransport(int lowWatermark, int highWatermark, InstanceMetrics metrics) {
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    outboundQueueGauge = metrics.gauge(MetricNames.RTMP_OUTBOUND_QUEUE);
+    writeBlockedCounter = metrics.counter(MetricNames.RTMP_WRITE_BLOCKED);
+    outboundBuffer = ByteBuffer.allocate(highWatermark);
+  }
+
+  @Override
+  void connect(String host, int port, int sendBufferSize, RtmpDecoder rtmpDecoder,
+      Listener listener) throws IOException {
+    this.rtmpDecoder = rtmpDecoder;
+    this.listener = listener;
+    try {
+      channel = SocketChannel.open();
+      Socket socket = channel.socket();
+      if (sendBufferSize > 0) {
+        socket.setSendBufferSize(sendBufferSize);
+      }
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+      Log.d(TAG, "Send buffer size: " + socket.getSendBufferSize());
+      Log.d(TAG, "connect(): socket connection established, doing handshake...");
+      // channel is still blocking so socket streams can be used
+      handshake(socket.getInputStream(), new BufferedOutputStream(socket.getOutputStream()));
+      Log.d(TAG, "connect(): handshake done");
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      selectionKey = channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    running = true;
+    ioThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Log.d(TAG, "starting io loop");
+        handleIoLoop();
+      }
+    });
+    ioThread.start();
+  }
+
+  private void handleIoLoop() {
+    try {
+      while (running) {
+        int interestOps = reading ? SelectionKey.OP_READ : 0;
+        synchronized (writeLock) {
+          if (outboundBuffer.position() > 0) interestOps |= SelectionKey.OP_WRITE;
+        }
+        selectionKey.interestOps(interestOps);
+        selector.select();
+        selector.selectedKeys().clear();
+        if (!running) break;
+        if (selectionKey.isReadable()) {
+          try {
+            read();
+          } catch (IOException e) {
+            if (running) listener.onReadError(e);
+            fail(e);
+          }
+        }
+        if (running && selectionKey.isValid() && selectionKey.isWritable()) {
+          try {
+            flush();
+          } catch (IOException e) {
+            fail(e);
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (ClosedSelectorException | CancelledKeyException e) {
+      // closed while selecting
+    } finally {
+      closeQuietly();
+    }
+  }
+
+  /**
+   * Read available bytes and decode every complete chunk received.
+   */
+  private void read() throws IOException {
+    if (channel.read(inboundBuffer) == -1) {
+      Log.i(TAG, "end of stream reached");
+      reading = false;
+      // server closed the connection, nothing else would notice it until next write
+      if (running) listener.onReadError(new EOFException("Connection closed by server"));
+      return;
+    }
+    inboundBuffer.flip();
+    int chunkLength = -1;
+    while (running) {
+      chunkLength = rtmpDecoder.getChunkLength(inboundBuffer.array(), inboundBuffer.position(),
+          inboundBuffer.remaining());
+      if (chunkLength < 0 || chunkLength > inboundBuffer.remaining()) break;
+      int position = inboundBuffer.position();
+      RtmpPacket rtmpPacket = rtmpDecoder.readPacket(
+          new ByteArrayInputStream(inboundBuffer.array(), position, chunkLength));
+      inboundBuffer.position(position + chunkLength);
+      if (rtmpPacket != null) {
+        listener.onRtmpPacket(rtmpPacket);
+      }
+    }
+    inboundBuffer.compact();
+    if (chunkLength > inboundBuffer.capacity()) {
+      // chunk bigger than buffer, server chunk size is too big
+      ByteBuffer bigger = ByteBuffer.allocate(chunkLength);
+      inboundBuffer.flip();
+      bigger.put(inboundBuffer);
+      inboundBuffer = bigger;
+    }
+  }
+
+  /**
+   * Write queued bytes the socket can accept.
+   */
+  private void flush() throws IOException {
+    boolean becameWritable = false;
+    int queued;
+    synchronized (writeLock) {
+      outboundBuffer.flip();
+      try {
+        channel.write(outboundBuffer);
+      } finally {
+        outboundBuffer.compact();
+      }
+      queued = outboundBuffer.position();
+      if (!writable && queued <= lowWatermark) {
+        writable = true;
+        becameWritable = true;
+      }
+      if (queued == 0) writeLock.notifyAll();
+    }
+    outboundQueueGauge.set(queued);
+    if (becameWritable) notifyWritability(true);
+  }
+
+  @Override
+  void write(ChunkBuffer chunkBuffer) throws IOException {
+    boolean becameBlocked = false;
+    int queued;
+    ByteBuffer[] buffers = chunkBuffer.buffers();
+    int count = chunkBuffer.bufferCount();
+    int size = chunkBuffer.size();
+    synchronized (writeLock) {
+      if (writeError != null) {
+        throw new IOException(writeError.getMessage(), writeError);
+      } else if (!running) {
+        throw new IOException("Socket closed");
+      }
+      long written = 0;
+      // nothing queued, try to write without waking up selector thread. Chunk headers and body
+      // slices go out in one gathering write
+      if (outboundBuffer.position() == 0) {
+        try {
+          written = channel.write(buffers, 0, count);
+        } catch (IOException e) {
+          writeError = e;
+          throw e;
+        }
+      }
+      if (written == size) return;
+      int left = (int) (size - written);
+      int maxQueued = highWatermark * MAX_QUEUED_WATERMARKS;
+      if (outboundBuffer.position() > 0 && outboundBuffer.position() + left > maxQueued) {
+        // publisher ignores writability, fail instead of growing without limit. The message is
+        // partially written so the connection can't be used anymore
+        writeError = new IOException("Outbound queue full, more than " + maxQueued + " bytes");
+        throw writeError;
+      }
+      if (outboundBuffer.remaining() < left) {
+        ByteBuffer bigger = ByteBuffer.allocate(
+            Math.max(outboundBuffer.position() + left, outboundBuffer.capacity() * 2));
+        outboundBuffer.flip();
+        bigger.put(outboundBuffer);
+        outboundBuffer = bigger;
+      }
+      // the socket took what it could, copy the rest
+      for (int i = 0; i < count; i++) {
+        outboundBuffer.put(buffers[i]);
+      }
+      queued = outboundBuffer.position();
+      if (writable && queued >= highWatermark) {
+        writable = false;
+        becameBlocked = true;
+      }
+    }
+    outboundQueueGauge.set(queued);
+    selector.wakeup();
+    if (becameBlocked) {
+      Log.i(TAG, "outbound queue full, " + queued + " bytes");
+      writeBlockedCounter.increment();
+      notifyWritability(false);
+    }
+  }
+
+  private void fail(IOException e) {
+    Log.e(TAG, "io error: " + e.getMessage());
+    running = false;
+    synchronized (writeLock) {
+      if (writeError == null) writeError = e;
+      writeLock.notifyAll();
+    }
+    // wake up publisher so next write report the error
+    setWritable();
+  }
+
+  private void setWritable() {
+    if (!writable) {
+      writable = true;
+      notifyWritability(true);
+    }
+  }
+
+  private void notifyWritability(boolean writable) {
+    ExtendedRtmpPublisher.WritabilityListener listener = writabilityListener;
+    if (listener != null) {
+      listener.onWritabilityChanged(writable);
+    }
+  }
+
+  @Override
+  boolean isGatheringWrite() {
+    return true;
+  }
+
+  @Override
+  boolean isWritable() {
+    return writable;
+  }
+
+  @Override
+  void setWritabilityListener(ExtendedRtmpPublisher.WritabilityListener writabilityListener) {
+    this.writabilityListener = writabilityListener;
+  }
+
+  @Override
+  int getSendBufferSize() throws IOException {
+    return channel.socket().getSendBufferSize();
+  }
+
+  @Override
+  void close() {
+    Thread thread = ioThread;
+    boolean fromIoThread = thread == Thread.currentThread();
+    if (thread != null && !fromIoThread) {
+      synchronized (writeLock) {
+        long deadline = System.currentTimeMillis() + LINGER_MS;
+        while (running && outboundBuffer.position() > 0) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) break;
+          try {
+            writeLock.wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    }
+    running = false;
+    if (selector != null) selector.wakeup();
+    if (thread != null && !fromIoThread) {
+      try {
+        thread.join(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    ioThread = null;
+    closeQuietly();
+    setWritable();
+    outboundQueueGauge.set(0);
+    Log.d(TAG, "socket closed");
+  }
+
+  private void closeQuietly() {
+    try {
+      if (channel != null) channel.close();
+    } catch (IOException e) {
+      Log.e(TAG, "failed to close socket", e);
+    }
+    try {
+      if (selector != null) selector.close();
+    } catch (IOException e) {
+      Log.e(TAG, "failed to close selector", e);
+    }
+  }
+}
@@ -2,46 +2,50 @@ package com.github.faucamp.simplertmp.io;
 
 import android.util.Log;
 
-import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.ExtendedRtmpPublisher;
 import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.amf.AmfArray;
 import com.github.faucamp.simplertmp.amf.AmfMap;
 import com.github.faucamp.simplertmp.amf.AmfNull;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfObject;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
 import com.github.faucamp.simplertmp.packets.Data;
-import com.github.faucamp.simplertmp.packets.Handshake;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
 import com.github.faucamp.simplertmp.packets.UserControl;
 import com.github.faucamp.simplertmp.packets.Video;
 import com.github.faucamp.simplertmp.packets.WindowAckSize;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import com.pedro.encoder.utils.metrics.Counter;
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
 import net.ossrs.rtmp.BitrateManager;
 import net.ossrs.rtmp.ConnectCheckerRtmp;
-import net.ossrs.rtmp.CreateSSLSocket;
 
 /**
  * Main RTMP connection implementation class
  *
  * @author francois, leoma, pedro
  */
-public class RtmpConnection implements RtmpPublisher {
+public class RtmpConnection implements ExtendedRtmpPublisher {
 
   private static final String TAG = "RtmpConnection";
+  //announced after connect, 128 (protocol default) split each video frame in too many chunks
+  public static final int DEFAULT_CHUNK_SIZE = 4096;
+  //chunk size is 31 bits but servers usually limit it
+  public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
   private static final Pattern rtmpUrlPattern =
       Pattern.compile("^rtmps?://([^/:]+)(?::(\\d+))*/([^/]+)/?([^*]*)$");
 
@@ -53,12 +57,9 @@ public class RtmpConnection implements RtmpPublisher {
   private String swfUrl;
   private String tcUrl;
   private String pageUrl;
-  private Socket socket;
+  private RtmpTransport transport;
   private RtmpSessionInfo rtmpSessionInfo;
   private RtmpDecoder rtmpDecoder;
-  private BufferedInputStream inputStream;
-  private BufferedOutputStream outputStream;
-  private Thread rxPacketHandler;
   private volatile boolean connected = false;
   private volatile boolean publishPermitted = false;
   private final Object connectingLock = new Object();
@@ -67,6 +68,7 @@ public class RtmpConnection implements RtmpPublisher {
   private int transactionIdCounter = 0;
   private int videoWidth;
   private int videoHeight;
+  private boolean hevc = false;
   private ConnectCheckerRtmp connectCheckerRtmp;
   //for secure transport
   private boolean tlsEnabled;
@@ -80,22 +82,71 @@ public class RtmpConnection implements RtmpPublisher {
   private String netConnectionDescription;
   private BitrateManager bitrateManager;
   private int sendBufferSize;
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private boolean adaptiveChunkSize = false;
+  private final ChunkSizeSelector chunkSizeSelector = new ChunkSizeSelector();
+  //metrics of this connection, registered while connected
+  private final InstanceMetrics metrics = new InstanceMetrics(MetricsRegistry.getDefault());
+  private final Gauge chunkSizeGauge = metrics.gauge(MetricNames.RTMP_CHUNK_SIZE);
+  private final Counter headerBytes = metrics.counter(MetricNames.RTMP_HEADER_BYTES);
+  //whole chunked message is built here and written to socket at once
+  private final ChunkBuffer chunkBuffer = new ChunkBuffer(128 * 1024);
+  private final ChunkBuffer bodyBuffer = new ChunkBuffer(1024);
+  //non blocking socket with outbound queue, rtmps always use blocking socket
+  public static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+  public static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+  private final boolean nio;
+  private int lowWatermark = DEFAULT_LOW_WATERMARK;
+  private int highWatermark = DEFAULT_HIGH_WATERMARK;
+  private volatile WritabilityListener writabilityListener;
+  //acknowledgements every window bytes feed the delivery estimator, small enough to be frequent
+  private static final int MAX_ACK_WINDOW_SIZE = 128 * 1024;
+  private final AckDeliveryEstimator deliveryEstimator = new AckDeliveryEstimator();
+  private final Gauge rttGauge = metrics.gauge(MetricNames.RTMP_RTT);
+  private final Gauge deliveryRateGauge = metrics.gauge(MetricNames.RTMP_DELIVERY_RATE);
+  private volatile DeliveryListener deliveryListener;
+  //set while closing, the server may close the socket as soon as it receives closeStream
+  private volatile boolean closing = false;
+  private final RtmpTransport.Listener rxListener = new RtmpTransport.Listener() {
+    @Override
+    public void onRtmpPacket(RtmpPacket rtmpPacket) throws IOException {
+      handleRxPacket(rtmpPacket);
+    }
+
+    @Override
+    public void onReadError(IOException e) {
+      if (closing) return;
+      connectCheckerRtmp.onConnectionFailedRtmp("Error reading packet: " + e.getMessage());
+      Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: "
+          + e.getMessage());
+    }
+  };
 
   public RtmpConnection(ConnectCheckerRtmp connectCheckerRtmp) {
+    this(connectCheckerRtmp, false);
+  }
+
+  /**
+   * @param nio use a non blocking socket, writes never wait for the network and
+   * {@link #isWritable()} report backpressure. Ignored for rtmps.
+   */
+  public RtmpConnection(ConnectCheckerRtmp connectCheckerRtmp, boolean nio) {
     this.connectCheckerRtmp = connectCheckerRtmp;
-    bitrateManager = new BitrateManager(connectCheckerRtmp);
+    this.nio = nio;
+    bitrateManager = new BitrateManager(connectCheckerRtmp, metrics);
   }
 
-  private void handshake(InputStream in, OutputStream out) throws IOException {
-    Handshake handshake = new Handshake();
-    handshake.writeC0(out);
-    handshake.writeC1(out); // Write C1 without waiting for S0
-    out.flush();
-    handshake.readS0(in);
-    handshake.readS1(in);
-    handshake.writeC2(out);
-    out.flush();
-    handshake.readS2(in);
+  private void openTransport() throws IOException {
+    closing = false;
+    deliveryEstimator.reset();
+    metrics.register();
+    transport = nio && !tlsEnabled ? new NioTransport(lowWatermark, highWatermark, metrics)
+        : new SocketTransport(tlsEnabled);
+    transport.setWritabilityListener(writabilityListener);
+    synchronized (chunkBuffer) {
+      chunkBuffer.setGathering(transport.isGatheringWrite());
+    }
+    transport.connect(host, port, sendBufferSize, rtmpDecoder, rxListener);
   }
 
   private String getAppName(String app, String name) {
@@ -146,39 +197,12 @@ public class RtmpConnection implements RtmpPublisher {
     rtmpSessionInfo = new RtmpSessionInfo();
     rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
     try {
-      if (!tlsEnabled) {
-        socket = new Socket();
-        SocketAddress socketAddress = new InetSocketAddress(host, port);
-        if (sendBufferSize > 0) {
-          socket.setSendBufferSize(sendBufferSize);
-        }
-        socket.connect(socketAddress, 5000);
-        Log.d("RtmpConnection", "Send buffer size: " + socket.getSendBufferSize());
-      } else {
-        socket = CreateSSLSocket.createSSlSocket(host, port);
-        if (socket == null) throw new IOException("Socket creation failed");
-      }
-      inputStream = new BufferedInputStream(socket.getInputStream());
-      outputStream = new BufferedOutputStream(socket.getOutputStream());
-      Log.d(TAG, "connect(): socket connection established, doing handhake...");
-      handshake(inputStream, outputStream);
-      Log.d(TAG, "connect(): handshake done");
+      openTransport();
     } catch (IOException e) {
       Log.e(TAG, "Error", e);
       connectCheckerRtmp.onConnectionFailedRtmp("Connect error, " + e.getMessage());
       return false;
     }
-
-    // Start the "main" handling thread
-    rxPacketHandler = new Thread(new Runnable() {
-
-      @Override
-      public void run() {
-        Log.d(TAG, "starting main rx handler loop");
-        handleRxPacketLoop();
-      }
-    });
-    rxPacketHandler.start();
     return rtmpConnect();
   }
 
@@ -203,10 +227,25 @@ public class RtmpConnection implements RtmpPublisher {
     if (!connected) {
       shutdown(true);
       connectCheckerRtmp.onConnectionFailedRtmp("Fail to connect, time out");
+    } else {
+      sendChunkSize(chunkSize);
+      chunkSizeSelector.reset(chunkSize);
     }
     return connected;
   }
 
+  /**
+   * Announce the new size and use it for next packets. Other threads can't write between both.
+   */
+  private void sendChunkSize(int chunkSize) {
+    synchronized (chunkBuffer) {
+      Log.i(TAG, "Set chunk size: " + chunkSize);
+      sendRtmpPacket(new SetChunkSize(chunkSize));
+      rtmpSessionInfo.setTxChunkSize(chunkSize);
+      chunkSizeGauge.set(chunkSize);
+    }
+  }
+
   private void sendConnect(String user) {
     ChunkStreamInfo.markSessionTimestampTx();
     Log.d(TAG, "rtmpConnect(): Building 'connect' invoke packet");
@@ -226,6 +265,12 @@ public class RtmpConnection implements RtmpPublisher {
     args.setProperty("videoFunction", 1);
     args.setProperty("pageUrl", pageUrl);
     args.setProperty("objectEncoding", 0);
+    if (hevc) {
+      // Enhanced RTMP, codecs supported by the client
+      AmfArray fourCcList = new AmfArray();
+      fourCcList.addItem(new AmfString("hvc1"));
+      args.setProperty("fourCcList", fourCcList);
+    }
     invoke.addData(args);
     sendRtmpPacket(invoke);
   }
@@ -340,7 +385,8 @@ public class RtmpConnection implements RtmpPublisher {
     ecmaArray.setProperty("duration", 0);
     ecmaArray.setProperty("width", videoWidth);
     ecmaArray.setProperty("height", videoHeight);
-    ecmaArray.setProperty("videocodecid", 7);
+    // Enhanced RTMP use FourCC as codec id, 'hvc1'
+    ecmaArray.setProperty("videocodecid", hevc ? 0x68766331 : 7);
     ecmaArray.setProperty("framerate", 30);
     ecmaArray.setProperty("videodatarate", 0);
     // @see FLV video_file_format_spec_v10_1.pdf
@@ -360,10 +406,12 @@ public class RtmpConnection implements RtmpPublisher {
 
   @Override
   public void close() {
-    if (socket != null) {
+    closing = true;
+    if (transport != null) {
       closeStream();
     }
     shutdown(true);
+    metrics.unregister();
   }
 
   private void closeStream() {
@@ -380,34 +428,8 @@ public class RtmpConnection implements RtmpPublisher {
   }
 
   private synchronized void shutdown(boolean r) {
-    if (socket != null) {
-      try {
-        // It will raise EOFException in handleRxPacketThread
-        socket.shutdownInput();
-        // It will raise SocketException in sendRtmpPacket
-        socket.shutdownOutput();
-      } catch (IOException | UnsupportedOperationException e) {
-        Log.e(TAG, "Shutdown socket", e);
-      }
-
-      // shutdown rxPacketHandler
-      if (rxPacketHandler != null) {
-        rxPacketHandler.interrupt();
-        try {
-          rxPacketHandler.join(100);
-        } catch (InterruptedException ie) {
-          rxPacketHandler.interrupt();
-        }
-        rxPacketHandler = null;
-      }
-
-      // shutdown socket as well as its input and output stream
-      try {
-        socket.close();
-        Log.d(TAG, "socket closed");
-      } catch (IOException ex) {
-        Log.e(TAG, "shutdown(): failed to close socket", ex);
-      }
+    if (transport != null) {
+      transport.close();
     }
 
     if (r) {
@@ -427,7 +449,7 @@ public class RtmpConnection implements RtmpPublisher {
     publishType = null;
     currentStreamId = 0;
     transactionIdCounter = 0;
-    socket = null;
+    transport = null;
     rtmpSessionInfo = null;
     salt = null;
     challenge = null;
@@ -467,28 +489,59 @@ public class RtmpConnection implements RtmpPublisher {
     video.setData(data, size);
     video.getHeader().setAbsoluteTimestamp(dts);
     video.getHeader().setMessageStreamId(currentStreamId);
+    if (adaptiveChunkSize) {
+      int newChunkSize = chunkSizeSelector.onVideoFrame(size);
+      if (newChunkSize > 0) sendChunkSize(newChunkSize);
+    }
     sendRtmpPacket(video);
     //bytes to bits
     bitrateManager.calculateBitrate(size * 8);
   }
 
+  @Override
+  public void publishAggregateData(byte[] data, int size, int dts) {
+    if (data == null
+        || data.length == 0
+        || dts < 0
+        || !connected
+        || currentStreamId == 0
+        || !publishPermitted) {
+      return;
+    }
+    Aggregate aggregate = new Aggregate();
+    aggregate.setData(data, size);
+    aggregate.getHeader().setAbsoluteTimestamp(dts);
+    aggregate.getHeader().setMessageStreamId(currentStreamId);
+    sendRtmpPacket(aggregate);
+    //bytes to bits
+    bitrateManager.calculateBitrate(size * 8);
+  }
+
   private void sendRtmpPacket(RtmpPacket rtmpPacket) {
     try {
       ChunkStreamInfo chunkStreamInfo =
           rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
-      chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
-      if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
+      if (!(rtmpPacket instanceof ContentData)) {
         rtmpPacket.getHeader()
             .setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
       }
-      rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
-      Log.d(TAG,
-          "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
       if (rtmpPacket instanceof Command) {
         rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(),
             ((Command) rtmpPacket).getCommandName());
       }
-      outputStream.flush();
+      // Packets are sent from muxer and rx threads so the shared chunk buffer must be guarded.
+      synchronized (chunkBuffer) {
+        chunkBuffer.reset();
+        rtmpPacket.writeTo(chunkBuffer, bodyBuffer, rtmpSessionInfo.getTxChunkSize(),
+            chunkStreamInfo);
+        RtmpTransport currentTransport = transport;
+        if (currentTransport == null) throw new IOException("Socket closed");
+        currentTransport.write(chunkBuffer);
+        deliveryEstimator.onBytesWritten(chunkBuffer.size(), System.nanoTime());
+        headerBytes.add(chunkBuffer.size() - rtmpPacket.getHeader().getPacketLength());
+      }
+      Log.d(TAG,
+          "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
     } catch (IOException ioe) {
       connectCheckerRtmp.onConnectionFailedRtmp("Error send packet: " + ioe.getMessage());
       Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
@@ -496,71 +549,71 @@ public class RtmpConnection implements RtmpPublisher {
     }
   }
 
-  private void handleRxPacketLoop() {
-    // Handle all queued received RTMP packets
-    while (!Thread.interrupted()) {
-      try {
-        // It will be blocked when no data in input stream buffer
-        RtmpPacket rtmpPacket = rtmpDecoder.readPacket(inputStream);
-        if (rtmpPacket != null) {
-          //Log.d(TAG, "handleRxPacketLoop(): RTMP rx packet message type: " + rtmpPacket.getHeader().getMessageType());
-          switch (rtmpPacket.getHeader().getMessageType()) {
-            case ABORT:
-              rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId())
-                  .clearStoredChunks();
-              break;
-            case USER_CONTROL_MESSAGE:
-              UserControl user = (UserControl) rtmpPacket;
-              switch (user.getType()) {
-                case STREAM_BEGIN:
-                  break;
-                case PING_REQUEST:
-                  ChunkStreamInfo channelInfo =
-                      rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                  Log.d(TAG, "handleRxPacketLoop(): Sending PONG reply..");
-                  UserControl pong = new UserControl(user, channelInfo);
-                  sendRtmpPacket(pong);
-                  break;
-                case STREAM_EOF:
-                  Log.i(TAG, "handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
-                  break;
-                default:
-                  // Ignore...
-                  break;
-              }
-              break;
-            case WINDOW_ACKNOWLEDGEMENT_SIZE:
-              WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
-              int size = windowAckSize.getAcknowledgementWindowSize();
-              Log.d(TAG, "handleRxPacketLoop(): Setting acknowledgement window size: " + size);
-              rtmpSessionInfo.setAcknowledgmentWindowSize(size);
-              break;
-            case SET_PEER_BANDWIDTH:
-              rtmpSessionInfo.setAcknowledgmentWindowSize(socket.getSendBufferSize());
-              int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
-              ChunkStreamInfo chunkStreamInfo =
-                  rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-              Log.d(TAG, "handleRxPacketLoop(): Send acknowledgement window size: "
-                  + acknowledgementWindowsize);
-              sendRtmpPacket(new WindowAckSize(acknowledgementWindowsize, chunkStreamInfo));
-              break;
-            case COMMAND_AMF0:
-              handleRxInvoke((Command) rtmpPacket);
-              break;
-            default:
-              Log.w(TAG, "handleRxPacketLoop(): Not handling unimplemented/unknown packet of type: "
-                  + rtmpPacket.getHeader().getMessageType());
-              break;
-          }
+  private void handleRxPacket(RtmpPacket rtmpPacket) throws IOException {
+    //Log.d(TAG, "handleRxPacket(): RTMP rx packet message type: " + rtmpPacket.getHeader().getMessageType());
+    switch (rtmpPacket.getHeader().getMessageType()) {
+      case ABORT:
+        rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId())
+            .clearStoredChunks();
+        break;
+      case USER_CONTROL_MESSAGE:
+        UserControl user = (UserControl) rtmpPacket;
+        switch (user.getType()) {
+          case STREAM_BEGIN:
+            break;
+          case PING_REQUEST:
+            ChunkStreamInfo channelInfo =
+                rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+            Log.d(TAG, "handleRxPacket(): Sending PONG reply..");
+            UserControl pong = new UserControl(user, channelInfo);
+            sendRtmpPacket(pong);
+            break;
+          case STREAM_EOF:
+            Log.i(TAG, "handleRxPacket(): Stream EOF reached, closing RTMP writer...");
+            break;
+          default:
+            // Ignore...
+            break;
         }
-      } catch (EOFException eof) {
-        Thread.currentThread().interrupt();
-      } catch (IOException e) {
-        connectCheckerRtmp.onConnectionFailedRtmp("Error reading packet: " + e.getMessage());
-        Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: "
-            + e.getMessage());
-        Thread.currentThread().interrupt();
-      }
+        break;
+      case WINDOW_ACKNOWLEDGEMENT_SIZE:
+        WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
+        int size = windowAckSize.getAcknowledgementWindowSize();
+        Log.d(TAG, "handleRxPacket(): Setting acknowledgement window size: " + size);
+        rtmpSessionInfo.setAcknowledgmentWindowSize(size);
+        break;
+      case SET_PEER_BANDWIDTH:
+        rtmpSessionInfo.setAcknowledgmentWindowSize(
+            Math.min(transport.getSendBufferSize(), MAX_ACK_WINDOW_SIZE));
+        int acknowledgementWindowsize = rtmpSessionInfo.getAcknowledgementWindowSize();
+        ChunkStreamInfo chunkStreamInfo =
+            rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+        Log.d(TAG, "handleRxPacket(): Send acknowledgement window size: "
+            + acknowledgementWindowsize);
+        sendRtmpPacket(new WindowAckSize(acknowledgementWindowsize, chunkStreamInfo));
+        break;
+      case ACKNOWLEDGEMENT:
+        onAcknowledgement(((Acknowledgement) rtmpPacket).getSequenceNumber());
+        break;
+      case COMMAND_AMF0:
+        handleRxInvoke((Command) rtmpPacket);
+        break;
+      default:
+        Log.w(TAG, "handleRxPacket(): Not handling unimplemented/unknown packet of type: "
+            + rtmpPacket.getHeader().getMessageType());
+        break;
+    }
+  }
+
+  private void onAcknowledgement(int sequenceNumber) {
+    deliveryEstimator.onAcknowledgement(sequenceNumber, System.nanoTime());
+    long rtt = deliveryEstimator.getRtt();
+    long deliveryRate = deliveryEstimator.getDeliveryRate();
+    rttGauge.set(rtt);
+    deliveryRateGauge.set(deliveryRate);
+    DeliveryListener listener = deliveryListener;
+    if (listener != null) {
+      listener.onDelivery(deliveryEstimator.getLastAckedBytes(), deliveryRate, rtt);
     }
   }
 
@@ -590,26 +643,10 @@ public class RtmpConnection implements RtmpPublisher {
             }
             rtmpSessionInfo = new RtmpSessionInfo();
             rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
-            if (!tlsEnabled) {
-              socket = new Socket(host, port);
-            } else {
-              socket = CreateSSLSocket.createSSlSocket(host, port);
-              if (socket == null) throw new IOException("Socket creation failed");
-            }
-            inputStream = new BufferedInputStream(socket.getInputStream());
-            outputStream = new BufferedOutputStream(socket.getOutputStream());
-            Log.d(TAG, "connect(): socket connection established, doing handshake...");
             salt = Util.getSalt(description);
             challenge = Util.getChallenge(description);
             opaque = Util.getOpaque(description);
-            handshake(inputStream, outputStream);
-            rxPacketHandler = new Thread(new Runnable() {
-              @Override
-              public void run() {
-                handleRxPacketLoop();
-              }
-            });
-            rxPacketHandler.start();
+            openTransport();
             sendConnect(getAuthUserResult(user, password, salt, challenge, opaque));
           } else if (description.contains("code=403") && user == null || password == null) {
             connectCheckerRtmp.onAuthErrorRtmp();
@@ -703,6 +740,11 @@ public class RtmpConnection implements RtmpPublisher {
     videoHeight = height;
   }
 
+  @Override
+  public void setHevc(boolean hevc) {
+    this.hevc = hevc;
+  }
+
   @Override
   public void setAuthorization(String user, String password) {
     this.user = user;
@@ -713,4 +755,65 @@ public class RtmpConnection implements RtmpPublisher {
   public void setSendBufferSize(int bufferSize) {
     sendBufferSize = bufferSize;
   }
+
+  @Override
+  public void setChunkSize(int chunkSize) {
+    if (chunkSize < 128 || chunkSize > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Chunk size must be between 128 and " + MAX_CHUNK_SIZE);
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public void setAdaptiveChunkSize(boolean enabled) {
+    adaptiveChunkSize = enabled;
+  }
+
+  @Override
+  public boolean isWritable() {
+    RtmpTransport currentTransport = transport;
+    return currentTransport == null || currentTransport.isWritable();
+  }
+
+  @Override
+  public void setWritabilityListener(WritabilityListener writabilityListener) {
+    this.writabilityListener = writabilityListener;
+    RtmpTransport currentTransport = transport;
+    if (currentTransport != null) currentTransport.setWritabilityListener(writabilityListener);
+  }
+
+  @Override
+  public void setDeliveryListener(DeliveryListener deliveryListener) {
+    this.deliveryListener = deliveryListener;
+  }
+
+  /**
+   * @return smoothed time from write to server acknowledgement in ms, 0 if unknown.
+   */
+  public long getRtt() {
+    return deliveryEstimator.getRtt();
+  }
+
+  /**
+   * @return smoothed bits per second acknowledged by server, 0 if unknown.
+   */
+  public long getDeliveryRate() {
+    return deliveryEstimator.getDeliveryRate();
+  }
+
+  /**
+   * Outbound queue limits of the non blocking socket. Have to be called before connecting to a
+   * stream.
+   *
+   * @param lowWatermark queued bytes to become writable again.
+   * @param highWatermark queued bytes to stop being writable.
+   */
+  public void setWriteWatermarks(int lowWatermark, int highWatermark) {
+    if (lowWatermark < 0 || highWatermark <= lowWatermark) {
+      throw new IllegalArgumentException(
+          "Watermarks must be 0 <= low < high, low: " + lowWatermark + ", high: " + highWatermark);
+    }
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+  }
 }
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import android.util.Log;
 
 import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Aggregate;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
 import com.github.faucamp.simplertmp.packets.Data;
@@ -31,6 +32,53 @@ public class RtmpDecoder {
     this.rtmpSessionInfo = rtmpSessionInfo;
   }
 
+  /**
+   * Calculate the size of the chunk at offset without consuming it, so a non blocking reader can
+   * wait until the whole chunk is received before calling {@link #readPacket(InputStream)}.
+   * It depends on previous chunks so it is only valid for the next chunk to read.
+   *
+   * @return chunk size with headers or -1 if more bytes are needed to know it.
+   */
+  public int getChunkLength(byte[] data, int offset, int length) throws IOException {
+    if (length < 1) {
+      return -1;
+    }
+    int basicHeaderByte = data[offset] & 0xff;
+    int chunkType = basicHeaderByte >>> 6;
+    ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(basicHeaderByte & 0x3F);
+    RtmpHeader prevHeader = chunkStreamInfo.prevHeaderRx();
+    if (chunkType >= 2 && prevHeader == null) {
+      throw new IOException("Relative chunk header without previous header, chunk stream id: "
+          + (basicHeaderByte & 0x3F));
+    }
+    int headerLength = 1 + (chunkType == 0 ? 11 : chunkType == 1 ? 7 : chunkType == 2 ? 3 : 0);
+    if (length < headerLength) {
+      return -1;
+    }
+    boolean extendedTimestamp;
+    int packetLength;
+    if (chunkType == 3) {
+      extendedTimestamp = prevHeader.getExtendedTimestamp() != 0;
+      packetLength = prevHeader.getPacketLength();
+    } else {
+      extendedTimestamp = readInt24(data, offset + 1) >= 0xffffff;
+      packetLength = chunkType == 2 ? prevHeader.getPacketLength() : readInt24(data, offset + 4);
+    }
+    if (extendedTimestamp) {
+      headerLength += 4;
+    }
+    int rxChunkSize = rtmpSessionInfo.getRxChunkSize();
+    if (packetLength > rxChunkSize) {
+      int remainingBytes = packetLength - chunkStreamInfo.getStoredSize();
+      return headerLength + Math.min(remainingBytes, rxChunkSize);
+    }
+    return headerLength + packetLength;
+  }
+
+  private static int readInt24(byte[] data, int offset) {
+    return (data[offset] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8 | data[offset + 2] & 0xff;
+  }
+
   public RtmpPacket readPacket(InputStream in) throws IOException {
 
     RtmpHeader header = RtmpHeader.readHeader(in, rtmpSessionInfo);
@@ -77,6 +125,9 @@ public class RtmpDecoder {
       case VIDEO:
         rtmpPacket = new Video(header);
         break;
+      case AGGREGATE_MESSAGE:
+        rtmpPacket = new Aggregate(header);
+        break;
       case COMMAND_AMF0:
         rtmpPacket = new Command(header);
         break;
@@ -0,0 +1,70 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.ExtendedRtmpPublisher;
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Socket used by {@link RtmpConnection} to send whole chunked messages and receive packets.
+ * A new transport is created for each connection.
+ */
+abstract class RtmpTransport {
+
+  static final int CONNECT_TIMEOUT = 5000;
+
+  interface Listener {
+    /**
+     * Called from the transport read thread for each packet received.
+     */
+    void onRtmpPacket(RtmpPacket rtmpPacket) throws IOException;
+
+    /**
+     * Called from the transport read thread when reading fail. End of stream is reported as an
+     * {@link java.io.EOFException} if the server closed the connection, not after close.
+     */
+    void onReadError(IOException e);
+  }
+
+  /**
+   * Connect, do the handshake and start reading packets with the decoder.
+   */
+  abstract void connect(String host, int port, int sendBufferSize, RtmpDecoder rtmpDecoder,
+      Listener listener) throws IOException;
+
+  /**
+   * Write the message laid out in chunkBuffer. Other threads can't write until it returns.
+   */
+  abstract void write(ChunkBuffer chunkBuffer) throws IOException;
+
+  /**
+   * @return true if {@link #write(ChunkBuffer)} expects a chunk buffer in gathering mode.
+   */
+  abstract boolean isGatheringWrite();
+
+  /**
+   * @return false while writes can't be done without waiting for the network.
+   */
+  abstract boolean isWritable();
+
+  abstract void setWritabilityListener(
+      ExtendedRtmpPublisher.WritabilityListener writabilityListener);
+
+  abstract int getSendBufferSize() throws IOException;
+
+  abstract void close();
+
+  static void handshake(InputStream in, OutputStream out) throws IOException {
+    Handshake handshake = new Handshake();
+    handshake.writeC0(out);
+    handshake.writeC1(out); // Write C1 without waiting for S0
+    out.flush();
+    handshake.readS0(in);
+    handshake.readS1(in);
+    handshake.writeC2(out);
+    out.flush();
+    handshake.readS2(in);
+  }
+}
@@ -0,0 +1,148 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+import com.github.faucamp.simplertmp.ExtendedRtmpPublisher;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import net.ossrs.rtmp.CreateSSLSocket;
+
+/**
+ * Blocking socket transport. Writes block the caller until the socket accept all bytes and a
+ * dedicated thread read packets. Used for rtmps.
+ */
+class SocketTransport extends RtmpTransport {
+
+  private static final String TAG = "SocketTransport";
+
+  private final boolean tlsEnabled;
+  private Socket socket;
+  private BufferedInputStream inputStream;
+  private BufferedOutputStream outputStream;
+  private Thread rxPacketHandler;
+  private volatile boolean closed = false;
+
+  SocketTransport(boolean tlsEnabled) {
+    this.tlsEnabled = tlsEnabled;
+  }
+
+  @Override
+  void connect(String host, int port, int sendBufferSize, final RtmpDecoder rtmpDecoder,
+      final Listener listener) throws IOException {
+    if (!tlsEnabled) {
+      socket = new Socket();
+      SocketAddress socketAddress = new InetSocketAddress(host, port);
+      if (sendBufferSize > 0) {
+        socket.setSendBufferSize(sendBufferSize);
+      }
+      socket.connect(socketAddress, CONNECT_TIMEOUT);
+      Log.d(TAG, "Send buffer size: " + socket.getSendBufferSize());
+    } else {
+      socket = CreateSSLSocket.createSSlSocket(host, port);
+      if (socket == null) throw new IOException("Socket creation failed");
+    }
+    inputStream = new BufferedInputStream(socket.getInputStream());
+    outputStream = new BufferedOutputStream(socket.getOutputStream());
+    Log.d(TAG, "connect(): socket connection established, doing handshake...");
+    handshake(inputStream, outputStream);
+    Log.d(TAG, "connect(): handshake done");
+
+    // Start the "main" handling thread
+    rxPacketHandler = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        Log.d(TAG, "starting main rx handler loop");
+        handleRxPacketLoop(rtmpDecoder, listener);
+      }
+    });
+    rxPacketHandler.start();
+  }
+
+  private void handleRxPacketLoop(RtmpDecoder rtmpDecoder, Listener listener) {
+    // Handle all queued received RTMP packets
+    while (!Thread.interrupted()) {
+      try {
+        // It will be blocked when no data in input stream buffer
+        RtmpPacket rtmpPacket = rtmpDecoder.readPacket(inputStream);
+        if (rtmpPacket != null) {
+          listener.onRtmpPacket(rtmpPacket);
+        }
+      } catch (EOFException eof) {
+        // expected after close, otherwise the server closed the connection
+        if (!closed) listener.onReadError(eof);
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        listener.onReadError(e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  void write(ChunkBuffer chunkBuffer) throws IOException {
+    chunkBuffer.writeTo(outputStream);
+    outputStream.flush();
+  }
+
+  @Override
+  boolean isGatheringWrite() {
+    // socket streams only take arrays
+    return false;
+  }
+
+  @Override
+  boolean isWritable() {
+    return true;
+  }
+
+  @Override
+  void setWritabilityListener(ExtendedRtmpPublisher.WritabilityListener writabilityListener) {
+    // writes block instead
+  }
+
+  @Override
+  int getSendBufferSize() throws IOException {
+    return socket.getSendBufferSize();
+  }
+
+  @Override
+  void close() {
+    if (socket == null) {
+      return;
+    }
+    closed = true;
+    try {
+      // It will raise EOFException in handleRxPacketThread
+      socket.shutdownInput();
+      // It will raise SocketException in sendRtmpPacket
+      socket.shutdownOutput();
+    } catch (IOException | UnsupportedOperationException e) {
+      Log.e(TAG, "Shutdown socket", e);
+    }
+
+    // shutdown rxPacketHandler
+    if (rxPacketHandler != null) {
+      rxPacketHandler.interrupt();
+      try {
+        rxPacketHandler.join(100);
+      } catch (InterruptedException ie) {
+        rxPacketHandler.interrupt();
+      }
+      rxPacketHandler = null;
+    }
+
+    // shutdown socket as well as its input and output stream
+    try {
+      socket.close();
+      Log.d(TAG, "socket closed");
+    } catch (IOException ex) {
+      Log.e(TAG, "shutdown(): failed to close socket", ex);
+    }
+  }
+}
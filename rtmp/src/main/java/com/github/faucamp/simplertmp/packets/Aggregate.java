@@ -0,0 +1,25 @@
+package com.github.faucamp.simplertmp.packets;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
+/**
+ * Aggregate message (type 22). Body is a list of FLV tags (tag header, data and previous tag
+ * size) sent as a single RTMP message. Timestamp of the message is the timestamp of the first
+ * tag.
+ */
+public class Aggregate extends ContentData {
+
+  public Aggregate(RtmpHeader header) {
+    super(header);
+  }
+
+  public Aggregate() {
+    super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_CID_VIDEO,
+        RtmpHeader.MessageType.AGGREGATE_MESSAGE));
+  }
+
+  @Override
+  public String toString() {
+    return "RTMP Aggregate";
+  }
+}
@@ -252,14 +252,16 @@ public class RtmpHeader {
         messageType = MessageType.valueOf((byte) in.read());
         // Read bytes 1-4: Extended timestamp delta
         extendedTimestamp = timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
+        if (extendedTimestamp != 0) {
+          timestampDelta = extendedTimestamp;
+        }
         RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
         if (prevHeader != null) {
           messageStreamId = prevHeader.messageStreamId;
-          absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp
-              : prevHeader.absoluteTimestamp + timestampDelta;
+          absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
         } else {
           messageStreamId = 0;
-          absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : timestampDelta;
+          absoluteTimestamp = timestampDelta;
         }
         break;
       }
@@ -268,24 +270,31 @@ public class RtmpHeader {
         timestampDelta = Util.readUnsignedInt24(in);
         // Read bytes 1-4: Extended timestamp delta
         extendedTimestamp = timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
+        if (extendedTimestamp != 0) {
+          timestampDelta = extendedTimestamp;
+        }
         RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
         packetLength = prevHeader.packetLength;
         messageType = prevHeader.messageType;
         messageStreamId = prevHeader.messageStreamId;
-        absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp
-            : prevHeader.absoluteTimestamp + timestampDelta;
+        absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
         break;
       }
       case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
-        RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-        // Read bytes 1-4: Extended timestamp
-        extendedTimestamp = prevHeader.timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
-        timestampDelta = extendedTimestamp != 0 ? 0xffffff : prevHeader.timestampDelta;
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId);
+        RtmpHeader prevHeader = chunkStreamInfo.prevHeaderRx();
+        // Read bytes 1-4: Extended timestamp, present when the previous chunk header had it
+        extendedTimestamp = prevHeader.extendedTimestamp != 0 ? Util.readUnsignedInt32(in) : 0;
+        timestampDelta = prevHeader.timestampDelta;
         packetLength = prevHeader.packetLength;
         messageType = prevHeader.messageType;
         messageStreamId = prevHeader.messageStreamId;
-        absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp
-            : prevHeader.absoluteTimestamp + timestampDelta;
+        if (chunkStreamInfo.hasStoredChunks()) {
+          // continuation chunk of the same message, timestamp doesn't change
+          absoluteTimestamp = prevHeader.absoluteTimestamp;
+        } else {
+          absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
+        }
         break;
       }
       default:
@@ -300,44 +309,43 @@ public class RtmpHeader {
     out.write(((byte) (chunkType.getValue() << 6) | chunkStreamId));
     switch (chunkType) {
       case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
-        chunkStreamInfo.markDeltaTimestampTx();
-        Util.writeUnsignedInt24(out,
-            (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
+        timestampDelta = 0;
+        extendedTimestamp = (absoluteTimestamp >= 0xffffff) ? absoluteTimestamp : 0;
+        Util.writeUnsignedInt24(out, extendedTimestamp != 0 ? 0xffffff : absoluteTimestamp);
         Util.writeUnsignedInt24(out, packetLength);
         out.write(messageType.getValue());
         Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
-        if (absoluteTimestamp >= 0xffffff) {
-          extendedTimestamp = absoluteTimestamp;
+        if (extendedTimestamp != 0) {
           Util.writeUnsignedInt32(out, extendedTimestamp);
         }
         break;
       }
       case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
-        timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
-        absoluteTimestamp =
-            chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-        Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
+        // delta from previous message sent in this chunk stream
+        timestampDelta =
+            absoluteTimestamp - chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp();
+        extendedTimestamp = (timestampDelta >= 0xffffff) ? timestampDelta : 0;
+        Util.writeUnsignedInt24(out, extendedTimestamp != 0 ? 0xffffff : timestampDelta);
         Util.writeUnsignedInt24(out, packetLength);
         out.write(messageType.getValue());
-        if (absoluteTimestamp >= 0xffffff) {
-          extendedTimestamp = absoluteTimestamp;
-          Util.writeUnsignedInt32(out, absoluteTimestamp);
+        if (extendedTimestamp != 0) {
+          Util.writeUnsignedInt32(out, extendedTimestamp);
         }
         break;
       }
       case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
-        timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
-        absoluteTimestamp =
-            chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-        Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
-        if (absoluteTimestamp >= 0xffffff) {
-          extendedTimestamp = absoluteTimestamp;
+        timestampDelta =
+            absoluteTimestamp - chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp();
+        extendedTimestamp = (timestampDelta >= 0xffffff) ? timestampDelta : 0;
+        Util.writeUnsignedInt24(out, extendedTimestamp != 0 ? 0xffffff : timestampDelta);
+        if (extendedTimestamp != 0) {
           Util.writeUnsignedInt32(out, extendedTimestamp);
         }
         break;
       }
       case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
-        if (extendedTimestamp > 0) {
+        // continuation chunks repeat the extended timestamp of the first chunk
+        if (extendedTimestamp != 0) {
           Util.writeUnsignedInt32(out, extendedTimestamp);
         }
         break;
@@ -382,6 +390,11 @@ public class RtmpHeader {
     this.absoluteTimestamp = absoluteTimestamp;
   }
 
+  /** @return extended timestamp field read or written with this header, 0 if not present */
+  public int getExtendedTimestamp() {
+    return extendedTimestamp;
+  }
+
   public int getTimestampDelta() {
     return timestampDelta;
   }
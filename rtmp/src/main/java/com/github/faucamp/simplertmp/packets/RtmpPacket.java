@@ -1,10 +1,10 @@
 package com.github.faucamp.simplertmp.packets;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import com.github.faucamp.simplertmp.io.ChunkBuffer;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 
 /**
@@ -30,24 +30,40 @@ public abstract class RtmpPacket {
 
   protected abstract int size();
 
-  public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo)
-      throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    writeBody(baos);
-    byte[] body = this instanceof ContentData ? array() : baos.toByteArray();
-    int length = this instanceof ContentData ? size() : body.length;
+  /**
+   * Lay out this packet as a sequence of chunks in out. The whole message is written to out so
+   * the caller can hand it to the socket in a single write. Body slices are not copied when out
+   * is in gathering mode.
+   *
+   * @param out buffer that receives chunk headers and body slices
+   * @param bodyBuffer scratch buffer used to serialize non content packets
+   */
+  public void writeTo(ChunkBuffer out, ChunkBuffer bodyBuffer, final int chunkSize,
+      final ChunkStreamInfo chunkStreamInfo) throws IOException {
+    byte[] body;
+    int length;
+    if (this instanceof ContentData) {
+      body = array();
+      length = size();
+    } else {
+      bodyBuffer.reset();
+      writeBody(bodyBuffer);
+      body = bodyBuffer.array();
+      length = bodyBuffer.size();
+    }
     header.setPacketLength(length);
-    // Write header for first chunk
-    header.writeTo(out, RtmpHeader.ChunkType.TYPE_0_FULL, chunkStreamInfo);
+    // Write header for first chunk, only the fields that changed since previous message
+    header.writeTo(out, chunkStreamInfo.getTxChunkType(header), chunkStreamInfo);
     int pos = 0;
     while (length > chunkSize) {
       // Write packet for chunk
-      out.write(body, pos, chunkSize);
+      out.writeBody(body, pos, chunkSize);
       length -= chunkSize;
       pos += chunkSize;
       // Write header for remain chunk
       header.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamInfo);
     }
-    out.write(body, pos, length);
+    out.writeBody(body, pos, length);
+    chunkStreamInfo.setPrevHeaderTx(header);
   }
 }
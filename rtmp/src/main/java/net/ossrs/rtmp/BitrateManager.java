@@ -1,5 +1,10 @@
 package net.ossrs.rtmp;
 
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+
 /**
  * Created by pedro on 10/07/19.
  *
@@ -9,17 +14,28 @@ public class BitrateManager {
 
   private long bitrate;
   private long timeStamp = System.currentTimeMillis();
+  private final Gauge bitrateGauge;
   private ConnectCheckerRtmp connectCheckerRtmp;
 
   public BitrateManager(ConnectCheckerRtmp connectCheckerRtsp) {
+    this(connectCheckerRtsp, new InstanceMetrics(MetricsRegistry.getDefault()));
+  }
+
+  /**
+   * @param metrics metrics of the sender or connection.
+   */
+  public BitrateManager(ConnectCheckerRtmp connectCheckerRtsp, InstanceMetrics metrics) {
     this.connectCheckerRtmp = connectCheckerRtsp;
+    bitrateGauge = metrics.gauge(MetricNames.RTMP_BITRATE);
   }
 
   public synchronized void calculateBitrate(long size) {
     bitrate += size;
     long timeDiff = System.currentTimeMillis() - timeStamp;
     if (timeDiff >= 1000) {
-      connectCheckerRtmp.onNewBitrateRtmp((int) (bitrate / (timeDiff / 1000f)));
+      int currentBitrate = (int) (bitrate / (timeDiff / 1000f));
+      bitrateGauge.set(currentBitrate);
+      connectCheckerRtmp.onNewBitrateRtmp(currentBitrate);
       timeStamp = System.currentTimeMillis();
       bitrate = 0;
     }
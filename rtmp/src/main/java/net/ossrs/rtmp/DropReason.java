@@ -0,0 +1,15 @@
+package net.ossrs.rtmp;
+
+/**
+ * Why a frame was not queued for sending.
+ */
+public enum DropReason {
+  /** Frame is queued. */
+  NONE,
+  /** Non reference video frame dropped early on congestion, nothing depends on it. */
+  NON_REFERENCE,
+  /** Video frame dropped with the rest of its GOP until next key frame. */
+  GOP,
+  /** Cache was full. */
+  CACHE_FULL
+}
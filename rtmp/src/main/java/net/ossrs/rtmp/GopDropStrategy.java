@@ -0,0 +1,46 @@
+package net.ossrs.rtmp;
+
+/**
+ * Default {@link VideoDropStrategy}.
+ *
+ * Non reference frames are dropped first once the cache is half full. When it is almost full any
+ * inter frame is dropped, which makes the muxer skip the rest of the GOP. The last slot is kept for
+ * key frames.
+ */
+public class GopDropStrategy implements VideoDropStrategy {
+
+  public static final float DEFAULT_NON_REFERENCE_THRESHOLD = 0.5f;
+  public static final float DEFAULT_GOP_THRESHOLD = 0.9f;
+
+  private final float nonReferenceThreshold;
+  private final float gopThreshold;
+
+  public GopDropStrategy() {
+    this(DEFAULT_NON_REFERENCE_THRESHOLD, DEFAULT_GOP_THRESHOLD);
+  }
+
+  /**
+   * @param nonReferenceThreshold cache fill (0 to 1) from which non reference frames are dropped.
+   * @param gopThreshold cache fill (0 to 1) from which inter frames are dropped.
+   */
+  public GopDropStrategy(float nonReferenceThreshold, float gopThreshold) {
+    this.nonReferenceThreshold = nonReferenceThreshold;
+    this.gopThreshold = gopThreshold;
+  }
+
+  @Override
+  public DropReason onVideoFrame(boolean keyFrame, boolean nonReference, int queuedFrames,
+      int capacity) {
+    if (keyFrame) {
+      return queuedFrames < capacity ? DropReason.NONE : DropReason.CACHE_FULL;
+    }
+    float fill = queuedFrames / (float) capacity;
+    if (nonReference && fill >= nonReferenceThreshold) {
+      return DropReason.NON_REFERENCE;
+    }
+    if (fill >= gopThreshold || (capacity > 1 && queuedFrames >= capacity - 1)) {
+      return DropReason.GOP;
+    }
+    return DropReason.NONE;
+  }
+}
@@ -0,0 +1,165 @@
+package net.ossrs.rtmp;
+
+/**
+ * Build HEVCDecoderConfigurationRecord (ISO/IEC 14496-15, 8.3.3.1) used as Enhanced RTMP hvc1
+ * sequence start. General profile, tier and level are copied from SPS, chroma format and bit
+ * depth are parsed from it. VPS, SPS and PPS must not include start code.
+ */
+final class HevcDecoderConfigurationRecord {
+
+  private static final int NAL_VPS = 32;
+  private static final int NAL_SPS = 33;
+  private static final int NAL_PPS = 34;
+
+  private HevcDecoderConfigurationRecord() {
+  }
+
+  static byte[] build(byte[] vps, byte[] sps, byte[] pps) {
+    byte[] rbsp = toRbsp(sps, 2);
+    BitReader reader = new BitReader(rbsp);
+    // sps_video_parameter_set_id
+    reader.skip(4);
+    int maxSubLayersMinus1 = reader.read(3);
+    int temporalIdNested = reader.read(1);
+    // general_profile_space, general_tier_flag, general_profile_idc,
+    // general_profile_compatibility_flags, general_constraint_indicator_flags,
+    // general_level_idc. Same layout in SPS and in the record.
+    int profileTierLevel = reader.getPosition() / 8;
+    reader.skip(12 * 8);
+    boolean[] subLayerProfilePresent = new boolean[maxSubLayersMinus1];
+    boolean[] subLayerLevelPresent = new boolean[maxSubLayersMinus1];
+    for (int i = 0; i < maxSubLayersMinus1; i++) {
+      subLayerProfilePresent[i] = reader.read(1) == 1;
+      subLayerLevelPresent[i] = reader.read(1) == 1;
+    }
+    if (maxSubLayersMinus1 > 0) {
+      // reserved_zero_2bits
+      reader.skip((8 - maxSubLayersMinus1) * 2);
+    }
+    for (int i = 0; i < maxSubLayersMinus1; i++) {
+      if (subLayerProfilePresent[i]) reader.skip(88);
+      if (subLayerLevelPresent[i]) reader.skip(8);
+    }
+    // sps_seq_parameter_set_id
+    reader.readUe();
+    int chromaFormatIdc = reader.readUe();
+    if (chromaFormatIdc == 3) {
+      // separate_colour_plane_flag
+      reader.skip(1);
+    }
+    // pic_width_in_luma_samples, pic_height_in_luma_samples
+    reader.readUe();
+    reader.readUe();
+    if (reader.read(1) == 1) {
+      // conf_win_left/right/top/bottom_offset
+      reader.readUe();
+      reader.readUe();
+      reader.readUe();
+      reader.readUe();
+    }
+    int bitDepthLumaMinus8 = reader.readUe();
+    int bitDepthChromaMinus8 = reader.readUe();
+
+    byte[] record = new byte[23 + 5 + vps.length + 5 + sps.length + 5 + pps.length];
+    int offset = 0;
+    // configurationVersion
+    record[offset++] = 0x01;
+    System.arraycopy(rbsp, profileTierLevel, record, offset, 12);
+    offset += 12;
+    // reserved 1111, min_spatial_segmentation_idc 0
+    record[offset++] = (byte) 0xF0;
+    record[offset++] = 0x00;
+    // reserved 111111, parallelismType 0 (unknown)
+    record[offset++] = (byte) 0xFC;
+    // reserved 111111, chromaFormat
+    record[offset++] = (byte) (0xFC | (chromaFormatIdc & 0x03));
+    // reserved 11111, bitDepthLumaMinus8
+    record[offset++] = (byte) (0xF8 | (bitDepthLumaMinus8 & 0x07));
+    // reserved 11111, bitDepthChromaMinus8
+    record[offset++] = (byte) (0xF8 | (bitDepthChromaMinus8 & 0x07));
+    // avgFrameRate, unspecified
+    record[offset++] = 0x00;
+    record[offset++] = 0x00;
+    // constantFrameRate 0, numTemporalLayers, temporalIdNested, lengthSizeMinusOne 3
+    record[offset++] =
+        (byte) (((maxSubLayersMinus1 + 1) & 0x07) << 3 | temporalIdNested << 2 | 0x03);
+    // numOfArrays
+    record[offset++] = 0x03;
+    offset = writeArray(record, offset, NAL_VPS, vps);
+    offset = writeArray(record, offset, NAL_SPS, sps);
+    writeArray(record, offset, NAL_PPS, pps);
+    return record;
+  }
+
+  private static int writeArray(byte[] record, int offset, int nalType, byte[] nalUnit) {
+    // array_completeness 1, reserved 0, NAL_unit_type
+    record[offset++] = (byte) (0x80 | nalType);
+    // numNalus
+    record[offset++] = 0x00;
+    record[offset++] = 0x01;
+    // nalUnitLength
+    record[offset++] = (byte) (nalUnit.length >> 8);
+    record[offset++] = (byte) nalUnit.length;
+    System.arraycopy(nalUnit, 0, record, offset, nalUnit.length);
+    return offset + nalUnit.length;
+  }
+
+  /**
+   * Remove emulation prevention bytes (00 00 03) from NAL unit payload after its header.
+   */
+  private static byte[] toRbsp(byte[] nalUnit, int headerSize) {
+    byte[] rbsp = new byte[nalUnit.length - headerSize];
+    int size = 0;
+    int zeros = 0;
+    for (int i = headerSize; i < nalUnit.length; i++) {
+      byte b = nalUnit[i];
+      if (zeros >= 2 && b == 0x03) {
+        zeros = 0;
+        continue;
+      }
+      zeros = b == 0 ? zeros + 1 : 0;
+      rbsp[size++] = b;
+    }
+    return rbsp;
+  }
+
+  private static class BitReader {
+
+    private final byte[] data;
+    private int position;
+
+    BitReader(byte[] data) {
+      this.data = data;
+    }
+
+    int getPosition() {
+      return position;
+    }
+
+    void skip(int bits) {
+      position += bits;
+    }
+
+    int read(int bits) {
+      int value = 0;
+      for (int i = 0; i < bits; i++) {
+        int index = position >> 3;
+        int bit = index < data.length ? (data[index] >> (7 - (position & 7))) & 0x01 : 0;
+        value = (value << 1) | bit;
+        position++;
+      }
+      return value;
+    }
+
+    /**
+     * Read unsigned Exp-Golomb code.
+     */
+    int readUe() {
+      int leadingZeros = 0;
+      while (read(1) == 0 && leadingZeros < 32) {
+        leadingZeros++;
+      }
+      return (1 << leadingZeros) - 1 + read(leadingZeros);
+    }
+  }
+}
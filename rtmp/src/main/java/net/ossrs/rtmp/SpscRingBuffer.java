@@ -0,0 +1,107 @@
+package net.ossrs.rtmp;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer for exactly one producer thread and one consumer thread.
+ *
+ * Slots are preallocated so offering an element never allocates. {@link #offer(Object)} must only
+ * be called by the producer, {@link #peek()}, {@link #poll()}, {@link #drainTo(Collection)} and
+ * {@link #clear()} only by the consumer. {@link #size()} can be called from any thread.
+ */
+public class SpscRingBuffer<E> {
+
+  private final Object[] slots;
+  private final int mask;
+  private final int capacity;
+  //next index to read, only written by consumer
+  private final AtomicLong head = new AtomicLong();
+  //next index to write, only written by producer
+  private final AtomicLong tail = new AtomicLong();
+
+  public SpscRingBuffer(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be greater than 0");
+    }
+    int slotsLength = Integer.highestOneBit(capacity);
+    if (slotsLength < capacity) {
+      slotsLength <<= 1;
+    }
+    this.capacity = capacity;
+    slots = new Object[slotsLength];
+    mask = slotsLength - 1;
+  }
+
+  /**
+   * @return false if the ring is full and the element was not added
+   */
+  public boolean offer(E element) {
+    long currentTail = tail.get();
+    if (currentTail - head.get() >= capacity) {
+      return false;
+    }
+    slots[(int) currentTail & mask] = element;
+    //volatile write so a consumer that checked emptiness before parking always sees it
+    tail.set(currentTail + 1);
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public E peek() {
+    long currentHead = head.get();
+    if (currentHead == tail.get()) {
+      return null;
+    }
+    return (E) slots[(int) currentHead & mask];
+  }
+
+  @SuppressWarnings("unchecked")
+  public E poll() {
+    long currentHead = head.get();
+    if (currentHead == tail.get()) {
+      return null;
+    }
+    int index = (int) currentHead & mask;
+    E element = (E) slots[index];
+    slots[index] = null;
+    head.lazySet(currentHead + 1);
+    return element;
+  }
+
+  /**
+   * Move every element currently in the ring to the collection in one pass.
+   *
+   * @return number of elements moved
+   */
+  @SuppressWarnings("unchecked")
+  public int drainTo(Collection<? super E> collection) {
+    long currentHead = head.get();
+    long currentTail = tail.get();
+    for (long i = currentHead; i < currentTail; i++) {
+      int index = (int) i & mask;
+      collection.add((E) slots[index]);
+      slots[index] = null;
+    }
+    head.lazySet(currentTail);
+    return (int) (currentTail - currentHead);
+  }
+
+  public void clear() {
+    while (poll() != null) ;
+  }
+
+  public int size() {
+    //read head first, tail never goes behind it
+    long currentHead = head.get();
+    return (int) (tail.get() - currentHead);
+  }
+
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+}
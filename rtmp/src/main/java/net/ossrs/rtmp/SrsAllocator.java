@@ -1,17 +1,33 @@
 package net.ossrs.rtmp;
 
-import java.util.Arrays;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Slab allocator with power of two size classes. Each class keeps released allocations in a
+ * bounded lock-free free list, so once the pool is warmed up allocate and release don't create
+ * garbage. Requests bigger than the biggest class are allocated with the exact size and not
+ * pooled.
+ */
 public final class SrsAllocator {
 
   public class Allocation {
 
     private byte[] data;
     private int size;
+    //index of the size class, -1 if not pooled
+    private final int sizeClass;
 
     public Allocation(int size) {
+      this(size, -1);
+    }
+
+    private Allocation(int size, int sizeClass) {
       this.data = new byte[size];
       this.size = 0;
+      this.sizeClass = sizeClass;
     }
 
     public byte[] array() {
@@ -57,60 +73,170 @@ public final class SrsAllocator {
     }
   }
 
-  private final int individualAllocationSize;
-  private volatile int availableSentinel;
-  private Allocation[] availableAllocations;
-
   /**
-   * Constructs an instance without creating any {@link Allocation}s up front.
-   *
-   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * Bounded multi producer multi consumer queue (Vyukov). Each slot has a sequence that tells if
+   * it is ready to be written or read in the current lap, so no node is allocated per operation.
    */
-  public SrsAllocator(int individualAllocationSize) {
-    this(individualAllocationSize, 0);
+  private static final class FreeList {
+
+    private final AtomicReferenceArray<Allocation> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    FreeList(int capacity) {
+      int length = Integer.highestOneBit(Math.max(2, capacity));
+      if (length < capacity) length <<= 1;
+      slots = new AtomicReferenceArray<>(length);
+      sequences = new AtomicLongArray(length);
+      mask = length - 1;
+      for (int i = 0; i < length; i++) {
+        sequences.set(i, i);
+      }
+    }
+
+    boolean offer(Allocation element) {
+      while (true) {
+        long position = enqueuePosition.get();
+        int index = (int) position & mask;
+        long difference = sequences.get(index) - position;
+        if (difference == 0) {
+          if (enqueuePosition.compareAndSet(position, position + 1)) {
+            slots.lazySet(index, element);
+            sequences.set(index, position + 1);
+            return true;
+          }
+        } else if (difference < 0) {
+          return false;
+        }
+      }
+    }
+
+    Allocation poll() {
+      while (true) {
+        long position = dequeuePosition.get();
+        int index = (int) position & mask;
+        long difference = sequences.get(index) - (position + 1);
+        if (difference == 0) {
+          if (dequeuePosition.compareAndSet(position, position + 1)) {
+            Allocation element = slots.get(index);
+            slots.lazySet(index, null);
+            sequences.set(index, position + mask + 1);
+            return element;
+          }
+        } else if (difference < 0) {
+          return null;
+        }
+      }
+    }
   }
 
+  private final int minClassShift;
+  private final int classCount;
+  private final FreeList[] freeLists;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicInteger highWater = new AtomicInteger();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
   /**
-   * Constructs an instance with some {@link Allocation}s created up front.
-   * <p>
-   *
-   * @param individualAllocationSize The length of each individual {@link Allocation}.
-   * @param initialAllocationCount The number of allocations to create up front.
+   * @param minAllocationSize size of the smallest class, rounded up to a power of two.
+   * @param maxAllocationSize size of the biggest class, rounded up to a power of two.
+   * @param allocationsPerClass max released allocations kept by each class.
    */
-  public SrsAllocator(int individualAllocationSize, int initialAllocationCount) {
-    this.individualAllocationSize = individualAllocationSize;
-    this.availableSentinel = initialAllocationCount + 10;
-    this.availableAllocations = new Allocation[availableSentinel];
-    for (int i = 0; i < availableSentinel; i++) {
-      availableAllocations[i] = new Allocation(individualAllocationSize);
+  public SrsAllocator(int minAllocationSize, int maxAllocationSize, int allocationsPerClass) {
+    minClassShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, minAllocationSize) - 1);
+    classCount = getSizeClass(maxAllocationSize) + 1;
+    freeLists = new FreeList[classCount];
+    for (int i = 0; i < classCount; i++) {
+      freeLists[i] = new FreeList(allocationsPerClass);
     }
   }
 
-  public synchronized Allocation allocate(int size) {
-    for (int i = 0; i < availableSentinel; i++) {
-      if (availableAllocations[i].size() >= size) {
-        Allocation ret = availableAllocations[i];
-        availableAllocations[i] = null;
-        return ret;
+  public Allocation allocate(int size) {
+    int sizeClass = getSizeClass(size);
+    Allocation allocation = null;
+    if (sizeClass < classCount) {
+      allocation = freeLists[sizeClass].poll();
+    }
+    if (allocation != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      if (sizeClass < classCount) {
+        int classSize = 1 << (minClassShift + sizeClass);
+        allocation = new Allocation(classSize, sizeClass);
+        allocatedBytes.addAndGet(classSize);
+      } else {
+        allocation = new Allocation(size);
       }
     }
-
-    return new Allocation(size > individualAllocationSize ? size : individualAllocationSize);
+    updateHighWater(outstanding.incrementAndGet());
+    return allocation;
   }
 
-  public synchronized void release(Allocation allocation) {
+  public void release(Allocation allocation) {
     allocation.clear();
-
-    for (int i = 0; i < availableSentinel; i++) {
-      if (availableAllocations[i].size() == 0) {
-        availableAllocations[i] = allocation;
-        return;
-      }
+    outstanding.decrementAndGet();
+    if (allocation.sizeClass >= 0 && !freeLists[allocation.sizeClass].offer(allocation)) {
+      //free list full, left to the GC
+      allocatedBytes.addAndGet(-allocation.data.length);
     }
+  }
 
-    if (availableSentinel + 1 > availableAllocations.length) {
-      availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
-    }
-    availableAllocations[availableSentinel++] = allocation;
+  /**
+   * @return allocations served from a free list.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return allocations that needed a new byte array.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return allocations not released yet.
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return max allocations not released at the same time since last reset.
+   */
+  public int getHighWater() {
+    return highWater.get();
+  }
+
+  /**
+   * @return bytes of pooled allocations, outstanding or in a free list.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  public void resetStats() {
+    hits.set(0);
+    misses.set(0);
+    highWater.set(outstanding.get());
+  }
+
+  private int getSizeClass(int size) {
+    if (size <= 1) return 0;
+    return 32 - Integer.numberOfLeadingZeros((size - 1) >>> minClassShift);
+  }
+
+  private void updateHighWater(int value) {
+    int current;
+    do {
+      current = highWater.get();
+      if (value <= current) return;
+    } while (!highWater.compareAndSet(current, value));
   }
-}
\ No newline at end of file
+}
@@ -6,13 +6,22 @@ import android.os.Looper;
 import android.os.Process;
 import android.util.Log;
 import com.github.faucamp.simplertmp.DefaultRtmpPublisher;
+import com.github.faucamp.simplertmp.ExtendedRtmpPublisher;
 import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.io.ChunkBuffer;
+import com.pedro.encoder.utils.NalUnitScanner;
+import com.pedro.encoder.utils.metrics.Counter;
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.Histogram;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import com.pedro.encoder.utils.trace.FrameTracer;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by winlin on 5/2/15.
@@ -54,22 +63,56 @@ public class SrsFlvMuxer {
 
   private static final String TAG = "SrsFlvMuxer";
 
-  private static final int VIDEO_ALLOC_SIZE = 128 * 1024;
-  private static final int AUDIO_ALLOC_SIZE = 4 * 1024;
+  //size classes of tag allocators, bigger tags are allocated without pooling
+  private static final int VIDEO_MIN_ALLOC_SIZE = 4 * 1024;
+  private static final int VIDEO_MAX_ALLOC_SIZE = 1024 * 1024;
+  private static final int AUDIO_MIN_ALLOC_SIZE = 256;
+  private static final int AUDIO_MAX_ALLOC_SIZE = 8 * 1024;
+  //enough for a full cache plus tags in flight
+  private static final int ALLOCATIONS_PER_CLASS = 64;
+  //AUD, parameter sets, SEI and slices of one access unit
+  private static final int MAX_HEVC_NALUS = 32;
   private volatile boolean connected = false;
   private RtmpPublisher publisher;
-  private Thread worker;
+  //null if publisher doesn't implement the optional features
+  private final ExtendedRtmpPublisher extendedPublisher;
+  private volatile Thread worker;
+  //interrupted worker that still owns the caches until it releases them and exits
+  private volatile Thread stoppingWorker;
+  private volatile boolean workerParked = false;
   private SrsFlv flv = new SrsFlv();
   private boolean needToFindKeyFrame = true;
-  private SrsAllocator mVideoAllocator = new SrsAllocator(VIDEO_ALLOC_SIZE);
-  private SrsAllocator mAudioAllocator = new SrsAllocator(AUDIO_ALLOC_SIZE);
+  //true while skipping the rest of a GOP after a congestion drop
+  private boolean droppingGop = false;
+  private VideoDropStrategy videoDropStrategy = new GopDropStrategy();
+  private SrsAllocator mVideoAllocator =
+      new SrsAllocator(VIDEO_MIN_ALLOC_SIZE, VIDEO_MAX_ALLOC_SIZE, ALLOCATIONS_PER_CLASS);
+  private SrsAllocator mAudioAllocator =
+      new SrsAllocator(AUDIO_MIN_ALLOC_SIZE, AUDIO_MAX_ALLOC_SIZE, ALLOCATIONS_PER_CLASS);
   private static final int VIDEO_CACHE_SIZE = 30;
-  private volatile BlockingQueue<SrsFlvFrame> mFlvVideoTagCache = new LinkedBlockingQueue<>(VIDEO_CACHE_SIZE);
-  private volatile BlockingQueue<SrsFlvFrame> mFlvAudioTagCache = new LinkedBlockingQueue<>(30);
+  private volatile SpscRingBuffer<SrsFlvFrame> mFlvVideoTagCache =
+      new SpscRingBuffer<>(VIDEO_CACHE_SIZE);
+  private volatile SpscRingBuffer<SrsFlvFrame> mFlvAudioTagCache = new SpscRingBuffer<>(30);
+  //caches replaced by a resize, a producer that raced with the swap may still add a tag to them.
+  //Merged by dts with current caches until producers offered to current cache and they are empty
+  private final ArrayList<SpscRingBuffer<SrsFlvFrame>> mRetiredVideoTagCaches = new ArrayList<>();
+  private final ArrayList<SpscRingBuffer<SrsFlvFrame>> mRetiredAudioTagCaches = new ArrayList<>();
+  //cache used by last offer of each producer
+  private volatile SpscRingBuffer<SrsFlvFrame> lastOfferedVideoTagCache;
+  private volatile SpscRingBuffer<SrsFlvFrame> lastOfferedAudioTagCache;
+  private volatile int pendingFlvTagCacheSize = 0;
+  //sent frames returned by the worker, reused by the producer of the track
+  private static final int FLV_FRAME_POOL_SIZE = 128;
+  private final SpscRingBuffer<SrsFlvFrame> mVideoFramePool =
+      new SpscRingBuffer<>(FLV_FRAME_POOL_SIZE);
+  private final SpscRingBuffer<SrsFlvFrame> mAudioFramePool =
+      new SpscRingBuffer<>(FLV_FRAME_POOL_SIZE);
   private ConnectCheckerRtmp connectCheckerRtmp;
   private int sampleRate = 0;
   private boolean isPpsSpsSend = false;
   private byte profileIop = ProfileIop.BASELINE;
+  //send video as Enhanced RTMP hvc1 instead of AVC
+  private boolean hevc = false;
   private String url;
   //re connection
   private int numRetry;
@@ -78,27 +121,119 @@ public class SrsFlvMuxer {
   private Runnable runnable;
   private boolean akamaiTs = false;
 
-  private long mAudioFramesSent = 0;
-  private long mVideoFramesSent = 0;
-  private long mDroppedAudioFrames = 0;
-  private long mDroppedVideoFrames = 0;
+  //registered while started
+  private final InstanceMetrics metrics = new InstanceMetrics(MetricsRegistry.getDefault());
+  private final Counter mAudioFramesSent;
+  private final Counter mVideoFramesSent;
+  private final Counter mDroppedAudioFrames;
+  private final Counter mDroppedVideoFrames;
+  private final Counter[] mDroppedVideoFramesByReason = new Counter[DropReason.values().length];
+  //time from cache add to send and time spent writing a tag to the socket, in us
+  private final Histogram mQueueWaitTime;
+  private final Histogram mWriteTime;
+  private final Gauge mCacheSize;
   private long startTs = 0;
+  //dts ordered send, a lone tag may wait this long for a lower dts tag of the other track.
+  //Disabled by default, any window adds up to its length to the latency of the waiting tag
+  private static final int DEFAULT_REORDER_WINDOW_MS = 0;
+  private static final int NO_DTS = Integer.MIN_VALUE;
+  private volatile int reorderWindowMs = DEFAULT_REORDER_WINDOW_MS;
+  private volatile int lastQueuedAudioDts = NO_DTS;
+  private volatile int lastQueuedVideoDts = NO_DTS;
+  private volatile long lastQueuedAudioNs = 0;
+  private volatile long lastQueuedVideoNs = 0;
+  private long holdDeadlineNs = 0;
+  private int lastSentAudioDts = NO_DTS;
+  private int lastSentVideoDts = NO_DTS;
+  private int lastSentDts = NO_DTS;
+  private final Gauge mAudioVideoSkew;
+  private final Gauge mMaxAudioVideoSkew;
+  private final Counter mOutOfOrderTags;
+  //aggregate messages (type 22), consecutive ready tags sent as one message. 0 disable it
+  private static final int DEFAULT_AGGREGATE_MAX_SIZE = 16 * 1024;
+  private static final int DEFAULT_AGGREGATE_MAX_DURATION_MS = 100;
+  private static final int MAX_AGGREGATE_TAGS = 64;
+  //tag header (type, data size, timestamp, stream id) and previous tag size
+  private static final int AGGREGATE_TAG_OVERHEAD = 11 + 4;
+  private volatile int aggregateMaxSize = 0;
+  private volatile int aggregateMaxDurationMs = 0;
+  private final SrsFlvFrame[] aggregateFrames = new SrsFlvFrame[MAX_AGGREGATE_TAGS];
+  private int aggregateCount = 0;
+  private int aggregateSize = 0;
+  private final ChunkBuffer aggregateBuffer = new ChunkBuffer(DEFAULT_AGGREGATE_MAX_SIZE);
+  private final Counter mAggregatesSent;
 
   public interface MuxerEventsListener {
     void beforeVideoFrameSent();
     void afterVideoFrameSent(int frameSize);
     void onBufferSizeChanged(float fillPercents);
+
+    /**
+     * Publisher outbound queue is full (false) or drained (true). Only publishers with non
+     * blocking sockets report it, tags wait in the caches while not writable.
+     */
+    void onWritabilityChanged(boolean writable);
+
+    /**
+     * Server acknowledged bytes, called from the socket read thread.
+     *
+     * @see ExtendedRtmpPublisher.DeliveryListener#onDelivery(long, long, long)
+     */
+    void onDelivery(long ackedBytes, long deliveryRate, long rtt);
   }
 
   public MuxerEventsListener muxerEventsListener;
 
   /**
    * constructor.
+   *
+   * @param publisher aggregate messages, H265, chunk size, backpressure and delivery events are
+   * only available if it implements {@link ExtendedRtmpPublisher}.
    */
   public SrsFlvMuxer(ConnectCheckerRtmp connectCheckerRtmp, RtmpPublisher publisher) {
     this.connectCheckerRtmp = connectCheckerRtmp;
     this.publisher = publisher;
     handler = new Handler(Looper.getMainLooper());
+    //per instance, other streams must not count in or reset these
+    mAudioFramesSent = metrics.counter(MetricNames.RTMP_AUDIO_SENT);
+    mVideoFramesSent = metrics.counter(MetricNames.RTMP_VIDEO_SENT);
+    mDroppedAudioFrames = metrics.counter(MetricNames.RTMP_AUDIO_DROPPED);
+    mDroppedVideoFrames = metrics.counter(MetricNames.RTMP_VIDEO_DROPPED);
+    for (DropReason reason : DropReason.values()) {
+      mDroppedVideoFramesByReason[reason.ordinal()] = metrics.counter(
+          MetricNames.RTMP_VIDEO_DROPPED + "." + reason.name().toLowerCase(Locale.US));
+    }
+    mQueueWaitTime = metrics.histogram(MetricNames.RTMP_QUEUE_WAIT, MetricNames.LATENCY_BUCKETS);
+    mWriteTime = metrics.histogram(MetricNames.RTMP_WRITE_TIME, MetricNames.LATENCY_BUCKETS);
+    mCacheSize = metrics.gauge(MetricNames.RTMP_CACHE_SIZE);
+    mAggregatesSent = metrics.counter(MetricNames.RTMP_AGGREGATES);
+    mAudioVideoSkew = metrics.gauge(MetricNames.RTMP_AV_SKEW);
+    mMaxAudioVideoSkew = metrics.gauge(MetricNames.RTMP_AV_SKEW_MAX);
+    mOutOfOrderTags = metrics.counter(MetricNames.RTMP_OUT_OF_ORDER);
+    if (publisher instanceof ExtendedRtmpPublisher) {
+      extendedPublisher = (ExtendedRtmpPublisher) publisher;
+      extendedPublisher.setWritabilityListener(new ExtendedRtmpPublisher.WritabilityListener() {
+        @Override
+        public void onWritabilityChanged(boolean writable) {
+          if (writable) {
+            wakeUpWorker();
+          }
+          if (muxerEventsListener != null) {
+            muxerEventsListener.onWritabilityChanged(writable);
+          }
+        }
+      });
+      extendedPublisher.setDeliveryListener(new ExtendedRtmpPublisher.DeliveryListener() {
+        @Override
+        public void onDelivery(long ackedBytes, long deliveryRate, long rtt) {
+          if (muxerEventsListener != null) {
+            muxerEventsListener.onDelivery(ackedBytes, deliveryRate, rtt);
+          }
+        }
+      });
+    } else {
+      extendedPublisher = null;
+    }
   }
 
   public SrsFlvMuxer(ConnectCheckerRtmp connectCheckerRtmp) {
@@ -113,6 +248,27 @@ public class SrsFlvMuxer {
     flv.setSpsPPs(sps, pps);
   }
 
+  /**
+   * @param vps null for H264, in that case it is the same as {@link #setSpsPPs}.
+   */
+  public void setSpsPpsVps(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    if (vps == null) {
+      flv.setSpsPPs(sps, pps);
+    } else {
+      flv.setSpsPpsVps(sps, pps, vps);
+    }
+  }
+
+  /**
+   * Mux video as H265 using Enhanced RTMP (FourCC hvc1). Server must support it. Must be called
+   * before start.
+   * Publishers that don't implement {@link ExtendedRtmpPublisher} don't announce it on connect.
+   */
+  public void setHevc(boolean hevc) {
+    this.hevc = hevc;
+    if (extendedPublisher != null) extendedPublisher.setHevc(hevc);
+  }
+
   public void setSampleRate(int sampleRate) {
     this.sampleRate = sampleRate;
   }
@@ -134,28 +290,108 @@ public class SrsFlvMuxer {
     publisher.setSendBufferSize(bufferSize);
   }
 
+  /**
+   * Ignored if the publisher doesn't implement {@link ExtendedRtmpPublisher}.
+   *
+   * @see ExtendedRtmpPublisher#setChunkSize(int)
+   */
+  public void setChunkSize(int chunkSize) {
+    if (extendedPublisher != null) extendedPublisher.setChunkSize(chunkSize);
+  }
+
+  /**
+   * Ignored if the publisher doesn't implement {@link ExtendedRtmpPublisher}.
+   *
+   * @see ExtendedRtmpPublisher#setAdaptiveChunkSize(boolean)
+   */
+  public void setAdaptiveChunkSize(boolean enabled) {
+    if (extendedPublisher != null) extendedPublisher.setAdaptiveChunkSize(enabled);
+  }
+
+  /**
+   * Send consecutive tags already queued as RTMP aggregate messages using default limits
+   * ({@value #DEFAULT_AGGREGATE_MAX_SIZE} bytes and {@value #DEFAULT_AGGREGATE_MAX_DURATION_MS}ms).
+   * Disabled by default.
+   *
+   * Aggregates reduce messages and socket writes but not bytes. Each tag inside an aggregate keep
+   * its 11 bytes FLV tag header and 4 bytes previous tag size while a tag sent alone only costs
+   * its compressed chunk header (type 1 or 2), so overhead grows from about 5 to about 10 bytes
+   * per tag on a low bitrate 60fps stream. Aggregates only save bytes compared to full 12 bytes
+   * (type 0) headers, so enable them to reduce per message cost, not bandwidth.
+   */
+  public void setAggregateMessages(boolean enabled) {
+    if (enabled) {
+      setAggregateMessages(DEFAULT_AGGREGATE_MAX_SIZE, DEFAULT_AGGREGATE_MAX_DURATION_MS);
+    } else {
+      setAggregateMessages(0, 0);
+    }
+  }
+
+  /**
+   * Tags are never delayed to fill an aggregate, only tags ready when the worker wakes up are
+   * packed. Tags bigger than maxSize are sent alone. Ignored if the publisher doesn't implement
+   * {@link ExtendedRtmpPublisher}.
+   *
+   * @param maxSize max aggregate body size in bytes. 0 to disable aggregate messages.
+   * @param maxDurationMs max dts distance between first and last tag of an aggregate.
+   */
+  public void setAggregateMessages(int maxSize, int maxDurationMs) {
+    if (maxSize < 0 || maxSize > 0xFFFFFF || maxDurationMs < 0) {
+      throw new IllegalArgumentException("Invalid aggregate limits, size: " + maxSize
+          + ", duration: " + maxDurationMs);
+    }
+    if (extendedPublisher == null) {
+      Log.w(TAG, "Aggregate messages not supported by " + publisher.getClass().getSimpleName());
+      return;
+    }
+    aggregateMaxDurationMs = maxDurationMs;
+    aggregateMaxSize = maxSize;
+  }
+
   public boolean isConnected() {
     return connected;
   }
 
+  /**
+   * Caches are single producer/single consumer rings so only the worker can move frames to the
+   * new ones. While streaming the resize is applied by the worker on its next iteration.
+   */
   public void resizeFlvTagCache(int newSize) {
-    synchronized (mFlvAudioTagCache) {
-      mFlvAudioTagCache = resizeFlvTagCacheInternal(mFlvAudioTagCache, newSize);
+    if (newSize < mFlvAudioTagCache.size() || newSize < mFlvVideoTagCache.size()) {
+      throw new RuntimeException("Can't fit current cache inside new cache size");
     }
-    synchronized (mFlvVideoTagCache) {
-      mFlvVideoTagCache = resizeFlvTagCacheInternal(mFlvVideoTagCache, newSize);
+    Thread currentWorker = worker;
+    Thread currentStoppingWorker = stoppingWorker;
+    if (currentWorker == null
+        && (currentStoppingWorker == null || !currentStoppingWorker.isAlive())) {
+      applyFlvTagCacheSize(newSize);
+    } else if (currentWorker == null) {
+      //applied by the stopping worker when it releases the caches or by next worker
+      pendingFlvTagCacheSize = newSize;
+    } else {
+      pendingFlvTagCacheSize = newSize;
+      LockSupport.unpark(currentWorker);
     }
   }
 
-  private BlockingQueue<SrsFlvFrame> resizeFlvTagCacheInternal(BlockingQueue<SrsFlvFrame> cache,
-      int newSize) {
-    if (newSize < cache.size() - cache.remainingCapacity()) {
-      throw new RuntimeException("Can't fit current cache inside new cache size");
-    }
+  private void applyFlvTagCacheSize(int newSize) {
+    SpscRingBuffer<SrsFlvFrame> audioCache = mFlvAudioTagCache;
+    SpscRingBuffer<SrsFlvFrame> videoCache = mFlvVideoTagCache;
+    mRetiredAudioTagCaches.add(audioCache);
+    mRetiredVideoTagCaches.add(videoCache);
+    mFlvAudioTagCache = resizeFlvTagCacheInternal(audioCache, newSize);
+    mFlvVideoTagCache = resizeFlvTagCacheInternal(videoCache, newSize);
+  }
 
-    BlockingQueue<SrsFlvFrame> newQueue = new LinkedBlockingQueue<>(newSize);
-    cache.drainTo(newQueue);
-    return newQueue;
+  private SpscRingBuffer<SrsFlvFrame> resizeFlvTagCacheInternal(
+      SpscRingBuffer<SrsFlvFrame> cache, int newSize) {
+    ArrayList<SrsFlvFrame> frames = new ArrayList<>(cache.size());
+    cache.drainTo(frames);
+    SpscRingBuffer<SrsFlvFrame> newCache = new SpscRingBuffer<>(Math.max(newSize, frames.size()));
+    for (SrsFlvFrame frame : frames) {
+      newCache.offer(frame);
+    }
+    return newCache;
   }
 
   public int getFlvTagCacheSize() {
@@ -163,35 +399,105 @@ public class SrsFlvMuxer {
   }
 
   public long getSentAudioFrames() {
-    return mAudioFramesSent;
+    return mAudioFramesSent.get();
   }
 
   public long getSentVideoFrames() {
-    return mVideoFramesSent;
+    return mVideoFramesSent.get();
   }
 
   public long getDroppedAudioFrames() {
-    return mDroppedAudioFrames;
+    return mDroppedAudioFrames.get();
   }
 
   public long getDroppedVideoFrames() {
-    return mDroppedVideoFrames;
+    return mDroppedVideoFrames.get();
   }
 
   public void resetSentAudioFrames() {
-    mAudioFramesSent = 0;
+    mAudioFramesSent.reset();
   }
 
   public void resetSentVideoFrames() {
-    mVideoFramesSent = 0;
+    mVideoFramesSent.reset();
   }
 
   public void resetDroppedAudioFrames() {
-    mDroppedAudioFrames = 0;
+    mDroppedAudioFrames.reset();
+  }
+
+  /**
+   * @return video frames dropped for the given reason since last reset.
+   */
+  public long getDroppedVideoFrames(DropReason reason) {
+    return mDroppedVideoFramesByReason[reason.ordinal()].get();
   }
 
   public void resetDroppedVideoFrames() {
-    mDroppedVideoFrames = 0;
+    mDroppedVideoFrames.reset();
+    for (int i = 0; i < mDroppedVideoFramesByReason.length; i++) {
+      mDroppedVideoFramesByReason[i].reset();
+    }
+  }
+
+  /**
+   * @return allocator of video tags, to read hit/miss/high-water stats.
+   */
+  public SrsAllocator getVideoAllocator() {
+    return mVideoAllocator;
+  }
+
+  /**
+   * @return allocator of audio tags, to read hit/miss/high-water stats.
+   */
+  public SrsAllocator getAudioAllocator() {
+    return mAudioAllocator;
+  }
+
+  /**
+   * Set strategy used to choose which video frames are dropped on congestion.
+   * Audio and sequence headers are never dropped by the strategy.
+   */
+  public void setVideoDropStrategy(VideoDropStrategy videoDropStrategy) {
+    this.videoDropStrategy = videoDropStrategy;
+  }
+
+  /**
+   * Max time in ms that a tag waits for a tag with lower dts from the other track before being
+   * sent anyway. 0 (default) sends tags as soon as they are ready, tags already cached are still
+   * merged by dts but a track encoded late can be sent behind the other one. One audio frame
+   * interval (23 ms for AAC at 44.1 kHz) is enough to keep both tracks in dts order, at the cost
+   * of up to that much latency for the tag that waits.
+   */
+  public void setReorderWindow(int reorderWindowMs) {
+    this.reorderWindowMs = reorderWindowMs;
+  }
+
+  /**
+   * @return dts of last video tag sent minus dts of last audio tag sent, in ms.
+   */
+  public int getAudioVideoSkew() {
+    return (int) mAudioVideoSkew.get();
+  }
+
+  /**
+   * @return max absolute A/V skew in ms seen since last reset.
+   */
+  public int getMaxAudioVideoSkew() {
+    return (int) mMaxAudioVideoSkew.get();
+  }
+
+  /**
+   * @return number of tags sent with a dts lower than a previously sent tag.
+   */
+  public long getOutOfOrderTags() {
+    return mOutOfOrderTags.get();
+  }
+
+  public void resetAudioVideoSkew() {
+    mAudioVideoSkew.reset();
+    mMaxAudioVideoSkew.reset();
+    mOutOfOrderTags.reset();
   }
 
   /**
@@ -257,65 +563,328 @@ public class SrsFlvMuxer {
     if (!connected || frame == null) {
       return;
     }
+    int maxSize = aggregateMaxSize;
+    if (maxSize > 0) {
+      int tagSize = frame.flvTag.size() + AGGREGATE_TAG_OVERHEAD;
+      if (aggregateCount > 0 && (aggregateCount == MAX_AGGREGATE_TAGS
+          || aggregateSize + tagSize > maxSize
+          || frame.dts - aggregateFrames[0].dts > aggregateMaxDurationMs)) {
+        flushAggregate();
+      }
+      if (tagSize <= maxSize) {
+        aggregateFrames[aggregateCount++] = frame;
+        aggregateSize += tagSize;
+        return;
+      }
+    } else if (aggregateCount > 0) {
+      flushAggregate();
+    }
+    sendSingleFlvTag(frame);
+  }
+
+  private int getSendDts(SrsFlvFrame frame) {
+    return akamaiTs ? (int) ((System.nanoTime() / 1000 - startTs) / 1000) : frame.dts;
+  }
 
-    int dts = akamaiTs ? (int) ((System.nanoTime() / 1000 - startTs) / 1000) : frame.dts;
+  private void sendSingleFlvTag(SrsFlvFrame frame) {
+    updateSendOrderStats(frame);
+    int dts = getSendDts(frame);
     if (frame.is_video()) {
       if (frame.is_keyframe()) {
         Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB", frame.type, dts,
-            frame.flvTag.array().length));
+            frame.flvTag.size()));
       }
       int frameSize = frame.flvTag.size();
       if (muxerEventsListener != null) {
         muxerEventsListener.beforeVideoFrameSent();
       }
+      long startNs = System.nanoTime();
+      mQueueWaitTime.record((startNs - frame.queuedNs) / 1000);
+      FrameTracer.trace(FrameTracer.Stage.DEQUEUED, true, frame.dts, startNs);
       publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), dts);
+      long endNs = System.nanoTime();
+      mWriteTime.record((endNs - startNs) / 1000);
+      FrameTracer.trace(FrameTracer.Stage.SENT, true, frame.dts, endNs);
       if (muxerEventsListener != null) {
         muxerEventsListener.afterVideoFrameSent(frameSize);
       }
       mVideoAllocator.release(frame.flvTag);
-      mVideoFramesSent++;
+      mVideoFramesSent.increment();
+      recycleFlvFrame(frame);
     } else if (frame.is_audio()) {
+      long startNs = System.nanoTime();
+      mQueueWaitTime.record((startNs - frame.queuedNs) / 1000);
+      FrameTracer.trace(FrameTracer.Stage.DEQUEUED, false, frame.dts, startNs);
       publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), dts);
+      long endNs = System.nanoTime();
+      mWriteTime.record((endNs - startNs) / 1000);
+      FrameTracer.trace(FrameTracer.Stage.SENT, false, frame.dts, endNs);
       mAudioAllocator.release(frame.flvTag);
-      mAudioFramesSent++;
+      mAudioFramesSent.increment();
+      recycleFlvFrame(frame);
     }
   }
 
+  /**
+   * Send pending tags as one aggregate message. Each tag is written as FLV tag followed by its
+   * previous tag size, message timestamp is the timestamp of the first tag.
+   */
+  private void flushAggregate() {
+    int count = aggregateCount;
+    aggregateCount = 0;
+    aggregateSize = 0;
+    if (count == 1) {
+      sendSingleFlvTag(aggregateFrames[0]);
+      aggregateFrames[0] = null;
+      return;
+    }
+    aggregateBuffer.reset();
+    int firstDts = 0;
+    long startNs = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      SrsFlvFrame frame = aggregateFrames[i];
+      updateSendOrderStats(frame);
+      int dts = getSendDts(frame);
+      if (i == 0) firstDts = dts;
+      int size = frame.flvTag.size();
+      aggregateBuffer.write(frame.type);
+      aggregateBuffer.write(size >> 16);
+      aggregateBuffer.write(size >> 8);
+      aggregateBuffer.write(size);
+      aggregateBuffer.write(dts >> 16);
+      aggregateBuffer.write(dts >> 8);
+      aggregateBuffer.write(dts);
+      aggregateBuffer.write(dts >> 24);
+      //stream id, always 0
+      aggregateBuffer.write(0);
+      aggregateBuffer.write(0);
+      aggregateBuffer.write(0);
+      aggregateBuffer.write(frame.flvTag.array(), 0, size);
+      int tagSize = size + 11;
+      aggregateBuffer.write(tagSize >> 24);
+      aggregateBuffer.write(tagSize >> 16);
+      aggregateBuffer.write(tagSize >> 8);
+      aggregateBuffer.write(tagSize);
+      mQueueWaitTime.record((startNs - frame.queuedNs) / 1000);
+      FrameTracer.trace(FrameTracer.Stage.DEQUEUED, frame.is_video(), frame.dts, startNs);
+      if (frame.is_video() && muxerEventsListener != null) {
+        muxerEventsListener.beforeVideoFrameSent();
+      }
+    }
+    extendedPublisher.publishAggregateData(aggregateBuffer.array(), aggregateBuffer.size(),
+        firstDts);
+    long endNs = System.nanoTime();
+    mWriteTime.record((endNs - startNs) / 1000);
+    mAggregatesSent.increment();
+    for (int i = 0; i < count; i++) {
+      SrsFlvFrame frame = aggregateFrames[i];
+      aggregateFrames[i] = null;
+      FrameTracer.trace(FrameTracer.Stage.SENT, frame.is_video(), frame.dts, endNs);
+      if (frame.is_video()) {
+        if (muxerEventsListener != null) {
+          muxerEventsListener.afterVideoFrameSent(frame.flvTag.size());
+        }
+        mVideoAllocator.release(frame.flvTag);
+        mVideoFramesSent.increment();
+      } else {
+        mAudioAllocator.release(frame.flvTag);
+        mAudioFramesSent.increment();
+      }
+      recycleFlvFrame(frame);
+    }
+  }
+
+  /**
+   * Give a sent frame back to its producer. Called by the cache consumer only. The producer may
+   * still read the frame it just offered, nothing changes it until the producer takes it again.
+   */
+  private void recycleFlvFrame(SrsFlvFrame frame) {
+    (frame.is_video() ? mVideoFramePool : mAudioFramePool).offer(frame);
+  }
+
   /**
    * start to the remote SRS for remux.
    */
   public void start(final String rtmpUrl) {
     clear();
+    metrics.register();
     startTs = System.nanoTime() / 1000;
+    final Thread previousWorker = stoppingWorker;
     worker = new Thread(new Runnable() {
       @Override
       public void run() {
         android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_MORE_FAVORABLE);
-        if (!connect(rtmpUrl)) {
-          return;
-        }
-        reTries = numRetry;
-        connectCheckerRtmp.onConnectionSuccessRtmp();
-        while (!Thread.interrupted()) {
-          try {
-            SrsFlvFrame frame = mFlvAudioTagCache.poll(1, TimeUnit.MILLISECONDS);
-            if (frame != null) {
-              sendFlvTag(frame);
+        //caches must have a single consumer, wait until previous worker released them
+        joinUninterruptibly(previousWorker);
+        try {
+          if (Thread.currentThread().isInterrupted() || !connect(rtmpUrl)) {
+            return;
+          }
+          reTries = numRetry;
+          connectCheckerRtmp.onConnectionSuccessRtmp();
+          while (!Thread.interrupted()) {
+            int newCacheSize = pendingFlvTagCacheSize;
+            if (newCacheSize > 0) {
+              pendingFlvTagCacheSize = 0;
+              applyFlvTagCacheSize(newCacheSize);
             }
-
-            frame = mFlvVideoTagCache.poll(1, TimeUnit.MILLISECONDS);
-            if (frame != null) {
-              sendFlvTag(frame);
+            if (sendReadyFlvTags() == 0) {
+              parkWorker();
             }
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
           }
+        } finally {
+          releaseFlvTagCaches();
         }
       }
     });
     worker.start();
   }
 
+  /**
+   * Send every tag already in the caches, merging audio and video by dts.
+   *
+   * @return number of tags sent
+   */
+  private int sendReadyFlvTags() {
+    int sent = 0;
+    pruneRetiredFlvTagCaches(mRetiredAudioTagCaches, mFlvAudioTagCache, lastOfferedAudioTagCache);
+    pruneRetiredFlvTagCaches(mRetiredVideoTagCaches, mFlvVideoTagCache, lastOfferedVideoTagCache);
+    SpscRingBuffer<SrsFlvFrame> audioCache = mFlvAudioTagCache;
+    SpscRingBuffer<SrsFlvFrame> videoCache = mFlvVideoTagCache;
+    // keep tags in the caches while publisher can't write, drop strategy handle the congestion
+    while (!Thread.currentThread().isInterrupted() && isPublisherWritable()) {
+      SpscRingBuffer<SrsFlvFrame> cache = selectNextFlvTagCache(audioCache, videoCache);
+      if (cache == null) {
+        break;
+      }
+      sendFlvTag(cache.poll());
+      sent++;
+    }
+    if (aggregateCount > 0) {
+      flushAggregate();
+    }
+    return sent;
+  }
+
+  /**
+   * @return cache whose head tag has the lowest dts, or null if there is nothing to send yet.
+   */
+  private SpscRingBuffer<SrsFlvFrame> selectNextFlvTagCache(
+      SpscRingBuffer<SrsFlvFrame> audioCache, SpscRingBuffer<SrsFlvFrame> videoCache) {
+    holdDeadlineNs = 0;
+    audioCache = selectTrackFlvTagCache(audioCache, mRetiredAudioTagCaches);
+    videoCache = selectTrackFlvTagCache(videoCache, mRetiredVideoTagCaches);
+    SrsFlvFrame audioFrame = audioCache.peek();
+    SrsFlvFrame videoFrame = videoCache.peek();
+    if (audioFrame != null && videoFrame != null) {
+      return audioFrame.dts <= videoFrame.dts ? audioCache : videoCache;
+    } else if (audioFrame != null) {
+      return mustHoldFlvTag(audioFrame, lastQueuedVideoDts, lastQueuedVideoNs) ? null : audioCache;
+    } else if (videoFrame != null) {
+      return mustHoldFlvTag(videoFrame, lastQueuedAudioDts, lastQueuedAudioNs) ? null : videoCache;
+    }
+    return null;
+  }
+
+  // A lone tag waits while the other track is active and may still queue a tag with lower dts,
+  // bounded by the reorder window.
+  private boolean mustHoldFlvTag(SrsFlvFrame frame, int otherLastQueuedDts,
+      long otherLastQueuedNs) {
+    int windowMs = reorderWindowMs;
+    if (windowMs <= 0 || otherLastQueuedDts == NO_DTS || otherLastQueuedDts >= frame.dts) {
+      return false;
+    }
+    long windowNs = windowMs * 1000000L;
+    long now = System.nanoTime();
+    long deadline = frame.queuedNs + windowNs;
+    if (now >= deadline || now - otherLastQueuedNs >= windowNs) {
+      return false;
+    }
+    holdDeadlineNs = deadline;
+    return true;
+  }
+
+  private void updateSendOrderStats(SrsFlvFrame frame) {
+    if (lastSentDts != NO_DTS && frame.dts < lastSentDts) {
+      mOutOfOrderTags.increment();
+    }
+    lastSentDts = frame.dts;
+    if (frame.is_video()) {
+      lastSentVideoDts = frame.dts;
+    } else {
+      lastSentAudioDts = frame.dts;
+    }
+    if (lastSentAudioDts != NO_DTS && lastSentVideoDts != NO_DTS) {
+      int skew = lastSentVideoDts - lastSentAudioDts;
+      mAudioVideoSkew.set(skew);
+      if (Math.abs(skew) > mMaxAudioVideoSkew.get()) {
+        mMaxAudioVideoSkew.set(Math.abs(skew));
+      }
+    }
+  }
+
+  /**
+   * A tag added to a retired cache after the resize moved its tags is newer than them but may be
+   * older than tags in the current cache, so a track is merged by dts too.
+   *
+   * @return cache of the track whose head tag has the lowest dts, current cache if all are empty.
+   */
+  private SpscRingBuffer<SrsFlvFrame> selectTrackFlvTagCache(
+      SpscRingBuffer<SrsFlvFrame> cache, ArrayList<SpscRingBuffer<SrsFlvFrame>> retiredCaches) {
+    SrsFlvFrame head = cache.peek();
+    for (int i = 0; i < retiredCaches.size(); i++) {
+      SpscRingBuffer<SrsFlvFrame> retiredCache = retiredCaches.get(i);
+      SrsFlvFrame retiredHead = retiredCache.peek();
+      if (retiredHead != null && (head == null || retiredHead.dts < head.dts)) {
+        head = retiredHead;
+        cache = retiredCache;
+      }
+    }
+    return cache;
+  }
+
+  // Once the producer offered to the current cache it never touches a retired one again, tags
+  // it added to them before are visible here so the empty ones can be dropped.
+  private void pruneRetiredFlvTagCaches(ArrayList<SpscRingBuffer<SrsFlvFrame>> retiredCaches,
+      SpscRingBuffer<SrsFlvFrame> cache, SpscRingBuffer<SrsFlvFrame> lastOfferedCache) {
+    if (retiredCaches.isEmpty() || lastOfferedCache != cache) return;
+    for (int i = retiredCaches.size() - 1; i >= 0; i--) {
+      if (retiredCaches.get(i).isEmpty()) {
+        retiredCaches.remove(i);
+      }
+    }
+  }
+
+  private boolean isPublisherWritable() {
+    return extendedPublisher == null || extendedPublisher.isWritable();
+  }
+
+  // Producers unpark the worker after adding a frame if this flag is set. The flag is raised
+  // before checking the caches again so a frame added meanwhile is never missed.
+  private void parkWorker() {
+    workerParked = true;
+    if (!isPublisherWritable()) {
+      LockSupport.park(this);
+    } else if (pendingFlvTagCacheSize == 0
+        && selectNextFlvTagCache(mFlvAudioTagCache, mFlvVideoTagCache) == null) {
+      if (holdDeadlineNs == 0) {
+        LockSupport.park(this);
+      } else {
+        LockSupport.parkNanos(this, holdDeadlineNs - System.nanoTime());
+      }
+    }
+    workerParked = false;
+  }
+
+  private void wakeUpWorker() {
+    if (workerParked) {
+      Thread currentWorker = worker;
+      if (currentWorker != null) {
+        LockSupport.unpark(currentWorker);
+      }
+    }
+  }
+
   public void stop() {
     stop(connectCheckerRtmp);
   }
@@ -327,6 +896,9 @@ public class SrsFlvMuxer {
     resetSentVideoFrames();
     resetDroppedAudioFrames();
     resetDroppedVideoFrames();
+    resetAudioVideoSkew();
+    lastQueuedAudioDts = lastQueuedVideoDts = NO_DTS;
+    lastSentAudioDts = lastSentVideoDts = lastSentDts = NO_DTS;
   }
 
   /**
@@ -335,19 +907,25 @@ public class SrsFlvMuxer {
   private void stop(final ConnectCheckerRtmp connectCheckerRtmp) {
     startTs = 0;
     handler.removeCallbacks(runnable);
-    if (worker != null) {
-      worker.interrupt();
-      try {
-        worker.join(100);
-      } catch (InterruptedException e) {
-        worker.interrupt();
-      }
+    Thread currentWorker = worker;
+    if (currentWorker != null) {
+      //the worker releases the caches when it leaves its loop, it may be blocked on a write
+      //until disconnect closes the socket so don't wait for it here
+      currentWorker.interrupt();
+      stoppingWorker = currentWorker;
       worker = null;
+    } else {
+      currentWorker = stoppingWorker;
+    }
+    if (currentWorker == null || !currentWorker.isAlive()) {
+      //no consumer left, release tags queued after the worker finished
+      releaseFlvTagCaches();
     }
-    mFlvAudioTagCache.clear();
-    mFlvVideoTagCache.clear();
     flv.reset();
     needToFindKeyFrame = true;
+    droppingGop = false;
+    //values stay readable with the getters, only exporters stop seeing them
+    metrics.unregister();
     Log.i(TAG, "SrsFlvMuxer closed");
 
     new Thread(new Runnable() {
@@ -358,11 +936,62 @@ public class SrsFlvMuxer {
     }).start();
   }
 
+  /**
+   * Return every cached tag to the allocators. Only the worker, or stop() once no worker is
+   * alive, calls it so the rings keep a single consumer.
+   */
+  private void releaseFlvTagCaches() {
+    int newCacheSize = pendingFlvTagCacheSize;
+    if (newCacheSize > 0) {
+      pendingFlvTagCacheSize = 0;
+      applyFlvTagCacheSize(newCacheSize);
+    }
+    releaseFlvTags(mFlvAudioTagCache, mAudioAllocator);
+    releaseFlvTags(mFlvVideoTagCache, mVideoAllocator);
+    for (SpscRingBuffer<SrsFlvFrame> cache : mRetiredAudioTagCaches) {
+      releaseFlvTags(cache, mAudioAllocator);
+    }
+    for (SpscRingBuffer<SrsFlvFrame> cache : mRetiredVideoTagCaches) {
+      releaseFlvTags(cache, mVideoAllocator);
+    }
+    mRetiredAudioTagCaches.clear();
+    mRetiredVideoTagCaches.clear();
+  }
+
+  private static void joinUninterruptibly(Thread thread) {
+    if (thread == null) return;
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Empty a cache returning its tags to the allocator so they are reused on next stream.
+   */
+  private void releaseFlvTags(SpscRingBuffer<SrsFlvFrame> cache, SrsAllocator allocator) {
+    if (cache == null) return;
+    SrsFlvFrame frame;
+    while ((frame = cache.poll()) != null) {
+      allocator.release(frame.flvTag);
+      recycleFlvFrame(frame);
+    }
+  }
+
   public void sendVideo(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+    FrameTracer.trace(FrameTracer.Stage.MUXED, true, bufferInfo.presentationTimeUs / 1000);
     flv.writeVideoSample(byteBuffer, bufferInfo);
   }
 
   public void sendAudio(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
+    FrameTracer.trace(FrameTracer.Stage.MUXED, false, bufferInfo.presentationTimeUs / 1000);
     flv.writeAudioSample(byteBuffer, bufferInfo);
   }
 
@@ -390,6 +1019,20 @@ public class SrsFlvMuxer {
     public final static int NALU = 1;
   }
 
+  // Enhanced RTMP, IsExHeader UB[1] | FrameType UB[3] | PacketType UB[4], then FourCC UI32.
+  // PacketType:
+  //     0 = SequenceStart, codec configuration record
+  //     1 = CodedFrames, SI24 composition time then NAL units
+  //     3 = CodedFramesX, NAL units with composition time 0
+  // @see enhanced-rtmp-v1.pdf, ExVideoTagHeader
+  private class SrsCodecVideoExType {
+    public final static int IsExHeader = 0x80;
+    public final static int SequenceStart = 0;
+    public final static int CodedFramesX = 3;
+    // 'h' 'v' 'c' '1'
+    public final static int FourCcHevc = 0x68766331;
+  }
+
   /**
    * E.4.1 FLV Tag, page 75
    */
@@ -480,6 +1123,20 @@ public class SrsFlvMuxer {
     public final static int CodedSliceExt = 20;
   }
 
+  /**
+   * Table 7-1 – NAL unit type codes and NAL unit type classes, H.265-ITU-T-2013.pdf, page 63.
+   */
+  private class SrsHevcNaluType {
+    // sub-layer non-reference pictures are the even types below RSV_VCL_N14
+    public final static int RsvVclN14 = 14;
+    public final static int BlaWLp = 16;
+    public final static int RsvIrapVcl23 = 23;
+    public final static int VPS = 32;
+    public final static int SPS = 33;
+    public final static int PPS = 34;
+    public final static int AUD = 35;
+  }
+
   /**
    * the search result for annexb.
    */
@@ -489,11 +1146,16 @@ public class SrsFlvMuxer {
   }
 
   /**
-   * the demuxed tag frame.
+   * the demuxed tag frame, a view of [offset, offset + size) in the encoder buffer.
    */
   private class SrsFlvFrameBytes {
     public ByteBuffer data;
+    public int offset;
     public int size;
+
+    public byte get(int index) {
+      return data.get(offset + index);
+    }
   }
 
   /**
@@ -510,6 +1172,10 @@ public class SrsFlvMuxer {
     public int type;
     // the dts in ms, tbn is 1000.
     public int dts;
+    // System.nanoTime() when the frame was added to the cache.
+    public long queuedNs;
+    // video frame not used as reference (nal_ref_idc == 0).
+    public boolean nonReference;
 
     public boolean is_keyframe() {
       return is_video() && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
@@ -535,44 +1201,18 @@ public class SrsFlvMuxer {
     private final static String TAG = "SrsFlvMuxer";
 
     private SrsAnnexbSearch annexb = new SrsAnnexbSearch();
-    private SrsFlvFrameBytes nalu_header = new SrsFlvFrameBytes();
-    private SrsFlvFrameBytes seq_hdr = new SrsFlvFrameBytes();
-    private SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
-    private SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
-    private SrsFlvFrameBytes pps_hdr = new SrsFlvFrameBytes();
-    private SrsFlvFrameBytes pps_bb = new SrsFlvFrameBytes();
 
     public boolean isSps(SrsFlvFrameBytes frame) {
-      return frame.size >= 1 && (frame.data.get(0) & 0x1f) == SrsAvcNaluType.SPS;
+      return frame.size >= 1 && (frame.get(0) & 0x1f) == SrsAvcNaluType.SPS;
     }
 
     public boolean isPps(SrsFlvFrameBytes frame) {
-      return frame.size >= 1 && (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
-    }
-
-    public SrsFlvFrameBytes muxNaluHeader(SrsFlvFrameBytes frame) {
-      if (nalu_header.data == null) {
-        nalu_header.data = ByteBuffer.allocate(4);
-        nalu_header.size = 4;
-      }
-      nalu_header.data.rewind();
-
-      // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-      // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
-      int NAL_unit_length = frame.size;
-
-      // mux the avc NALU in "ISO Base Media File Format"
-      // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
-      // NALUnitLength
-      nalu_header.data.putInt(NAL_unit_length);
-
-      // reset the buffer.
-      nalu_header.data.rewind();
-      return nalu_header;
+      return frame.size >= 1 && (frame.get(0) & 0x1f) == SrsAvcNaluType.PPS;
     }
 
-    public void muxSequenceHeader(ByteBuffer sps, ByteBuffer pps,
-        ArrayList<SrsFlvFrameBytes> frames) {
+    public SrsAllocator.Allocation muxSequenceHeader(ByteBuffer sps, ByteBuffer pps) {
+      int spsSize = sps.array().length;
+      int ppsSize = pps.array().length;
       // 5bytes sps/pps header:
       //      configurationVersion, AVCProfileIndication, profile_compatibility,
       //      AVCLevelIndication, lengthSizeMinusOne
@@ -584,14 +1224,12 @@ public class SrsFlvMuxer {
       //      numOfPictureParameterSets, pictureParameterSetLength
       // Nbytes of pps:
       //      pictureParameterSetNALUnit
+      SrsAllocator.Allocation allocation =
+          muxFlvTagHeader(5 + 3 + spsSize + 3 + ppsSize, SrsCodecVideoAVCFrame.KeyFrame,
+              SrsCodecVideoAVCType.SequenceHeader);
 
       // decode the SPS:
       // @see: 7.3.2.1.1, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 62
-      if (seq_hdr.data == null) {
-        seq_hdr.data = ByteBuffer.allocate(5);
-        seq_hdr.size = 5;
-      }
-      seq_hdr.data.rewind();
       // @see: Annex A Profiles and levels, H.264-AVC-ISO_IEC_14496-10.pdf, page 205
       //      Baseline profile profile_idc is 66(0x42).
       //      Main profile profile_idc is 77(0x4d).
@@ -603,74 +1241,73 @@ public class SrsFlvMuxer {
       // generate the sps/pps header
       // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
       // configurationVersion
-      seq_hdr.data.put((byte) 0x01);
+      allocation.put((byte) 0x01);
       // AVCProfileIndication
-      seq_hdr.data.put(profile_idc);
+      allocation.put(profile_idc);
       // profile_compatibility
-      seq_hdr.data.put(profileIop);
+      allocation.put(profileIop);
       // AVCLevelIndication
-      seq_hdr.data.put(level_idc);
+      allocation.put(level_idc);
       // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size,
       // so we always set it to 0x03.
-      seq_hdr.data.put((byte) 0x03);
-
-      // reset the buffer.
-      seq_hdr.data.rewind();
-      frames.add(seq_hdr);
+      allocation.put((byte) 0x03);
 
       // sps
-      if (sps_hdr.data == null) {
-        sps_hdr.data = ByteBuffer.allocate(3);
-        sps_hdr.size = 3;
-      }
-      sps_hdr.data.rewind();
       // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
       // numOfSequenceParameterSets, always 1
-      sps_hdr.data.put((byte) 0x01);
+      allocation.put((byte) 0x01);
       // sequenceParameterSetLength
-      sps_hdr.data.putShort((short) sps.array().length);
-
-      sps_hdr.data.rewind();
-      frames.add(sps_hdr);
-
+      allocation.put((byte) (spsSize >> 8));
+      allocation.put((byte) spsSize);
       // sequenceParameterSetNALUnit
-      sps_bb.size = sps.array().length;
-      sps_bb.data = sps.duplicate();
-      frames.add(sps_bb);
+      allocation.put(sps.array());
 
       // pps
-      if (pps_hdr.data == null) {
-        pps_hdr.data = ByteBuffer.allocate(3);
-        pps_hdr.size = 3;
-      }
-      pps_hdr.data.rewind();
       // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
       // numOfPictureParameterSets, always 1
-      pps_hdr.data.put((byte) 0x01);
+      allocation.put((byte) 0x01);
       // pictureParameterSetLength
-      pps_hdr.data.putShort((short) pps.array().length);
+      allocation.put((byte) (ppsSize >> 8));
+      allocation.put((byte) ppsSize);
+      // pictureParameterSetNALUnit
+      allocation.put(pps.array());
+      return allocation;
+    }
 
-      pps_hdr.data.rewind();
-      frames.add(pps_hdr);
+    public SrsAllocator.Allocation muxNaluFlvTag(SrsFlvFrameBytes frame, int frame_type) {
+      SrsAllocator.Allocation allocation =
+          muxFlvTagHeader(4 + frame.size, frame_type, SrsCodecVideoAVCType.NALU);
 
-      // pictureParameterSetNALUnit
-      pps_bb.size = pps.array().length;
-      pps_bb.data = pps.duplicate();
-      frames.add(pps_bb);
+      // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+      // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
+      int NAL_unit_length = frame.size;
+
+      // mux the avc NALU in "ISO Base Media File Format"
+      // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
+      // NALUnitLength
+      allocation.put((byte) (NAL_unit_length >> 24));
+      allocation.put((byte) (NAL_unit_length >> 16));
+      allocation.put((byte) (NAL_unit_length >> 8));
+      allocation.put((byte) NAL_unit_length);
+
+      // h.264 raw data, copied straight from the encoder buffer.
+      frame.data.position(frame.offset);
+      frame.data.get(allocation.array(), allocation.size(), frame.size);
+      allocation.appendOffset(frame.size);
+      return allocation;
     }
 
-    public SrsAllocator.Allocation muxFlvTag(ArrayList<SrsFlvFrameBytes> frames, int frame_type,
+    /**
+     * Allocate a tag big enough for the 5 bytes video header plus payloadSize and write the header.
+     */
+    private SrsAllocator.Allocation muxFlvTagHeader(int payloadSize, int frame_type,
         int avc_packet_type) {
       // for h264 in RTMP video payload, there is 5bytes header:
       //      1bytes, FrameType | CodecID
       //      1bytes, AVCPacketType
       //      3bytes, CompositionTime, the cts.
       // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
-      int size = 5;
-      for (int i = 0; i < frames.size(); i++) {
-        size += frames.get(i).size;
-      }
-      SrsAllocator.Allocation allocation = mVideoAllocator.allocate(size);
+      SrsAllocator.Allocation allocation = mVideoAllocator.allocate(5 + payloadSize);
 
       // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
       // Frame Type, Type of video frame.
@@ -689,15 +1326,6 @@ public class SrsFlvMuxer {
       allocation.put((byte) (cts >> 16));
       allocation.put((byte) (cts >> 8));
       allocation.put((byte) cts);
-
-      // h.264 raw data.
-      for (int i = 0; i < frames.size(); i++) {
-        SrsFlvFrameBytes frame = frames.get(i);
-        frame.data.rewind();
-        frame.data.get(allocation.array(), allocation.size(), frame.size);
-        allocation.appendOffset(frame.size);
-      }
-
       return allocation;
     }
 
@@ -705,14 +1333,11 @@ public class SrsFlvMuxer {
       annexb.match = false;
       annexb.nb_start_code = 0;
       if (size - 4 > 0) {
-        if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x00 && bb.get(3) == 0x01) {
-          // match N[00] 00 00 00 01, where N>=0
+        // match 00 00 01 or 00 00 00 01 at the beginning
+        int startCode = NalUnitScanner.findStartCode(bb, 0, 4);
+        if (startCode == 0 || (startCode == 1 && bb.get(0) == 0x00)) {
           annexb.match = true;
-          annexb.nb_start_code = 4;
-        } else if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x01) {
-          // match N[00] 00 00 01, where N>=0
-          annexb.match = true;
-          annexb.nb_start_code = 3;
+          annexb.nb_start_code = startCode + 3;
         }
       }
       return annexb;
@@ -721,29 +1346,20 @@ public class SrsFlvMuxer {
     private SrsAnnexbSearch searchAnnexb(ByteBuffer bb, int size) {
       annexb.match = false;
       annexb.nb_start_code = 0;
-      for (int i = bb.position(); i < size - 4; i++) {
-        // not match.
-        if (bb.get(i) != 0x00 || bb.get(i + 1) != 0x00) {
-          continue;
-        }
-        // match N[00] 00 00 01, where N>=0
-        if (bb.get(i + 2) == 0x01) {
-          annexb.match = true;
-          annexb.nb_start_code = i + 3 - bb.position();
-          break;
-        }
-        // match N[00] 00 00 00 01, where N>=0
-        if (bb.get(i + 2) == 0x00 && bb.get(i + 3) == 0x01) {
-          annexb.match = true;
-          annexb.nb_start_code = i + 4 - bb.position();
-          break;
-        }
+      // match N[00] 00 00 01, where N>=0
+      int startCode = NalUnitScanner.findStartCode(bb, bb.position(), size);
+      if (startCode != -1) {
+        annexb.match = true;
+        annexb.nb_start_code = startCode + 3 - bb.position();
       }
       return annexb;
     }
 
-    public SrsFlvFrameBytes demuxAnnexb(ByteBuffer bb, int size, boolean isOnlyChkHeader) {
-      SrsFlvFrameBytes tbb = new SrsFlvFrameBytes();
+    public SrsFlvFrameBytes demuxAnnexb(ByteBuffer bb, int size, boolean isOnlyChkHeader,
+        SrsFlvFrameBytes tbb) {
+      tbb.data = null;
+      tbb.offset = 0;
+      tbb.size = 0;
       if (bb.position() < size - 4) {
         // each frame must prefixed by annexb format.
         // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
@@ -759,7 +1375,8 @@ public class SrsFlvMuxer {
           }
         }
         // find out the frame size.
-        tbb.data = bb.slice();
+        tbb.data = bb;
+        tbb.offset = bb.position();
         tbb.size = size - bb.position();
       }
       return tbb;
@@ -771,11 +1388,19 @@ public class SrsFlvMuxer {
    */
   private class SrsFlv {
     private SrsRawH264Stream avc = new SrsRawH264Stream();
-    private ArrayList<SrsFlvFrameBytes> ipbs = new ArrayList<>();
+    private SrsFlvFrameBytes nalu = new SrsFlvFrameBytes();
+    private SrsFlvFrameBytes nalu_pps = new SrsFlvFrameBytes();
+    private SrsFlvFrameBytes nalu_sei = new SrsFlvFrameBytes();
+    private int[] nalu_offsets = new int[MAX_HEVC_NALUS];
+    private int[] nalu_sizes = new int[MAX_HEVC_NALUS];
     private SrsAllocator.Allocation audio_tag;
     private SrsAllocator.Allocation video_tag;
+    //last frame dropped by each producer, reused before the pool
+    private SrsFlvFrame spareVideoFrame;
+    private SrsFlvFrame spareAudioFrame;
     private ByteBuffer Sps;
     private ByteBuffer Pps;
+    private ByteBuffer Vps;
     private boolean aac_specific_config_got;
     private int achannel;
 
@@ -790,6 +1415,7 @@ public class SrsFlvMuxer {
     public void reset() {
       Sps = null;
       Pps = null;
+      Vps = null;
       isPpsSpsSend = false;
       aac_specific_config_got = false;
     }
@@ -904,7 +1530,7 @@ public class SrsFlvMuxer {
 
       audio_tag.put(audio_header, 0);
       audio_tag.put(aac_packet_type, 1);
-      writeRtmpPacket(SrsCodecFlvTag.Audio, dts, 0, aac_packet_type, audio_tag);
+      writeRtmpPacket(SrsCodecFlvTag.Audio, dts, 0, aac_packet_type, false, audio_tag);
     }
 
     private void writeAdtsHeader(byte[] frame, int offset) {
@@ -945,36 +1571,39 @@ public class SrsFlvMuxer {
 
     public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
       if (bi.size < 4) return;
+      if (hevc) {
+        writeHevcVideoSample(bb, bi);
+        return;
+      }
 
       bb.rewind();  //Sometimes the position is not 0.
       int pts = (int) (bi.presentationTimeUs / 1000);
       int type = SrsCodecVideoAVCFrame.InterFrame;
-      SrsFlvFrameBytes frame = avc.demuxAnnexb(bb, bi.size, true);
-      int nal_unit_type = frame.data.get(0) & 0x1f;
+      SrsFlvFrameBytes frame = avc.demuxAnnexb(bb, bi.size, true, nalu);
+      int nal_unit_type = frame.get(0) & 0x1f;
+      // nal_ref_idc == 0, no other frame is predicted from this one
+      boolean nonReference = (frame.get(0) & 0x60) == 0;
       if (nal_unit_type == SrsAvcNaluType.IDR || bi.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
         type = SrsCodecVideoAVCFrame.KeyFrame;
       } else if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
-        SrsFlvFrameBytes frame_pps = avc.demuxAnnexb(bb, bi.size, false);
+        SrsFlvFrameBytes frame_pps = avc.demuxAnnexb(bb, bi.size, false, nalu_pps);
         frame.size = frame.size - frame_pps.size - 4;  // 4 ---> 00 00 00 01 pps
-        if (!frame.data.equals(Sps)) {
-          byte[] sps = new byte[frame.size];
-          frame.data.get(sps);
+        // only copy the parameter sets when the encoder changed them
+        if (!sameBytes(Sps, frame)) {
+          Sps = copyBytes(frame);
           isPpsSpsSend = false;
-          Sps = ByteBuffer.wrap(sps);
         }
 
-        SrsFlvFrameBytes frame_sei = avc.demuxAnnexb(bb, bi.size, false);
+        SrsFlvFrameBytes frame_sei = avc.demuxAnnexb(bb, bi.size, false, nalu_sei);
         if (frame_sei.size > 0) {
-          if (SrsAvcNaluType.SEI == (frame_sei.data.get(0) & 0x1f)) {
+          if (SrsAvcNaluType.SEI == (frame_sei.get(0) & 0x1f)) {
             frame_pps.size = frame_pps.size - frame_sei.size - 3;// 3 ---> 00 00 01 SEI
           }
         }
 
-        if (frame_pps.size > 0 && !frame_pps.data.equals(Pps)) {
-          byte[] pps = new byte[frame_pps.size];
-          frame_pps.data.get(pps);
+        if (frame_pps.size > 0 && !sameBytes(Pps, frame_pps)) {
+          Pps = copyBytes(frame_pps);
           isPpsSpsSend = false;
-          Pps = ByteBuffer.wrap(pps);
           writeH264SpsPps(pts);
         }
         return;
@@ -982,96 +1611,316 @@ public class SrsFlvMuxer {
         return;
       }
 
-      ipbs.add(avc.muxNaluHeader(frame));
-      ipbs.add(frame);
+      if (type == SrsCodecVideoAVCFrame.KeyFrame) {
+        // no-op unless sps/pps changed and sequence header is pending
+        writeH264SpsPps(pts);
+      }
+      writeH264IpbFrame(frame, type, pts, nonReference);
+    }
+
+    private boolean sameBytes(ByteBuffer stored, SrsFlvFrameBytes frame) {
+      if (stored == null || stored.array().length != frame.size) {
+        return false;
+      }
+      byte[] bytes = stored.array();
+      for (int i = 0; i < frame.size; i++) {
+        if (bytes[i] != frame.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
 
-      writeH264IpbFrame(ipbs, type, pts);
-      ipbs.clear();
+    private ByteBuffer copyBytes(SrsFlvFrameBytes frame) {
+      byte[] bytes = new byte[frame.size];
+      frame.data.position(frame.offset);
+      frame.data.get(bytes);
+      return ByteBuffer.wrap(bytes);
     }
 
     public void setSpsPPs(ByteBuffer sps, ByteBuffer pps) {
+      // changed while streaming (other encoder), send new sequence header with next keyframe
+      if (!sps.equals(Sps) || !pps.equals(Pps)) {
+        isPpsSpsSend = false;
+      }
       Sps = sps;
       Pps = pps;
     }
 
+    public void setSpsPpsVps(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+      ByteBuffer newSps = removeStartCode(sps);
+      ByteBuffer newPps = removeStartCode(pps);
+      ByteBuffer newVps = removeStartCode(vps);
+      if (!newSps.equals(Sps) || !newPps.equals(Pps) || !newVps.equals(Vps)) {
+        isPpsSpsSend = false;
+      }
+      Sps = newSps;
+      Pps = newPps;
+      Vps = newVps;
+    }
+
+    private ByteBuffer removeStartCode(ByteBuffer buffer) {
+      int size = buffer.remaining();
+      int offset = NalUnitScanner.findNalUnit(buffer, buffer.position(),
+          Math.min(buffer.position() + 4, buffer.limit()));
+      if (offset == -1 || (offset - buffer.position() == 4 && buffer.get(buffer.position()) != 0)) {
+        offset = buffer.position();
+      }
+      byte[] bytes = new byte[size - (offset - buffer.position())];
+      ByteBuffer source = buffer.duplicate();
+      source.position(offset);
+      source.get(bytes);
+      return ByteBuffer.wrap(bytes);
+    }
+
+    private void writeHevcVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
+      int pts = (int) (bi.presentationTimeUs / 1000);
+      int count = NalUnitScanner.split(bb, 0, bi.size, nalu_offsets, nalu_sizes);
+      boolean keyFrame = bi.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME;
+      boolean nonReference = true;
+      boolean hasSlice = false;
+      int payloadSize = 0;
+      for (int i = 0; i < count; i++) {
+        if (nalu_sizes[i] < 2) {
+          nalu_sizes[i] = 0;
+          continue;
+        }
+        nalu.data = bb;
+        nalu.offset = nalu_offsets[i];
+        nalu.size = nalu_sizes[i];
+        int nal_unit_type = (nalu.get(0) >> 1) & 0x3f;
+        if (nal_unit_type == SrsHevcNaluType.VPS) {
+          if (!sameBytes(Vps, nalu)) {
+            Vps = copyBytes(nalu);
+            isPpsSpsSend = false;
+          }
+        } else if (nal_unit_type == SrsHevcNaluType.SPS) {
+          if (!sameBytes(Sps, nalu)) {
+            Sps = copyBytes(nalu);
+            isPpsSpsSend = false;
+          }
+        } else if (nal_unit_type == SrsHevcNaluType.PPS) {
+          if (!sameBytes(Pps, nalu)) {
+            Pps = copyBytes(nalu);
+            isPpsSpsSend = false;
+          }
+        } else if (nal_unit_type != SrsHevcNaluType.AUD) {
+          // slices and SEI go to the tag, each one prefixed by 4 bytes length
+          payloadSize += 4 + nalu.size;
+          if (nal_unit_type < SrsHevcNaluType.VPS) {
+            hasSlice = true;
+            if (nal_unit_type >= SrsHevcNaluType.BlaWLp
+                && nal_unit_type <= SrsHevcNaluType.RsvIrapVcl23) {
+              keyFrame = true;
+            }
+            if (nal_unit_type > SrsHevcNaluType.RsvVclN14 || nal_unit_type % 2 == 1) {
+              nonReference = false;
+            }
+          }
+          continue;
+        }
+        nalu_sizes[i] = 0;
+      }
+      writeHevcSequenceStart(pts);
+      // when vps, sps or pps not sent, ignore the packet.
+      if (!hasSlice || !isPpsSpsSend) {
+        return;
+      }
+      int frame_type = keyFrame ? SrsCodecVideoAVCFrame.KeyFrame : SrsCodecVideoAVCFrame.InterFrame;
+      SrsAllocator.Allocation allocation =
+          muxHevcTagHeader(payloadSize, frame_type, SrsCodecVideoExType.CodedFramesX);
+      for (int i = 0; i < count; i++) {
+        int size = nalu_sizes[i];
+        if (size == 0) continue;
+        allocation.put((byte) (size >> 24));
+        allocation.put((byte) (size >> 16));
+        allocation.put((byte) (size >> 8));
+        allocation.put((byte) size);
+        bb.position(nalu_offsets[i]);
+        bb.get(allocation.array(), allocation.size(), size);
+        allocation.appendOffset(size);
+      }
+      video_tag = allocation;
+      writeRtmpPacket(SrsCodecFlvTag.Video, pts, frame_type, SrsCodecVideoAVCType.NALU,
+          nonReference, video_tag);
+    }
+
+    private void writeHevcSequenceStart(int pts) {
+      // when not got vps/sps/pps, wait.
+      if (Vps == null || Sps == null || Pps == null || isPpsSpsSend) {
+        return;
+      }
+      byte[] record = HevcDecoderConfigurationRecord.build(Vps.array(), Sps.array(), Pps.array());
+      int frame_type = SrsCodecVideoAVCFrame.KeyFrame;
+      video_tag = muxHevcTagHeader(record.length, frame_type, SrsCodecVideoExType.SequenceStart);
+      video_tag.put(record);
+
+      isPpsSpsSend = true;
+      writeRtmpPacket(SrsCodecFlvTag.Video, pts, frame_type, SrsCodecVideoAVCType.SequenceHeader,
+          false, video_tag);
+      Log.i(TAG, String.format("flv: h265 vps/sps/pps sent, vps=%dB, sps=%dB, pps=%dB",
+          Vps.array().length, Sps.array().length, Pps.array().length));
+    }
+
+    /**
+     * Allocate a tag for the 5 bytes Enhanced RTMP video header plus payloadSize and write the
+     * header.
+     */
+    private SrsAllocator.Allocation muxHevcTagHeader(int payloadSize, int frame_type,
+        int packet_type) {
+      SrsAllocator.Allocation allocation = mVideoAllocator.allocate(5 + payloadSize);
+      allocation.put((byte) (SrsCodecVideoExType.IsExHeader | (frame_type << 4) | packet_type));
+      int fourCc = SrsCodecVideoExType.FourCcHevc;
+      allocation.put((byte) (fourCc >> 24));
+      allocation.put((byte) (fourCc >> 16));
+      allocation.put((byte) (fourCc >> 8));
+      allocation.put((byte) fourCc);
+      return allocation;
+    }
+
     private void writeH264SpsPps(int pts) {
       // when not got sps/pps, wait.
       if (Pps == null || Sps == null || isPpsSpsSend) {
         return;
       }
 
-      // h264 raw to h264 packet.
-      ArrayList<SrsFlvFrameBytes> frames = new ArrayList<>();
-      avc.muxSequenceHeader(Sps, Pps, frames);
-
-      // h264 packet to flv packet.
+      // h264 raw to flv packet.
       int frame_type = SrsCodecVideoAVCFrame.KeyFrame;
       int avc_packet_type = SrsCodecVideoAVCType.SequenceHeader;
-      video_tag = avc.muxFlvTag(frames, frame_type, avc_packet_type);
+      video_tag = avc.muxSequenceHeader(Sps, Pps);
 
       isPpsSpsSend = true;
       // the timestamp in rtmp message header is dts.
-      writeRtmpPacket(SrsCodecFlvTag.Video, pts, frame_type, avc_packet_type, video_tag);
+      writeRtmpPacket(SrsCodecFlvTag.Video, pts, frame_type, avc_packet_type, false, video_tag);
       Log.i(TAG, String.format("flv: h264 sps/pps sent, sps=%dB, pps=%dB", Sps.array().length,
           Pps.array().length));
     }
 
-    private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int frame_type, int dts) {
+    private void writeH264IpbFrame(SrsFlvFrameBytes frame, int frame_type, int dts,
+        boolean nonReference) {
       // when sps or pps not sent, ignore the packet.
       // @see https://github.com/simple-rtmp-server/srs/issues/203
       if (Pps == null || Sps == null) {
         return;
       }
-      video_tag = avc.muxFlvTag(frames, frame_type, SrsCodecVideoAVCType.NALU);
+      video_tag = avc.muxNaluFlvTag(frame, frame_type);
       // the timestamp in rtmp message header is dts.
-      writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, SrsCodecVideoAVCType.NALU, video_tag);
+      writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, SrsCodecVideoAVCType.NALU,
+          nonReference, video_tag);
     }
 
     private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type,
-        SrsAllocator.Allocation tag) {
-      SrsFlvFrame frame = new SrsFlvFrame();
+        boolean nonReference, SrsAllocator.Allocation tag) {
+      SrsFlvFrame frame = obtainFlvFrame(type == SrsCodecFlvTag.Video);
       frame.flvTag = tag;
       frame.type = type;
       frame.dts = dts;
       frame.frame_type = frame_type;
       frame.avc_aac_type = avc_aac_type;
+      frame.nonReference = nonReference;
       if (frame.is_video()) {
-        if (needToFindKeyFrame) {
-          if (frame.is_keyframe()) {
-            needToFindKeyFrame = false;
-            flvFrameCacheAdd(frame);
+        if (frame.is_sequenceHeader()) {
+          // never dropped by the strategy, decoder can't do anything without it
+          flvFrameCacheAdd(frame, DropReason.NONE);
+        } else if (needToFindKeyFrame && (!frame.is_keyframe() || !isPpsSpsSend)) {
+          // a key frame is useless too if its sequence header didn't fit in the cache
+          if (droppingGop) {
+            dropVideoFrame(frame, DropReason.GOP);
+          } else {
+            mVideoAllocator.release(frame.flvTag);
+            spareVideoFrame = frame;
           }
         } else {
-          flvFrameCacheAdd(frame);
+          DropReason reason = videoDropStrategy.onVideoFrame(frame.is_keyframe(),
+              frame.nonReference, mFlvVideoTagCache.size(), mFlvVideoTagCache.capacity());
+          flvFrameCacheAdd(frame, reason);
         }
       } else if (frame.is_audio()) {
-        flvFrameCacheAdd(frame);
+        flvFrameCacheAdd(frame, DropReason.NONE);
       }
     }
 
-    private void flvFrameCacheAdd(SrsFlvFrame frame) {
-      try {
-        if (frame.is_video()) {
-          mFlvVideoTagCache.add(frame);
-          notifyBufferSizeChanged();
+    private void flvFrameCacheAdd(SrsFlvFrame frame, DropReason reason) {
+      frame.queuedNs = System.nanoTime();
+      if (frame.is_video()) {
+        SpscRingBuffer<SrsFlvFrame> videoCache = mFlvVideoTagCache;
+        if (reason == DropReason.NONE && !videoCache.offer(frame)) {
+          reason = DropReason.CACHE_FULL;
+        }
+        lastOfferedVideoTagCache = videoCache;
+        if (reason == DropReason.NONE) {
+          if (frame.is_keyframe() && !frame.is_sequenceHeader()) {
+            needToFindKeyFrame = false;
+            droppingGop = false;
+          }
+          lastQueuedVideoDts = frame.dts;
+          lastQueuedVideoNs = frame.queuedNs;
+          FrameTracer.trace(FrameTracer.Stage.ENQUEUED, true, frame.dts, frame.queuedNs);
+          wakeUpWorker();
+        } else {
+          dropVideoFrame(frame, reason);
+          if (frame.is_sequenceHeader()) {
+            // only possible with a full cache, send it again before next key frame
+            isPpsSpsSend = false;
+            needToFindKeyFrame = true;
+            droppingGop = true;
+          } else if (reason != DropReason.NON_REFERENCE) {
+            // frames after a dropped reference frame can't be decoded until next key frame
+            needToFindKeyFrame = true;
+            droppingGop = true;
+          }
+        }
+        notifyBufferSizeChanged();
+      } else {
+        lastQueuedAudioDts = frame.dts;
+        lastQueuedAudioNs = frame.queuedNs;
+        SpscRingBuffer<SrsFlvFrame> audioCache = mFlvAudioTagCache;
+        boolean added = audioCache.offer(frame);
+        lastOfferedAudioTagCache = audioCache;
+        if (added) {
+          FrameTracer.trace(FrameTracer.Stage.ENQUEUED, false, frame.dts, frame.queuedNs);
+          wakeUpWorker();
         } else {
-          mFlvAudioTagCache.add(frame);
+          Log.i(TAG, "frame discarded");
+          mAudioAllocator.release(frame.flvTag);
+          mDroppedAudioFrames.increment();
+          spareAudioFrame = frame;
         }
-      } catch (IllegalStateException e) {
-        Log.i(TAG, "frame discarded");
-        if (frame.is_video()) {
-          mDroppedVideoFrames++;
-          notifyBufferSizeChanged();
+      }
+    }
+
+    private void dropVideoFrame(SrsFlvFrame frame, DropReason reason) {
+      Log.i(TAG, "frame discarded, reason: " + reason);
+      mVideoAllocator.release(frame.flvTag);
+      mDroppedVideoFrames.increment();
+      mDroppedVideoFramesByReason[reason.ordinal()].increment();
+      spareVideoFrame = frame;
+    }
+
+    /**
+     * Frame not shared with the worker anymore: a frame this producer dropped or one sent and
+     * returned to the pool of the track, a new one if there is none.
+     */
+    private SrsFlvFrame obtainFlvFrame(boolean video) {
+      SrsFlvFrame frame = video ? spareVideoFrame : spareAudioFrame;
+      if (frame != null) {
+        if (video) {
+          spareVideoFrame = null;
         } else {
-          mDroppedAudioFrames++;
+          spareAudioFrame = null;
         }
+        return frame;
       }
+      frame = (video ? mVideoFramePool : mAudioFramePool).poll();
+      return frame != null ? frame : new SrsFlvFrame();
     }
 
     private void notifyBufferSizeChanged() {
+      SpscRingBuffer<SrsFlvFrame> videoCache = mFlvVideoTagCache;
+      mCacheSize.set(videoCache.size());
       if (muxerEventsListener != null) {
-        int framesCount = mFlvVideoTagCache.size();
-        muxerEventsListener.onBufferSizeChanged(framesCount / (float) VIDEO_CACHE_SIZE);
+        muxerEventsListener.onBufferSizeChanged(
+            videoCache.size() / (float) videoCache.capacity());
       }
     }
   }
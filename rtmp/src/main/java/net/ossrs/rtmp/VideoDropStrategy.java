@@ -0,0 +1,20 @@
+package net.ossrs.rtmp;
+
+/**
+ * Decide which video frames are dropped when the muxer video cache fills up.
+ *
+ * Called from the thread that sends video to the muxer. Audio and AVC sequence headers never go
+ * through the strategy. When a reference frame is dropped the muxer drops the rest of the GOP
+ * until next key frame so the stream stays decodable.
+ */
+public interface VideoDropStrategy {
+
+  /**
+   * @param keyFrame frame is an IDR.
+   * @param nonReference frame is not used as reference by other frames (nal_ref_idc == 0).
+   * @param queuedFrames video frames waiting to be sent.
+   * @param capacity video cache capacity.
+   * @return {@link DropReason#NONE} to queue the frame, otherwise the reason to drop it.
+   */
+  DropReason onVideoFrame(boolean keyFrame, boolean nonReference, int queuedFrames, int capacity);
+}
@@ -25,12 +25,14 @@ public class BitrateAdjuster implements SrsFlvMuxer.MuxerEventsListener {
     private final Context context;
     @NonNull private BitrateAdjusterConfig config;
     private final BitrateEstimator endlessEstimator;
-    @Nullable private BitrateEstimator currentEstimator;
+    // Muxer events come from the muxer thread and, for writability and delivery, from the socket
+    // thread. Estimators are started under the lock, other threads read currentEstimator once.
+    @Nullable private volatile BitrateEstimator currentEstimator;
     @Nullable private NetworkStateManager networkStateManager;
     @Nullable private volatile NetworkType currentNetworkType;
-    private double currentEstimatedBitrate;
+    private volatile double currentEstimatedBitrate;
     private volatile boolean skipNewEstimators;
-    private float adjustableLoweringFactor;
+    private volatile float adjustableLoweringFactor;
     private long previousStartTimeMsOfEstimationForCongestion;
 
     public BitrateAdjuster(@NonNull Context context, @Nullable BitrateAdjusterConfig config, @NonNull final BitrateUpdater bitrateUpdater) {
@@ -74,25 +76,46 @@ public class BitrateAdjuster implements SrsFlvMuxer.MuxerEventsListener {
         startEstimatorForCongestion(bufferFill);
     }
 
+    @Override
+    public void onWritabilityChanged(boolean writable) {
+        // socket queue full, same as a full buffer
+        if (!writable) {
+            startEstimatorForCongestion(1f);
+        }
+    }
+
+    @Override
+    public void onDelivery(long ackedBytes, long deliveryRate, long rtt) {
+        if (deliveryRate <= 0) return;
+        BitrateEstimator estimator = currentEstimator;
+        if (estimator != null) {
+            estimator.onDeliveryRate(deliveryRate);
+        }
+        endlessEstimator.onDeliveryRate(deliveryRate);
+    }
+
     @Override
     public void beforeVideoFrameSent() {
-        if (currentEstimator != null) {
-            currentEstimator.beforeFrameSent();
+        BitrateEstimator estimator = currentEstimator;
+        if (estimator != null) {
+            estimator.beforeFrameSent();
         }
         endlessEstimator.beforeFrameSent();
     }
 
     @Override
     public void afterVideoFrameSent(int frameSize) {
-        if (currentEstimator != null) {
-            currentEstimator.afterFrameSent(frameSize);
+        BitrateEstimator estimator = currentEstimator;
+        if (estimator != null) {
+            estimator.afterFrameSent(frameSize);
         }
         endlessEstimator.afterFrameSent(frameSize);
     }
 
     public void stop() {
-        if (currentEstimator != null) {
-            currentEstimator.finish();
+        BitrateEstimator estimator = currentEstimator;
+        if (estimator != null) {
+            estimator.finish();
         }
         endlessEstimator.finish();
     }
@@ -114,7 +137,8 @@ public class BitrateAdjuster implements SrsFlvMuxer.MuxerEventsListener {
 
     // Note that the onCongestion() method gonna be called many times during a congestion.
     // That's why we want to avoid starting new estimator for each call.
-    private void startEstimatorForCongestion(float bufferFill) {
+    // Synchronized because buffer and writability events come from different threads.
+    private synchronized void startEstimatorForCongestion(float bufferFill) {
         boolean isCongestion = bufferFill > 0.2f;
         if (isCongestion &&
                 (currentNetworkType == null || currentNetworkType != NetworkType.NO_CONNECTION) &&
@@ -210,7 +234,7 @@ public class BitrateAdjuster implements SrsFlvMuxer.MuxerEventsListener {
     private BitrateEstimator createEstimator(boolean isEndlessEstimation, boolean lowerEstimation) {
         return new BitrateEstimator(config.testDurationMs, config.testIntervalDurationMs,
                 isEndlessEstimation, lowerEstimation, adjustableLoweringFactor,
-                config.useSystemUploadCalculation);
+                config.useSystemUploadCalculation, config.useAckCalculation);
     }
 
     private int getDefaultBitrateForNetwork(NetworkType networkType) {
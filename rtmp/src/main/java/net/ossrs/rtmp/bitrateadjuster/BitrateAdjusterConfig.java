@@ -5,7 +5,7 @@ import androidx.annotation.NonNull;
 public class BitrateAdjusterConfig {
 
     public static BitrateAdjusterConfig defaultConfig() {
-        return new BitrateAdjusterConfig(new DefaultBitrateForNetwork(), DEFAULT_TEST_DURATION_MS, DEFAULT_INTERVAL_DURATION_MS, DEFAULT_LOWERING_FRACTION, true);
+        return new BitrateAdjusterConfig(new DefaultBitrateForNetwork(), DEFAULT_TEST_DURATION_MS, DEFAULT_INTERVAL_DURATION_MS, DEFAULT_LOWERING_FRACTION, true, false);
     }
 
     public BitrateAdjusterConfig(@NonNull BitrateForNetwork bitrateForNetwork,
@@ -13,11 +13,27 @@ public class BitrateAdjusterConfig {
                                  long testIntervalDurationMs,
                                  float loweringFraction,
                                  boolean useSystemUploadCalculation) {
+        this(bitrateForNetwork, testDurationMs, testIntervalDurationMs, loweringFraction,
+                useSystemUploadCalculation, false);
+    }
+
+    /**
+     * @param useAckCalculation use the delivery rate measured with server acknowledgements when
+     * available, other apps can't disturb it. Falls back to system or stream calculation if the
+     * server doesn't send acknowledgements. Disabled in {@link #defaultConfig()}.
+     */
+    public BitrateAdjusterConfig(@NonNull BitrateForNetwork bitrateForNetwork,
+                                 long testDurationMs,
+                                 long testIntervalDurationMs,
+                                 float loweringFraction,
+                                 boolean useSystemUploadCalculation,
+                                 boolean useAckCalculation) {
         this.bitrateForNetwork = bitrateForNetwork;
         this.testDurationMs = testDurationMs;
         this.testIntervalDurationMs = testIntervalDurationMs;
         this.loweringFraction = loweringFraction;
         this.useSystemUploadCalculation = useSystemUploadCalculation;
+        this.useAckCalculation = useAckCalculation;
     }
 
     public interface BitrateForNetwork {
@@ -53,5 +69,6 @@ public class BitrateAdjusterConfig {
     public final long testIntervalDurationMs;
     public final float loweringFraction;
     public final boolean useSystemUploadCalculation;
+    public final boolean useAckCalculation;
 
 }
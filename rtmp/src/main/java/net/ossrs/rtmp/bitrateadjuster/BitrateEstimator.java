@@ -18,6 +18,7 @@ public class BitrateEstimator {
     private final boolean isEndlessEstimation;
     private final boolean lowerEstimation;
     private final boolean useSystemUploadCalculation;
+    private final boolean useAckCalculation;
     private final float loweringFactor;
     private final long maxIntervals;
 
@@ -26,18 +27,22 @@ public class BitrateEstimator {
     private long intervalStartNano = -1L;
     private int intervalNo = 1;
     private final List<Double> bitrates = new ArrayList<>();
+    // Last delivery rate acknowledged by server in this interval, 0 if none.
+    private volatile long ackDeliveryRate = 0L;
 
     private volatile boolean finished = true;
     private volatile boolean waitForInitialDelay = false;
 
     public BitrateEstimator(long testDurationMs, long intervalDurationMs,
                             boolean isEndlessEstimation, boolean lowerEstimation,
-                            float loweringFactor, boolean useSystemUploadCalculation) {
+                            float loweringFactor, boolean useSystemUploadCalculation,
+                            boolean useAckCalculation) {
         this.intervalDurationMs = intervalDurationMs;
         this.isEndlessEstimation = isEndlessEstimation;
         this.lowerEstimation = lowerEstimation;
         this.loweringFactor = loweringFactor;
         this.useSystemUploadCalculation = useSystemUploadCalculation;
+        this.useAckCalculation = useAckCalculation;
         maxIntervals = testDurationMs / intervalDurationMs;
     }
 
@@ -97,6 +102,12 @@ public class BitrateEstimator {
         }
     }
 
+    public void onDeliveryRate(long deliveryRate) {
+        if (canExecute()) {
+            ackDeliveryRate = deliveryRate;
+        }
+    }
+
     public void finish() {
         finished = true;
     }
@@ -118,13 +129,16 @@ public class BitrateEstimator {
         double byteRateStream = uploadedBytesSoFar / currentIntervalDuration;
         double byteRateSystem = (TrafficStats.getTotalTxBytes() - systemUploadedBytesOnIntervalStart) / currentIntervalDuration;
         if (byteRateStream > 0) {
-            if (useSystemUploadCalculation) {
+            long deliveryRate = ackDeliveryRate;
+            if (useAckCalculation && deliveryRate > 0) {
+                bitrates.add((double) deliveryRate);
+            } else if (useSystemUploadCalculation) {
                 bitrates.add(byteRateSystem * 8);
             } else {
                 bitrates.add(byteRateStream * 8);
             }
             if (SHOW_LOGS) {
-                Log.d(TAG, "Bitrate for interval.\nSystem: " + byteRateSystem * 8 / 1024.0 / 1024.0 + "\nStream: " + byteRateStream * 8 / 1024.0 / 1024.0);
+                Log.d(TAG, "Bitrate for interval.\nSystem: " + byteRateSystem * 8 / 1024.0 / 1024.0 + "\nStream: " + byteRateStream * 8 / 1024.0 / 1024.0 + "\nAck: " + deliveryRate / 1024.0 / 1024.0);
             }
         }
     }
@@ -151,6 +165,7 @@ public class BitrateEstimator {
 
     private void resetInterval() {
         uploadedBytesSoFar = 0L;
+        ackDeliveryRate = 0L;
         intervalStartNano = -1;
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.github.faucamp.simplertmp.io;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * RTT and delivery rate from a synthetic timeline of writes and acknowledgements: smoothing of
+ * both, 32 bits sequence numbers that wrap, and acknowledgements over the bytes written clamped
+ * (servers that count handshake bytes are not offset).
+ */
+public class AckDeliveryEstimatorTest {
+
+  private static final long TWO_32 = 1L << 32;
+
+  @Test
+  public void rttAndDeliveryRateAreSmoothed() {
+    AckDeliveryEstimator estimator = new AckDeliveryEstimator();
+    estimator.onBytesWritten(1000, ms(0));
+    //nothing known before the first acknowledgement
+    assertEquals(0, estimator.getRtt());
+    assertEquals(0, estimator.getDeliveryRate());
+    assertEquals(1000, estimator.getBytesInFlight());
+
+    estimator.onAcknowledgement(1000, ms(100));
+    assertEquals(100, estimator.getRtt());
+    assertEquals(100, estimator.getMinRtt());
+    //rate needs two acknowledgements
+    assertEquals(0, estimator.getDeliveryRate());
+    assertEquals(1000, estimator.getLastAckedBytes());
+    assertEquals(0, estimator.getBytesInFlight());
+
+    estimator.onBytesWritten(1000, ms(200));
+    estimator.onAcknowledgement(2000, ms(220));
+    assertEquals((7 * 100 + 20) / 8, estimator.getRtt());
+    assertEquals(20, estimator.getMinRtt());
+    long firstRate = rate(1000, 120);
+    assertEquals(firstRate, estimator.getDeliveryRate());
+
+    //acknowledgement in the middle of the second write, RTT of the first one
+    estimator.onBytesWritten(1000, ms(300));
+    estimator.onBytesWritten(1000, ms(310));
+    estimator.onAcknowledgement(3500, ms(350));
+    long rtt = ((7 * 100 + 20) / 8 * 7 + 50) / 8;
+    assertEquals(rtt, estimator.getRtt());
+    assertEquals(20, estimator.getMinRtt());
+    assertEquals((3 * firstRate + rate(1500, 130)) / 4, estimator.getDeliveryRate());
+    assertEquals(1500, estimator.getLastAckedBytes());
+    assertEquals(500, estimator.getBytesInFlight());
+
+    //no write completed, RTT unchanged but rate still updated
+    estimator.onBytesWritten(1000, ms(400));
+    estimator.onAcknowledgement(3600, ms(450));
+    assertEquals(rtt, estimator.getRtt());
+    assertEquals(100, estimator.getLastAckedBytes());
+    assertEquals(1400, estimator.getBytesInFlight());
+  }
+
+  @Test
+  public void sequenceNumberWrapsAround() {
+    AckDeliveryEstimator estimator = new AckDeliveryEstimator();
+    estimator.onBytesWritten(Integer.MAX_VALUE, ms(0));
+    estimator.onBytesWritten(Integer.MAX_VALUE, ms(1000));
+    estimator.onBytesWritten(1000, ms(2000));
+    long written = 2L * Integer.MAX_VALUE + 1000;
+
+    estimator.onAcknowledgement(Integer.MAX_VALUE, ms(1500));
+    assertEquals(1500, estimator.getRtt());
+    //negative as int, still below 2^32
+    estimator.onAcknowledgement((int) (2L * Integer.MAX_VALUE), ms(1600));
+    assertEquals(Integer.MAX_VALUE, estimator.getLastAckedBytes());
+    assertEquals(1000, estimator.getBytesInFlight());
+
+    //wrapped to a small sequence number
+    long acked = TWO_32 + 500;
+    estimator.onAcknowledgement((int) acked, ms(2100));
+    assertEquals(acked - 2L * Integer.MAX_VALUE, estimator.getLastAckedBytes());
+    assertEquals(written - acked, estimator.getBytesInFlight());
+    //last write not completely received, RTT still the one of the second write
+    assertEquals((7 * 1500 + 600) / 8, estimator.getRtt());
+  }
+
+  @Test
+  public void acknowledgementOverBytesWrittenIsClamped() {
+    AckDeliveryEstimator estimator = new AckDeliveryEstimator();
+    estimator.onBytesWritten(1000, ms(0));
+    estimator.onBytesWritten(1000, ms(10));
+
+    estimator.onAcknowledgement(5000, ms(60));
+    assertEquals(0, estimator.getBytesInFlight());
+    assertEquals(2000, estimator.getLastAckedBytes());
+    //clamped to the newest write
+    assertEquals(50, estimator.getRtt());
+
+    //acknowledgements below bytes written are used as they come
+    estimator.onBytesWritten(1000, ms(100));
+    estimator.onAcknowledgement(2500, ms(150));
+    assertEquals(500, estimator.getBytesInFlight());
+    assertEquals(500, estimator.getLastAckedBytes());
+  }
+
+  @Test
+  public void handshakeBytesCountedByServerAreNotOffset() {
+    //some servers count C0, C1 and C2 in their sequence number
+    int handshake = 1 + 1536 + 1536;
+    AckDeliveryEstimator estimator = new AckDeliveryEstimator();
+    estimator.onBytesWritten(1000, ms(0));
+    estimator.onBytesWritten(1000, ms(10));
+    estimator.onBytesWritten(1000, ms(20));
+
+    //server received only the first write, handshake make it look like all of them
+    estimator.onAcknowledgement(handshake + 1000, ms(50));
+    assertEquals(0, estimator.getBytesInFlight());
+    assertEquals(3000, estimator.getLastAckedBytes());
+    //RTT of the newest write, lower than the 50ms of the first one
+    assertEquals(30, estimator.getRtt());
+
+    //later acknowledgements stay clamped to bytes written while the offset last
+    estimator.onBytesWritten(1000, ms(100));
+    estimator.onAcknowledgement(handshake + 2000, ms(150));
+    assertEquals(0, estimator.getBytesInFlight());
+    assertEquals(1000, estimator.getLastAckedBytes());
+    assertEquals(rate(1000, 100), estimator.getDeliveryRate());
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    AckDeliveryEstimator estimator = new AckDeliveryEstimator();
+    estimator.onBytesWritten(1000, ms(0));
+    estimator.onAcknowledgement(500, ms(40));
+    estimator.onAcknowledgement(1000, ms(80));
+
+    estimator.reset();
+    assertEquals(0, estimator.getRtt());
+    assertEquals(0, estimator.getMinRtt());
+    assertEquals(0, estimator.getDeliveryRate());
+    assertEquals(0, estimator.getLastAckedBytes());
+    assertEquals(0, estimator.getBytesInFlight());
+
+    //new connection start counting from 0
+    estimator.onBytesWritten(100, ms(1000));
+    estimator.onAcknowledgement(100, ms(1010));
+    assertEquals(10, estimator.getRtt());
+    assertEquals(0, estimator.getDeliveryRate());
+  }
+
+  private static long ms(long ms) {
+    return ms * 1000000;
+  }
+
+  private static long rate(long bytes, long ms) {
+    return (long) (bytes * 8e9 / ms(ms));
+  }
+}
@@ -0,0 +1,304 @@
+package com.github.faucamp.simplertmp.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.Video;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import org.junit.Test;
+
+/**
+ * Checks that a chunked RTMP message reaches the socket in a single write with the same bytes the
+ * previous send path produced, and compares writes and bytes copied per message of the previous
+ * path (chunks written one by one to a BufferedOutputStream), the heap layout used by blocking
+ * sockets and the gathering layout used by the NIO transport.
+ */
+public class ChunkBufferTest {
+
+  private static final int CHUNK_SIZE = 128;
+  private static final int FRAME_SIZE = 64 * 1024;
+  private static final int ITERATIONS = 2000;
+  //BufferedOutputStream default, used by the previous socket streams
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  @Test
+  public void messageIsWrittenOnce() throws IOException {
+    CountingOutputStream socket = new CountingOutputStream();
+    ChunkBuffer chunkBuffer = new ChunkBuffer(1024);
+    ChunkBuffer bodyBuffer = new ChunkBuffer(1024);
+    Video video = newVideo(FRAME_SIZE);
+
+    chunkBuffer.reset();
+    video.writeTo(chunkBuffer, bodyBuffer, CHUNK_SIZE, new ChunkStreamInfo());
+    chunkBuffer.writeTo(socket);
+
+    assertEquals(1, socket.writes);
+    int chunks = (FRAME_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    // 12 bytes type 0 header, then one byte type 3 header for every continuation chunk
+    assertEquals(FRAME_SIZE + 12 + chunks - 1, socket.bytes);
+  }
+
+  @Test
+  public void layoutMatchesPreviousWriteTo() throws IOException {
+    Video video = newVideo(FRAME_SIZE);
+    video.getHeader().setAbsoluteTimestamp(1234);
+    byte[] expected = previousLayout(video, CHUNK_SIZE);
+
+    ChunkBuffer chunkBuffer = new ChunkBuffer(1024);
+    video.writeTo(chunkBuffer, new ChunkBuffer(64), CHUNK_SIZE, new ChunkStreamInfo());
+    byte[] heap = new byte[chunkBuffer.size()];
+    System.arraycopy(chunkBuffer.array(), 0, heap, 0, heap.length);
+    assertArrayEquals(expected, heap);
+
+    //small header buffer, it grows in the middle of the message
+    chunkBuffer.setGathering(true);
+    video.writeTo(chunkBuffer, new ChunkBuffer(64), CHUNK_SIZE, new ChunkStreamInfo());
+    CountingChannel channel = new CountingChannel(true);
+    channel.write(chunkBuffer.buffers(), 0, chunkBuffer.bufferCount());
+    assertEquals(expected.length, chunkBuffer.size());
+    assertArrayEquals(expected, channel.content.toByteArray());
+  }
+
+  @Test
+  public void gatheringLayoutIsReused() throws IOException {
+    ChunkBuffer chunkBuffer = new ChunkBuffer(1024);
+    chunkBuffer.setGathering(true);
+    ChunkBuffer bodyBuffer = new ChunkBuffer(64);
+    ChunkStreamInfo chunkStreamInfo = new ChunkStreamInfo();
+    for (int size : new int[] { FRAME_SIZE, 100, 3 * CHUNK_SIZE, FRAME_SIZE }) {
+      Video video = newVideo(size);
+      chunkBuffer.reset();
+      video.writeTo(chunkBuffer, bodyBuffer, CHUNK_SIZE, chunkStreamInfo);
+      int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      //header and body slice for every chunk
+      assertEquals(2 * chunks, chunkBuffer.bufferCount());
+      CountingChannel channel = new CountingChannel(true);
+      channel.write(chunkBuffer.buffers(), 0, chunkBuffer.bufferCount());
+      byte[] written = channel.content.toByteArray();
+      assertEquals(chunkBuffer.size(), written.length);
+      //last body slice is the end of the frame
+      assertEquals(video.getData()[size - 1], written[written.length - 1]);
+    }
+  }
+
+  @Test
+  public void benchmarkWritesAndCopiesPerMessage() throws IOException {
+    for (int chunkSize : new int[] { CHUNK_SIZE, 4096 }) {
+      Video video = newVideo(FRAME_SIZE);
+      int chunks = (FRAME_SIZE + chunkSize - 1) / chunkSize;
+      int messageSize = FRAME_SIZE + 12 + chunks - 1;
+      //new chunk stream for every message so all paths send type 0 headers like the previous one
+
+      //previous path: chunks written one by one to a BufferedOutputStream flushed per message
+      CountingOutputStream previousSocket = new CountingOutputStream();
+      CopyCountingOutputStream previousStream = new CopyCountingOutputStream(previousSocket);
+      long previousStart = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        writePrevious(previousStream, video, chunkSize);
+        previousStream.flush();
+      }
+      long previousNs = System.nanoTime() - previousStart;
+
+      //blocking sockets: heap layout, one write
+      ChunkBuffer heap = new ChunkBuffer(1024);
+      ChunkBuffer bodyBuffer = new ChunkBuffer(1024);
+      CountingOutputStream heapSocket = new CountingOutputStream();
+      CopyCountingOutputStream heapStream = new CopyCountingOutputStream(heapSocket);
+      long heapCopied = 0;
+      long heapStart = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        heap.reset();
+        video.writeTo(heap, bodyBuffer, chunkSize, new ChunkStreamInfo());
+        heapCopied += heap.size();
+        heap.writeTo(heapStream);
+        heapStream.flush();
+      }
+      long heapNs = System.nanoTime() - heapStart;
+      heapCopied += heapStream.copied;
+
+      //NIO: chunk headers in a direct buffer, body slices referenced, one gathering write
+      ChunkBuffer gathering = new ChunkBuffer(1024);
+      gathering.setGathering(true);
+      CountingChannel channel = new CountingChannel(false);
+      long gatheringCopied = 0;
+      long gatheringStart = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        gathering.reset();
+        video.writeTo(gathering, bodyBuffer, chunkSize, new ChunkStreamInfo());
+        gatheringCopied += gathering.size() - FRAME_SIZE;
+        channel.write(gathering.buffers(), 0, gathering.bufferCount());
+      }
+      long gatheringNs = System.nanoTime() - gatheringStart;
+
+      System.out.println("Chunk size " + chunkSize + ", " + messageSize + " bytes/message."
+          + " Previous: " + previousSocket.writes / ITERATIONS + " writes, "
+          + previousStream.copied / ITERATIONS + " bytes copied, "
+          + previousNs / ITERATIONS + " ns/message. Heap: " + heapSocket.writes / ITERATIONS
+          + " writes, " + heapCopied / ITERATIONS + " bytes copied, " + heapNs / ITERATIONS
+          + " ns/message. Gathering: " + channel.writes / ITERATIONS + " writes, "
+          + gatheringCopied / ITERATIONS + " bytes copied, " + gatheringNs / ITERATIONS
+          + " ns/message");
+      assertEquals((long) messageSize * ITERATIONS, previousSocket.bytes);
+      assertEquals(previousSocket.bytes, heapSocket.bytes);
+      assertEquals(previousSocket.bytes, channel.bytes);
+      //at least one write every time the stream buffer fills up
+      assertTrue(previousSocket.writes / ITERATIONS >= messageSize / STREAM_BUFFER_SIZE);
+      assertEquals(ITERATIONS, heapSocket.writes);
+      assertEquals(ITERATIONS, channel.writes);
+      //every byte goes through the stream buffer when chunks are smaller than it
+      assertEquals(messageSize, previousStream.copied / ITERATIONS);
+      assertEquals(messageSize, heapCopied / ITERATIONS);
+      assertEquals(messageSize - FRAME_SIZE, gatheringCopied / ITERATIONS);
+    }
+  }
+
+  private static Video newVideo(int size) {
+    Video video = new Video();
+    video.getHeader().setMessageStreamId(1);
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) i;
+    }
+    video.setData(data, size);
+    return video;
+  }
+
+  /**
+   * Bytes of the previous RtmpPacket.writeTo for a message with timestamp under 0xffffff: type
+   * 0 header, body split in chunks, one byte type 3 header before each continuation chunk.
+   */
+  private static byte[] previousLayout(Video video, int chunkSize) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writePrevious(out, video, chunkSize);
+    return out.toByteArray();
+  }
+
+  private static void writePrevious(OutputStream out, Video video, int chunkSize)
+      throws IOException {
+    RtmpHeader header = video.getHeader();
+    int timestamp = header.getAbsoluteTimestamp();
+    int length = video.size();
+    out.write(header.getChunkStreamId());
+    out.write(timestamp >>> 16);
+    out.write(timestamp >>> 8);
+    out.write(timestamp);
+    out.write(length >>> 16);
+    out.write(length >>> 8);
+    out.write(length);
+    out.write(RtmpHeader.MessageType.VIDEO.getValue());
+    int messageStreamId = header.getMessageStreamId();
+    out.write(messageStreamId);
+    out.write(messageStreamId >>> 8);
+    out.write(messageStreamId >>> 16);
+    out.write(messageStreamId >>> 24);
+    int pos = 0;
+    while (length > chunkSize) {
+      out.write(video.getData(), pos, chunkSize);
+      length -= chunkSize;
+      pos += chunkSize;
+      out.write(0xc0 | header.getChunkStreamId());
+    }
+    out.write(video.getData(), pos, length);
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+
+    private int writes;
+    private long bytes;
+
+    @Override
+    public void write(int b) {
+      writes++;
+      bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      writes++;
+      bytes += len;
+    }
+  }
+
+  /**
+   * Count bytes BufferedOutputStream copies to its buffer, writes as big as the buffer go
+   * straight to the socket stream.
+   */
+  private static class CopyCountingOutputStream extends BufferedOutputStream {
+
+    private long copied;
+
+    CopyCountingOutputStream(OutputStream out) {
+      super(out, STREAM_BUFFER_SIZE);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      copied++;
+      super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (len < buf.length) copied += len;
+      super.write(b, off, len);
+    }
+  }
+
+  /**
+   * Gathering channel that accepts every byte, keeping them only if asked.
+   */
+  private static class CountingChannel implements GatheringByteChannel {
+
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    private final boolean keepContent;
+    private int writes;
+    private long bytes;
+
+    CountingChannel(boolean keepContent) {
+      this.keepContent = keepContent;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      writes++;
+      long written = 0;
+      for (int i = offset; i < offset + length; i++) {
+        ByteBuffer src = srcs[i];
+        written += src.remaining();
+        if (keepContent) {
+          while (src.hasRemaining()) content.write(src.get());
+        } else {
+          src.position(src.limit());
+        }
+      }
+      bytes += written;
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.github.faucamp.simplertmp.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.Video;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Messages chunked by {@link RtmpPacket#writeTo} must be read back by {@link RtmpDecoder} with
+ * the same timestamp, length, type and body. Checks the header type chosen for the first chunk
+ * of each message and the size of every message on the wire.
+ */
+public class ChunkHeaderRoundTripTest {
+
+  private static final int CHUNK_SIZE = 128;
+  private static final int EXTENDED_TIMESTAMP = 0xffffff;
+
+  @Test
+  public void headersFollowPreviousMessageOfChunkStream() throws IOException {
+    List<Message> messages = new ArrayList<>();
+    messages.add(new Message(true, 0, 100, RtmpHeader.ChunkType.TYPE_0_FULL));
+    //same length and type, only timestamp delta
+    messages.add(new Message(true, 33, 100, RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY));
+    //new length, 3 chunks
+    messages.add(new Message(true, 66, 300, RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE));
+    messages.add(new Message(true, 99, 300, RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY));
+    //audio has its own chunk stream
+    messages.add(new Message(false, 99, 50, RtmpHeader.ChunkType.TYPE_0_FULL));
+    messages.add(new Message(false, 120, 50, RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY));
+    //negative delta can't be relative
+    messages.add(new Message(false, 100, 50, RtmpHeader.ChunkType.TYPE_0_FULL));
+    messages.add(new Message(true, 132, 128, RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE));
+    roundTrip(messages);
+  }
+
+  @Test
+  public void extendedTimestampIsRepeatedInContinuationChunks() throws IOException {
+    List<Message> messages = new ArrayList<>();
+    //4 chunks, each type 3 continuation carries the extended timestamp again
+    messages.add(new Message(true, 0x1000000, 400, RtmpHeader.ChunkType.TYPE_0_FULL));
+    //small delta after an extended header, no extended field
+    messages.add(
+        new Message(true, 0x1000010, 400, RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY));
+    messages.add(new Message(true, 0x1000020, 130, RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE));
+    //timestamp just below and at the extended threshold
+    messages.add(new Message(false, EXTENDED_TIMESTAMP - 1, 300,
+        RtmpHeader.ChunkType.TYPE_0_FULL));
+    messages.add(new Message(false, EXTENDED_TIMESTAMP, 300,
+        RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY));
+    //going back in time needs a full header with the extended field
+    messages.add(new Message(true, 0x1000000, 200, RtmpHeader.ChunkType.TYPE_0_FULL));
+    roundTrip(messages);
+  }
+
+  private static void roundTrip(List<Message> messages) throws IOException {
+    RtmpSessionInfo txSessionInfo = new RtmpSessionInfo();
+    ChunkBuffer chunkBuffer = new ChunkBuffer(1024);
+    ChunkBuffer bodyBuffer = new ChunkBuffer(64);
+    //previous timestamp of video and audio chunk streams
+    int[] previousTimestamps = new int[2];
+    for (Message message : messages) {
+      RtmpPacket packet = message.toPacket();
+      ChunkStreamInfo chunkStreamInfo =
+          txSessionInfo.getChunkStreamInfo(packet.getHeader().getChunkStreamId());
+      int offset = chunkBuffer.size();
+      packet.writeTo(chunkBuffer, bodyBuffer, CHUNK_SIZE, chunkStreamInfo);
+      int fmt = (chunkBuffer.array()[offset] & 0xff) >>> 6;
+      assertEquals("header of " + message, message.chunkType.getValue(), fmt);
+      int stream = message.video ? 0 : 1;
+      assertEquals("size of " + message,
+          message.expectedSize(message.timestamp - previousTimestamps[stream]),
+          chunkBuffer.size() - offset);
+      previousTimestamps[stream] = message.timestamp;
+    }
+
+    RtmpSessionInfo rxSessionInfo = new RtmpSessionInfo();
+    rxSessionInfo.setRxChunkSize(CHUNK_SIZE);
+    RtmpDecoder rtmpDecoder = new RtmpDecoder(rxSessionInfo);
+    InputStream in = new ByteArrayInputStream(chunkBuffer.array(), 0, chunkBuffer.size());
+    for (Message message : messages) {
+      RtmpPacket packet = null;
+      while (packet == null) packet = rtmpDecoder.readPacket(in);
+      RtmpHeader header = packet.getHeader();
+      assertEquals(message.timestamp, header.getAbsoluteTimestamp());
+      assertEquals(message.length, header.getPacketLength());
+      assertEquals(1, header.getMessageStreamId());
+      assertEquals(message.video ? RtmpHeader.MessageType.VIDEO : RtmpHeader.MessageType.AUDIO,
+          header.getMessageType());
+      byte[] data = ((ContentData) packet).getData();
+      assertNotNull(data);
+      byte[] body = new byte[message.length];
+      System.arraycopy(data, 0, body, 0, body.length);
+      assertArrayEquals(message.body, body);
+    }
+    assertEquals(0, in.available());
+  }
+
+  private static class Message {
+
+    private final boolean video;
+    private final int timestamp;
+    private final int length;
+    private final RtmpHeader.ChunkType chunkType;
+    private final byte[] body;
+
+    Message(boolean video, int timestamp, int length, RtmpHeader.ChunkType chunkType) {
+      this.video = video;
+      this.timestamp = timestamp;
+      this.length = length;
+      this.chunkType = chunkType;
+      body = new byte[length];
+      for (int i = 0; i < length; i++) {
+        body[i] = (byte) (i * 7 + timestamp);
+      }
+    }
+
+    RtmpPacket toPacket() {
+      ContentData contentData = video ? new Video() : new Audio();
+      contentData.setData(body, body.length);
+      contentData.getHeader().setAbsoluteTimestamp(timestamp);
+      contentData.getHeader().setMessageStreamId(1);
+      return contentData;
+    }
+
+    /**
+     * @param delta from previous message of the same chunk stream.
+     */
+    int expectedSize(int delta) {
+      int headerSize;
+      //type 0 has the absolute timestamp, type 1 and 2 the delta
+      int field;
+      switch (chunkType) {
+        case TYPE_0_FULL:
+          headerSize = 12;
+          field = timestamp;
+          break;
+        case TYPE_1_RELATIVE_LARGE:
+          headerSize = 8;
+          field = delta;
+          break;
+        default:
+          headerSize = 4;
+          field = delta;
+          break;
+      }
+      int extended = field >= EXTENDED_TIMESTAMP ? 4 : 0;
+      int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      return headerSize + extended + length + (chunks - 1) * (1 + extended);
+    }
+
+    @Override
+    public String toString() {
+      return (video ? "video" : "audio") + " " + timestamp + " " + length;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.faucamp.simplertmp.io;
+
+import static org.junit.Assert.assertTrue;
+
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
+import com.github.faucamp.simplertmp.packets.Video;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Chunk one minute of 60 fps H264 with 44.1 kHz AAC interleaved the way RtmpConnection does
+ * and compare chunk header bytes and chunking time of fixed chunk sizes and the adaptive one.
+ */
+public class ChunkSizeBenchmarkTest {
+
+  private static final int FPS = 60;
+  private static final int FRAMES = FPS * 60;
+  private static final int GOP = FPS * 2;
+  private static final int IDR_SIZE = 120 * 1024;
+  private static final int P_SIZE = 12 * 1024;
+  private static final int AUDIO_SIZE = 372;
+  private static final int SAMPLE_RATE = 44100;
+  private static final int[] CHUNK_SIZES = { 128, 1024, 4096, 16 * 1024, 64 * 1024 };
+
+  @Test
+  public void benchmarkHeaderBytesPerChunkSize() throws IOException {
+    //warm up
+    chunkStream(4096, false);
+    long previous = Long.MAX_VALUE;
+    long fixed4096 = 0;
+    for (int chunkSize : CHUNK_SIZES) {
+      long headerBytes = chunkStream(chunkSize, false);
+      //bigger chunks, fewer type 3 headers
+      assertTrue(headerBytes < previous);
+      previous = headerBytes;
+      if (chunkSize == 4096) fixed4096 = headerBytes;
+    }
+    long adaptive = chunkStream(ChunkSizeSelector.MIN_CHUNK_SIZE, true);
+    assertTrue(adaptive < fixed4096);
+  }
+
+  /**
+   * @return chunk header bytes written, SetChunkSize messages included.
+   */
+  private static long chunkStream(int initialChunkSize, boolean adaptive) throws IOException {
+    ChunkBuffer chunkBuffer = new ChunkBuffer(128 * 1024);
+    ChunkBuffer bodyBuffer = new ChunkBuffer(1024);
+    ChunkStreamInfo videoInfo = new ChunkStreamInfo();
+    ChunkStreamInfo audioInfo = new ChunkStreamInfo();
+    ChunkStreamInfo controlInfo = new ChunkStreamInfo();
+    ChunkSizeSelector chunkSizeSelector = new ChunkSizeSelector();
+    chunkSizeSelector.reset(initialChunkSize);
+    Video video = new Video();
+    Audio audio = new Audio();
+    byte[] idr = new byte[IDR_SIZE];
+    byte[] p = new byte[P_SIZE];
+    byte[] aac = new byte[AUDIO_SIZE];
+    int chunkSize = initialChunkSize;
+    long payloadBytes = 0;
+    long totalBytes = 0;
+    int chunkSizeChanges = 0;
+    long audioSamples = 0;
+    long startNs = System.nanoTime();
+    for (int i = 0; i < FRAMES; i++) {
+      long videoPts = i * 1000L / FPS;
+      while (audioSamples * 1000 / SAMPLE_RATE <= videoPts) {
+        totalBytes += write(chunkBuffer, bodyBuffer, audio, aac,
+            (int) (audioSamples * 1000 / SAMPLE_RATE), chunkSize, audioInfo);
+        payloadBytes += AUDIO_SIZE;
+        audioSamples += 1024;
+      }
+      byte[] frame = i % GOP == 0 ? idr : p;
+      if (adaptive) {
+        int newChunkSize = chunkSizeSelector.onVideoFrame(frame.length);
+        if (newChunkSize > 0) {
+          chunkBuffer.reset();
+          new SetChunkSize(newChunkSize).writeTo(chunkBuffer, bodyBuffer, chunkSize,
+              controlInfo);
+          totalBytes += chunkBuffer.size();
+          chunkSize = newChunkSize;
+          chunkSizeChanges++;
+        }
+      }
+      totalBytes += write(chunkBuffer, bodyBuffer, video, frame, (int) videoPts, chunkSize,
+          videoInfo);
+      payloadBytes += frame.length;
+    }
+    long elapsedNs = System.nanoTime() - startNs;
+    long headerBytes = totalBytes - payloadBytes;
+    System.out.println("Chunk size " + (adaptive ? "adaptive from " : "") + initialChunkSize
+        + ": " + headerBytes + " header bytes, " + headerBytes * 1000000 / payloadBytes
+        + " ppm of payload, " + headerBytes / FRAMES + " bytes/video frame, "
+        + elapsedNs / FRAMES + " ns/video frame"
+        + (adaptive ? ", " + chunkSizeChanges + " changes, last " + chunkSize : ""));
+    return headerBytes;
+  }
+
+  private static int write(ChunkBuffer chunkBuffer, ChunkBuffer bodyBuffer,
+      ContentData contentData, byte[] data, int timestamp, int chunkSize,
+      ChunkStreamInfo chunkStreamInfo) throws IOException {
+    contentData.setData(data, data.length);
+    contentData.getHeader().setAbsoluteTimestamp(timestamp);
+    contentData.getHeader().setMessageStreamId(1);
+    chunkBuffer.reset();
+    contentData.writeTo(chunkBuffer, bodyBuffer, chunkSize, chunkStreamInfo);
+    return chunkBuffer.size();
+  }
+}
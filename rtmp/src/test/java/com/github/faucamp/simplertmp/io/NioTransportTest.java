@@ -0,0 +1,149 @@
+package com.github.faucamp.simplertmp.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * {@link NioTransport} against a server that only does the handshake: end of stream is reported
+ * to the listener and the outbound queue is bounded when the server stops reading.
+ */
+public class NioTransportTest {
+
+  private static final int LOW_WATERMARK = 16 * 1024;
+  private static final int HIGH_WATERMARK = 64 * 1024;
+
+  private ServerSocket serverSocket;
+  private Socket serverSide;
+  private NioTransport transport;
+
+  @After
+  public void tearDown() throws IOException {
+    if (transport != null) transport.close();
+    if (serverSide != null) serverSide.close();
+    if (serverSocket != null) serverSocket.close();
+  }
+
+  @Test
+  public void endOfStreamIsReported() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    connect(listener);
+    serverSide.close();
+    assertTrue(listener.error.await(5, TimeUnit.SECONDS));
+    assertTrue(listener.exception instanceof EOFException);
+  }
+
+  @Test
+  public void endOfStreamAfterCloseIsNotReported() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    connect(listener);
+    transport.close();
+    serverSide.close();
+    assertTrue(!listener.error.await(200, TimeUnit.MILLISECONDS));
+    assertNull(listener.exception);
+  }
+
+  @Test
+  public void outboundQueueIsBounded() throws Exception {
+    connect(new RecordingListener());
+    long written = 0;
+    //the server never reads, socket buffers fill up then the queue grows
+    try {
+      while (written < 256L * 1024 * 1024) {
+        ChunkBuffer message = message(16 * 1024);
+        transport.write(message);
+        written += message.size();
+      }
+      fail("queue not bounded, " + written + " bytes written");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Outbound queue full"));
+    }
+    assertTrue(!transport.isWritable());
+    //connection is unusable after a partial message
+    try {
+      transport.write(message(1));
+      fail("write accepted after queue overflow");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Outbound queue full"));
+    }
+  }
+
+  private static ChunkBuffer message(int size) {
+    ChunkBuffer message = new ChunkBuffer(16);
+    message.setGathering(true);
+    message.write(0x05);
+    message.writeBody(new byte[size], 0, size);
+    return message;
+  }
+
+  private void connect(RtmpTransport.Listener listener) throws Exception {
+    serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    final Exception[] serverError = new Exception[1];
+    Thread server = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          serverSide = serverSocket.accept();
+          handshake(serverSide);
+        } catch (IOException e) {
+          serverError[0] = e;
+        }
+      }
+    }, "NioTransportTest");
+    server.start();
+    transport = new NioTransport(LOW_WATERMARK, HIGH_WATERMARK,
+        new InstanceMetrics(MetricsRegistry.getDefault()));
+    transport.connect("127.0.0.1", serverSocket.getLocalPort(), 8 * 1024,
+        new RtmpDecoder(new RtmpSessionInfo()), listener);
+    server.join(5000);
+    if (serverError[0] != null) throw serverError[0];
+  }
+
+  /**
+   * Read C0 and C1, answer S0, S1 and S2 echoing C1, then read C2.
+   */
+  private static void handshake(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+    byte[] c0c1 = new byte[1 + 1536];
+    in.readFully(c0c1);
+    byte[] response = new byte[1 + 1536 * 2];
+    response[0] = 3;
+    System.arraycopy(c0c1, 1, response, 1 + 1536, 1536);
+    out.write(response);
+    out.flush();
+    in.readFully(new byte[1536]);
+  }
+
+  private static class RecordingListener implements RtmpTransport.Listener {
+
+    private final CountDownLatch error = new CountDownLatch(1);
+    private volatile IOException exception;
+
+    @Override
+    public void onRtmpPacket(RtmpPacket rtmpPacket) {
+    }
+
+    @Override
+    public void onReadError(IOException e) {
+      exception = e;
+      error.countDown();
+    }
+  }
+}
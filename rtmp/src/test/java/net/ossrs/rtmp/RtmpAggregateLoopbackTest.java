@@ -0,0 +1,243 @@
+package net.ossrs.rtmp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Aggregate messages against {@link RtmpIngestServer}: tags split back from aggregates must be
+ * the tags sent, with their own timestamps, then wire overhead and messages per tag of a low
+ * bitrate stream with and without aggregates.
+ */
+public class RtmpAggregateLoopbackTest {
+
+  private static final int FPS = 60;
+  private static final int GOP = FPS * 2;
+  private static final int IDR_SIZE = 15 * 1024;
+  private static final int P_SIZE = 1500;
+  private static final int AUDIO_SIZE = 372;
+  private static final int SAMPLE_RATE = 44100;
+  private static final int BENCHMARK_FRAMES = FPS * 30;
+  private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x28 };
+  private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+  @Test
+  public void aggregatedTagsAreReceivedIntact() throws Exception {
+    RtmpIngestServer server = new RtmpIngestServer(true);
+    RtmpLoopbackBenchmarkTest.AwaitingConnectChecker connectChecker =
+        new RtmpLoopbackBenchmarkTest.AwaitingConnectChecker();
+    SrsFlvMuxer srsFlvMuxer = startMuxer(server, connectChecker, true);
+
+    Random random = new Random(7);
+    int videoFrames = GOP + 60;
+    List<byte[]> videoPayloads = new ArrayList<>();
+    Map<Integer, byte[]> audioPayloads = new HashMap<>();
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    long audioPts = 0;
+    for (int i = 0; i < videoFrames; i++) {
+      long videoPts = i * 1000000L / FPS;
+      while (audioPts <= videoPts) {
+        byte[] audio = new byte[AUDIO_SIZE];
+        random.nextBytes(audio);
+        //the first frame is replaced by the AAC sequence header
+        if (audioPts > 0) audioPayloads.put((int) (audioPts / 1000), audio);
+        bufferInfo.size = audio.length;
+        bufferInfo.flags = 0;
+        bufferInfo.presentationTimeUs = audioPts;
+        srsFlvMuxer.sendAudio(ByteBuffer.wrap(audio), bufferInfo);
+        audioPts += 1024 * 1000000L / SAMPLE_RATE;
+      }
+      boolean keyFrame = i % GOP == 0;
+      byte[] payload = new byte[(keyFrame ? IDR_SIZE : P_SIZE) / 2 + random.nextInt(500)];
+      random.nextBytes(payload);
+      payload[0] = (byte) (keyFrame ? 0x65 : 0x41);
+      //no emulated start code in the payload
+      for (int j = 1; j < payload.length; j++) {
+        if (payload[j] == 0) payload[j] = 1;
+      }
+      videoPayloads.add(payload);
+      ByteBuffer frame = ByteBuffer.allocate(payload.length + 4);
+      frame.put(new byte[] { 0, 0, 0, 1 }).put(payload).flip();
+      bufferInfo.size = frame.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = videoPts;
+      srsFlvMuxer.sendVideo(frame, bufferInfo);
+      waitForCache(srsFlvMuxer, 32);
+    }
+    //sequence header and every frame
+    assertTrue(server.awaitVideoTags(videoFrames + 1, 5000));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getAudioTags() < audioPayloads.size() + 1
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    srsFlvMuxer.stop();
+    server.close();
+
+    assertEquals(0, srsFlvMuxer.getDroppedVideoFrames());
+    assertEquals(0, srsFlvMuxer.getDroppedAudioFrames());
+    assertTrue(server.getAggregates() > 0);
+    int video = 0;
+    int audio = 0;
+    int lastTimestamp = 0;
+    List<RtmpIngestServer.Tag> tags = server.getTags();
+    //metadata first
+    assertEquals(RtmpIngestServer.TAG_SCRIPT, tags.get(0).type);
+    for (RtmpIngestServer.Tag tag : tags.subList(1, tags.size())) {
+      //timestamps of tags inside an aggregate are moved to the message timestamp
+      assertTrue(tag.timestamp >= lastTimestamp);
+      lastTimestamp = tag.timestamp;
+      if (tag.type == RtmpIngestServer.TAG_AUDIO) {
+        //sequence header, then raw AAC at its own timestamp
+        if (audio++ == 0) {
+          assertEquals(0, tag.data[1]);
+          continue;
+        }
+        assertEquals(1, tag.data[1]);
+        assertArrayEquals(audioPayloads.get(tag.timestamp),
+            Arrays.copyOfRange(tag.data, 2, tag.data.length));
+        continue;
+      }
+      assertEquals(RtmpIngestServer.TAG_VIDEO, tag.type);
+      if (video++ == 0) {
+        assertEquals(0, tag.data[1]);
+        continue;
+      }
+      int i = video - 2;
+      assertEquals(i % GOP == 0 ? 0x17 : 0x27, tag.data[0]);
+      assertEquals((int) (i * 1000L / FPS), tag.timestamp);
+      assertArrayEquals(videoPayloads.get(i), Arrays.copyOfRange(tag.data, 9, tag.data.length));
+    }
+    assertEquals(videoFrames + 1, video);
+    assertEquals(audioPayloads.size() + 1, audio);
+  }
+
+  @Test
+  public void benchmarkAggregateOverhead() throws Exception {
+    Result single = benchmark(false);
+    Result aggregated = benchmark(true);
+    System.out.println("RTMP aggregates off: " + single);
+    System.out.println("RTMP aggregates on: " + aggregated);
+    assertEquals(single.payloadBytes, aggregated.payloadBytes);
+    assertTrue(aggregated.aggregates > 0);
+    assertTrue(aggregated.messages < single.messages);
+    //each aggregated tag costs its 11 bytes tag header and 4 bytes previous tag size, more than
+    //the compressed chunk header it saves
+    assertTrue(aggregated.overheadBytes < single.overheadBytes + 15 * aggregated.tags);
+    assertTrue(aggregated.overheadBytes > single.overheadBytes);
+  }
+
+  private static Result benchmark(boolean aggregates) throws Exception {
+    RtmpIngestServer server = new RtmpIngestServer(false);
+    final long[] payloadBytes = new long[1];
+    server.setTagListener(new RtmpIngestServer.TagListener() {
+      @Override
+      public void onTag(int type, int timestamp, byte[] data, int offset, int size,
+          long receivedNs) {
+        payloadBytes[0] += size;
+      }
+    });
+    RtmpLoopbackBenchmarkTest.AwaitingConnectChecker connectChecker =
+        new RtmpLoopbackBenchmarkTest.AwaitingConnectChecker();
+    SrsFlvMuxer srsFlvMuxer = startMuxer(server, connectChecker, aggregates);
+    ByteBuffer idr = createFrame(IDR_SIZE, 0x65);
+    ByteBuffer p = createFrame(P_SIZE, 0x41);
+    ByteBuffer aac = ByteBuffer.allocateDirect(AUDIO_SIZE);
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    //handshake, commands and metadata are counted too, they are the same in both runs
+    long audioPts = 0;
+    int audioFrames = 0;
+    long startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+      long videoPts = i * 1000000L / FPS;
+      while (audioPts <= videoPts) {
+        aac.clear();
+        bufferInfo.size = AUDIO_SIZE;
+        bufferInfo.flags = 0;
+        bufferInfo.presentationTimeUs = audioPts;
+        srsFlvMuxer.sendAudio(aac, bufferInfo);
+        audioPts += 1024 * 1000000L / SAMPLE_RATE;
+        audioFrames++;
+      }
+      boolean keyFrame = i % GOP == 0;
+      ByteBuffer frame = keyFrame ? idr : p;
+      bufferInfo.size = frame.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = videoPts;
+      srsFlvMuxer.sendVideo(frame, bufferInfo);
+      waitForCache(srsFlvMuxer, 8);
+    }
+    assertTrue(server.awaitVideoTags(BENCHMARK_FRAMES + 1, 10000));
+    long elapsedNs = System.nanoTime() - startNs;
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getAudioTags() < audioFrames && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    srsFlvMuxer.stop();
+    server.close();
+    assertEquals(0, srsFlvMuxer.getDroppedVideoFrames());
+
+    Result result = new Result();
+    result.tags = server.getVideoTags() + server.getAudioTags();
+    result.messages = server.getMediaMessages();
+    result.aggregates = server.getAggregates();
+    result.payloadBytes = payloadBytes[0];
+    result.overheadBytes = server.getReceivedBytes() - result.payloadBytes;
+    result.elapsedNs = elapsedNs;
+    return result;
+  }
+
+  private static SrsFlvMuxer startMuxer(RtmpIngestServer server,
+      RtmpLoopbackBenchmarkTest.AwaitingConnectChecker connectChecker, boolean aggregates)
+      throws Exception {
+    SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(connectChecker);
+    srsFlvMuxer.setSpsPPs(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    srsFlvMuxer.setSampleRate(SAMPLE_RATE);
+    srsFlvMuxer.setIsStereo(true);
+    srsFlvMuxer.setAggregateMessages(aggregates);
+    srsFlvMuxer.start(server.getUrl("live", "aggregate"));
+    assertTrue(connectChecker.awaitConnection());
+    return srsFlvMuxer;
+  }
+
+  private static void waitForCache(SrsFlvMuxer srsFlvMuxer, int maxTags) {
+    //keep the cache from dropping, tags still queue up so aggregates are filled
+    while (srsFlvMuxer.getFlvTagCacheSize() > maxTags) Thread.yield();
+  }
+
+  private static ByteBuffer createFrame(int size, int nalHeader) {
+    ByteBuffer frame = ByteBuffer.allocateDirect(size);
+    frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put((byte) nalHeader);
+    while (frame.hasRemaining()) frame.put((byte) 0x11);
+    frame.flip();
+    return frame;
+  }
+
+  private static class Result {
+
+    private long tags;
+    private long messages;
+    private long aggregates;
+    private long payloadBytes;
+    private long overheadBytes;
+    private long elapsedNs;
+
+    @Override
+    public String toString() {
+      return tags + " tags in " + messages + " messages (" + aggregates + " aggregates), "
+          + String.format("%.2f", (double) overheadBytes / tags) + " overhead bytes/tag, "
+          + overheadBytes * 1000000 / payloadBytes + " ppm of payload, "
+          + tags * 1000000000L / elapsedNs + " tags/s";
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package net.ossrs.rtmp;
+
+import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.amf.AmfData;
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.io.ChunkBuffer;
+import com.github.faucamp.simplertmp.io.RtmpDecoder;
+import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.Data;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.WindowAckSize;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RTMP ingest stand-in running in the test JVM. Accepts one publisher at a time on the loopback
+ * interface, answers connect, createStream and publish, reassembles chunks with the same
+ * {@link RtmpDecoder} used by the client and records every FLV tag with its timestamp and the
+ * time it was received. Aggregate messages are split back in tags.
+ */
+public class RtmpIngestServer implements Closeable {
+
+  public static final int TAG_AUDIO = 8;
+  public static final int TAG_VIDEO = 9;
+  public static final int TAG_SCRIPT = 18;
+
+  private static final int HANDSHAKE_SIZE = 1536;
+  private static final int STREAM_ID = 1;
+  private static final int DEFAULT_ACK_WINDOW = 256 * 1024;
+
+  /**
+   * Called from the server thread for each tag, data is only valid during the call.
+   */
+  public interface TagListener {
+    void onTag(int type, int timestamp, byte[] data, int offset, int size, long receivedNs);
+  }
+
+  public static class Tag {
+
+    public final int type;
+    public final int timestamp;
+    public final byte[] data;
+    public final long receivedNs;
+
+    Tag(int type, int timestamp, byte[] data, long receivedNs) {
+      this.type = type;
+      this.timestamp = timestamp;
+      this.data = data;
+      this.receivedNs = receivedNs;
+    }
+  }
+
+  private final ServerSocket serverSocket;
+  private final Thread thread;
+  private final boolean recordTags;
+  private final List<Tag> tags = new ArrayList<>();
+  private volatile TagListener tagListener;
+  private volatile Socket socket;
+  private volatile boolean publishing;
+  private volatile long receivedBytes;
+  private volatile long videoTags;
+  private volatile long audioTags;
+  private volatile long aggregates;
+  private volatile long mediaMessages;
+  private volatile String streamName;
+  private final ChunkBuffer chunkBuffer = new ChunkBuffer(1024);
+  private final ChunkBuffer bodyBuffer = new ChunkBuffer(1024);
+  private int ackWindow = DEFAULT_ACK_WINDOW;
+  private long lastAckBytes;
+
+  /**
+   * @param recordTags keep a copy of every tag, see {@link #getTags()}. Disable it for long
+   * benchmarks and use a {@link TagListener}.
+   */
+  public RtmpIngestServer(boolean recordTags) throws IOException {
+    this.recordTags = recordTags;
+    serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    }, "RtmpIngestServer");
+    thread.start();
+  }
+
+  public String getUrl(String app, String stream) {
+    return "rtmp://127.0.0.1:" + serverSocket.getLocalPort() + "/" + app + "/" + stream;
+  }
+
+  public long getThreadId() {
+    return thread.getId();
+  }
+
+  public void setTagListener(TagListener tagListener) {
+    this.tagListener = tagListener;
+  }
+
+  public boolean isPublishing() {
+    return publishing;
+  }
+
+  public String getStreamName() {
+    return streamName;
+  }
+
+  /**
+   * @return bytes read from the socket, handshake and chunk headers included.
+   */
+  public long getReceivedBytes() {
+    return receivedBytes;
+  }
+
+  public long getVideoTags() {
+    return videoTags;
+  }
+
+  public long getAudioTags() {
+    return audioTags;
+  }
+
+  public long getAggregates() {
+    return aggregates;
+  }
+
+  /**
+   * @return audio, video and aggregate messages received.
+   */
+  public long getMediaMessages() {
+    return mediaMessages;
+  }
+
+  public List<Tag> getTags() {
+    synchronized (tags) {
+      return new ArrayList<>(tags);
+    }
+  }
+
+  /**
+   * @return recorded tags as an FLV file.
+   */
+  public byte[] getFlv() throws IOException {
+    ByteArrayOutputStream flv = new ByteArrayOutputStream();
+    flv.write(new byte[] { 'F', 'L', 'V', 1, 5, 0, 0, 0, 9 });
+    Util.writeUnsignedInt32(flv, 0);
+    for (Tag tag : getTags()) {
+      flv.write(tag.type);
+      Util.writeUnsignedInt24(flv, tag.data.length);
+      Util.writeUnsignedInt24(flv, tag.timestamp & 0xffffff);
+      flv.write(tag.timestamp >>> 24);
+      Util.writeUnsignedInt24(flv, 0);
+      flv.write(tag.data);
+      Util.writeUnsignedInt32(flv, 11 + tag.data.length);
+    }
+    return flv.toByteArray();
+  }
+
+  /**
+   * Wait until count video tags are received.
+   *
+   * @return false on timeout.
+   */
+  public boolean awaitVideoTags(long count, long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (videoTags < count) {
+      if (System.currentTimeMillis() >= deadline) return false;
+      Thread.sleep(1);
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    Socket currentSocket = socket;
+    if (currentSocket != null) currentSocket.close();
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      try {
+        socket = serverSocket.accept();
+        serve(socket);
+      } catch (IOException e) {
+        //publisher closed the connection or server closed
+      } finally {
+        publishing = false;
+        Socket currentSocket = socket;
+        if (currentSocket != null) {
+          try {
+            currentSocket.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    InputStream in = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) receivedBytes++;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) receivedBytes += read;
+        return read;
+      }
+    });
+    OutputStream out = socket.getOutputStream();
+    handshake(in, out);
+    RtmpSessionInfo rtmpSessionInfo = new RtmpSessionInfo();
+    RtmpDecoder rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
+    ackWindow = DEFAULT_ACK_WINDOW;
+    lastAckBytes = receivedBytes;
+    while (true) {
+      RtmpPacket rtmpPacket;
+      try {
+        rtmpPacket = rtmpDecoder.readPacket(in);
+      } catch (EOFException e) {
+        return;
+      }
+      if (receivedBytes - lastAckBytes >= ackWindow) {
+        lastAckBytes = receivedBytes;
+        send(new Acknowledgement((int) receivedBytes), out, rtmpSessionInfo);
+      }
+      if (rtmpPacket == null) continue;
+      long receivedNs = System.nanoTime();
+      int timestamp = rtmpPacket.getHeader().getAbsoluteTimestamp();
+      switch (rtmpPacket.getHeader().getMessageType()) {
+        case COMMAND_AMF0:
+          handleCommand((Command) rtmpPacket, out, rtmpSessionInfo);
+          break;
+        case WINDOW_ACKNOWLEDGEMENT_SIZE:
+          ackWindow = ((WindowAckSize) rtmpPacket).getAcknowledgementWindowSize();
+          break;
+        case DATA_AMF0:
+          onScriptData((Data) rtmpPacket, timestamp, receivedNs);
+          break;
+        case VIDEO:
+          mediaMessages++;
+          byte[] video = ((ContentData) rtmpPacket).getData();
+          onTag(TAG_VIDEO, timestamp, video, 0, video.length, receivedNs);
+          break;
+        case AUDIO:
+          mediaMessages++;
+          byte[] audio = ((ContentData) rtmpPacket).getData();
+          onTag(TAG_AUDIO, timestamp, audio, 0, audio.length, receivedNs);
+          break;
+        case AGGREGATE_MESSAGE:
+          aggregates++;
+          mediaMessages++;
+          onAggregate(((ContentData) rtmpPacket).getData(), timestamp, receivedNs);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * Read C0 and C1, answer S0, S1 and S2 (echo of C1) and read C2. Digest is not checked.
+   */
+  private static void handshake(InputStream in, OutputStream out) throws IOException {
+    byte[] c0c1 = new byte[1 + HANDSHAKE_SIZE];
+    Util.readBytesUntilFull(in, c0c1);
+    if (c0c1[0] != 3) throw new IOException("Invalid RTMP version: " + c0c1[0]);
+    byte[] s0s1s2 = new byte[1 + 2 * HANDSHAKE_SIZE];
+    s0s1s2[0] = 3;
+    System.arraycopy(c0c1, 1, s0s1s2, 1 + HANDSHAKE_SIZE, HANDSHAKE_SIZE);
+    out.write(s0s1s2);
+    out.flush();
+    Util.readBytesUntilFull(in, new byte[HANDSHAKE_SIZE]);
+  }
+
+  private void handleCommand(Command command, OutputStream out, RtmpSessionInfo rtmpSessionInfo)
+      throws IOException {
+    switch (command.getCommandName()) {
+      case "connect":
+        Command connectResult = new Command("_result", command.getTransactionId());
+        AmfObject properties = new AmfObject();
+        properties.setProperty("fmsVer", "FMS/3,0,1,123");
+        properties.setProperty("capabilities", 31);
+        connectResult.addData(properties);
+        connectResult.addData(status("NetConnection.Connect.Success", "Connection succeeded."));
+        send(connectResult, out, rtmpSessionInfo);
+        break;
+      case "createStream":
+        Command createStreamResult = new Command("_result", command.getTransactionId());
+        createStreamResult.addData(new AmfNull());
+        createStreamResult.addData(STREAM_ID);
+        send(createStreamResult, out, rtmpSessionInfo);
+        break;
+      case "publish":
+        streamName = ((AmfString) command.getData().get(1)).getValue();
+        publishing = true;
+        Command onStatus = new Command("onStatus", 0);
+        onStatus.getHeader().setMessageStreamId(STREAM_ID);
+        onStatus.addData(new AmfNull());
+        onStatus.addData(status("NetStream.Publish.Start", streamName + " is now published."));
+        send(onStatus, out, rtmpSessionInfo);
+        break;
+      case "closeStream":
+      case "deleteStream":
+        publishing = false;
+        break;
+      default:
+        //releaseStream and FCPublish don't need an answer
+        break;
+    }
+  }
+
+  private static AmfObject status(String code, String description) {
+    AmfObject info = new AmfObject();
+    info.setProperty("level", "status");
+    info.setProperty("code", code);
+    info.setProperty("description", description);
+    return info;
+  }
+
+  private void send(RtmpPacket rtmpPacket, OutputStream out, RtmpSessionInfo rtmpSessionInfo)
+      throws IOException {
+    chunkBuffer.reset();
+    rtmpPacket.writeTo(chunkBuffer, bodyBuffer, rtmpSessionInfo.getTxChunkSize(),
+        rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId()));
+    chunkBuffer.writeTo(out);
+    out.flush();
+  }
+
+  private void onScriptData(Data data, int timestamp, long receivedNs) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    //@setDataFrame is removed when stored, like a server does
+    List<AmfData> items = data.getData();
+    for (AmfData item : items) {
+      item.writeTo(body);
+    }
+    byte[] script = body.toByteArray();
+    onTag(TAG_SCRIPT, timestamp, script, 0, script.length, receivedNs);
+  }
+
+  /**
+   * Split an aggregate in tags. Tag timestamps are relative to the first one and moved to the
+   * message timestamp.
+   */
+  private void onAggregate(byte[] data, int timestamp, long receivedNs) throws IOException {
+    int offset = 0;
+    int firstTimestamp = -1;
+    while (offset + 11 <= data.length) {
+      int type = data[offset] & 0x1f;
+      int size = readInt24(data, offset + 1);
+      int tagTimestamp = readInt24(data, offset + 4) | (data[offset + 7] & 0xff) << 24;
+      if (offset + 11 + size + 4 > data.length) {
+        throw new IOException("Truncated aggregate tag at " + offset);
+      }
+      if (firstTimestamp == -1) firstTimestamp = tagTimestamp;
+      onTag(type, timestamp + tagTimestamp - firstTimestamp, data, offset + 11, size, receivedNs);
+      offset += 11 + size + 4;
+    }
+    if (offset != data.length) throw new IOException("Trailing bytes in aggregate: " + offset);
+  }
+
+  private void onTag(int type, int timestamp, byte[] data, int offset, int size,
+      long receivedNs) {
+    if (type == TAG_VIDEO) {
+      videoTags++;
+    } else if (type == TAG_AUDIO) {
+      audioTags++;
+    }
+    TagListener listener = tagListener;
+    if (listener != null) listener.onTag(type, timestamp, data, offset, size, receivedNs);
+    if (recordTags) {
+      byte[] copy = new byte[size];
+      System.arraycopy(data, offset, copy, 0, size);
+      synchronized (tags) {
+        tags.add(new Tag(type, timestamp, copy, receivedNs));
+      }
+    }
+  }
+
+  private static int readInt24(byte[] data, int offset) {
+    return (data[offset] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8 | data[offset + 2] & 0xff;
+  }
+}
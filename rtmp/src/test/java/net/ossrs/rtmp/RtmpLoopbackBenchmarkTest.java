@@ -0,0 +1,387 @@
+package net.ossrs.rtmp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import com.github.faucamp.simplertmp.DefaultRtmpPublisher;
+import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.io.RtmpConnection;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+/**
+ * End to end tests of {@link SrsFlvMuxer} and {@link RtmpConnection} against
+ * {@link RtmpIngestServer}: received stream integrity, then throughput, per-frame latency from
+ * sendVideo to server receipt and bytes allocated by the rtmp module for both transports.
+ */
+public class RtmpLoopbackBenchmarkTest {
+
+  private static final int FPS = 60;
+  private static final int GOP = FPS * 2;
+  private static final int IDR_SIZE = 120 * 1024;
+  private static final int P_SIZE = 12 * 1024;
+  private static final int AUDIO_SIZE = 372;
+  private static final int SAMPLE_RATE = 44100;
+  private static final int THROUGHPUT_FRAMES = FPS * 30;
+  private static final int LATENCY_FRAMES = FPS * 2;
+  private static final int WARM_UP_FRAMES = GOP * 2;
+  private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x28 };
+  private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+  private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+  @Test
+  public void publishedStreamIsReceivedIntact() throws Exception {
+    RtmpIngestServer server = new RtmpIngestServer(true);
+    AwaitingConnectChecker connectChecker = new AwaitingConnectChecker();
+    SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(connectChecker);
+    srsFlvMuxer.setSampleRate(SAMPLE_RATE);
+    srsFlvMuxer.setIsStereo(true);
+    srsFlvMuxer.setVideoResolution(1280, 720);
+    srsFlvMuxer.start(server.getUrl("live", "test"));
+    assertTrue(connectChecker.awaitConnection());
+    sendSpsPps(srsFlvMuxer);
+
+    Random random = new Random(3);
+    int videoFrames = GOP + 10;
+    byte[][] videoPayloads = new byte[videoFrames][];
+    Map<Integer, byte[]> audioPayloads = new HashMap<>();
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    long audioPts = 0;
+    for (int i = 0; i < videoFrames; i++) {
+      long videoPts = i * 1000000L / FPS;
+      while (audioPts <= videoPts) {
+        byte[] audio = new byte[AUDIO_SIZE];
+        random.nextBytes(audio);
+        audioPayloads.put((int) (audioPts / 1000), audio);
+        bufferInfo.size = audio.length;
+        bufferInfo.flags = 0;
+        bufferInfo.presentationTimeUs = audioPts;
+        srsFlvMuxer.sendAudio(ByteBuffer.wrap(audio), bufferInfo);
+        audioPts += 1024 * 1000000L / SAMPLE_RATE;
+      }
+      boolean keyFrame = i % GOP == 0;
+      videoPayloads[i] = new byte[(keyFrame ? IDR_SIZE : P_SIZE) / 4 + random.nextInt(1000)];
+      random.nextBytes(videoPayloads[i]);
+      videoPayloads[i][0] = (byte) (keyFrame ? 0x65 : 0x41);
+      //no emulated start code in the payload
+      for (int j = 1; j < videoPayloads[i].length; j++) {
+        if (videoPayloads[i][j] == 0) videoPayloads[i][j] = 1;
+      }
+      ByteBuffer frame = ByteBuffer.allocate(videoPayloads[i].length + 4);
+      frame.put(new byte[] { 0, 0, 0, 1 }).put(videoPayloads[i]).flip();
+      bufferInfo.size = frame.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = videoPts;
+      srsFlvMuxer.sendVideo(frame, bufferInfo);
+      waitForCache(srsFlvMuxer);
+    }
+    //sequence header and every frame
+    assertTrue(server.awaitVideoTags(videoFrames + 1, 5000));
+    srsFlvMuxer.stop();
+    server.close();
+
+    assertEquals(0, srsFlvMuxer.getDroppedVideoFrames());
+    assertEquals("test", server.getStreamName());
+    List<RtmpIngestServer.Tag> tags = server.getTags();
+    RtmpIngestServer.Tag metadata = tags.get(0);
+    assertEquals(RtmpIngestServer.TAG_SCRIPT, metadata.type);
+    assertEquals("onMetaData", new String(metadata.data, 3, 10, "US-ASCII"));
+
+    int video = 0;
+    int lastTimestamp = 0;
+    boolean audioSequenceHeader = false;
+    for (RtmpIngestServer.Tag tag : tags.subList(1, tags.size())) {
+      //both tracks are sent in dts order
+      assertTrue(tag.timestamp >= lastTimestamp);
+      lastTimestamp = tag.timestamp;
+      if (tag.type == RtmpIngestServer.TAG_AUDIO) {
+        //AAC, 44 kHz, 16 bits, stereo
+        assertEquals((byte) 0xaf, tag.data[0]);
+        if (!audioSequenceHeader) {
+          assertEquals(0, tag.data[1]);
+          audioSequenceHeader = true;
+          continue;
+        }
+        assertEquals(1, tag.data[1]);
+        assertArrayEquals(audioPayloads.get(tag.timestamp),
+            Arrays.copyOfRange(tag.data, 2, tag.data.length));
+        continue;
+      }
+      assertEquals(RtmpIngestServer.TAG_VIDEO, tag.type);
+      if (video == 0) {
+        //AVC sequence header with sps and pps before any frame
+        assertEquals(0x17, tag.data[0]);
+        assertEquals(0, tag.data[1]);
+        video++;
+        continue;
+      }
+      int i = video - 1;
+      assertEquals(i % GOP == 0 ? 0x17 : 0x27, tag.data[0]);
+      assertEquals(1, tag.data[1]);
+      assertEquals((int) (i * 1000L / FPS), tag.timestamp);
+      //composition time 0, then the nal unit prefixed by its length
+      int length = (tag.data[5] & 0xff) << 24 | (tag.data[6] & 0xff) << 16
+          | (tag.data[7] & 0xff) << 8 | tag.data[8] & 0xff;
+      assertEquals(videoPayloads[i].length, length);
+      assertArrayEquals(videoPayloads[i], Arrays.copyOfRange(tag.data, 9, tag.data.length));
+      video++;
+    }
+    assertEquals(videoFrames + 1, video);
+    assertTrue(audioSequenceHeader);
+    byte[] flv = server.getFlv();
+    assertEquals("FLV", new String(flv, 0, 3, "US-ASCII"));
+  }
+
+  @Test
+  public void benchmarkBlockingSocket() throws Exception {
+    benchmark("socket", false);
+  }
+
+  @Test
+  public void benchmarkNonBlockingSocket() throws Exception {
+    benchmark("nio", true);
+  }
+
+  private void benchmark(String name, boolean nio) throws Exception {
+    RtmpIngestServer server = new RtmpIngestServer(false);
+    int frames = WARM_UP_FRAMES + THROUGHPUT_FRAMES + 2 * LATENCY_FRAMES;
+    final long[] sentNs = new long[(int) (frames * 1000L / FPS) + 1];
+    final long[] receivedNs = new long[sentNs.length];
+    final long[] lastReceivedNs = new long[1];
+    server.setTagListener(new RtmpIngestServer.TagListener() {
+      @Override
+      public void onTag(int type, int timestamp, byte[] data, int offset, int size,
+          long tagReceivedNs) {
+        //frames only, not sequence header
+        if (type != RtmpIngestServer.TAG_VIDEO || data[offset + 1] != 1) return;
+        receivedNs[timestamp] = tagReceivedNs;
+        lastReceivedNs[0] = tagReceivedNs;
+      }
+    });
+    AwaitingConnectChecker connectChecker = new AwaitingConnectChecker();
+    RtmpPublisher publisher = new DefaultRtmpPublisher(new RtmpConnection(connectChecker, nio)) {
+    };
+    SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(connectChecker, publisher);
+    srsFlvMuxer.setSampleRate(SAMPLE_RATE);
+    srsFlvMuxer.start(server.getUrl("live", "benchmark"));
+    assertTrue(connectChecker.awaitConnection());
+    sendSpsPps(srsFlvMuxer);
+
+    Source source = new Source(sentNs);
+    //warm up, then as fast as the connection accepts
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      source.send(srsFlvMuxer);
+      waitForCache(srsFlvMuxer);
+    }
+    assertTrue(server.awaitVideoTags(WARM_UP_FRAMES + 1, 10000));
+    long bytesBefore = server.getReceivedBytes();
+    long[] allocatedBefore = allocatedBytes(server.getThreadId());
+    long startNs = System.nanoTime();
+    for (int i = 0; i < THROUGHPUT_FRAMES; i++) {
+      source.send(srsFlvMuxer);
+      waitForCache(srsFlvMuxer);
+    }
+    assertTrue(server.awaitVideoTags(WARM_UP_FRAMES + THROUGHPUT_FRAMES + 1, 30000));
+    long elapsedNs = lastReceivedNs[0] - startNs;
+    long allocated = allocatedSince(allocatedBefore, server.getThreadId());
+    long bytes = server.getReceivedBytes() - bytesBefore;
+
+    //paced at frame rate, with a reorder window of one audio frame then without it
+    srsFlvMuxer.setReorderWindow(1024 * 1000 / SAMPLE_RATE);
+    long[] latencies = sendPaced(source, srsFlvMuxer, server, sentNs, receivedNs);
+    srsFlvMuxer.setReorderWindow(0);
+    long[] latenciesNoReorder = sendPaced(source, srsFlvMuxer, server, sentNs, receivedNs);
+    srsFlvMuxer.stop();
+    server.close();
+
+    assertEquals(0, srsFlvMuxer.getDroppedVideoFrames());
+    System.out.println("RTMP loopback " + name + ": "
+        + THROUGHPUT_FRAMES * 1000000000L / elapsedNs + " frames/s, "
+        + bytes * 8 * 1000 / elapsedNs + " Mbps, "
+        + allocated / THROUGHPUT_FRAMES + " bytes allocated/frame, latency "
+        + percentiles(latencies) + " with reorder window, without it "
+        + percentiles(latenciesNoReorder));
+    //frame data is never copied on the way to the socket
+    assertTrue(allocated / THROUGHPUT_FRAMES < P_SIZE);
+  }
+
+  /**
+   * Send LATENCY_FRAMES at frame rate.
+   *
+   * @return sorted latencies from sendVideo to server receipt in ns.
+   */
+  private static long[] sendPaced(Source source, SrsFlvMuxer srsFlvMuxer,
+      RtmpIngestServer server, long[] sentNs, long[] receivedNs) throws InterruptedException {
+    int firstFrame = source.frame;
+    long nextNs = System.nanoTime();
+    for (int i = 0; i < LATENCY_FRAMES; i++) {
+      LockSupport.parkNanos(nextNs - System.nanoTime());
+      source.send(srsFlvMuxer);
+      nextNs += 1000000000L / FPS;
+    }
+    assertTrue(server.awaitVideoTags(source.frame + 1, 10000));
+    long[] latencies = new long[LATENCY_FRAMES];
+    for (int i = 0; i < LATENCY_FRAMES; i++) {
+      int timestamp = (int) ((firstFrame + i) * 1000L / FPS);
+      latencies[i] = receivedNs[timestamp] - sentNs[timestamp];
+    }
+    Arrays.sort(latencies);
+    return latencies;
+  }
+
+  private static String percentiles(long[] sortedNs) {
+    return "p50 " + sortedNs[sortedNs.length / 2] / 1000 + " us, p99 "
+        + sortedNs[sortedNs.length * 99 / 100] / 1000 + " us, max "
+        + sortedNs[sortedNs.length - 1] / 1000 + " us";
+  }
+
+  private static void waitForCache(SrsFlvMuxer srsFlvMuxer) {
+    //keep the cache from dropping, congestion is not measured here
+    while (srsFlvMuxer.getFlvTagCacheSize() > 8) Thread.yield();
+  }
+
+  /**
+   * @return allocated bytes by thread id, every thread of the JVM but the server.
+   */
+  private static long[] allocatedBytes(long serverThreadId) {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long[] ids = threadMXBean.getAllThreadIds();
+    long[] allocated = threadMXBean.getThreadAllocatedBytes(ids);
+    long[] result = new long[ids.length * 2];
+    for (int i = 0; i < ids.length; i++) {
+      result[i * 2] = ids[i] == serverThreadId ? -1 : ids[i];
+      result[i * 2 + 1] = allocated[i];
+    }
+    return result;
+  }
+
+  private static long allocatedSince(long[] before, long serverThreadId) {
+    long[] after = allocatedBytes(serverThreadId);
+    long total = 0;
+    for (int i = 0; i < after.length; i += 2) {
+      if (after[i] == -1 || after[i + 1] == -1) continue;
+      long previous = 0;
+      for (int j = 0; j < before.length; j += 2) {
+        if (before[j] == after[i]) previous = before[j + 1];
+      }
+      total += after[i + 1] - previous;
+    }
+    return total;
+  }
+
+  /**
+   * Codec config buffer with SPS and PPS, as MediaCodec outputs it before the first frame.
+   */
+  private static void sendSpsPps(SrsFlvMuxer srsFlvMuxer) {
+    ByteBuffer config = ByteBuffer.allocate(8 + SPS.length + PPS.length);
+    config.put(START_CODE).put(SPS).put(START_CODE).put(PPS).flip();
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    bufferInfo.size = config.limit();
+    bufferInfo.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+    bufferInfo.presentationTimeUs = 0;
+    srsFlvMuxer.sendVideo(config, bufferInfo);
+  }
+
+  /**
+   * Synthetic 60 fps H264 with a keyframe every 2 seconds and 44.1 kHz AAC, each video frame
+   * preceded by the audio frames up to its pts.
+   */
+  private static class Source {
+
+    private final long[] sentNs;
+    private final ByteBuffer idr = createFrame(IDR_SIZE, 0x65);
+    private final ByteBuffer p = createFrame(P_SIZE, 0x41);
+    private final ByteBuffer audio = ByteBuffer.allocateDirect(AUDIO_SIZE);
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private int frame = 0;
+    private long audioPts = 0;
+
+    Source(long[] sentNs) {
+      this.sentNs = sentNs;
+      while (audio.hasRemaining()) audio.put((byte) 0x22);
+    }
+
+    void send(SrsFlvMuxer srsFlvMuxer) {
+      long videoPts = frame * 1000000L / FPS;
+      while (audioPts <= videoPts) {
+        audio.clear();
+        bufferInfo.size = AUDIO_SIZE;
+        bufferInfo.flags = 0;
+        bufferInfo.presentationTimeUs = audioPts;
+        srsFlvMuxer.sendAudio(audio, bufferInfo);
+        audioPts += 1024 * 1000000L / SAMPLE_RATE;
+      }
+      boolean keyFrame = frame % GOP == 0;
+      ByteBuffer buffer = keyFrame ? idr : p;
+      bufferInfo.size = buffer.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = videoPts;
+      sentNs[(int) (videoPts / 1000)] = System.nanoTime();
+      srsFlvMuxer.sendVideo(buffer, bufferInfo);
+      frame++;
+    }
+
+    private static ByteBuffer createFrame(int size, int nalHeader) {
+      ByteBuffer frame = ByteBuffer.allocateDirect(size);
+      frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put((byte) nalHeader);
+      while (frame.hasRemaining()) frame.put((byte) 0x11);
+      frame.flip();
+      return frame;
+    }
+  }
+
+  static class AwaitingConnectChecker implements ConnectCheckerRtmp {
+
+    private boolean connected = false;
+    private String failure;
+
+    synchronized boolean awaitConnection() throws InterruptedException, IOException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!connected && failure == null && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      if (failure != null) throw new IOException(failure);
+      return connected;
+    }
+
+    @Override
+    public synchronized void onConnectionSuccessRtmp() {
+      connected = true;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void onConnectionFailedRtmp(String reason) {
+      //failures after stop are expected when the server closes
+      if (!connected) failure = reason;
+      notifyAll();
+    }
+
+    @Override
+    public void onNewBitrateRtmp(long bitrate) {
+    }
+
+    @Override
+    public void onDisconnectRtmp() {
+    }
+
+    @Override
+    public void onAuthErrorRtmp() {
+    }
+
+    @Override
+    public void onAuthSuccessRtmp() {
+    }
+  }
+}
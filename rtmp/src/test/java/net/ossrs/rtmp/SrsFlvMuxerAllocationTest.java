@@ -0,0 +1,147 @@
+package net.ossrs.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import com.github.faucamp.simplertmp.RtmpPublisher;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+/**
+ * Feed 10 minutes of 60 fps H264 to the muxer and measure bytes allocated by the encoder thread
+ * to build FLV tags. Tags are consumed by a publisher that only counts them.
+ */
+public class SrsFlvMuxerAllocationTest {
+
+  private static final int FPS = 60;
+  private static final int FRAMES = FPS * 60 * 10;
+  private static final int GOP = FPS * 2;
+  private static final int IDR_SIZE = 120 * 1024;
+  private static final int P_SIZE = 12 * 1024;
+  //warm up allocator size classes before measuring
+  private static final int WARM_UP_FRAMES = GOP * 2;
+
+  @Test
+  public void tenMinutesAt60FpsAllocationCount() throws InterruptedException {
+    CountingPublisher publisher = new CountingPublisher();
+    final boolean[] connected = new boolean[1];
+    SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(new ConnectCheckerRtmp() {
+      @Override
+      public void onConnectionSuccessRtmp() {
+        synchronized (connected) {
+          connected[0] = true;
+          connected.notifyAll();
+        }
+      }
+
+      @Override
+      public void onConnectionFailedRtmp(String reason) {
+      }
+
+      @Override
+      public void onNewBitrateRtmp(long bitrate) {
+      }
+
+      @Override
+      public void onDisconnectRtmp() {
+      }
+
+      @Override
+      public void onAuthErrorRtmp() {
+      }
+
+      @Override
+      public void onAuthSuccessRtmp() {
+      }
+    }, publisher);
+    srsFlvMuxer.setSpsPPs(ByteBuffer.wrap(new byte[] { 0x67, 0x42, (byte) 0xc0, 0x28 }),
+        ByteBuffer.wrap(new byte[] { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 }));
+    srsFlvMuxer.start("rtmp://localhost/live/test");
+    synchronized (connected) {
+      while (!connected[0]) connected.wait();
+    }
+
+    ByteBuffer idr = createFrame(IDR_SIZE, 0x65);
+    ByteBuffer p = createFrame(P_SIZE, 0x41);
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    long before = 0;
+    for (int i = 0; i < WARM_UP_FRAMES + FRAMES; i++) {
+      if (i == WARM_UP_FRAMES) before = allocatedBytes();
+      boolean keyFrame = i % GOP == 0;
+      ByteBuffer frame = keyFrame ? idr : p;
+      bufferInfo.size = frame.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = i * 1000000L / FPS;
+      srsFlvMuxer.sendVideo(frame, bufferInfo);
+      //real time pacing is not needed, only keep the cache from dropping
+      while (srsFlvMuxer.getFlvTagCacheSize() > 8) Thread.yield();
+    }
+    long allocated = allocatedBytes() - before;
+    srsFlvMuxer.stop();
+
+    long perFrame = allocated / FRAMES;
+    System.out.println("SrsFlvMuxer: " + FRAMES + " frames, " + allocated + " bytes allocated, "
+        + perFrame + " bytes/frame, " + (IDR_SIZE / GOP + P_SIZE) + " bytes/frame of video");
+    assertEquals(0, srsFlvMuxer.getDroppedVideoFrames());
+    assertTrue(publisher.videoTags.get() >= FRAMES);
+    //no copy of the frame data, tag buffers and frames come back from their pools
+    assertTrue(perFrame < 8);
+  }
+
+  private static ByteBuffer createFrame(int size, int nalHeader) {
+    ByteBuffer frame = ByteBuffer.allocateDirect(size);
+    frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put((byte) nalHeader);
+    while (frame.hasRemaining()) frame.put((byte) 0x11);
+    frame.flip();
+    return frame;
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  //only the base interface, as custom publishers written before the optional features
+  static class CountingPublisher implements RtmpPublisher {
+
+    final AtomicLong videoTags = new AtomicLong();
+
+    @Override
+    public boolean connect(String url) {
+      return true;
+    }
+
+    @Override
+    public boolean publish(String publishType) {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void publishVideoData(byte[] data, int size, int dts) {
+      videoTags.incrementAndGet();
+    }
+
+    @Override
+    public void publishAudioData(byte[] data, int size, int dts) {
+    }
+
+    @Override
+    public void setVideoResolution(int width, int height) {
+    }
+
+    @Override
+    public void setAuthorization(String user, String password) {
+    }
+
+    @Override
+    public void setSendBufferSize(int bufferSize) {
+    }
+  }
+}
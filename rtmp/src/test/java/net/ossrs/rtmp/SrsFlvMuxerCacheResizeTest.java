@@ -0,0 +1,129 @@
+package net.ossrs.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Resize the tag caches while audio and video producers add tags against
+ * {@link RtmpIngestServer}: a tag added to a cache replaced by the resize must still be sent, in
+ * dts order within its track, and every allocation must return to its allocator.
+ */
+public class SrsFlvMuxerCacheResizeTest {
+
+  private static final int FPS = 60;
+  private static final int GOP = FPS * 2;
+  private static final int VIDEO_FRAMES = FPS * 20;
+  private static final int AUDIO_FRAMES = VIDEO_FRAMES * 44100 / 1024 / FPS;
+  private static final int SAMPLE_RATE = 44100;
+  private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x28 };
+  private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+  @Test
+  public void resizeWhileStreamingKeepsEveryTag() throws Exception {
+    RtmpIngestServer server = new RtmpIngestServer(true);
+    RtmpLoopbackBenchmarkTest.AwaitingConnectChecker connectChecker =
+        new RtmpLoopbackBenchmarkTest.AwaitingConnectChecker();
+    final SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(connectChecker);
+    srsFlvMuxer.setSpsPPs(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    srsFlvMuxer.setSampleRate(SAMPLE_RATE);
+    srsFlvMuxer.setIsStereo(true);
+    srsFlvMuxer.setReorderWindow(0);
+    srsFlvMuxer.start(server.getUrl("live", "resize"));
+    assertTrue(connectChecker.awaitConnection());
+
+    Thread video = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer idr = createFrame(8 * 1024, 0x65);
+        ByteBuffer p = createFrame(1024, 0x41);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        for (int i = 0; i < VIDEO_FRAMES; i++) {
+          boolean keyFrame = i % GOP == 0;
+          ByteBuffer frame = keyFrame ? idr : p;
+          frame.rewind();
+          bufferInfo.size = frame.limit();
+          bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+          bufferInfo.presentationTimeUs = i * 1000000L / FPS;
+          srsFlvMuxer.sendVideo(frame, bufferInfo);
+          waitForCache(srsFlvMuxer);
+        }
+      }
+    }, "video");
+    Thread audio = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        ByteBuffer aac = ByteBuffer.allocateDirect(372);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        for (int i = 0; i < AUDIO_FRAMES; i++) {
+          aac.clear();
+          bufferInfo.size = aac.limit();
+          bufferInfo.flags = 0;
+          bufferInfo.presentationTimeUs = i * 1024 * 1000000L / SAMPLE_RATE;
+          srsFlvMuxer.sendAudio(aac, bufferInfo);
+          waitForCache(srsFlvMuxer);
+        }
+      }
+    }, "audio");
+    video.start();
+    audio.start();
+    int resizes = 0;
+    while (video.isAlive() || audio.isAlive()) {
+      srsFlvMuxer.resizeFlvTagCache(resizes++ % 2 == 0 ? 48 : 64);
+      Thread.sleep(0, 200000);
+    }
+
+    //sequence header plus every frame, first audio frame is replaced by the AAC sequence header
+    assertTrue(server.awaitVideoTags(VIDEO_FRAMES + 1, 10000));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getAudioTags() < AUDIO_FRAMES && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    srsFlvMuxer.stop();
+    server.close();
+    System.out.println("SrsFlvMuxer: " + resizes + " cache resizes while streaming");
+
+    assertEquals(0, srsFlvMuxer.getDroppedVideoFrames());
+    assertEquals(0, srsFlvMuxer.getDroppedAudioFrames());
+    assertEquals(VIDEO_FRAMES + 1, server.getVideoTags());
+    assertEquals(AUDIO_FRAMES, server.getAudioTags());
+    int lastVideoTimestamp = 0;
+    int lastAudioTimestamp = 0;
+    List<RtmpIngestServer.Tag> tags = server.getTags();
+    for (RtmpIngestServer.Tag tag : tags) {
+      if (tag.type == RtmpIngestServer.TAG_VIDEO) {
+        assertTrue(tag.timestamp >= lastVideoTimestamp);
+        lastVideoTimestamp = tag.timestamp;
+      } else if (tag.type == RtmpIngestServer.TAG_AUDIO) {
+        assertTrue(tag.timestamp >= lastAudioTimestamp);
+        lastAudioTimestamp = tag.timestamp;
+      }
+    }
+    //the worker releases the caches when it exits
+    deadline = System.currentTimeMillis() + 5000;
+    while ((srsFlvMuxer.getVideoAllocator().getOutstanding() > 0
+        || srsFlvMuxer.getAudioAllocator().getOutstanding() > 0)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, srsFlvMuxer.getVideoAllocator().getOutstanding());
+    assertEquals(0, srsFlvMuxer.getAudioAllocator().getOutstanding());
+  }
+
+  private static void waitForCache(SrsFlvMuxer srsFlvMuxer) {
+    //keep the caches under the smallest size so nothing is dropped
+    while (srsFlvMuxer.getFlvTagCacheSize() > 16) Thread.yield();
+  }
+
+  private static ByteBuffer createFrame(int size, int nalHeader) {
+    ByteBuffer frame = ByteBuffer.allocateDirect(size);
+    frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put((byte) nalHeader);
+    while (frame.hasRemaining()) frame.put((byte) 0x11);
+    frame.flip();
+    return frame;
+  }
+}
@@ -0,0 +1,104 @@
+package net.ossrs.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Two muxers publishing at the same time must count their own frames, starting or stopping one
+ * must not reset the other.
+ */
+public class SrsFlvMuxerMetricsTest {
+
+  @Test
+  public void countersArePerMuxer() throws InterruptedException {
+    SrsFlvMuxerAllocationTest.CountingPublisher firstPublisher =
+        new SrsFlvMuxerAllocationTest.CountingPublisher();
+    SrsFlvMuxerAllocationTest.CountingPublisher secondPublisher =
+        new SrsFlvMuxerAllocationTest.CountingPublisher();
+    ConnectChecker firstChecker = new ConnectChecker();
+    ConnectChecker secondChecker = new ConnectChecker();
+    SrsFlvMuxer first = startMuxer(firstChecker, firstPublisher);
+    sendFrames(first, firstPublisher, 10);
+
+    //start calls clear, it used to reset the counters of every muxer
+    SrsFlvMuxer second = startMuxer(secondChecker, secondPublisher);
+    sendFrames(second, secondPublisher, 4);
+    assertEquals(firstPublisher.videoTags.get(), first.getSentVideoFrames());
+    assertEquals(secondPublisher.videoTags.get(), second.getSentVideoFrames());
+    assertTrue(first.getSentVideoFrames() > second.getSentVideoFrames());
+
+    second.stop();
+    assertEquals(firstPublisher.videoTags.get(), first.getSentVideoFrames());
+    first.stop();
+  }
+
+  private static SrsFlvMuxer startMuxer(ConnectChecker connectChecker,
+      SrsFlvMuxerAllocationTest.CountingPublisher publisher) throws InterruptedException {
+    SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(connectChecker, publisher);
+    srsFlvMuxer.setSpsPPs(ByteBuffer.wrap(new byte[] { 0x67, 0x42, (byte) 0xc0, 0x28 }),
+        ByteBuffer.wrap(new byte[] { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 }));
+    srsFlvMuxer.start("rtmp://localhost/live/test");
+    connectChecker.awaitConnection();
+    return srsFlvMuxer;
+  }
+
+  private static void sendFrames(SrsFlvMuxer srsFlvMuxer,
+      SrsFlvMuxerAllocationTest.CountingPublisher publisher, int frames)
+      throws InterruptedException {
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    ByteBuffer frame = ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x65, 0x11, 0x11, 0x11 });
+    long sent = srsFlvMuxer.getSentVideoFrames();
+    for (int i = 0; i < frames; i++) {
+      bufferInfo.size = frame.limit();
+      bufferInfo.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+      bufferInfo.presentationTimeUs = i * 16666L;
+      srsFlvMuxer.sendVideo(frame, bufferInfo);
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (srsFlvMuxer.getSentVideoFrames() < sent + frames
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue(srsFlvMuxer.getSentVideoFrames() >= sent + frames);
+    assertEquals(publisher.videoTags.get(), srsFlvMuxer.getSentVideoFrames());
+  }
+
+  private static class ConnectChecker implements ConnectCheckerRtmp {
+
+    private boolean connected = false;
+
+    synchronized void awaitConnection() throws InterruptedException {
+      while (!connected) wait();
+    }
+
+    @Override
+    public synchronized void onConnectionSuccessRtmp() {
+      connected = true;
+      notifyAll();
+    }
+
+    @Override
+    public void onConnectionFailedRtmp(String reason) {
+    }
+
+    @Override
+    public void onNewBitrateRtmp(long bitrate) {
+    }
+
+    @Override
+    public void onDisconnectRtmp() {
+    }
+
+    @Override
+    public void onAuthErrorRtmp() {
+    }
+
+    @Override
+    public void onAuthSuccessRtmp() {
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package net.ossrs.rtmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import com.github.faucamp.simplertmp.ExtendedRtmpPublisher;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import com.pedro.encoder.utils.metrics.MetricsSnapshot;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Audio and video caches are merged by dts: tags cached while the publisher can't write are sent
+ * in dts order whatever the order they arrived, and a lone tag waits for the other track only
+ * inside the reorder window.
+ */
+public class SrsFlvMuxerReorderTest {
+
+  private static final int SAMPLE_RATE = 44100;
+  private static final int AUDIO_FRAME_MS = 1024 * 1000 / SAMPLE_RATE;
+  private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x28 };
+  private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+  @Test
+  public void cachedTagsAreSentInDtsOrder() throws Exception {
+    RecordingPublisher publisher = new RecordingPublisher();
+    publisher.writable = false;
+    SrsFlvMuxer srsFlvMuxer = startMuxer(publisher);
+
+    //video queued before the audio of the same time, both under the cache size
+    int videoFrames = 24;
+    int audioFrames = videoFrames * 1000 / 60 / AUDIO_FRAME_MS + 1;
+    for (int i = 0; i < videoFrames; i++) {
+      sendVideo(srsFlvMuxer, i * 1000 / 60, i == 0);
+    }
+    for (int i = 0; i < audioFrames; i++) {
+      sendAudio(srsFlvMuxer, i * AUDIO_FRAME_MS);
+    }
+    assertEquals(0, publisher.getTags().size());
+    publisher.setWritable(true);
+    //video sequence header, first audio frame is replaced by the AAC sequence header
+    publisher.await(videoFrames + 1 + audioFrames);
+    srsFlvMuxer.stop();
+
+    int lastDts = 0;
+    int lastType = 0;
+    int trackSwitches = 0;
+    for (int[] tag : publisher.getTags()) {
+      assertTrue("dts " + tag[1] + " after " + lastDts, tag[1] >= lastDts);
+      lastDts = tag[1];
+      if (tag[0] != lastType) trackSwitches++;
+      lastType = tag[0];
+    }
+    //interleaved, not a track after the other
+    assertTrue(trackSwitches > audioFrames);
+    assertEquals(0, srsFlvMuxer.getOutOfOrderTags());
+    assertTrue(srsFlvMuxer.getMaxAudioVideoSkew() <= AUDIO_FRAME_MS);
+  }
+
+  @Test
+  public void loneTagWaitsInsideReorderWindow() throws Exception {
+    SrsFlvMuxer srsFlvMuxer = sendLateAudio(AUDIO_FRAME_MS * 4);
+    srsFlvMuxer.stop();
+    assertEquals(0, srsFlvMuxer.getOutOfOrderTags());
+    //without window the video tag goes first and the late audio tag is out of order
+    srsFlvMuxer = sendLateAudio(0);
+    srsFlvMuxer.stop();
+    assertEquals(1, srsFlvMuxer.getOutOfOrderTags());
+  }
+
+  @Test
+  public void audioVideoSkewIsInMetrics() throws Exception {
+    SrsFlvMuxer srsFlvMuxer = sendLateAudio(0);
+    MetricsSnapshot snapshot = MetricsRegistry.getDefault().snapshot(null);
+    srsFlvMuxer.stop();
+    String prefix = MetricNames.RTMP_AV_SKEW_MAX + ".stream";
+    int lastInstance = 0;
+    long maxSkew = -1;
+    for (int i = 0; i < snapshot.getGaugeCount(); i++) {
+      String name = snapshot.getGaugeName(i);
+      if (!name.startsWith(prefix)) continue;
+      int instance = Integer.parseInt(name.substring(prefix.length()));
+      //last muxer created is the one of this test
+      if (instance > lastInstance) {
+        lastInstance = instance;
+        maxSkew = snapshot.getGaugeValue(i);
+      }
+    }
+    assertTrue(srsFlvMuxer.getMaxAudioVideoSkew() > 0);
+    assertEquals(srsFlvMuxer.getMaxAudioVideoSkew(), maxSkew);
+    assertEquals(srsFlvMuxer.getOutOfOrderTags(), snapshot.getCounterValue(
+        MetricNames.forInstance(MetricNames.RTMP_OUT_OF_ORDER, lastInstance)));
+
+    //a stopped muxer is not exported anymore
+    snapshot = MetricsRegistry.getDefault().snapshot(snapshot);
+    String suffix = MetricNames.forInstance("", lastInstance);
+    for (int i = 0; i < snapshot.getGaugeCount(); i++) {
+      assertFalse(snapshot.getGaugeName(i).endsWith(suffix));
+    }
+    for (int i = 0; i < snapshot.getCounterCount(); i++) {
+      assertFalse(snapshot.getCounterName(i).endsWith(suffix));
+    }
+  }
+
+  /**
+   * Video tag at 40 ms queued while audio is at 0 ms, then audio at 23 ms arrives late.
+   *
+   * @return muxer still started.
+   */
+  private static SrsFlvMuxer sendLateAudio(int reorderWindowMs) throws Exception {
+    RecordingPublisher publisher = new RecordingPublisher();
+    SrsFlvMuxer srsFlvMuxer = startMuxer(publisher);
+    srsFlvMuxer.setReorderWindow(reorderWindowMs);
+    //first audio frame is replaced by the AAC sequence header
+    sendAudio(srsFlvMuxer, 0);
+    publisher.await(1);
+    sendVideo(srsFlvMuxer, 40, true);
+    Thread.sleep(AUDIO_FRAME_MS / 2);
+    sendAudio(srsFlvMuxer, AUDIO_FRAME_MS);
+    sendAudio(srsFlvMuxer, 2 * AUDIO_FRAME_MS);
+    //audio sequence header, video sequence header, key frame and 2 audio frames
+    publisher.await(5);
+    return srsFlvMuxer;
+  }
+
+  private static SrsFlvMuxer startMuxer(RecordingPublisher publisher) throws Exception {
+    RtmpLoopbackBenchmarkTest.AwaitingConnectChecker connectChecker =
+        new RtmpLoopbackBenchmarkTest.AwaitingConnectChecker();
+    SrsFlvMuxer srsFlvMuxer = new SrsFlvMuxer(connectChecker, publisher);
+    srsFlvMuxer.setSpsPPs(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    srsFlvMuxer.setSampleRate(SAMPLE_RATE);
+    srsFlvMuxer.setIsStereo(true);
+    srsFlvMuxer.start("rtmp://localhost/live/test");
+    assertTrue(connectChecker.awaitConnection());
+    return srsFlvMuxer;
+  }
+
+  private static void sendVideo(SrsFlvMuxer srsFlvMuxer, int dts, boolean keyFrame) {
+    ByteBuffer frame = ByteBuffer.wrap(
+        new byte[] { 0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), 0x11, 0x11, 0x11 });
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    bufferInfo.size = frame.limit();
+    bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+    bufferInfo.presentationTimeUs = dts * 1000L;
+    srsFlvMuxer.sendVideo(frame, bufferInfo);
+  }
+
+  private static void sendAudio(SrsFlvMuxer srsFlvMuxer, int dts) {
+    ByteBuffer frame = ByteBuffer.allocate(64);
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    bufferInfo.size = frame.limit();
+    bufferInfo.flags = 0;
+    bufferInfo.presentationTimeUs = dts * 1000L;
+    srsFlvMuxer.sendAudio(frame, bufferInfo);
+  }
+
+  /**
+   * Record type and dts of every tag, can refuse writes to let tags queue up.
+   */
+  static class RecordingPublisher implements ExtendedRtmpPublisher {
+
+    private final List<int[]> tags = new ArrayList<>();
+    volatile boolean writable = true;
+    private WritabilityListener writabilityListener;
+
+    synchronized List<int[]> getTags() {
+      return new ArrayList<>(tags);
+    }
+
+    void setWritable(boolean writable) {
+      this.writable = writable;
+      writabilityListener.onWritabilityChanged(writable);
+    }
+
+    synchronized void await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (tags.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      assertTrue(tags.size() + " tags of " + count, tags.size() >= count);
+    }
+
+    private synchronized void record(int type, int dts) {
+      tags.add(new int[] { type, dts });
+      notifyAll();
+    }
+
+    @Override
+    public boolean connect(String url) {
+      return true;
+    }
+
+    @Override
+    public boolean publish(String publishType) {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void publishVideoData(byte[] data, int size, int dts) {
+      record(RtmpIngestServer.TAG_VIDEO, dts);
+    }
+
+    @Override
+    public void publishAudioData(byte[] data, int size, int dts) {
+      record(RtmpIngestServer.TAG_AUDIO, dts);
+    }
+
+    @Override
+    public void publishAggregateData(byte[] data, int size, int dts) {
+    }
+
+    @Override
+    public void setVideoResolution(int width, int height) {
+    }
+
+    @Override
+    public void setHevc(boolean hevc) {
+    }
+
+    @Override
+    public void setAuthorization(String user, String password) {
+    }
+
+    @Override
+    public void setSendBufferSize(int bufferSize) {
+    }
+
+    @Override
+    public void setChunkSize(int chunkSize) {
+    }
+
+    @Override
+    public void setAdaptiveChunkSize(boolean enabled) {
+    }
+
+    @Override
+    public boolean isWritable() {
+      return writable;
+    }
+
+    @Override
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+      this.writabilityListener = writabilityListener;
+    }
+
+    @Override
+    public void setDeliveryListener(DeliveryListener deliveryListener) {
+    }
+  }
+}
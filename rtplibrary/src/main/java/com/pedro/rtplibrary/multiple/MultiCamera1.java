@@ -0,0 +1,283 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+import android.view.SurfaceView;
+import android.view.TextureView;
+import com.pedro.rtplibrary.base.Camera1Base;
+import com.pedro.rtplibrary.view.LightOpenGlView;
+import com.pedro.rtplibrary.view.OpenGlView;
+import java.nio.ByteBuffer;
+
+/**
+ * More documentation see:
+ * {@link com.pedro.rtplibrary.base.Camera1Base}
+ *
+ * Stream the same encoded audio and video to several RTMP and/or RTSP servers.
+ * Add outputs with {@link #addOutput(StreamOutput)}, url of startStream is ignored.
+ *
+ */
+public class MultiCamera1 extends Camera1Base {
+
+  private static final String TAG = "MultiCamera1";
+
+  private final StreamOutputGroup streamOutputGroup = new StreamOutputGroup();
+  private final VideoLayer[] videoLayers = new VideoLayer[StreamOutputGroup.MAX_LAYERS];
+
+  public MultiCamera1(SurfaceView surfaceView) {
+    super(surfaceView);
+  }
+
+  public MultiCamera1(TextureView textureView) {
+    super(textureView);
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+  public MultiCamera1(OpenGlView openGlView) {
+    super(openGlView);
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+  public MultiCamera1(LightOpenGlView lightOpenGlView) {
+    super(lightOpenGlView);
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+  public MultiCamera1(Context context) {
+    super(context);
+  }
+
+  public StreamOutputGroup getStreamOutputGroup() {
+    return streamOutputGroup;
+  }
+
+  /**
+   * Add a simulcast layer encoded from the same OpenGl image with other resolution and bitrate.
+   * Need OpenGl and must be called before startStream. Use the same orientation that prepareVideo.
+   *
+   * @return layer index to use with {@link #addOutput(StreamOutput, int)}.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+  public int addVideoLayer(int width, int height, int bitrate) {
+    if (isStreaming()) {
+      throw new IllegalStateException("Video layers must be added before startStream");
+    }
+    for (int i = 1; i < videoLayers.length; i++) {
+      if (videoLayers[i] == null) {
+        videoLayers[i] = new VideoLayer(i, width, height, bitrate, streamOutputGroup);
+        return i;
+      }
+    }
+    throw new IllegalStateException(
+        "Max video layers reached: " + (StreamOutputGroup.MAX_LAYERS - 1));
+  }
+
+  /**
+   * Remove all layers added with {@link #addVideoLayer(int, int, int)}.
+   */
+  public void removeVideoLayers() {
+    if (isStreaming()) {
+      throw new IllegalStateException("Video layers must be removed after stopStream");
+    }
+    for (int i = 1; i < videoLayers.length; i++) {
+      videoLayers[i] = null;
+    }
+  }
+
+  /**
+   * @return layer added with {@link #addVideoLayer(int, int, int)} or null. 0 is main encoder so
+   * it always return null.
+   */
+  public VideoLayer getVideoLayer(int index) {
+    return videoLayers[index];
+  }
+
+  /**
+   * Add a destination. Can be called while streaming, output will start using current config.
+   */
+  public void addOutput(StreamOutput output) {
+    addOutput(output, 0);
+  }
+
+  /**
+   * @param layer video layer sent to this output, 0 is the main encoder.
+   */
+  public void addOutput(StreamOutput output, int layer) {
+    streamOutputGroup.addOutput(output, layer);
+    if (isStreaming()) forceSyncFrame(layer);
+  }
+
+  /**
+   * Switch video layer of an output, for example to a lower layer on congestion. A keyframe is
+   * requested to the new layer and the switch is done with it.
+   */
+  public void setOutputLayer(StreamOutput output, int layer) {
+    streamOutputGroup.setOutputLayer(output, layer);
+    if (isStreaming()) forceSyncFrame(layer);
+  }
+
+  /**
+   * Remove a destination. Output is stopped if it is streaming.
+   */
+  public void removeOutput(StreamOutput output) {
+    streamOutputGroup.removeOutput(output);
+  }
+
+  /**
+   * Reconnect only this output, other outputs keep streaming.
+   * Call it from the ConnectChecker of the output.
+   *
+   * @return false if output reached max retries.
+   */
+  public boolean reTry(StreamOutput output, long delay, String reason) {
+    boolean result = output.shouldRetry(reason);
+    if (result) {
+      output.reConnect(delay);
+      //new connection need a keyframe to start decoding
+      forceSyncFrame(streamOutputGroup.getOutputLayer(output));
+    }
+    return result;
+  }
+
+  @Override
+  public void setAuthorization(String user, String password) {
+    streamOutputGroup.setAuthorization(user, password);
+  }
+
+  @Override
+  protected void prepareAudioRtp(boolean isStereo, int sampleRate) {
+    streamOutputGroup.setAudioInfo(isStereo, sampleRate);
+  }
+
+  /**
+   * Url is ignored, each output use its own url.
+   */
+  @Override
+  protected void startStreamRtp(String url) {
+    if (videoEncoder.getRotation() == 90 || videoEncoder.getRotation() == 270) {
+      streamOutputGroup.setVideoResolution(videoEncoder.getHeight(), videoEncoder.getWidth());
+    } else {
+      streamOutputGroup.setVideoResolution(videoEncoder.getWidth(), videoEncoder.getHeight());
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      for (VideoLayer videoLayer : videoLayers) {
+        if (videoLayer != null && !videoLayer.start(videoEncoder, getGlInterface())) {
+          Log.e(TAG, "Video layer " + videoLayer.getIndex() + " start failed");
+        }
+      }
+    }
+    streamOutputGroup.start();
+  }
+
+  @Override
+  protected void stopStreamRtp() {
+    streamOutputGroup.stop();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      for (VideoLayer videoLayer : videoLayers) {
+        if (videoLayer != null) videoLayer.stop(getGlInterface());
+      }
+    }
+  }
+
+  @Override
+  public void setReTries(int reTries) {
+    streamOutputGroup.setReTries(reTries);
+  }
+
+  /**
+   * Use {@link #reTry(StreamOutput, long, String)} to reconnect a single output.
+   */
+  @Override
+  public boolean shouldRetry(String reason) {
+    boolean result = false;
+    for (StreamOutput output : streamOutputGroup.getOutputs()) {
+      result |= output.shouldRetry(reason);
+    }
+    return result;
+  }
+
+  @Override
+  protected void reConnect(long delay) {
+    for (StreamOutput output : streamOutputGroup.getOutputs()) {
+      output.reConnect(delay);
+    }
+  }
+
+  @Override
+  public void resizeCache(int newSize) throws RuntimeException {
+    streamOutputGroup.resizeCache(newSize);
+  }
+
+  @Override
+  public int getCacheSize() {
+    return streamOutputGroup.getCacheSize();
+  }
+
+  @Override
+  public long getSentAudioFrames() {
+    return streamOutputGroup.getSentAudioFrames();
+  }
+
+  @Override
+  public long getSentVideoFrames() {
+    return streamOutputGroup.getSentVideoFrames();
+  }
+
+  @Override
+  public long getDroppedAudioFrames() {
+    return streamOutputGroup.getDroppedAudioFrames();
+  }
+
+  @Override
+  public long getDroppedVideoFrames() {
+    return streamOutputGroup.getDroppedVideoFrames();
+  }
+
+  @Override
+  public void resetSentAudioFrames() {
+    streamOutputGroup.resetSentAudioFrames();
+  }
+
+  @Override
+  public void resetSentVideoFrames() {
+    streamOutputGroup.resetSentVideoFrames();
+  }
+
+  @Override
+  public void resetDroppedAudioFrames() {
+    streamOutputGroup.resetDroppedAudioFrames();
+  }
+
+  @Override
+  public void resetDroppedVideoFrames() {
+    streamOutputGroup.resetDroppedVideoFrames();
+  }
+
+  @Override
+  protected void getAacDataRtp(ByteBuffer aacBuffer, MediaCodec.BufferInfo info) {
+    streamOutputGroup.sendAudio(aacBuffer, info);
+  }
+
+  @Override
+  protected void onSpsPpsVpsRtp(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    streamOutputGroup.setVideoInfo(sps, pps, vps);
+  }
+
+  @Override
+  protected void getH264DataRtp(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    streamOutputGroup.sendVideo(h264Buffer, info);
+  }
+
+  private void forceSyncFrame(int layer) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      if (layer == 0) {
+        videoEncoder.forceSyncFrame();
+      } else if (layer > 0 && videoLayers[layer] != null) {
+        videoLayers[layer].forceSyncFrame();
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import net.ossrs.rtmp.ConnectCheckerRtmp;
+import net.ossrs.rtmp.SrsFlvMuxer;
+
+/**
+ * RTMP destination. Use {@link #getSrsFlvMuxer()} to configure drop strategy, cache, hevc, etc.
+ */
+public class RtmpOutput implements StreamOutput {
+
+  private final SrsFlvMuxer srsFlvMuxer;
+  private final String url;
+  private volatile boolean streaming = false;
+
+  public RtmpOutput(String url, ConnectCheckerRtmp connectCheckerRtmp) {
+    this.url = url;
+    srsFlvMuxer = new SrsFlvMuxer(connectCheckerRtmp);
+  }
+
+  public SrsFlvMuxer getSrsFlvMuxer() {
+    return srsFlvMuxer;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  @Override
+  public void setAudioInfo(boolean isStereo, int sampleRate) {
+    srsFlvMuxer.setIsStereo(isStereo);
+    srsFlvMuxer.setSampleRate(sampleRate);
+  }
+
+  @Override
+  public void setVideoResolution(int width, int height) {
+    srsFlvMuxer.setVideoResolution(width, height);
+  }
+
+  @Override
+  public void setVideoInfo(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    srsFlvMuxer.setSpsPpsVps(sps, pps, vps);
+  }
+
+  /**
+   * New sequence header is sent before next keyframe.
+   */
+  @Override
+  public boolean canChangeVideoInfo() {
+    return true;
+  }
+
+  @Override
+  public void start() {
+    streaming = true;
+    srsFlvMuxer.start(url);
+  }
+
+  @Override
+  public void stop() {
+    streaming = false;
+    srsFlvMuxer.stop();
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  @Override
+  public void sendVideo(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    srsFlvMuxer.sendVideo(h264Buffer, info);
+  }
+
+  @Override
+  public void sendAudio(ByteBuffer aacBuffer, MediaCodec.BufferInfo info) {
+    srsFlvMuxer.sendAudio(aacBuffer, info);
+  }
+
+  @Override
+  public void setAuthorization(String user, String password) {
+    srsFlvMuxer.setAuthorization(user, password);
+  }
+
+  /**
+   * Must be called before start. 4096 by default.
+   */
+  public void setChunkSize(int chunkSize) {
+    srsFlvMuxer.setChunkSize(chunkSize);
+  }
+
+  /**
+   * Change chunk size while streaming according to video frame sizes. Disabled by default.
+   */
+  public void setAdaptiveChunkSize(boolean enabled) {
+    srsFlvMuxer.setAdaptiveChunkSize(enabled);
+  }
+
+  @Override
+  public void setReTries(int reTries) {
+    srsFlvMuxer.setReTries(reTries);
+  }
+
+  @Override
+  public boolean shouldRetry(String reason) {
+    return srsFlvMuxer.shouldRetry(reason);
+  }
+
+  @Override
+  public void reConnect(long delay) {
+    srsFlvMuxer.reConnect(delay);
+  }
+
+  @Override
+  public void resizeCache(int newSize) throws RuntimeException {
+    srsFlvMuxer.resizeFlvTagCache(newSize);
+  }
+
+  @Override
+  public int getCacheSize() {
+    return srsFlvMuxer.getFlvTagCacheSize();
+  }
+
+  @Override
+  public long getSentAudioFrames() {
+    return srsFlvMuxer.getSentAudioFrames();
+  }
+
+  @Override
+  public long getSentVideoFrames() {
+    return srsFlvMuxer.getSentVideoFrames();
+  }
+
+  @Override
+  public long getDroppedAudioFrames() {
+    return srsFlvMuxer.getDroppedAudioFrames();
+  }
+
+  @Override
+  public long getDroppedVideoFrames() {
+    return srsFlvMuxer.getDroppedVideoFrames();
+  }
+
+  @Override
+  public void resetSentAudioFrames() {
+    srsFlvMuxer.resetSentAudioFrames();
+  }
+
+  @Override
+  public void resetSentVideoFrames() {
+    srsFlvMuxer.resetSentVideoFrames();
+  }
+
+  @Override
+  public void resetDroppedAudioFrames() {
+    srsFlvMuxer.resetDroppedAudioFrames();
+  }
+
+  @Override
+  public void resetDroppedVideoFrames() {
+    srsFlvMuxer.resetDroppedVideoFrames();
+  }
+}
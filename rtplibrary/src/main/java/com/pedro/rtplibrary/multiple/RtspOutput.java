@@ -0,0 +1,156 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.media.MediaCodec;
+import com.pedro.rtsp.rtsp.RtspClient;
+import com.pedro.rtsp.utils.ConnectCheckerRtsp;
+import java.nio.ByteBuffer;
+
+/**
+ * RTSP destination. Use {@link #getRtspClient()} to configure protocol, retransmission, etc.
+ * RTSP need sps/pps before ANNOUNCE so connection start when video info is received.
+ */
+public class RtspOutput implements StreamOutput {
+
+  private final RtspClient rtspClient;
+  private final String url;
+  private volatile boolean streaming = false;
+  private boolean hasVideoInfo = false;
+
+  public RtspOutput(String url, ConnectCheckerRtsp connectCheckerRtsp) {
+    this.url = url;
+    rtspClient = new RtspClient(connectCheckerRtsp);
+  }
+
+  public RtspClient getRtspClient() {
+    return rtspClient;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  @Override
+  public void setAudioInfo(boolean isStereo, int sampleRate) {
+    rtspClient.setIsStereo(isStereo);
+    rtspClient.setSampleRate(sampleRate);
+  }
+
+  @Override
+  public void setVideoResolution(int width, int height) {
+  }
+
+  @Override
+  public synchronized void setVideoInfo(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    rtspClient.setSPSandPPS(sps, pps, vps);
+    boolean connect = streaming && !hasVideoInfo;
+    hasVideoInfo = true;
+    if (connect) rtspClient.connect();
+  }
+
+  /**
+   * Video info is sent in SDP on connect.
+   */
+  @Override
+  public boolean canChangeVideoInfo() {
+    return false;
+  }
+
+  @Override
+  public synchronized void start() {
+    streaming = true;
+    rtspClient.setUrl(url);
+    if (hasVideoInfo) rtspClient.connect();
+  }
+
+  @Override
+  public synchronized void stop() {
+    streaming = false;
+    hasVideoInfo = false;
+    rtspClient.disconnect();
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  @Override
+  public void sendVideo(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    rtspClient.sendVideo(h264Buffer, info);
+  }
+
+  @Override
+  public void sendAudio(ByteBuffer aacBuffer, MediaCodec.BufferInfo info) {
+    rtspClient.sendAudio(aacBuffer, info);
+  }
+
+  @Override
+  public void setAuthorization(String user, String password) {
+    rtspClient.setAuthorization(user, password);
+  }
+
+  @Override
+  public void setReTries(int reTries) {
+    rtspClient.setReTries(reTries);
+  }
+
+  @Override
+  public boolean shouldRetry(String reason) {
+    return rtspClient.shouldRetry(reason);
+  }
+
+  @Override
+  public void reConnect(long delay) {
+    rtspClient.reConnect(delay);
+  }
+
+  @Override
+  public void resizeCache(int newSize) throws RuntimeException {
+    rtspClient.resizeCache(newSize);
+  }
+
+  @Override
+  public int getCacheSize() {
+    return rtspClient.getCacheSize();
+  }
+
+  @Override
+  public long getSentAudioFrames() {
+    return rtspClient.getSentAudioFrames();
+  }
+
+  @Override
+  public long getSentVideoFrames() {
+    return rtspClient.getSentVideoFrames();
+  }
+
+  @Override
+  public long getDroppedAudioFrames() {
+    return rtspClient.getDroppedAudioFrames();
+  }
+
+  @Override
+  public long getDroppedVideoFrames() {
+    return rtspClient.getDroppedVideoFrames();
+  }
+
+  @Override
+  public void resetSentAudioFrames() {
+    rtspClient.resetSentAudioFrames();
+  }
+
+  @Override
+  public void resetSentVideoFrames() {
+    rtspClient.resetSentVideoFrames();
+  }
+
+  @Override
+  public void resetDroppedAudioFrames() {
+    rtspClient.resetDroppedAudioFrames();
+  }
+
+  @Override
+  public void resetDroppedVideoFrames() {
+    rtspClient.resetDroppedVideoFrames();
+  }
+}
@@ -0,0 +1,64 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+
+/**
+ * One destination of a {@link StreamOutputGroup}. Each output has its own url, queue, drop
+ * policy, sender thread and reconnection so a slow endpoint never blocks the others.
+ * sendVideo and sendAudio must only copy to the output queue, never block on network.
+ */
+public interface StreamOutput {
+
+  void setAudioInfo(boolean isStereo, int sampleRate);
+
+  void setVideoResolution(int width, int height);
+
+  /**
+   * @param vps null for H264.
+   */
+  void setVideoInfo(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps);
+
+  /**
+   * @return true if {@link #setVideoInfo} can be called while streaming to switch video layer.
+   */
+  boolean canChangeVideoInfo();
+
+  void start();
+
+  void stop();
+
+  boolean isStreaming();
+
+  void sendVideo(ByteBuffer h264Buffer, MediaCodec.BufferInfo info);
+
+  void sendAudio(ByteBuffer aacBuffer, MediaCodec.BufferInfo info);
+
+  void setAuthorization(String user, String password);
+
+  void setReTries(int reTries);
+
+  boolean shouldRetry(String reason);
+
+  void reConnect(long delay);
+
+  void resizeCache(int newSize) throws RuntimeException;
+
+  int getCacheSize();
+
+  long getSentAudioFrames();
+
+  long getSentVideoFrames();
+
+  long getDroppedAudioFrames();
+
+  long getDroppedVideoFrames();
+
+  void resetSentAudioFrames();
+
+  void resetSentVideoFrames();
+
+  void resetDroppedAudioFrames();
+
+  void resetDroppedVideoFrames();
+}
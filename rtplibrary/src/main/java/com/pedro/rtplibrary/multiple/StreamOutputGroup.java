@@ -0,0 +1,355 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fan out one encoded stream to N {@link StreamOutput}. Encoder buffers are shared and only
+ * position and limit are reset for each output, each output then copy the frame to its own queue
+ * (one copy per destination) so a slow or reconnecting output never stall the encoder or the
+ * other outputs.
+ *
+ * Outputs are stored in a copy on write array so send path iterate without lock or allocation.
+ * Stream config (audio, resolution, sps/pps/vps) is kept to configure outputs added while
+ * streaming.
+ *
+ * Video can come from several encoders (simulcast layers, see {@link VideoLayer}), each output
+ * receive video of one layer and audio is shared. Layer 0 is the main encoder.
+ */
+public class StreamOutputGroup {
+
+  public static final int MAX_LAYERS = 3;
+
+  private final Object lock = new Object();
+  private volatile OutputEntry[] entries = new OutputEntry[0];
+  private volatile boolean streaming = false;
+  private boolean isStereo = true;
+  private int sampleRate = 32000;
+  private final int[] widths = new int[MAX_LAYERS];
+  private final int[] heights = new int[MAX_LAYERS];
+  private final ByteBuffer[] spsList = new ByteBuffer[MAX_LAYERS];
+  private final ByteBuffer[] ppsList = new ByteBuffer[MAX_LAYERS];
+  private final ByteBuffer[] vpsList = new ByteBuffer[MAX_LAYERS];
+
+  private static class OutputEntry {
+
+    private final StreamOutput output;
+    //layer currently sent and layer to switch on its next keyframe
+    private volatile int layer;
+    private volatile int pendingLayer;
+
+    private OutputEntry(StreamOutput output, int layer) {
+      this.output = output;
+      this.layer = layer;
+      this.pendingLayer = layer;
+    }
+  }
+
+  public void addOutput(StreamOutput output) {
+    addOutput(output, 0);
+  }
+
+  /**
+   * @param layer index of the video layer sent to this output.
+   */
+  public void addOutput(StreamOutput output, int layer) {
+    checkLayer(layer);
+    synchronized (lock) {
+      if (indexOf(output) != -1) return;
+      OutputEntry entry = new OutputEntry(output, layer);
+      configure(entry);
+      OutputEntry[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+      newEntries[entries.length] = entry;
+      entries = newEntries;
+      if (streaming) output.start();
+    }
+  }
+
+  /**
+   * Remove the output and stop it if it is streaming.
+   */
+  public void removeOutput(StreamOutput output) {
+    synchronized (lock) {
+      int index = indexOf(output);
+      if (index == -1) return;
+      OutputEntry[] newEntries = new OutputEntry[entries.length - 1];
+      System.arraycopy(entries, 0, newEntries, 0, index);
+      System.arraycopy(entries, index + 1, newEntries, index, entries.length - index - 1);
+      entries = newEntries;
+      if (output.isStreaming()) output.stop();
+    }
+  }
+
+  /**
+   * Change the video layer sent to the output, for example to a lower layer on congestion.
+   * While streaming the switch is done on the next keyframe of the new layer so the decoder never
+   * receive frames that reference other layer.
+   *
+   * @throws IllegalStateException if output is streaming and can't change video info on fly.
+   */
+  public void setOutputLayer(StreamOutput output, int layer) {
+    checkLayer(layer);
+    synchronized (lock) {
+      int index = indexOf(output);
+      if (index == -1) throw new IllegalArgumentException("Output not added");
+      OutputEntry entry = entries[index];
+      if (!output.isStreaming()) {
+        entry.layer = layer;
+        entry.pendingLayer = layer;
+        configure(entry);
+      } else if (entry.layer != layer && !output.canChangeVideoInfo()) {
+        throw new IllegalStateException("Output can't change video layer while streaming");
+      } else {
+        entry.pendingLayer = layer;
+      }
+    }
+  }
+
+  /**
+   * @return layer sent to the output or -1 if the output was not added.
+   */
+  public int getOutputLayer(StreamOutput output) {
+    int index = indexOf(output);
+    return index == -1 ? -1 : entries[index].layer;
+  }
+
+  public StreamOutput[] getOutputs() {
+    OutputEntry[] entries = this.entries;
+    StreamOutput[] outputs = new StreamOutput[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      outputs[i] = entries[i].output;
+    }
+    return outputs;
+  }
+
+  public int getOutputCount() {
+    return entries.length;
+  }
+
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  public void setAudioInfo(boolean isStereo, int sampleRate) {
+    synchronized (lock) {
+      this.isStereo = isStereo;
+      this.sampleRate = sampleRate;
+      for (OutputEntry entry : entries) {
+        entry.output.setAudioInfo(isStereo, sampleRate);
+      }
+    }
+  }
+
+  public void setVideoResolution(int width, int height) {
+    setVideoResolution(0, width, height);
+  }
+
+  public void setVideoResolution(int layer, int width, int height) {
+    synchronized (lock) {
+      widths[layer] = width;
+      heights[layer] = height;
+      for (OutputEntry entry : entries) {
+        if (entry.layer == layer) entry.output.setVideoResolution(width, height);
+      }
+    }
+  }
+
+  public void setVideoInfo(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    setVideoInfo(0, sps, pps, vps);
+  }
+
+  public void setVideoInfo(int layer, ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    synchronized (lock) {
+      spsList[layer] = sps;
+      ppsList[layer] = pps;
+      vpsList[layer] = vps;
+      for (OutputEntry entry : entries) {
+        if (entry.layer == layer) setVideoInfo(entry.output, layer);
+      }
+    }
+  }
+
+  public void start() {
+    synchronized (lock) {
+      streaming = true;
+      for (OutputEntry entry : entries) {
+        entry.output.start();
+      }
+    }
+  }
+
+  public void stop() {
+    synchronized (lock) {
+      streaming = false;
+      for (OutputEntry entry : entries) {
+        entry.output.stop();
+        entry.layer = entry.pendingLayer;
+      }
+      Arrays.fill(spsList, null);
+      Arrays.fill(ppsList, null);
+      Arrays.fill(vpsList, null);
+    }
+  }
+
+  public void sendVideo(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    sendVideo(0, h264Buffer, info);
+  }
+
+  public void sendVideo(int layer, ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    OutputEntry[] entries = this.entries;
+    int position = h264Buffer.position();
+    int limit = h264Buffer.limit();
+    boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    for (OutputEntry entry : entries) {
+      if (entry.layer != layer
+          && (entry.pendingLayer != layer || !keyFrame || !switchLayer(entry, layer))) {
+        continue;
+      }
+      //outputs may move buffer position while reading it
+      h264Buffer.limit(limit);
+      h264Buffer.position(position);
+      entry.output.sendVideo(h264Buffer, info);
+    }
+  }
+
+  public void sendAudio(ByteBuffer aacBuffer, MediaCodec.BufferInfo info) {
+    OutputEntry[] entries = this.entries;
+    int position = aacBuffer.position();
+    int limit = aacBuffer.limit();
+    for (OutputEntry entry : entries) {
+      aacBuffer.limit(limit);
+      aacBuffer.position(position);
+      entry.output.sendAudio(aacBuffer, info);
+    }
+  }
+
+  public void setAuthorization(String user, String password) {
+    for (OutputEntry entry : entries) {
+      entry.output.setAuthorization(user, password);
+    }
+  }
+
+  public void setReTries(int reTries) {
+    for (OutputEntry entry : entries) {
+      entry.output.setReTries(reTries);
+    }
+  }
+
+  public void resizeCache(int newSize) throws RuntimeException {
+    for (OutputEntry entry : entries) {
+      entry.output.resizeCache(newSize);
+    }
+  }
+
+  /**
+   * @return max cache size of all outputs.
+   */
+  public int getCacheSize() {
+    int size = 0;
+    for (OutputEntry entry : entries) {
+      size = Math.max(size, entry.output.getCacheSize());
+    }
+    return size;
+  }
+
+  public long getSentAudioFrames() {
+    long frames = 0;
+    for (OutputEntry entry : entries) {
+      frames += entry.output.getSentAudioFrames();
+    }
+    return frames;
+  }
+
+  public long getSentVideoFrames() {
+    long frames = 0;
+    for (OutputEntry entry : entries) {
+      frames += entry.output.getSentVideoFrames();
+    }
+    return frames;
+  }
+
+  public long getDroppedAudioFrames() {
+    long frames = 0;
+    for (OutputEntry entry : entries) {
+      frames += entry.output.getDroppedAudioFrames();
+    }
+    return frames;
+  }
+
+  public long getDroppedVideoFrames() {
+    long frames = 0;
+    for (OutputEntry entry : entries) {
+      frames += entry.output.getDroppedVideoFrames();
+    }
+    return frames;
+  }
+
+  public void resetSentAudioFrames() {
+    for (OutputEntry entry : entries) {
+      entry.output.resetSentAudioFrames();
+    }
+  }
+
+  public void resetSentVideoFrames() {
+    for (OutputEntry entry : entries) {
+      entry.output.resetSentVideoFrames();
+    }
+  }
+
+  public void resetDroppedAudioFrames() {
+    for (OutputEntry entry : entries) {
+      entry.output.resetDroppedAudioFrames();
+    }
+  }
+
+  public void resetDroppedVideoFrames() {
+    for (OutputEntry entry : entries) {
+      entry.output.resetDroppedVideoFrames();
+    }
+  }
+
+  /**
+   * Called from encoder thread of the new layer on its keyframe.
+   *
+   * @return false if the layer has no video info yet.
+   */
+  private boolean switchLayer(OutputEntry entry, int layer) {
+    synchronized (lock) {
+      if (spsList[layer] == null || ppsList[layer] == null) return false;
+      entry.output.setVideoResolution(widths[layer], heights[layer]);
+      setVideoInfo(entry.output, layer);
+      entry.layer = layer;
+      return true;
+    }
+  }
+
+  private void configure(OutputEntry entry) {
+    int layer = entry.layer;
+    entry.output.setAudioInfo(isStereo, sampleRate);
+    if (widths[layer] > 0 && heights[layer] > 0) {
+      entry.output.setVideoResolution(widths[layer], heights[layer]);
+    }
+    if (spsList[layer] != null && ppsList[layer] != null) setVideoInfo(entry.output, layer);
+  }
+
+  private void setVideoInfo(StreamOutput output, int layer) {
+    ByteBuffer vps = vpsList[layer];
+    output.setVideoInfo(spsList[layer].duplicate(), ppsList[layer].duplicate(),
+        vps != null ? vps.duplicate() : null);
+  }
+
+  private int indexOf(StreamOutput output) {
+    OutputEntry[] entries = this.entries;
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].output == output) return i;
+    }
+    return -1;
+  }
+
+  private void checkLayer(int layer) {
+    if (layer < 0 || layer >= MAX_LAYERS) {
+      throw new IllegalArgumentException("Layer must be between 0 and " + (MAX_LAYERS - 1));
+    }
+  }
+}
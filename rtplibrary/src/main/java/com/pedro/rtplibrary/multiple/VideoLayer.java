@@ -0,0 +1,127 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+import androidx.annotation.RequiresApi;
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import com.pedro.encoder.video.FormatVideoEncoder;
+import com.pedro.encoder.video.GetVideoData;
+import com.pedro.encoder.video.VideoEncoder;
+import com.pedro.rtplibrary.view.GlInterface;
+import java.nio.ByteBuffer;
+
+/**
+ * Extra video encoder (simulcast layer) fed by the same OpenGl image that the main encoder with
+ * other resolution and bitrate. Output is sent to the outputs of the {@link StreamOutputGroup}
+ * assigned to this layer. Layer 0 is always the main encoder.
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class VideoLayer implements GetVideoData {
+
+  private final int index;
+  private final int width, height;
+  private final StreamOutputGroup streamOutputGroup;
+  private final VideoEncoder videoEncoder;
+  private final Gauge bitrateGauge;
+  private int bitrate;
+  private Surface surface;
+
+  VideoLayer(int index, int width, int height, int bitrate, StreamOutputGroup streamOutputGroup) {
+    this.index = index;
+    this.width = width;
+    this.height = height;
+    this.bitrate = bitrate;
+    this.streamOutputGroup = streamOutputGroup;
+    videoEncoder = new VideoEncoder(this, index);
+    bitrateGauge = MetricsRegistry.getDefault()
+        .gauge(MetricNames.forLayer(MetricNames.VIDEO_BITRATE, index));
+    bitrateGauge.set(bitrate);
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getBitrate() {
+    return bitrate;
+  }
+
+  public boolean isRunning() {
+    return videoEncoder.isRunning();
+  }
+
+  /**
+   * Start encoding with the same codec, fps, rotation and time base that the main encoder.
+   */
+  boolean start(VideoEncoder mainEncoder, GlInterface glInterface) {
+    videoEncoder.setType(mainEncoder.getType());
+    int rotation = mainEncoder.getRotation();
+    if (!videoEncoder.prepareVideoEncoder(width, height, mainEncoder.getFps(),
+        bitrate, rotation, false, mainEncoder.getIFrameInterval(),
+        FormatVideoEncoder.SURFACE)) {
+      return false;
+    }
+    videoEncoder.start(mainEncoder);
+    surface = videoEncoder.getInputSurface();
+    if (rotation == 90 || rotation == 270) {
+      streamOutputGroup.setVideoResolution(index, height, width);
+      glInterface.addLayerSurface(surface, height, width);
+    } else {
+      streamOutputGroup.setVideoResolution(index, width, height);
+      glInterface.addLayerSurface(surface, width, height);
+    }
+    return true;
+  }
+
+  void stop(GlInterface glInterface) {
+    if (surface != null) {
+      glInterface.removeLayerSurface(surface);
+      surface = null;
+    }
+    videoEncoder.stop();
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+  public void setVideoBitrateOnFly(int bitrate) {
+    this.bitrate = bitrate;
+    bitrateGauge.set(bitrate);
+    videoEncoder.setVideoBitrateOnFly(bitrate);
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+  public void forceSyncFrame() {
+    videoEncoder.forceSyncFrame();
+  }
+
+  @Override
+  public void onSpsPps(ByteBuffer sps, ByteBuffer pps) {
+    streamOutputGroup.setVideoInfo(index, sps, pps, null);
+  }
+
+  @Override
+  public void onSpsPpsVps(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    streamOutputGroup.setVideoInfo(index, sps, pps, vps);
+  }
+
+  @Override
+  public void getVideoData(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    streamOutputGroup.sendVideo(index, h264Buffer, info);
+  }
+
+  @Override
+  public void onVideoFormat(MediaFormat mediaFormat) {
+    //only main encoder is recorded
+  }
+}
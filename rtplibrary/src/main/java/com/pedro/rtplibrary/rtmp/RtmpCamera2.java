@@ -12,6 +12,8 @@ import com.pedro.rtplibrary.base.Camera2Base;
 
 import com.pedro.rtplibrary.view.LightOpenGlView;
 import com.pedro.rtplibrary.view.OpenGlView;
+import com.pedro.encoder.utils.CodecUtil;
+import com.pedro.rtsp.rtsp.VideoCodec;
 import net.ossrs.rtmp.ConnectCheckerRtmp;
 import net.ossrs.rtmp.SrsFlvMuxer;
 
@@ -116,6 +118,15 @@ public class RtmpCamera2 extends Camera2Base {
     srsFlvMuxer.resetDroppedVideoFrames();
   }
 
+  /**
+   * H265 is sent using Enhanced RTMP (FourCC hvc1), server must support it.
+   * Must be called before prepareVideo.
+   */
+  public void setVideoCodec(VideoCodec videoCodec) {
+    videoEncoder.setType(videoCodec == VideoCodec.H265 ? CodecUtil.H265_MIME : CodecUtil.H264_MIME);
+    srsFlvMuxer.setHevc(videoCodec == VideoCodec.H265);
+  }
+
   @Override
   public void setAuthorization(String user, String password) {
     srsFlvMuxer.setAuthorization(user, password);
@@ -125,6 +136,29 @@ public class RtmpCamera2 extends Camera2Base {
     srsFlvMuxer.setSendBufferSize(bufferSize);
   }
 
+  /**
+   * Must be called before startStream. 4096 by default.
+   */
+  public void setChunkSize(int chunkSize) {
+    srsFlvMuxer.setChunkSize(chunkSize);
+  }
+
+  /**
+   * Change chunk size while streaming according to video frame sizes. Disabled by default.
+   */
+  public void setAdaptiveChunkSize(boolean enabled) {
+    srsFlvMuxer.setAdaptiveChunkSize(enabled);
+  }
+
+  /**
+   * Send tags ready at the same time as RTMP aggregate messages. Disabled by default.
+   * Fewer messages and writes but more bytes per tag than compressed chunk headers, see
+   * {@link SrsFlvMuxer#setAggregateMessages(boolean)}.
+   */
+  public void setAggregateMessages(boolean enabled) {
+    srsFlvMuxer.setAggregateMessages(enabled);
+  }
+
   /**
    * Some Livestream hosts use Akamai auth that requires RTMP packets to be sent with increasing timestamp order regardless of packet type.
    * Necessary with Servers like Dacast.
@@ -178,7 +212,7 @@ public class RtmpCamera2 extends Camera2Base {
 
   @Override
   protected void onSpsPpsVpsRtp(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
-    srsFlvMuxer.setSpsPPs(sps, pps);
+    srsFlvMuxer.setSpsPpsVps(sps, pps, vps);
   }
 
   @Override
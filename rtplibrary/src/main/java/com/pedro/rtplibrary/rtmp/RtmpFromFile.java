@@ -11,6 +11,8 @@ import com.pedro.rtplibrary.base.FromFileBase;
 
 import com.pedro.rtplibrary.view.LightOpenGlView;
 import com.pedro.rtplibrary.view.OpenGlView;
+import com.pedro.encoder.utils.CodecUtil;
+import com.pedro.rtsp.rtsp.VideoCodec;
 import net.ossrs.rtmp.ConnectCheckerRtmp;
 import net.ossrs.rtmp.SrsFlvMuxer;
 
@@ -110,11 +112,34 @@ public class RtmpFromFile extends FromFileBase {
     srsFlvMuxer.resetDroppedVideoFrames();
   }
 
+  /**
+   * H265 is sent using Enhanced RTMP (FourCC hvc1), server must support it.
+   * Must be called before prepareVideo.
+   */
+  public void setVideoCodec(VideoCodec videoCodec) {
+    videoEncoder.setType(videoCodec == VideoCodec.H265 ? CodecUtil.H265_MIME : CodecUtil.H264_MIME);
+    srsFlvMuxer.setHevc(videoCodec == VideoCodec.H265);
+  }
+
   @Override
   public void setAuthorization(String user, String password) {
     srsFlvMuxer.setAuthorization(user, password);
   }
 
+  /**
+   * Must be called before startStream. 4096 by default.
+   */
+  public void setChunkSize(int chunkSize) {
+    srsFlvMuxer.setChunkSize(chunkSize);
+  }
+
+  /**
+   * Change chunk size while streaming according to video frame sizes. Disabled by default.
+   */
+  public void setAdaptiveChunkSize(boolean enabled) {
+    srsFlvMuxer.setAdaptiveChunkSize(enabled);
+  }
+
   /**
    * Some Livestream hosts use Akamai auth that requires RTMP packets to be sent with increasing timestamp order regardless of packet type.
    * Necessary with Servers like Dacast.
@@ -163,7 +188,7 @@ public class RtmpFromFile extends FromFileBase {
 
   @Override
   protected void onSpsPpsVpsRtp(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
-    srsFlvMuxer.setSpsPPs(sps, pps);
+    srsFlvMuxer.setSpsPpsVps(sps, pps, vps);
   }
 
   @Override
@@ -76,6 +76,13 @@ public class RtmpOnlyAudio extends OnlyAudioBase {
     srsFlvMuxer.setAuthorization(user, password);
   }
 
+  /**
+   * Must be called before startStream. 4096 by default.
+   */
+  public void setChunkSize(int chunkSize) {
+    srsFlvMuxer.setChunkSize(chunkSize);
+  }
+
   /**
    * Some Livestream hosts use Akamai auth that requires RTMP packets to be sent with increasing timestamp order regardless of packet type.
    * Necessary with Servers like Dacast.
@@ -14,6 +14,7 @@ import com.pedro.rtsp.rtsp.Protocol;
 import com.pedro.rtsp.rtsp.RtspClient;
 import com.pedro.rtsp.rtsp.VideoCodec;
 import com.pedro.rtsp.utils.ConnectCheckerRtsp;
+import com.pedro.rtsp.utils.LossBasedBitrateController;
 import java.nio.ByteBuffer;
 
 /**
@@ -64,6 +65,25 @@ public class RtspCamera1 extends Camera1Base {
     rtspClient.setProtocol(protocol);
   }
 
+  /**
+   * Adapt video bitrate to loss and RTT reported by server with RTCP receiver reports. Call it
+   * after prepareVideo and before start stream, current video bitrate is used as start bitrate.
+   *
+   * @param minBitrate min video bitrate in bits per second.
+   * @param maxBitrate max video bitrate in bits per second.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+  public void setRtcpBitrateControl(int minBitrate, int maxBitrate) {
+    rtspClient.setBitrateController(
+        new LossBasedBitrateController(getBitrate(), minBitrate, maxBitrate,
+            new LossBasedBitrateController.Listener() {
+              @Override
+              public void onBitrateAdapted(int bitrate) {
+                setVideoBitrateOnFly(bitrate);
+              }
+            }));
+  }
+
   @Override
   public void resizeCache(int newSize) throws RuntimeException {
     rtspClient.resizeCache(newSize);
@@ -1,5 +1,9 @@
 package com.pedro.rtplibrary.util;
 
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+
 /**
  * Created by pedro on 09/07/19.
  */
@@ -8,6 +12,7 @@ public class FpsListener {
   private int fpsCont = 0;
   private long ts = System.currentTimeMillis();
   private Callback callback;
+  private final Gauge fpsGauge = MetricsRegistry.getDefault().gauge(MetricNames.VIDEO_FPS);
 
   public interface Callback {
     void onFps(int fps);
@@ -20,6 +25,7 @@ public class FpsListener {
   public void calculateFps() {
     fpsCont++;
     if (System.currentTimeMillis() - ts >= 1000) {
+      fpsGauge.set(fpsCont);
       if (callback != null) callback.onFps(fpsCont);
       fpsCont = 0;
       ts = System.currentTimeMillis();
@@ -42,6 +42,21 @@ public interface GlInterface {
    */
   void removeMediaCodecSurface();
 
+  /**
+   * Add other surface from MediaCodec rendered with its own size. Used to encode the same image in
+   * several resolutions (simulcast layers). Layers are rendered at the same time that the surface
+   * set with {@link #addMediaCodecSurface(Surface)}.
+   * @param surface surface created from MediaCodec.
+   * @param width layer encoder width in px, already swapped if the stream is rotated.
+   * @param height layer encoder height in px, already swapped if the stream is rotated.
+   */
+  void addLayerSurface(Surface surface, int width, int height);
+
+  /**
+   * Remove surface added with {@link #addLayerSurface(Surface, int, int)}.
+   */
+  void removeLayerSurface(Surface surface);
+
   /**
    * Capture an Image from Opengl.
    *
@@ -0,0 +1,44 @@
+package com.pedro.rtplibrary.view;
+
+import android.os.Build;
+import androidx.annotation.RequiresApi;
+import android.view.Surface;
+import com.pedro.encoder.input.gl.SurfaceManager;
+
+/**
+ * Extra MediaCodec surface rendered by the GL thread with its own size (simulcast layer).
+ */
+@RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
+class LayerSurface {
+
+  private final Surface surface;
+  private final SurfaceManager surfaceManager;
+  private final int width, height;
+
+  LayerSurface(Surface surface, SurfaceManager sharedContext, int width, int height) {
+    this.surface = surface;
+    this.surfaceManager = new SurfaceManager(surface, sharedContext);
+    this.width = width;
+    this.height = height;
+  }
+
+  Surface getSurface() {
+    return surface;
+  }
+
+  SurfaceManager getSurfaceManager() {
+    return surfaceManager;
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  void release() {
+    surfaceManager.release();
+  }
+}
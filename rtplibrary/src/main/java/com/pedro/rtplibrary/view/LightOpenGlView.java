@@ -106,6 +106,14 @@ public class LightOpenGlView extends OpenGlViewBase {
                   streamRotation, false, isStreamVerticalFlip, isStreamHorizontalFlip);
             }
             surfaceManagerEncoder.swapBuffer();
+            for (int i = 0; i < layerSurfaces.size(); i++) {
+              LayerSurface layer = layerSurfaces.get(i);
+              layer.getSurfaceManager().makeCurrent();
+              simpleCameraRender.drawFrame(muteVideo ? 0 : layer.getWidth(),
+                  muteVideo ? 0 : layer.getHeight(), false, aspectRatioMode, streamRotation,
+                  false, isStreamVerticalFlip, isStreamHorizontalFlip);
+              layer.getSurfaceManager().swapBuffer();
+            }
           }
         }
       }
@@ -10,6 +10,8 @@ import com.pedro.encoder.input.gl.render.ManagerRender;
 import com.pedro.encoder.input.gl.render.filters.BaseFilterRender;
 import com.pedro.encoder.input.video.FpsLimiter;
 import com.pedro.encoder.utils.gl.GlUtil;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
@@ -30,6 +32,7 @@ public class OffScreenGlThread
 
   private SurfaceManager surfaceManager = null;
   private SurfaceManager surfaceManagerEncoder = null;
+  private final List<LayerSurface> layerSurfaces = new ArrayList<>();
 
   private ManagerRender textureManager = null;
 
@@ -118,6 +121,25 @@ public class OffScreenGlThread
     }
   }
 
+  @Override
+  public void addLayerSurface(Surface surface, int width, int height) {
+    synchronized (sync) {
+      layerSurfaces.add(new LayerSurface(surface, surfaceManager, width, height));
+    }
+  }
+
+  @Override
+  public void removeLayerSurface(Surface surface) {
+    synchronized (sync) {
+      for (int i = 0; i < layerSurfaces.size(); i++) {
+        if (layerSurfaces.get(i).getSurface() == surface) {
+          layerSurfaces.remove(i).release();
+          return;
+        }
+      }
+    }
+  }
+
   @Override
   public void takePhoto(TakePhotoCallback takePhotoCallback) {
     this.takePhotoCallback = takePhotoCallback;
@@ -232,6 +254,14 @@ public class OffScreenGlThread
                 takePhotoCallback = null;
               }
               surfaceManagerEncoder.swapBuffer();
+              for (int i = 0; i < layerSurfaces.size(); i++) {
+                LayerSurface layer = layerSurfaces.get(i);
+                layer.getSurfaceManager().makeCurrent();
+                textureManager.drawScreen(muteVideo ? 0 : layer.getWidth(),
+                    muteVideo ? 0 : layer.getHeight(), false, 0, streamRotation, false,
+                    isStreamVerticalFlip, isStreamHorizontalFlip);
+                layer.getSurfaceManager().swapBuffer();
+              }
             }
           }
           if (!filterQueue.isEmpty()) {
@@ -148,6 +148,14 @@ public class OpenGlView extends OpenGlViewBase {
                     streamRotation, false, isStreamVerticalFlip, isStreamHorizontalFlip);
               }
               surfaceManagerEncoder.swapBuffer();
+              for (int i = 0; i < layerSurfaces.size(); i++) {
+                LayerSurface layer = layerSurfaces.get(i);
+                layer.getSurfaceManager().makeCurrent();
+                managerRender.drawScreen(muteVideo ? 0 : layer.getWidth(),
+                    muteVideo ? 0 : layer.getHeight(), false, aspectRatioMode, streamRotation,
+                    false, isStreamVerticalFlip, isStreamHorizontalFlip);
+                layer.getSurfaceManager().swapBuffer();
+              }
             }
           }
           if (!filterQueue.isEmpty()) {
@@ -11,6 +11,8 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import com.pedro.encoder.input.gl.SurfaceManager;
 import com.pedro.encoder.input.video.FpsLimiter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
@@ -33,6 +35,7 @@ public abstract class OpenGlViewBase extends SurfaceView
 
   protected SurfaceManager surfaceManager = null;
   protected SurfaceManager surfaceManagerEncoder = null;
+  protected final List<LayerSurface> layerSurfaces = new ArrayList<>();
 
   protected FpsLimiter fpsLimiter = new FpsLimiter();
   protected final Semaphore semaphore = new Semaphore(0);
@@ -128,6 +131,25 @@ public abstract class OpenGlViewBase extends SurfaceView
     }
   }
 
+  @Override
+  public void addLayerSurface(Surface surface, int width, int height) {
+    synchronized (sync) {
+      layerSurfaces.add(new LayerSurface(surface, surfaceManager, width, height));
+    }
+  }
+
+  @Override
+  public void removeLayerSurface(Surface surface) {
+    synchronized (sync) {
+      for (int i = 0; i < layerSurfaces.size(); i++) {
+        if (layerSurfaces.get(i).getSurface() == surface) {
+          layerSurfaces.remove(i).release();
+          return;
+        }
+      }
+    }
+  }
+
   @Override
   public void setEncoderSize(int width, int height) {
     this.encoderWidth = width;
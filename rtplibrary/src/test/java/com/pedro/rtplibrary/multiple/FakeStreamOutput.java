@@ -0,0 +1,207 @@
+package com.pedro.rtplibrary.multiple;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output that records its config and the bytes of each frame. Frames are read moving buffer
+ * position and limit like a real output copying to its queue.
+ */
+class FakeStreamOutput implements StreamOutput {
+
+  private final boolean canChangeVideoInfo;
+  private final List<byte[]> videoFrames = new ArrayList<>();
+  private final List<byte[]> audioFrames = new ArrayList<>();
+  private boolean streaming;
+  private int startCount;
+  private int stopCount;
+  private boolean isStereo;
+  private int sampleRate;
+  private int width;
+  private int height;
+  private byte[] sps;
+  private byte[] pps;
+  private byte[] vps;
+  private int videoInfoCount;
+
+  FakeStreamOutput() {
+    this(true);
+  }
+
+  FakeStreamOutput(boolean canChangeVideoInfo) {
+    this.canChangeVideoInfo = canChangeVideoInfo;
+  }
+
+  @Override
+  public synchronized void setAudioInfo(boolean isStereo, int sampleRate) {
+    this.isStereo = isStereo;
+    this.sampleRate = sampleRate;
+  }
+
+  @Override
+  public synchronized void setVideoResolution(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  @Override
+  public synchronized void setVideoInfo(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
+    this.sps = read(sps);
+    this.pps = read(pps);
+    this.vps = vps != null ? read(vps) : null;
+    videoInfoCount++;
+  }
+
+  @Override
+  public boolean canChangeVideoInfo() {
+    return canChangeVideoInfo;
+  }
+
+  @Override
+  public synchronized void start() {
+    streaming = true;
+    startCount++;
+  }
+
+  @Override
+  public synchronized void stop() {
+    streaming = false;
+    stopCount++;
+  }
+
+  @Override
+  public synchronized boolean isStreaming() {
+    return streaming;
+  }
+
+  @Override
+  public synchronized void sendVideo(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    videoFrames.add(read(h264Buffer));
+    //leave the buffer as a careless output would
+    h264Buffer.limit(0);
+  }
+
+  @Override
+  public synchronized void sendAudio(ByteBuffer aacBuffer, MediaCodec.BufferInfo info) {
+    audioFrames.add(read(aacBuffer));
+    aacBuffer.limit(0);
+  }
+
+  @Override
+  public void setAuthorization(String user, String password) {
+  }
+
+  @Override
+  public void setReTries(int reTries) {
+  }
+
+  @Override
+  public boolean shouldRetry(String reason) {
+    return false;
+  }
+
+  @Override
+  public void reConnect(long delay) {
+  }
+
+  @Override
+  public void resizeCache(int newSize) throws RuntimeException {
+  }
+
+  @Override
+  public int getCacheSize() {
+    return 0;
+  }
+
+  @Override
+  public synchronized long getSentAudioFrames() {
+    return audioFrames.size();
+  }
+
+  @Override
+  public synchronized long getSentVideoFrames() {
+    return videoFrames.size();
+  }
+
+  @Override
+  public long getDroppedAudioFrames() {
+    return 0;
+  }
+
+  @Override
+  public long getDroppedVideoFrames() {
+    return 0;
+  }
+
+  @Override
+  public void resetSentAudioFrames() {
+  }
+
+  @Override
+  public void resetSentVideoFrames() {
+  }
+
+  @Override
+  public void resetDroppedAudioFrames() {
+  }
+
+  @Override
+  public void resetDroppedVideoFrames() {
+  }
+
+  synchronized List<byte[]> getVideoFrames() {
+    return new ArrayList<>(videoFrames);
+  }
+
+  synchronized List<byte[]> getAudioFrames() {
+    return new ArrayList<>(audioFrames);
+  }
+
+  synchronized int getStartCount() {
+    return startCount;
+  }
+
+  synchronized int getStopCount() {
+    return stopCount;
+  }
+
+  synchronized boolean isStereo() {
+    return isStereo;
+  }
+
+  synchronized int getSampleRate() {
+    return sampleRate;
+  }
+
+  synchronized int getWidth() {
+    return width;
+  }
+
+  synchronized int getHeight() {
+    return height;
+  }
+
+  synchronized byte[] getSps() {
+    return sps;
+  }
+
+  synchronized byte[] getPps() {
+    return pps;
+  }
+
+  synchronized byte[] getVps() {
+    return vps;
+  }
+
+  synchronized int getVideoInfoCount() {
+    return videoInfoCount;
+  }
+
+  private static byte[] read(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
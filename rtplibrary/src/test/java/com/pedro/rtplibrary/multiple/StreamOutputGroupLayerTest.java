@@ -0,0 +1,159 @@
+package com.pedro.rtplibrary.multiple;
+
+import static com.pedro.rtplibrary.multiple.StreamOutputGroupTest.frame;
+import static com.pedro.rtplibrary.multiple.StreamOutputGroupTest.info;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Video layer switch of an output, as done by {@link VideoLayer} encoders sending to the group:
+ * switched on the first keyframe of the new layer that has sps/pps, frames of the old layer
+ * dropped after it, and a switch pending when the stream stops applied on the next start.
+ */
+public class StreamOutputGroupLayerTest {
+
+  private static final byte[] SPS_0 = { 0x67, 0x64, 0x00, 0x28 };
+  private static final byte[] PPS_0 = { 0x68, (byte) 0xee, 0x3c, (byte) 0x80 };
+  private static final byte[] SPS_1 = { 0x67, 0x42, 0x00, 0x1e };
+  private static final byte[] PPS_1 = { 0x68, (byte) 0xce, 0x3c, 0x00 };
+
+  @Test
+  public void switchIsDeferredUntilLayerHasVideoInfo() {
+    StreamOutputGroup group = startedGroup();
+    FakeStreamOutput output = new FakeStreamOutput();
+    group.addOutput(output);
+
+    group.setOutputLayer(output, 1);
+    //layer 1 encoder gives a keyframe before its sps/pps
+    group.sendVideo(1, frame(100), info(true));
+    group.sendVideo(0, frame(0), info(false));
+
+    assertEquals(0, group.getOutputLayer(output));
+    assertFrames(output, 0);
+    assertArrayEquals(SPS_0, output.getSps());
+    assertEquals(1280, output.getWidth());
+
+    group.setVideoResolution(1, 640, 360);
+    group.setVideoInfo(1, ByteBuffer.wrap(SPS_1), ByteBuffer.wrap(PPS_1), null);
+    //not sent to outputs still on layer 0
+    assertArrayEquals(SPS_0, output.getSps());
+    assertEquals(1280, output.getWidth());
+    //not a keyframe, can't switch on it
+    group.sendVideo(1, frame(101), info(false));
+    assertEquals(0, group.getOutputLayer(output));
+
+    group.sendVideo(1, frame(102), info(true));
+    assertEquals(1, group.getOutputLayer(output));
+    assertArrayEquals(SPS_1, output.getSps());
+    assertArrayEquals(PPS_1, output.getPps());
+    assertEquals(640, output.getWidth());
+    assertEquals(360, output.getHeight());
+    assertFrames(output, 0, 102);
+  }
+
+  @Test
+  public void oldLayerFramesAreDroppedAfterSwitch() {
+    StreamOutputGroup group = startedGroup();
+    group.setVideoResolution(1, 640, 360);
+    group.setVideoInfo(1, ByteBuffer.wrap(SPS_1), ByteBuffer.wrap(PPS_1), null);
+    FakeStreamOutput switched = new FakeStreamOutput();
+    FakeStreamOutput other = new FakeStreamOutput();
+    group.addOutput(switched);
+    group.addOutput(other);
+
+    group.setOutputLayer(switched, 1);
+    group.sendVideo(0, frame(0), info(false));
+    group.sendVideo(1, frame(100), info(true));
+    //both encoders keep sending after the switch
+    group.sendVideo(0, frame(1), info(false));
+    group.sendVideo(1, frame(101), info(false));
+    group.sendVideo(0, frame(2), info(true));
+    group.sendVideo(1, frame(102), info(false));
+
+    assertFrames(switched, 0, 100, 101, 102);
+    assertFrames(other, 0, 1, 2);
+    assertEquals(0, group.getOutputLayer(other));
+    assertArrayEquals(SPS_0, other.getSps());
+
+    //switch back to layer 0 on its keyframe
+    group.setOutputLayer(switched, 0);
+    group.sendVideo(1, frame(103), info(false));
+    group.sendVideo(0, frame(3), info(true));
+    group.sendVideo(1, frame(104), info(true));
+    assertFrames(switched, 0, 100, 101, 102, 103, 3);
+    assertArrayEquals(SPS_0, switched.getSps());
+    assertEquals(1280, switched.getWidth());
+  }
+
+  @Test
+  public void stopCommitsPendingLayer() {
+    StreamOutputGroup group = startedGroup();
+    FakeStreamOutput output = new FakeStreamOutput();
+    group.addOutput(output);
+
+    group.setOutputLayer(output, 2);
+    group.stop();
+    assertEquals(2, group.getOutputLayer(output));
+    assertEquals(1, output.getStopCount());
+
+    //encoders give sps/pps again on the next start, only layer 2 reach the output
+    group.start();
+    int videoInfoCount = output.getVideoInfoCount();
+    group.setVideoInfo(0, ByteBuffer.wrap(SPS_0), ByteBuffer.wrap(PPS_0), null);
+    assertEquals(videoInfoCount, output.getVideoInfoCount());
+    group.setVideoInfo(2, ByteBuffer.wrap(SPS_1), ByteBuffer.wrap(PPS_1), null);
+    assertArrayEquals(SPS_1, output.getSps());
+    group.sendVideo(0, frame(0), info(true));
+    group.sendVideo(2, frame(200), info(true));
+    assertFrames(output, 200);
+  }
+
+  @Test
+  public void layerChangeOnStoppedOrUnsupportedOutput() {
+    StreamOutputGroup group = startedGroup();
+    group.setVideoResolution(1, 640, 360);
+    group.setVideoInfo(1, ByteBuffer.wrap(SPS_1), ByteBuffer.wrap(PPS_1), null);
+    FakeStreamOutput fixed = new FakeStreamOutput(false);
+    group.addOutput(fixed);
+
+    try {
+      group.setOutputLayer(fixed, 1);
+      fail("Layer changed on output that can't change video info");
+    } catch (IllegalStateException expected) {
+      assertEquals(0, group.getOutputLayer(fixed));
+    }
+    //same layer is not a change
+    group.setOutputLayer(fixed, 0);
+
+    //not streaming, applied and configured now
+    fixed.stop();
+    group.setOutputLayer(fixed, 1);
+    assertEquals(1, group.getOutputLayer(fixed));
+    assertArrayEquals(SPS_1, fixed.getSps());
+    assertEquals(640, fixed.getWidth());
+  }
+
+  /**
+   * Streaming group with 1280x720 layer 0 video info.
+   */
+  private static StreamOutputGroup startedGroup() {
+    StreamOutputGroup group = new StreamOutputGroup();
+    group.setVideoResolution(0, 1280, 720);
+    group.setVideoInfo(0, ByteBuffer.wrap(SPS_0), ByteBuffer.wrap(PPS_0), null);
+    group.start();
+    return group;
+  }
+
+  private static void assertFrames(FakeStreamOutput output, int... indexes) {
+    List<byte[]> frames = output.getVideoFrames();
+    assertEquals(indexes.length, frames.size());
+    for (int i = 0; i < indexes.length; i++) {
+      assertArrayEquals(frame(indexes[i]).array(), frames.get(i));
+    }
+  }
+}
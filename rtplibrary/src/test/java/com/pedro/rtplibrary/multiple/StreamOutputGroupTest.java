@@ -0,0 +1,171 @@
+package com.pedro.rtplibrary.multiple;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Fan out of frames and stream config: outputs added while streaming get the stored config, every
+ * output reads the whole frame whatever the previous one did with the buffer, and outputs removed
+ * while the encoder is sending are stopped and receive nothing after the removal.
+ */
+public class StreamOutputGroupTest {
+
+  private static final byte[] SPS = { 0x67, 0x42, 0x00, 0x1f };
+  private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+  @Test
+  public void outputAddedWhileStreamingIsConfigured() {
+    StreamOutputGroup group = new StreamOutputGroup();
+    FakeStreamOutput first = new FakeStreamOutput();
+    group.addOutput(first);
+    group.setAudioInfo(false, 44100);
+    group.setVideoResolution(1280, 720);
+    group.setVideoInfo(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS), null);
+    group.start();
+    group.sendVideo(frame(0), info(true));
+
+    FakeStreamOutput late = new FakeStreamOutput();
+    group.addOutput(late);
+
+    assertEquals(1, late.getStartCount());
+    assertFalse(late.isStereo());
+    assertEquals(44100, late.getSampleRate());
+    assertEquals(1280, late.getWidth());
+    assertEquals(720, late.getHeight());
+    //first output already read its copy of the stored sps/pps
+    assertArrayEquals(SPS, late.getSps());
+    assertArrayEquals(PPS, late.getPps());
+    assertNull(late.getVps());
+    assertEquals(0, late.getVideoFrames().size());
+
+    group.sendVideo(frame(1), info(false));
+    assertEquals(1, late.getVideoFrames().size());
+    assertArrayEquals(frame(1).array(), late.getVideoFrames().get(0));
+    assertEquals(2, first.getVideoFrames().size());
+  }
+
+  @Test
+  public void outputAddedBeforeVideoInfoIsNotConfiguredWithEmptyInfo() {
+    StreamOutputGroup group = new StreamOutputGroup();
+    FakeStreamOutput output = new FakeStreamOutput();
+    group.addOutput(output);
+
+    assertEquals(0, output.getVideoInfoCount());
+    assertEquals(0, output.getWidth());
+    assertEquals(0, output.getStartCount());
+  }
+
+  @Test
+  public void eachOutputReadsWholeFrame() {
+    StreamOutputGroup group = new StreamOutputGroup();
+    FakeStreamOutput[] outputs = {
+        new FakeStreamOutput(), new FakeStreamOutput(), new FakeStreamOutput()
+    };
+    for (FakeStreamOutput output : outputs) group.addOutput(output);
+    group.start();
+
+    //frame in the middle of a bigger encoder buffer
+    ByteBuffer buffer = ByteBuffer.allocate(32);
+    byte[] payload = frame(7).array();
+    buffer.position(8);
+    buffer.put(payload);
+    buffer.limit(8 + payload.length);
+    buffer.position(8);
+    group.sendVideo(buffer, info(true));
+
+    ByteBuffer audio = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+    audio.position(1);
+    group.sendAudio(audio, info(false));
+
+    for (FakeStreamOutput output : outputs) {
+      List<byte[]> frames = output.getVideoFrames();
+      assertEquals(1, frames.size());
+      assertArrayEquals(payload, frames.get(0));
+      assertArrayEquals(new byte[] { 2, 3, 4, 5 }, output.getAudioFrames().get(0));
+    }
+  }
+
+  @Test
+  public void outputRemovedWhileStreamingStopsReceiving() throws Exception {
+    final StreamOutputGroup group = new StreamOutputGroup();
+    FakeStreamOutput kept = new FakeStreamOutput();
+    FakeStreamOutput removed = new FakeStreamOutput();
+    group.addOutput(kept);
+    group.addOutput(removed);
+    group.start();
+
+    final AtomicInteger sent = new AtomicInteger();
+    final AtomicInteger stopAt = new AtomicInteger(Integer.MAX_VALUE);
+    Thread encoder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < stopAt.get(); i++) {
+          group.sendVideo(frame(i), info(i % 30 == 0));
+          sent.incrementAndGet();
+        }
+      }
+    });
+    encoder.start();
+    waitSent(sent, 100);
+
+    group.removeOutput(removed);
+    //a send that read the outputs before the removal may still deliver one frame
+    int removedFrames = removed.getVideoFrames().size() + 1;
+    waitSent(sent, sent.get() + 100);
+    stopAt.set(0);
+    encoder.join(5000);
+    assertFalse(encoder.isAlive());
+
+    assertEquals(1, removed.getStopCount());
+    assertFalse(removed.isStreaming());
+    assertTrue(kept.isStreaming());
+    assertEquals(1, group.getOutputCount());
+    assertTrue(removed.getVideoFrames().size() <= removedFrames);
+    //whole frames in order to both outputs
+    List<byte[]> keptFrames = kept.getVideoFrames();
+    assertEquals(sent.get(), keptFrames.size());
+    for (int i = 0; i < keptFrames.size(); i++) {
+      assertArrayEquals(frame(i).array(), keptFrames.get(i));
+    }
+    List<byte[]> removedList = removed.getVideoFrames();
+    for (int i = 0; i < removedList.size(); i++) {
+      assertArrayEquals(frame(i).array(), removedList.get(i));
+    }
+
+    //removing again or after stop does nothing
+    group.removeOutput(removed);
+    group.stop();
+    assertEquals(1, removed.getStopCount());
+    assertEquals(1, kept.getStopCount());
+  }
+
+  static ByteBuffer frame(int index) {
+    ByteBuffer buffer = ByteBuffer.allocate(12);
+    buffer.putInt(1).put((byte) 0x65).putInt(index).put((byte) 0).put((byte) 1).put((byte) 2);
+    buffer.flip();
+    return buffer;
+  }
+
+  static MediaCodec.BufferInfo info(boolean keyFrame) {
+    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    info.set(0, 12, 0, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    return info;
+  }
+
+  private static void waitSent(AtomicInteger sent, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sent.get() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertTrue(sent.get() >= count);
+  }
+}
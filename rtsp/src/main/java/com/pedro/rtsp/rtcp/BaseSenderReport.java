@@ -1,6 +1,7 @@
 package com.pedro.rtsp.rtcp;
 
 import android.util.Log;
+import com.pedro.rtsp.rtsp.InterleavedReader;
 import com.pedro.rtsp.rtsp.Protocol;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import java.io.IOException;
@@ -15,7 +16,7 @@ public abstract class BaseSenderReport {
 
   protected static final String TAG = "BaseSenderReport";
   protected static final int PACKET_LENGTH = 28;
-  private static final int MTU = 1500;
+  protected static final int MTU = 1500;
   private final long interval = 3000;
 
   private final byte[] videoBuffer = new byte[MTU];
@@ -27,6 +28,7 @@ public abstract class BaseSenderReport {
   private int videoOctetCount;
   private int audioPacketCount;
   private int audioOctetCount;
+  protected RtcpReceiver rtcpReceiver;
 
   BaseSenderReport() {
     /*							     Version(2)  Padding(0)					 					*/
@@ -64,6 +66,20 @@ public abstract class BaseSenderReport {
 
   public abstract void setDataStream(OutputStream outputStream, String host);
 
+  /**
+   * Packets read after {@link #startReceiving(InterleavedReader)} are parsed with this receiver.
+   */
+  public void setRtcpReceiver(RtcpReceiver rtcpReceiver) {
+    this.rtcpReceiver = rtcpReceiver;
+  }
+
+  /**
+   * Start reading RTCP packets sent by server if a receiver was set. Stopped on close.
+   *
+   * @param interleavedReader reader of the RTSP socket, only used with TCP protocol.
+   */
+  public abstract void startReceiving(InterleavedReader interleavedReader);
+
   public void update(RtpFrame rtpFrame) {
     if (rtpFrame.getChannelIdentifier() == (byte) 2) {
       updateVideo(rtpFrame);
@@ -0,0 +1,121 @@
+package com.pedro.rtsp.rtcp;
+
+/**
+ * Parse RTCP packets sent by the server. Receiver report blocks (from RR or SR) are notified with
+ * loss and round trip time and generic NACK (RFC 4585) with lost sequence numbers.
+ */
+public class RtcpReceiver {
+
+  public interface Listener {
+
+    /**
+     * @param fractionLost fraction of packets lost since previous report, from 0 to 1.
+     * @param jitter interarrival jitter in timestamp units.
+     * @param rtt round trip time in ms or -1 if unknown.
+     */
+    void onReceiverReport(boolean isVideo, float fractionLost, long jitter, long rtt);
+
+    /**
+     * @param sequenceNumber first lost packet.
+     * @param lostBitmask bit i set if sequenceNumber + i + 1 is lost too.
+     */
+    void onNack(boolean isVideo, int sequenceNumber, int lostBitmask);
+  }
+
+  private static final int PT_SR = 200;
+  private static final int PT_RR = 201;
+  private static final int PT_RTPFB = 205;
+  private static final int FMT_NACK = 1;
+  private static final int REPORT_BLOCK_LENGTH = 24;
+  //discard rtt bigger than this, probably a wrong LSR
+  private static final long MAX_RTT = 60000;
+
+  private final Listener listener;
+  private volatile long receivedReports = 0;
+  private volatile long receivedNacks = 0;
+
+  public RtcpReceiver(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Parse a compound RTCP packet.
+   *
+   * @param isVideo true if received on video RTCP port or channel.
+   */
+  public void onRtcpPacket(byte[] buffer, int offset, int length, boolean isVideo) {
+    while (length >= 4) {
+      int version = (buffer[offset] & 0xC0) >> 6;
+      if (version != 2) return;
+      int count = buffer[offset] & 0x1F;
+      int type = buffer[offset + 1] & 0xFF;
+      int packetLength = (((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF)) * 4 + 4;
+      if (packetLength > length) return;
+      if (type == PT_RR) {
+        parseReportBlocks(buffer, offset + 8, count, offset + packetLength, isVideo);
+      } else if (type == PT_SR) {
+        parseReportBlocks(buffer, offset + 28, count, offset + packetLength, isVideo);
+      } else if (type == PT_RTPFB && count == FMT_NACK) {
+        parseNack(buffer, offset + 12, offset + packetLength, isVideo);
+      }
+      offset += packetLength;
+      length -= packetLength;
+    }
+  }
+
+  public long getReceivedReports() {
+    return receivedReports;
+  }
+
+  public long getReceivedNacks() {
+    return receivedNacks;
+  }
+
+  public void resetReceivedReports() {
+    receivedReports = 0;
+  }
+
+  public void resetReceivedNacks() {
+    receivedNacks = 0;
+  }
+
+  private void parseReportBlocks(byte[] buffer, int offset, int count, int end, boolean isVideo) {
+    for (int i = 0; i < count && offset + REPORT_BLOCK_LENGTH <= end; i++) {
+      float fractionLost = (buffer[offset + 4] & 0xFF) / 256f;
+      long jitter = getLong(buffer, offset + 12);
+      long lsr = getLong(buffer, offset + 16);
+      long dlsr = getLong(buffer, offset + 20);
+      receivedReports++;
+      listener.onReceiverReport(isVideo, fractionLost, jitter, calculateRtt(lsr, dlsr));
+      offset += REPORT_BLOCK_LENGTH;
+    }
+  }
+
+  private void parseNack(byte[] buffer, int offset, int end, boolean isVideo) {
+    for (; offset + 4 <= end; offset += 4) {
+      int sequenceNumber = ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+      int lostBitmask = ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+      receivedNacks++;
+      listener.onNack(isVideo, sequenceNumber, lostBitmask);
+    }
+  }
+
+  /**
+   * LSR is the middle 32 bits of the NTP timestamp of our last SR, written by BaseSenderReport
+   * using System.nanoTime. DLSR is in 1/65536 seconds.
+   */
+  private long calculateRtt(long lsr, long dlsr) {
+    if (lsr == 0) return -1;
+    long now = System.nanoTime();
+    long hb = now / 1000000000;
+    long lb = ((now - hb * 1000000000) * 4294967296L) / 1000000000;
+    long middle = ((hb & 0xFFFF) << 16) | (lb >>> 16);
+    long rtt = ((middle - lsr - dlsr) & 0xFFFFFFFFL) * 1000 / 65536;
+    return rtt > MAX_RTT ? -1 : rtt;
+  }
+
+  private long getLong(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xFFL) << 24) | ((buffer[offset + 1] & 0xFFL) << 16) | (
+        (buffer[offset + 2] & 0xFFL) << 8) | (buffer[offset + 3] & 0xFFL);
+  }
+}
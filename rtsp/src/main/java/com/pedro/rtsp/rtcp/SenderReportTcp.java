@@ -1,6 +1,8 @@
 package com.pedro.rtsp.rtcp;
 
 import android.util.Log;
+import com.pedro.rtsp.rtp.sockets.RtpSocketTcp;
+import com.pedro.rtsp.rtsp.InterleavedReader;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -13,6 +15,9 @@ public class SenderReportTcp extends BaseSenderReport {
 
   private OutputStream outputStream;
   private byte tcpHeader[];
+  private RtpSocketTcp rtpSocketTcp;
+  private Thread receiveThread;
+  private InterleavedReader interleavedReader;
 
   public SenderReportTcp() {
     super();
@@ -24,6 +29,39 @@ public class SenderReportTcp extends BaseSenderReport {
     this.outputStream = outputStream;
   }
 
+  /**
+   * Send reports through the RTP socket to keep them ordered with coalesced RTP packets.
+   */
+  public void setRtpSocket(RtpSocketTcp rtpSocketTcp) {
+    this.rtpSocketTcp = rtpSocketTcp;
+  }
+
+  @Override
+  public void startReceiving(final InterleavedReader interleavedReader) {
+    if (rtcpReceiver == null) return;
+    final RtcpReceiver receiver = rtcpReceiver;
+    this.interleavedReader = interleavedReader;
+    receiveThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[MTU];
+        while (!Thread.interrupted()) {
+          try {
+            int length = interleavedReader.readFrame(buffer);
+            if (length == -1) continue;
+            int channel = interleavedReader.getChannel();
+            //RTCP use odd channels, video RTP channel is 2
+            if (channel % 2 == 1) receiver.onRtcpPacket(buffer, 0, length, channel == 3);
+          } catch (IOException e) {
+            //socket closed
+            break;
+          }
+        }
+      }
+    });
+    receiveThread.start();
+  }
+
   @Override
   public void sendReport(byte[] buffer, RtpFrame rtpFrame, String type, int packetCount,
       int octetCount) throws IOException {
@@ -32,11 +70,23 @@ public class SenderReportTcp extends BaseSenderReport {
 
   @Override
   public void close() {
-
+    if (receiveThread != null) {
+      receiveThread.interrupt();
+      receiveThread = null;
+    }
+    if (interleavedReader != null) {
+      interleavedReader.close();
+      interleavedReader = null;
+    }
   }
 
   private void sendReportTCP(byte[] buffer, byte channelIdentifier, String type, int packet,
       int octet) throws IOException {
+    if (rtpSocketTcp != null) {
+      rtpSocketTcp.sendReport((byte) (channelIdentifier + 1), buffer, PACKET_LENGTH);
+      Log.i(TAG, "wrote report: " + type + ", packets: " + packet + ", octet: " + octet);
+      return;
+    }
     synchronized (outputStream) {
       tcpHeader[1] = (byte) (channelIdentifier + 1);
       outputStream.write(tcpHeader);
@@ -1,6 +1,7 @@
 package com.pedro.rtsp.rtcp;
 
 import android.util.Log;
+import com.pedro.rtsp.rtsp.InterleavedReader;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -40,6 +41,13 @@ public class SenderReportUdp extends BaseSenderReport {
     }
   }
 
+  @Override
+  public void startReceiving(InterleavedReader interleavedReader) {
+    if (rtcpReceiver == null) return;
+    startReceiveThread(multicastSocketVideo, true);
+    startReceiveThread(multicastSocketAudio, false);
+  }
+
   @Override
   public void sendReport(byte[] buffer, RtpFrame rtpFrame, String type, int packetCount,
       int octetCount) throws IOException {
@@ -52,6 +60,28 @@ public class SenderReportUdp extends BaseSenderReport {
     multicastSocketAudio.close();
   }
 
+  private void startReceiveThread(final MulticastSocket multicastSocket, final boolean isVideo) {
+    final RtcpReceiver receiver = rtcpReceiver;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[MTU];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!multicastSocket.isClosed()) {
+          try {
+            packet.setLength(buffer.length);
+            multicastSocket.receive(packet);
+            receiver.onRtcpPacket(buffer, 0, packet.getLength(), isVideo);
+          } catch (IOException e) {
+            //socket closed
+            break;
+          }
+        }
+      }
+    });
+    thread.start();
+  }
+
   private void sendReportUDP(byte[] buffer, int port, String type, int packet, int octet)
       throws IOException {
     datagramPacket.setData(buffer);
@@ -24,7 +24,8 @@ public class AacPacket extends BasePacket {
   public void createAndSendPacket(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
     int length = bufferInfo.size - byteBuffer.position();
     if (length > 0) {
-      byte[] buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 4);
+      RtpFrame rtpFrame = getRtpFrame(length + RtpConstants.RTP_HEADER_LENGTH + 4);
+      byte[] buffer = rtpFrame.getBuffer();
 
       byteBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 4, length);
       long ts = bufferInfo.presentationTimeUs * 1000;
@@ -46,9 +47,8 @@ public class AacPacket extends BasePacket {
       buffer[RtpConstants.RTP_HEADER_LENGTH + 3] |= 0x00;
 
       updateSeq(buffer);
-      RtpFrame rtpFrame =
-          new RtpFrame(buffer, ts, RtpConstants.RTP_HEADER_LENGTH + length + 4, rtpPort, rtcpPort,
-              channelIdentifier);
+      rtpFrame.setTimeStamp(ts);
+      rtpFrame.setLength(RtpConstants.RTP_HEADER_LENGTH + length + 4);
       audioPacketCallback.onAudioFrameCreated(rtpFrame);
     }
   }
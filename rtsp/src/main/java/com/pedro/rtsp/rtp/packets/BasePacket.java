@@ -1,6 +1,8 @@
 package com.pedro.rtsp.rtp.packets;
 
 import android.media.MediaCodec;
+import com.pedro.rtsp.rtsp.RtpFrame;
+import com.pedro.rtsp.rtsp.RtpFramePool;
 import com.pedro.rtsp.utils.RtpConstants;
 import java.nio.ByteBuffer;
 import java.util.Random;
@@ -12,6 +14,9 @@ import java.util.Random;
 public abstract class BasePacket {
 
   protected final static int maxPacketSize = RtpConstants.MTU - 28;
+  //max idle frames kept by each packetizer, enough for a big key frame
+  private final static int POOL_SIZE = 256;
+  private final RtpFramePool rtpFramePool = new RtpFramePool(POOL_SIZE, maxPacketSize);
   protected byte channelIdentifier;
   protected int rtpPort;
   protected int rtcpPort;
@@ -36,13 +41,22 @@ public abstract class BasePacket {
     ssrc = new Random().nextInt();
   }
 
-  protected byte[] getBuffer(int size) {
-    byte[] buffer = new byte[size];
-    buffer[0] = (byte) Integer.parseInt("10000000", 2);
+  /**
+   * @return a pooled frame with RTP header initialized, ports and channel set. Caller must set
+   * timestamp and length before sending it.
+   */
+  protected RtpFrame getRtpFrame(int size) {
+    RtpFrame rtpFrame = rtpFramePool.acquire(size);
+    byte[] buffer = rtpFrame.getBuffer();
+    // Version(2)
+    buffer[0] = (byte) 0x80;
     buffer[1] = (byte) RtpConstants.payloadType;
     setLongSSRC(buffer, ssrc);
     requestBuffer(buffer);
-    return buffer;
+    rtpFrame.setRtpPort(rtpPort);
+    rtpFrame.setRtcpPort(rtcpPort);
+    rtpFrame.setChannelIdentifier(channelIdentifier);
+    return rtpFrame;
   }
 
   protected void updateTimeStamp(byte[] buffer, long timestamp) {
@@ -1,6 +1,7 @@
 package com.pedro.rtsp.rtp.packets;
 
 import android.media.MediaCodec;
+import com.pedro.encoder.utils.NalUnitScanner;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import com.pedro.rtsp.utils.RtpConstants;
 import java.nio.ByteBuffer;
@@ -27,23 +28,25 @@ public class H264Packet extends BasePacket {
   @Override
   public void createAndSendPacket(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
     // We read a NAL units from ByteBuffer and we send them
-    // NAL units are preceded with 0x00000001
+    // NAL units are preceded with 0x000001 or 0x00000001
     byteBuffer.rewind();
-    byteBuffer.get(header, 0, 5);
+    int nalUnit = NalUnitScanner.findNalUnit(byteBuffer, 0, Math.min(bufferInfo.size, 5));
+    byteBuffer.position(nalUnit == -1 ? 0 : nalUnit);
+    byteBuffer.get(header, 4, 1);
     long ts = bufferInfo.presentationTimeUs * 1000L;
     int naluLength = bufferInfo.size - byteBuffer.position() + 1;
     int type = header[4] & 0x1F;
     if (type == RtpConstants.IDR || bufferInfo.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
-      byte[] buffer = getBuffer(stapA.length + RtpConstants.RTP_HEADER_LENGTH);
+      RtpFrame rtpFrame = getRtpFrame(stapA.length + RtpConstants.RTP_HEADER_LENGTH);
+      byte[] buffer = rtpFrame.getBuffer();
       updateTimeStamp(buffer, ts);
 
       markPacket(buffer); //mark end frame
       System.arraycopy(stapA, 0, buffer, RtpConstants.RTP_HEADER_LENGTH, stapA.length);
 
       updateSeq(buffer);
-      RtpFrame rtpFrame =
-          new RtpFrame(buffer, ts, stapA.length + RtpConstants.RTP_HEADER_LENGTH, rtpPort, rtcpPort,
-              channelIdentifier);
+      rtpFrame.setTimeStamp(ts);
+      rtpFrame.setLength(stapA.length + RtpConstants.RTP_HEADER_LENGTH);
       videoPacketCallback.onVideoFrameCreated(rtpFrame);
       sendKeyFrame = true;
     }
@@ -52,7 +55,8 @@ public class H264Packet extends BasePacket {
       if (naluLength <= maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 2) {
         int cont = naluLength - 1;
         int length = cont < bufferInfo.size - byteBuffer.position() ? cont : bufferInfo.size - byteBuffer.position();
-        byte[] buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 1);
+        RtpFrame rtpFrame = getRtpFrame(length + RtpConstants.RTP_HEADER_LENGTH + 1);
+        byte[] buffer = rtpFrame.getBuffer();
 
         buffer[RtpConstants.RTP_HEADER_LENGTH] = header[4];
         byteBuffer.get(buffer, RtpConstants.RTP_HEADER_LENGTH + 1, length);
@@ -61,9 +65,8 @@ public class H264Packet extends BasePacket {
         markPacket(buffer); //mark end frame
 
         updateSeq(buffer);
-        RtpFrame rtpFrame =
-            new RtpFrame(buffer, ts, naluLength + RtpConstants.RTP_HEADER_LENGTH, rtpPort, rtcpPort,
-                channelIdentifier);
+        rtpFrame.setTimeStamp(ts);
+        rtpFrame.setLength(naluLength + RtpConstants.RTP_HEADER_LENGTH);
         videoPacketCallback.onVideoFrameCreated(rtpFrame);
       }
       // Large NAL unit => Split nal unit
@@ -82,7 +85,8 @@ public class H264Packet extends BasePacket {
                   - RtpConstants.RTP_HEADER_LENGTH
                   - 2 : naluLength - sum;
           int length = cont < bufferInfo.size - byteBuffer.position() ? cont : bufferInfo.size - byteBuffer.position();
-          byte[] buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 2);
+          RtpFrame rtpFrame = getRtpFrame(length + RtpConstants.RTP_HEADER_LENGTH + 2);
+          byte[] buffer = rtpFrame.getBuffer();
 
           buffer[RtpConstants.RTP_HEADER_LENGTH] = header[0];
           buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = header[1];
@@ -96,9 +100,8 @@ public class H264Packet extends BasePacket {
             markPacket(buffer); //mark end frame
           }
           updateSeq(buffer);
-          RtpFrame rtpFrame =
-              new RtpFrame(buffer, ts, length + RtpConstants.RTP_HEADER_LENGTH + 2, rtpPort,
-                  rtcpPort, channelIdentifier);
+          rtpFrame.setTimeStamp(ts);
+          rtpFrame.setLength(length + RtpConstants.RTP_HEADER_LENGTH + 2);
           videoPacketCallback.onVideoFrameCreated(rtpFrame);
           // Switch start bit
           header[1] = (byte) (header[1] & 0x7F);
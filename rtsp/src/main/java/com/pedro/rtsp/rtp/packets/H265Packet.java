@@ -1,6 +1,7 @@
 package com.pedro.rtsp.rtp.packets;
 
 import android.media.MediaCodec;
+import com.pedro.encoder.utils.NalUnitScanner;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import com.pedro.rtsp.utils.RtpConstants;
 import java.nio.ByteBuffer;
@@ -27,24 +28,26 @@ public class H265Packet extends BasePacket {
   @Override
   public void createAndSendPacket(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
     // We read a NAL units from ByteBuffer and we send them
-    // NAL units are preceded with 0x00000001
+    // NAL units are preceded with 0x000001 or 0x00000001
     byteBuffer.rewind();
-    byteBuffer.get(header, 0, 6);
+    int nalUnit = NalUnitScanner.findNalUnit(byteBuffer, 0, Math.min(bufferInfo.size, 5));
+    byteBuffer.position(nalUnit == -1 ? 0 : nalUnit);
+    byteBuffer.get(header, 4, 2);
     long ts = bufferInfo.presentationTimeUs * 1000L;
     int naluLength = bufferInfo.size - byteBuffer.position() + 1;
     int type = (header[4] >> 1) & 0x3f;
     if (type == RtpConstants.IDR_N_LP || type == RtpConstants.IDR_W_DLP
         || bufferInfo.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME) {
-      byte[] buffer = getBuffer(stapA.length + RtpConstants.RTP_HEADER_LENGTH);
+      RtpFrame rtpFrame = getRtpFrame(stapA.length + RtpConstants.RTP_HEADER_LENGTH);
+      byte[] buffer = rtpFrame.getBuffer();
       updateTimeStamp(buffer, ts);
 
       markPacket(buffer); //mark end frame
       System.arraycopy(stapA, 0, buffer, RtpConstants.RTP_HEADER_LENGTH, stapA.length);
 
       updateSeq(buffer);
-      RtpFrame rtpFrame =
-          new RtpFrame(buffer, ts, stapA.length + RtpConstants.RTP_HEADER_LENGTH, rtpPort, rtcpPort,
-              channelIdentifier);
+      rtpFrame.setTimeStamp(ts);
+      rtpFrame.setLength(stapA.length + RtpConstants.RTP_HEADER_LENGTH);
       videoPacketCallback.onVideoFrameCreated(rtpFrame);
       sendKeyFrame = true;
     }
@@ -53,7 +56,8 @@ public class H265Packet extends BasePacket {
       if (naluLength <= maxPacketSize - RtpConstants.RTP_HEADER_LENGTH - 3) {
         int cont = naluLength - 1;
         int length = cont < bufferInfo.size - byteBuffer.position() ? cont : bufferInfo.size - byteBuffer.position();
-        byte[] buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 2);
+        RtpFrame rtpFrame = getRtpFrame(length + RtpConstants.RTP_HEADER_LENGTH + 2);
+        byte[] buffer = rtpFrame.getBuffer();
         //Set PayloadHdr (exact copy of nal unit header)
         buffer[RtpConstants.RTP_HEADER_LENGTH] = header[4];
         buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = header[5];
@@ -63,9 +67,8 @@ public class H265Packet extends BasePacket {
         markPacket(buffer); //mark end frame
 
         updateSeq(buffer);
-        RtpFrame rtpFrame =
-            new RtpFrame(buffer, ts, naluLength + RtpConstants.RTP_HEADER_LENGTH, rtpPort, rtcpPort,
-                channelIdentifier);
+        rtpFrame.setTimeStamp(ts);
+        rtpFrame.setLength(naluLength + RtpConstants.RTP_HEADER_LENGTH);
         videoPacketCallback.onVideoFrameCreated(rtpFrame);
       }
       // Large NAL unit => Split nal unit
@@ -89,7 +92,8 @@ public class H265Packet extends BasePacket {
                   - RtpConstants.RTP_HEADER_LENGTH
                   - 3 : naluLength - sum;
           int length = cont < bufferInfo.size - byteBuffer.position() ? cont : bufferInfo.size - byteBuffer.position();
-          byte[] buffer = getBuffer(length + RtpConstants.RTP_HEADER_LENGTH + 3);
+          RtpFrame rtpFrame = getRtpFrame(length + RtpConstants.RTP_HEADER_LENGTH + 3);
+          byte[] buffer = rtpFrame.getBuffer();
 
           buffer[RtpConstants.RTP_HEADER_LENGTH] = header[0];
           buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = header[1];
@@ -104,9 +108,8 @@ public class H265Packet extends BasePacket {
             markPacket(buffer); //mark end frame
           }
           updateSeq(buffer);
-          RtpFrame rtpFrame =
-              new RtpFrame(buffer, ts, length + RtpConstants.RTP_HEADER_LENGTH + 3, rtpPort,
-                  rtcpPort, channelIdentifier);
+          rtpFrame.setTimeStamp(ts);
+          rtpFrame.setLength(length + RtpConstants.RTP_HEADER_LENGTH + 3);
           videoPacketCallback.onVideoFrameCreated(rtpFrame);
           // Switch start bit
           header[2] = (byte) (header[2] & 0x7F);
@@ -0,0 +1,178 @@
+package com.pedro.rtsp.rtp.packets;
+
+import com.pedro.rtsp.rtsp.RtpFrame;
+import com.pedro.rtsp.rtsp.RtpFramePool;
+import com.pedro.rtsp.utils.RtpConstants;
+import java.util.Random;
+
+/**
+ * RFC 5109. Optional stage between video packetizer and sender that add a XOR parity packet after
+ * each group of media packets, so the server can recover one lost packet per group. Parity of the
+ * last group of a frame goes just before the marker packet to be sent in the same burst. Parity
+ * packets use their own SSRC and sequence numbers and ulpfec payload type. Group size adapt to
+ * loss reported by the server, lower loss use bigger groups (less overhead).
+ */
+public class UlpfecEncoder implements VideoPacketCallback {
+
+  //FEC header (10) + ULP level header with 16 bits mask (4)
+  private static final int FEC_HEADER_LENGTH = 14;
+  //mask of 16 bits, group can't be bigger
+  private static final int MAX_GROUP_SIZE = 16;
+
+  private final VideoPacketCallback videoPacketCallback;
+  private final RtpFramePool rtpFramePool = new RtpFramePool(16, RtpConstants.MTU);
+  private final byte[] payloadRecovery = new byte[RtpConstants.MTU];
+  private final int ssrc;
+  private int sequence;
+  private volatile int groupSize;
+  private volatile boolean adaptive = true;
+  //accumulated group
+  private int count = 0;
+  private int baseSequence;
+  private int mask;
+  private int byte0Recovery;
+  private int byte1Recovery;
+  private long timeStampRecovery;
+  private int lengthRecovery;
+  private int protectionLength;
+
+  public UlpfecEncoder(VideoPacketCallback videoPacketCallback) {
+    this.videoPacketCallback = videoPacketCallback;
+    Random random = new Random();
+    ssrc = random.nextInt();
+    sequence = random.nextInt(65536);
+    groupSize = getGroupSize(0);
+  }
+
+  @Override
+  public void onVideoFrameCreated(RtpFrame rtpFrame) {
+    //xor before send, the frame is recycled by sender once sent
+    byte[] buffer = rtpFrame.getBuffer();
+    int length = rtpFrame.getLength();
+    int mediaSequence = ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+    if (count > 0 && ((mediaSequence - baseSequence) & 0xFFFF) >= MAX_GROUP_SIZE) {
+      //sequence gap (media dropped), this packet can't be in the same mask so protect the
+      //partial group before starting a new one
+      videoPacketCallback.onVideoFrameCreated(createFecFrame(rtpFrame));
+    }
+    int size = groupSize;
+    if (size > 0) {
+      protect(buffer, length, mediaSequence);
+    }
+    boolean endOfFrame = (buffer[1] & 0x80) != 0;
+    if (count > 0 && endOfFrame) {
+      //send parity before the marker packet, sockets send the access unit when marker arrives
+      videoPacketCallback.onVideoFrameCreated(createFecFrame(rtpFrame));
+      videoPacketCallback.onVideoFrameCreated(rtpFrame);
+    } else if (count > 0 && count >= size) {
+      RtpFrame fecFrame = createFecFrame(rtpFrame);
+      videoPacketCallback.onVideoFrameCreated(rtpFrame);
+      videoPacketCallback.onVideoFrameCreated(fecFrame);
+    } else {
+      videoPacketCallback.onVideoFrameCreated(rtpFrame);
+    }
+  }
+
+  /**
+   * @param groupSize media packets protected by each parity packet (max 16), 0 to disable.
+   * Disable adaptation to loss.
+   */
+  public void setGroupSize(int groupSize) {
+    adaptive = false;
+    this.groupSize = Math.max(0, Math.min(MAX_GROUP_SIZE, groupSize));
+  }
+
+  /**
+   * Called with loss reported by server to adapt protection level.
+   *
+   * @param fractionLost from 0 to 1.
+   */
+  public void setLossRate(float fractionLost) {
+    if (adaptive) groupSize = getGroupSize(fractionLost);
+  }
+
+  public int getGroupSize() {
+    return groupSize;
+  }
+
+  public void reset() {
+    count = 0;
+    adaptive = true;
+    groupSize = getGroupSize(0);
+  }
+
+  private int getGroupSize(float fractionLost) {
+    if (fractionLost < 0.01f) {
+      return MAX_GROUP_SIZE;
+    } else if (fractionLost < 0.05f) {
+      return 10;
+    } else if (fractionLost < 0.1f) {
+      return 5;
+    } else {
+      return 3;
+    }
+  }
+
+  private void protect(byte[] buffer, int length, int mediaSequence) {
+    int payloadLength = length - RtpConstants.RTP_HEADER_LENGTH;
+    if (count == 0) {
+      baseSequence = mediaSequence;
+      mask = 0;
+      byte0Recovery = byte1Recovery = lengthRecovery = protectionLength = 0;
+      timeStampRecovery = 0;
+    }
+    mask |= 0x8000 >>> ((mediaSequence - baseSequence) & 0xFFFF);
+    byte0Recovery ^= buffer[0] & 0xFF;
+    byte1Recovery ^= buffer[1] & 0xFF;
+    timeStampRecovery ^= ((buffer[4] & 0xFFL) << 24) | ((buffer[5] & 0xFFL) << 16) | (
+        (buffer[6] & 0xFFL) << 8) | (buffer[7] & 0xFFL);
+    lengthRecovery ^= payloadLength;
+    for (int i = 0; i < payloadLength; i++) {
+      byte value = buffer[RtpConstants.RTP_HEADER_LENGTH + i];
+      payloadRecovery[i] = i < protectionLength ? (byte) (payloadRecovery[i] ^ value) : value;
+    }
+    //keep xor of shorter packets padded with zeros
+    protectionLength = Math.max(protectionLength, payloadLength);
+    count++;
+  }
+
+  private RtpFrame createFecFrame(RtpFrame lastMedia) {
+    int length = RtpConstants.RTP_HEADER_LENGTH + FEC_HEADER_LENGTH + protectionLength;
+    RtpFrame fecFrame = rtpFramePool.acquire(length);
+    byte[] buffer = fecFrame.getBuffer();
+    buffer[0] = (byte) 0x80;
+    buffer[1] = (byte) RtpConstants.fecPayloadType;
+    sequence = (sequence + 1) & 0xFFFF;
+    buffer[2] = (byte) (sequence >> 8);
+    buffer[3] = (byte) sequence;
+    System.arraycopy(lastMedia.getBuffer(), 4, buffer, 4, 4);
+    buffer[8] = (byte) (ssrc >> 24);
+    buffer[9] = (byte) (ssrc >> 16);
+    buffer[10] = (byte) (ssrc >> 8);
+    buffer[11] = (byte) ssrc;
+    int offset = RtpConstants.RTP_HEADER_LENGTH;
+    //E = 0, L = 0 (16 bits mask), P, X and CC recovery
+    buffer[offset] = (byte) (byte0Recovery & 0x3F);
+    buffer[offset + 1] = (byte) byte1Recovery;
+    buffer[offset + 2] = (byte) (baseSequence >> 8);
+    buffer[offset + 3] = (byte) baseSequence;
+    buffer[offset + 4] = (byte) (timeStampRecovery >> 24);
+    buffer[offset + 5] = (byte) (timeStampRecovery >> 16);
+    buffer[offset + 6] = (byte) (timeStampRecovery >> 8);
+    buffer[offset + 7] = (byte) timeStampRecovery;
+    buffer[offset + 8] = (byte) (lengthRecovery >> 8);
+    buffer[offset + 9] = (byte) lengthRecovery;
+    buffer[offset + 10] = (byte) (protectionLength >> 8);
+    buffer[offset + 11] = (byte) protectionLength;
+    buffer[offset + 12] = (byte) (mask >> 8);
+    buffer[offset + 13] = (byte) mask;
+    System.arraycopy(payloadRecovery, 0, buffer, offset + FEC_HEADER_LENGTH, protectionLength);
+    fecFrame.setLength(length);
+    fecFrame.setTimeStamp(lastMedia.getTimeStamp());
+    fecFrame.setRtpPort(lastMedia.getRtpPort());
+    fecFrame.setRtcpPort(lastMedia.getRtcpPort());
+    fecFrame.setChannelIdentifier(lastMedia.getChannelIdentifier());
+    count = 0;
+    return fecFrame;
+  }
+}
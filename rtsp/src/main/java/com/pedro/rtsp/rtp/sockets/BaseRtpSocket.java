@@ -23,5 +23,11 @@ public abstract class BaseRtpSocket {
 
   public abstract void sendFrame(RtpFrame rtpFrame) throws IOException;
 
+  /**
+   * Send frames that could be buffered by the socket.
+   */
+  public void flush() throws IOException {
+  }
+
   public abstract void close();
 }
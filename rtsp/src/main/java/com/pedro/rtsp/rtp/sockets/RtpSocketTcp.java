@@ -1,18 +1,29 @@
 package com.pedro.rtsp.rtp.sockets;
 
-import android.util.Log;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by pedro on 7/11/18.
+ *
+ * With write coalescing (enabled by default) interleaved frames are gathered and written to the
+ * RTSP socket with one write and flush per access unit (RTP marker bit), when the buffer is full
+ * or when the oldest buffered frame exceed the time budget.
  */
 
 public class RtpSocketTcp extends BaseRtpSocket {
 
+  private static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+  private static final long MAX_COALESCE_DELAY_NS = TimeUnit.MILLISECONDS.toNanos(5);
+
   private OutputStream outputStream;
   private byte tcpHeader[];
+  private final byte[] coalesceBuffer = new byte[COALESCE_BUFFER_SIZE];
+  private int coalesceSize = 0;
+  private long firstCoalescedNs = 0;
+  private volatile boolean coalescing = true;
 
   public RtpSocketTcp() {
     tcpHeader = new byte[] { '$', 0, 0, 0 };
@@ -25,27 +36,68 @@ public class RtpSocketTcp extends BaseRtpSocket {
 
   @Override
   public void sendFrame(RtpFrame rtpFrame) throws IOException {
-    sendFrameTCP(rtpFrame);
+    boolean endOfAccessUnit = (rtpFrame.getBuffer()[1] & 0x80) != 0;
+    writeInterleaved(rtpFrame.getChannelIdentifier(), rtpFrame.getBuffer(), rtpFrame.getLength(),
+        endOfAccessUnit);
+  }
+
+  /**
+   * Write a RTCP packet in the same stream that RTP packets so it is never sent before RTP packets
+   * already buffered.
+   */
+  public void sendReport(byte channelIdentifier, byte[] buffer, int length) throws IOException {
+    writeInterleaved(channelIdentifier, buffer, length, false);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (coalesceSize > 0) {
+      synchronized (outputStream) {
+        outputStream.write(coalesceBuffer, 0, coalesceSize);
+        outputStream.flush();
+      }
+      coalesceSize = 0;
+    }
   }
 
   @Override
   public void close() {
+    coalesceSize = 0;
+  }
 
+  /**
+   * @param coalescing false to write and flush each frame individually. True by default.
+   */
+  public void setCoalescing(boolean coalescing) {
+    this.coalescing = coalescing;
   }
 
-  private void sendFrameTCP(RtpFrame rtpFrame) throws IOException {
-    synchronized (outputStream) {
-      int len = rtpFrame.getLength();
-      tcpHeader[1] = rtpFrame.getChannelIdentifier();
-      tcpHeader[2] = (byte) (len >> 8);
-      tcpHeader[3] = (byte) (len & 0xFF);
-      outputStream.write(tcpHeader);
-      outputStream.write(rtpFrame.getBuffer(), 0, len);
-      outputStream.flush();
-      Log.i(TAG, "wrote packet: "
-          + (rtpFrame.getChannelIdentifier() == (byte) 2 ? "Video" : "Audio")
-          + ", size: "
-          + rtpFrame.getLength());
+  private void writeInterleaved(byte channelIdentifier, byte[] buffer, int len,
+      boolean endOfAccessUnit) throws IOException {
+    tcpHeader[1] = channelIdentifier;
+    tcpHeader[2] = (byte) (len >> 8);
+    tcpHeader[3] = (byte) (len & 0xFF);
+    if (!coalescing) {
+      flush();
+      synchronized (outputStream) {
+        outputStream.write(tcpHeader);
+        outputStream.write(buffer, 0, len);
+        outputStream.flush();
+      }
+      return;
+    }
+    if (coalesceSize + tcpHeader.length + len > coalesceBuffer.length) {
+      flush();
+    }
+    if (coalesceSize == 0) {
+      firstCoalescedNs = System.nanoTime();
+    }
+    System.arraycopy(tcpHeader, 0, coalesceBuffer, coalesceSize, tcpHeader.length);
+    coalesceSize += tcpHeader.length;
+    System.arraycopy(buffer, 0, coalesceBuffer, coalesceSize, len);
+    coalesceSize += len;
+    if (endOfAccessUnit || System.nanoTime() - firstCoalescedNs >= MAX_COALESCE_DELAY_NS) {
+      flush();
     }
   }
 }
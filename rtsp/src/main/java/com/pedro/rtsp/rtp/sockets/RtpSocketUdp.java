@@ -4,27 +4,43 @@ import android.util.Log;
 import com.pedro.rtsp.rtsp.RtpFrame;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by pedro on 7/11/18.
+ *
+ * Packets are sent as they arrive through a non blocking DatagramChannel, which copies the frame
+ * array to its own direct buffer. Holding packets until the end of the access unit cost one more
+ * copy and saved no CPU, each datagram is still one send call. Optionally paced to a max bitrate
+ * to avoid overflowing small router queues with IDR bursts.
  */
 
 public class RtpSocketUdp extends BaseRtpSocket {
 
-  private MulticastSocket multicastSocketVideo;
-  private MulticastSocket multicastSocketAudio;
-  private DatagramPacket datagramPacket = new DatagramPacket(new byte[] { 0 }, 1);
+  //retries when socket send buffer is full before discard the packet
+  private static final int MAX_SEND_RETRIES = 50;
+  private static final long SEND_RETRY_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private DatagramChannel channelVideo;
+  private DatagramChannel channelAudio;
+  private InetAddress address;
+  private InetSocketAddress videoTarget;
+  private InetSocketAddress audioTarget;
+  //0 means no pacing
+  private volatile long pacingBitrate = 0;
+  private long nextSendTimeNs = 0;
+  private long droppedPackets = 0;
 
   public RtpSocketUdp(int videoSourcePort, int audioSourcePort) {
     try {
-      multicastSocketVideo = new MulticastSocket(videoSourcePort);
-      multicastSocketVideo.setTimeToLive(64);
-      multicastSocketAudio = new MulticastSocket(audioSourcePort);
-      multicastSocketAudio.setTimeToLive(64);
+      channelVideo = openChannel(videoSourcePort);
+      channelAudio = openChannel(audioSourcePort);
     } catch (IOException e) {
       Log.e(TAG, "Error", e);
     }
@@ -33,7 +49,8 @@ public class RtpSocketUdp extends BaseRtpSocket {
   @Override
   public void setDataStream(OutputStream outputStream, String host) {
     try {
-      datagramPacket.setAddress(InetAddress.getByName(host));
+      address = InetAddress.getByName(host);
+      videoTarget = audioTarget = null;
     } catch (UnknownHostException e) {
       Log.e(TAG, "Error", e);
     }
@@ -41,29 +58,85 @@ public class RtpSocketUdp extends BaseRtpSocket {
 
   @Override
   public void sendFrame(RtpFrame rtpFrame) throws IOException {
-    sendFrameUDP(rtpFrame);
+    long bitrate = pacingBitrate;
+    if (bitrate > 0) pace(rtpFrame.getLength(), bitrate);
+    ByteBuffer buffer = ByteBuffer.wrap(rtpFrame.getBuffer(), 0, rtpFrame.getLength());
+    if (rtpFrame.isVideoFrame()) {
+      send(channelVideo, buffer, getVideoTarget(rtpFrame.getRtpPort()));
+    } else {
+      send(channelAudio, buffer, getAudioTarget(rtpFrame.getRtpPort()));
+    }
   }
 
   @Override
   public void close() {
-    multicastSocketVideo.close();
-    multicastSocketAudio.close();
+    try {
+      if (channelVideo != null) channelVideo.close();
+      if (channelAudio != null) channelAudio.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Error", e);
+    }
+  }
+
+  /**
+   * Limit send rate of bursts. Packets are spaced according to its size.
+   *
+   * @param bitrate max bitrate in bits per second, 0 to disable pacing.
+   */
+  public void setPacingBitrate(long bitrate) {
+    pacingBitrate = bitrate;
+  }
+
+  public long getDroppedPackets() {
+    return droppedPackets;
+  }
+
+  public void resetDroppedPackets() {
+    droppedPackets = 0;
+  }
+
+  private DatagramChannel openChannel(int sourcePort) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.socket().bind(new InetSocketAddress(sourcePort));
+    channel.configureBlocking(false);
+    return channel;
+  }
+
+  private InetSocketAddress getVideoTarget(int port) {
+    if (videoTarget == null || videoTarget.getPort() != port) {
+      videoTarget = new InetSocketAddress(address, port);
+    }
+    return videoTarget;
   }
 
-  private void sendFrameUDP(RtpFrame rtpFrame) throws IOException {
-    datagramPacket.setData(rtpFrame.getBuffer());
-    datagramPacket.setPort(rtpFrame.getRtpPort());
-    datagramPacket.setLength(rtpFrame.getLength());
-    if (rtpFrame.getChannelIdentifier() == (byte) 2) {
-      multicastSocketVideo.send(datagramPacket);
+  private InetSocketAddress getAudioTarget(int port) {
+    if (audioTarget == null || audioTarget.getPort() != port) {
+      audioTarget = new InetSocketAddress(address, port);
+    }
+    return audioTarget;
+  }
+
+  private void pace(int length, long bitrate) {
+    long now = System.nanoTime();
+    if (nextSendTimeNs > now) {
+      LockSupport.parkNanos(nextSendTimeNs - now);
     } else {
-      multicastSocketAudio.send(datagramPacket);
+      nextSendTimeNs = now;
+    }
+    nextSendTimeNs += length * 8L * TimeUnit.SECONDS.toNanos(1) / bitrate;
+  }
+
+  private void send(DatagramChannel channel, ByteBuffer buffer, InetSocketAddress target)
+      throws IOException {
+    int retries = 0;
+    //non blocking channel return 0 if socket buffer is full
+    while (channel.send(buffer, target) == 0) {
+      if (++retries > MAX_SEND_RETRIES) {
+        droppedPackets++;
+        Log.i(TAG, "Packet discarded, socket buffer full");
+        return;
+      }
+      LockSupport.parkNanos(SEND_RETRY_NS);
     }
-    Log.i(TAG, "wrote packet: "
-        + (rtpFrame.getChannelIdentifier() == (byte) 2 ? "Video" : "Audio")
-        + ", size: "
-        + rtpFrame.getLength()
-        + ", port: "
-        + rtpFrame.getRtpPort());
   }
 }
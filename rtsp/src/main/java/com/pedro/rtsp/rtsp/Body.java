@@ -58,10 +58,9 @@ public class Body {
         + "\r\n";
   }
 
-  public static String createH264Body(int trackVideo, String sps, String pps) {
-    return "m=video 0 RTP/AVP "
-        + RtpConstants.payloadType
-        + "\r\n"
+  public static String createH264Body(int trackVideo, String sps, String pps,
+      boolean retransmission, boolean fec) {
+    return createVideoMediaLine(retransmission, fec)
         + "a=rtpmap:"
         + RtpConstants.payloadType
         + " H264/"
@@ -74,15 +73,16 @@ public class Body {
         + ","
         + pps
         + ";\r\n"
+        + createRetransmissionAttributes(retransmission)
+        + createFecAttributes(fec)
         + "a=control:trackID="
         + trackVideo
         + "\r\n";
   }
 
-  public static String createH265Body(int trackVideo, String sps, String pps, String vps) {
-    return "m=video 0 RTP/AVP "
-        + RtpConstants.payloadType
-        + "\r\n"
+  public static String createH265Body(int trackVideo, String sps, String pps, String vps,
+      boolean retransmission, boolean fec) {
+    return createVideoMediaLine(retransmission, fec)
         + "a=rtpmap:"
         + RtpConstants.payloadType
         + " H265/"
@@ -97,8 +97,47 @@ public class Body {
         + "; sprop-vps="
         + vps
         + ";\r\n"
+        + createRetransmissionAttributes(retransmission)
+        + createFecAttributes(fec)
         + "a=control:trackID="
         + trackVideo
         + "\r\n";
   }
+
+  private static String createVideoMediaLine(boolean retransmission, boolean fec) {
+    return "m=video 0 RTP/AVP "
+        + RtpConstants.payloadType
+        + (retransmission ? " " + RtpConstants.rtxPayloadType : "")
+        + (fec ? " " + RtpConstants.fecPayloadType : "")
+        + "\r\n";
+  }
+
+  private static String createFecAttributes(boolean fec) {
+    if (!fec) return "";
+    return "a=rtpmap:"
+        + RtpConstants.fecPayloadType
+        + " ulpfec/"
+        + RtpConstants.clockVideoFrequency
+        + "\r\n";
+  }
+
+  /**
+   * RTX payload type associated to video payload type (RFC 4588) and NACK feedback (RFC 4585).
+   */
+  private static String createRetransmissionAttributes(boolean retransmission) {
+    if (!retransmission) return "";
+    return "a=rtcp-fb:"
+        + RtpConstants.payloadType
+        + " nack\r\n"
+        + "a=rtpmap:"
+        + RtpConstants.rtxPayloadType
+        + " rtx/"
+        + RtpConstants.clockVideoFrequency
+        + "\r\n"
+        + "a=fmtp:"
+        + RtpConstants.rtxPayloadType
+        + " apt="
+        + RtpConstants.payloadType
+        + "\r\n";
+  }
 }
@@ -34,6 +34,8 @@ public class CommandsManager {
   private int trackVideo = 1;
   private Protocol protocol;
   private boolean isOnlyAudio;
+  private boolean retransmission;
+  private boolean fec;
 
   //For udp
   private final int[] audioClientPorts = new int[] { 5000, 5001 };
@@ -75,6 +77,28 @@ public class CommandsManager {
     isOnlyAudio = onlyAudio;
   }
 
+  /**
+   * Only used with UDP protocol.
+   */
+  public void setRetransmission(boolean retransmission) {
+    this.retransmission = retransmission;
+  }
+
+  public boolean isRetransmission() {
+    return retransmission && protocol == Protocol.UDP;
+  }
+
+  /**
+   * Only used with UDP protocol.
+   */
+  public void setFec(boolean fec) {
+    this.fec = fec;
+  }
+
+  public boolean isFec() {
+    return fec && protocol == Protocol.UDP;
+  }
+
   public void setVideoInfo(ByteBuffer sps, ByteBuffer pps, ByteBuffer vps) {
     this.sps = getData(sps);
     this.pps = getData(pps);
@@ -204,8 +228,10 @@ public class CommandsManager {
   private String createBody() {
     String videoBody = "";
     if (!isOnlyAudio) {
-      videoBody = vps == null ? Body.createH264Body(trackVideo, getSpsString(), getPpsString())
-          : Body.createH265Body(trackVideo, getSpsString(), getPpsString(), getVpsString());
+      videoBody = vps == null ? Body.createH264Body(trackVideo, getSpsString(), getPpsString(),
+          isRetransmission(), isFec())
+          : Body.createH265Body(trackVideo, getSpsString(), getPpsString(), getVpsString(),
+              isRetransmission(), isFec());
     }
     return "v=0\r\n"
         + "o=- "
@@ -0,0 +1,169 @@
+package com.pedro.rtsp.rtsp;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+
+/**
+ * Only reader of the RTSP socket. RTSP responses and interleaved binary frames ('$', channel,
+ * length, data) share the same stream with TCP protocol, so both are demultiplexed here and no
+ * other reader can consume bytes of the other kind.
+ *
+ * Used as a {@link Reader} for RTSP responses, each read call return at most one line so a
+ * BufferedReader on top never buffers bytes after the response. Interleaved frames are read with
+ * {@link #readFrame(byte[])}.
+ */
+public class InterleavedReader extends Reader {
+
+  private static final String TAG = "InterleavedReader";
+  private static final int MAX_LINE_LENGTH = 4096;
+
+  private final InputStream inputStream;
+  private volatile boolean closed = false;
+  private int channel;
+
+  public InterleavedReader(InputStream inputStream) {
+    this.inputStream = new BufferedInputStream(inputStream);
+  }
+
+  /**
+   * Read characters of current line, including the line terminator.
+   */
+  @Override
+  public int read(char[] chars, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    int count = 0;
+    while (count < length) {
+      int b = inputStream.read();
+      if (b == -1) break;
+      chars[offset + count++] = (char) b;
+      if (b == '\n') break;
+    }
+    return count == 0 ? -1 : count;
+  }
+
+  /**
+   * Read next interleaved frame. RTSP messages found between frames are read whole and
+   * discarded. Socket timeouts are only reported between frames, a frame already started is
+   * always read until its end.
+   *
+   * @param buffer destination of frame data. Bigger frames are skipped.
+   * @return frame length, -1 if a timeout happened before a frame started or the frame didn't
+   * fit in buffer. Channel of the frame is returned by {@link #getChannel()}.
+   * @throws EOFException if stream ended.
+   */
+  public int readFrame(byte[] buffer) throws IOException {
+    int magic;
+    try {
+      magic = inputStream.read();
+    } catch (SocketTimeoutException e) {
+      return -1;
+    }
+    if (magic == -1) throw new EOFException();
+    if (magic != '$') {
+      skipRtspMessage(magic);
+      return -1;
+    }
+    channel = readByte();
+    int length = (readByte() << 8) | readByte();
+    if (length > buffer.length) {
+      skipFully(length);
+      return -1;
+    }
+    readFully(buffer, 0, length);
+    return length;
+  }
+
+  /**
+   * @return channel of last frame returned by {@link #readFrame(byte[])}.
+   */
+  public int getChannel() {
+    return channel;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  /**
+   * Read headers and body of a message sent by server while streaming, for example the answer
+   * to TEARDOWN.
+   */
+  private void skipRtspMessage(int firstByte) throws IOException {
+    int contentLength = 0;
+    String line = readLine(firstByte);
+    while (!line.isEmpty()) {
+      String lowerCase = line.toLowerCase(Locale.US);
+      if (lowerCase.startsWith("content-length:")) {
+        try {
+          contentLength = Integer.parseInt(line.substring(15).trim());
+        } catch (NumberFormatException e) {
+          contentLength = 0;
+        }
+      }
+      line = readLine(readByte());
+    }
+    skipFully(contentLength);
+    Log.i(TAG, "skipped RTSP message with " + contentLength + " bytes of body");
+  }
+
+  private String readLine(int firstByte) throws IOException {
+    StringBuilder builder = new StringBuilder();
+    int b = firstByte;
+    while (b != '\n' && builder.length() < MAX_LINE_LENGTH) {
+      if (b != '\r') builder.append((char) b);
+      b = readByte();
+    }
+    return builder.toString();
+  }
+
+  private int readByte() throws IOException {
+    while (true) {
+      try {
+        int b = inputStream.read();
+        if (b == -1) throw new EOFException();
+        return b;
+      } catch (SocketTimeoutException e) {
+        if (closed) throw e;
+      }
+    }
+  }
+
+  private void readFully(byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      int read;
+      try {
+        read = inputStream.read(buffer, offset, length);
+      } catch (SocketTimeoutException e) {
+        if (closed) throw e;
+        continue;
+      }
+      if (read == -1) throw new EOFException();
+      offset += read;
+      length -= read;
+    }
+  }
+
+  private void skipFully(int length) throws IOException {
+    while (length > 0) {
+      long skipped;
+      try {
+        skipped = inputStream.skip(length);
+      } catch (SocketTimeoutException e) {
+        if (closed) throw e;
+        continue;
+      }
+      if (skipped <= 0) {
+        readByte();
+        skipped = 1;
+      }
+      length -= skipped;
+    }
+  }
+}
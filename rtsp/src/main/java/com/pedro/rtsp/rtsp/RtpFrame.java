@@ -12,6 +12,7 @@ public class RtpFrame {
   private int rtpPort; //rtp udp
   private int rtcpPort; //rtcp udp
   private byte channelIdentifier; //rtcp tcp
+  private RtpFramePool pool;
 
   public RtpFrame(byte[] buffer, long timeStamp, int length, int rtpPort, int rtcpPort,
       byte channelIdentifier) {
@@ -74,4 +75,18 @@ public class RtpFrame {
   public boolean isVideoFrame() {
     return channelIdentifier == (byte) 2;
   }
+
+  void setPool(RtpFramePool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Return this frame to the pool it was acquired from. The frame must not be used after it.
+   * Do nothing if the frame is not pooled.
+   */
+  public void recycle() {
+    if (pool != null) {
+      pool.release(this);
+    }
+  }
 }
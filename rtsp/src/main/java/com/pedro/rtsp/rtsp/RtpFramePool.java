@@ -0,0 +1,44 @@
+package com.pedro.rtsp.rtsp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Recycle RtpFrame and its buffer so packetize and send path doesn't allocate in steady state.
+ * Frames are acquired by a packetizer and returned with {@link RtpFrame#recycle()} once sent.
+ */
+public class RtpFramePool {
+
+  private final BlockingQueue<RtpFrame> frames;
+  private final int bufferSize;
+
+  /**
+   * @param capacity max number of idle frames kept.
+   * @param bufferSize min size of each frame buffer.
+   */
+  public RtpFramePool(int capacity, int bufferSize) {
+    this.frames = new ArrayBlockingQueue<>(capacity);
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * @return a frame with a buffer of at least size bytes. Buffer content is not cleared.
+   */
+  public RtpFrame acquire(int size) {
+    RtpFrame rtpFrame = frames.poll();
+    if (rtpFrame == null || rtpFrame.getBuffer().length < size) {
+      rtpFrame = new RtpFrame(new byte[Math.max(size, bufferSize)], 0, 0, 0, 0, (byte) 0);
+      rtpFrame.setPool(this);
+    }
+    return rtpFrame;
+  }
+
+  void release(RtpFrame rtpFrame) {
+    //if pool is full the frame is left to the GC
+    frames.offer(rtpFrame);
+  }
+
+  public void clear() {
+    frames.clear();
+  }
+}
@@ -6,10 +6,10 @@ import android.os.Looper;
 import android.util.Log;
 import com.pedro.rtsp.utils.ConnectCheckerRtsp;
 import com.pedro.rtsp.utils.CreateSSLSocket;
+import com.pedro.rtsp.utils.LossBasedBitrateController;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
@@ -33,6 +33,8 @@ public class RtspClient {
   //sockets objects
   private Socket connectionSocket;
   private BufferedReader reader;
+  //only reader of the socket, RTSP responses and interleaved frames share it
+  private InterleavedReader interleavedReader;
   private BufferedWriter writer;
   private Thread thread;
   //for tcp
@@ -63,6 +65,59 @@ public class RtspClient {
     commandsManager.setProtocol(protocol);
   }
 
+  /**
+   * Pace RTP packets sent with UDP protocol so key frame bursts don't overflow small router queues.
+   *
+   * @param bitrate max send bitrate in bits per second, 0 to disable pacing.
+   */
+  public void setUdpPacingBitrate(long bitrate) {
+    rtspSender.setUdpPacingBitrate(bitrate);
+  }
+
+  /**
+   * Gather interleaved RTP packets of an access unit and write them to the socket at once when
+   * using TCP protocol. Enabled by default.
+   */
+  public void setTcpCoalescing(boolean coalescing) {
+    rtspSender.setTcpCoalescing(coalescing);
+  }
+
+  /**
+   * Adapt bitrate using loss and RTT reported by server with RTCP receiver reports. Must be set
+   * before connect.
+   *
+   * @param bitrateController controller notified with RTCP reports or null to disable it.
+   */
+  public void setBitrateController(LossBasedBitrateController bitrateController) {
+    rtspSender.setRtcpListener(bitrateController);
+  }
+
+  /**
+   * Keep a history of sent video packets and retransmit them (RFC 4588) when server send RTCP
+   * NACK. Only used with UDP protocol. Must be set before connect.
+   */
+  public void setRetransmission(boolean retransmission) {
+    commandsManager.setRetransmission(retransmission);
+    rtspSender.setRetransmission(retransmission);
+  }
+
+  /**
+   * Send XOR parity packets (RFC 5109) so server can recover lost video packets. Protection adapt
+   * to loss reported by server. Only used with UDP protocol. Must be set before connect.
+   */
+  public void setFec(boolean fec) {
+    commandsManager.setFec(fec);
+    rtspSender.setFec(fec);
+  }
+
+  public long getRetransmittedPackets() {
+    return rtspSender.getRetransmittedPackets();
+  }
+
+  public long getMissedRetransmissions() {
+    return rtspSender.getMissedRetransmissions();
+  }
+
   public void setAuthorization(String user, String password) {
     commandsManager.setAuth(user, password);
   }
@@ -151,7 +206,8 @@ public class RtspClient {
               if (connectionSocket == null) throw new IOException("Socket creation failed");
             }
             connectionSocket.setSoTimeout(5000);
-            reader = new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
+            interleavedReader = new InterleavedReader(connectionSocket.getInputStream());
+            reader = new BufferedReader(interleavedReader);
             outputStream = connectionSocket.getOutputStream();
             writer = new BufferedWriter(new OutputStreamWriter(outputStream));
             writer.write(commandsManager.createOptions());
@@ -207,6 +263,7 @@ public class RtspClient {
               rtspSender.setVideoPorts(videoPorts[0], videoPorts[1]);
             }
             rtspSender.setAudioPorts(audioPorts[0], audioPorts[1]);
+            rtspSender.startRtcpReceiver(interleavedReader);
             rtspSender.start();
             streaming = true;
             reTries = numRetry;
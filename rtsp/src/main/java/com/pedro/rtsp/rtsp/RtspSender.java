@@ -2,22 +2,34 @@ package com.pedro.rtsp.rtsp;
 
 import android.media.MediaCodec;
 import android.util.Log;
+import com.pedro.encoder.utils.metrics.Counter;
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.Histogram;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+import com.pedro.encoder.utils.trace.FrameTracer;
 import com.pedro.rtsp.rtcp.BaseSenderReport;
+import com.pedro.rtsp.rtcp.RtcpReceiver;
+import com.pedro.rtsp.rtcp.SenderReportTcp;
 import com.pedro.rtsp.rtp.packets.AacPacket;
 import com.pedro.rtsp.rtp.packets.AudioPacketCallback;
 import com.pedro.rtsp.rtp.packets.BasePacket;
 import com.pedro.rtsp.rtp.packets.H264Packet;
 import com.pedro.rtsp.rtp.packets.H265Packet;
+import com.pedro.rtsp.rtp.packets.UlpfecEncoder;
 import com.pedro.rtsp.rtp.packets.VideoPacketCallback;
 import com.pedro.rtsp.rtp.sockets.BaseRtpSocket;
+import com.pedro.rtsp.rtp.sockets.RtpSocketTcp;
+import com.pedro.rtsp.rtp.sockets.RtpSocketUdp;
 import com.pedro.rtsp.utils.BitrateManager;
 import com.pedro.rtsp.utils.ConnectCheckerRtsp;
 import com.pedro.rtsp.utils.RtpConstants;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -27,34 +39,82 @@ import java.util.concurrent.TimeUnit;
 public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
 
   private final static String TAG = "RtspSender";
+  //wait for more frames before flush frames buffered by socket
+  private final static long FLUSH_TIMEOUT_MS = 5;
   private BasePacket videoPacket;
   private AacPacket aacPacket;
   private BaseRtpSocket rtpSocket;
   private BaseSenderReport baseSenderReport;
   private volatile BlockingQueue<RtpFrame> rtpFrameBlockingQueue =
-      new LinkedBlockingQueue<>(getDefaultCacheSize());
+      new ArrayBlockingQueue<>(getDefaultCacheSize());
   private Thread thread;
   private ConnectCheckerRtsp connectCheckerRtsp;
-  private long audioFramesSent = 0;
-  private long videoFramesSent = 0;
-  private long droppedAudioFrames = 0;
-  private long droppedVideoFrames = 0;
+  //registered while started
+  private final InstanceMetrics metrics = new InstanceMetrics(MetricsRegistry.getDefault());
+  private final Counter audioFramesSent;
+  private final Counter videoFramesSent;
+  private final Counter droppedAudioFrames;
+  private final Counter droppedVideoFrames;
+  //time spent writing a packet to the socket, in us
+  private final Histogram writeTime;
+  private final Gauge queueSize;
   private BitrateManager bitrateManager;
+  private long udpPacingBitrate = 0;
+  private boolean tcpCoalescing = true;
+  private RtcpReceiver.Listener rtcpListener;
+  private boolean retransmission = false;
+  private volatile RtxCache rtxCache;
+  private boolean fec = false;
+  private volatile UlpfecEncoder ulpfecEncoder;
 
   public RtspSender(ConnectCheckerRtsp connectCheckerRtsp) {
     this.connectCheckerRtsp = connectCheckerRtsp;
-    bitrateManager = new BitrateManager(connectCheckerRtsp);
+    //per instance, other streams must not count in or reset these
+    bitrateManager = new BitrateManager(connectCheckerRtsp, metrics);
+    audioFramesSent = metrics.counter(MetricNames.RTSP_AUDIO_SENT);
+    videoFramesSent = metrics.counter(MetricNames.RTSP_VIDEO_SENT);
+    droppedAudioFrames = metrics.counter(MetricNames.RTSP_AUDIO_DROPPED);
+    droppedVideoFrames = metrics.counter(MetricNames.RTSP_VIDEO_DROPPED);
+    writeTime = metrics.histogram(MetricNames.RTSP_WRITE_TIME, MetricNames.LATENCY_BUCKETS);
+    queueSize = metrics.gauge(MetricNames.RTSP_QUEUE_SIZE);
   }
 
   public void setSocketsInfo(Protocol protocol, int[] videoSourcePorts, int[] audioSourcePorts) {
     rtpSocket = BaseRtpSocket.getInstance(protocol, videoSourcePorts[0], audioSourcePorts[0]);
     baseSenderReport =
         BaseSenderReport.getInstance(protocol, videoSourcePorts[1], audioSourcePorts[1]);
+    if (rtpSocket instanceof RtpSocketUdp) {
+      ((RtpSocketUdp) rtpSocket).setPacingBitrate(udpPacingBitrate);
+    } else if (rtpSocket instanceof RtpSocketTcp) {
+      ((RtpSocketTcp) rtpSocket).setCoalescing(tcpCoalescing);
+      ((SenderReportTcp) baseSenderReport).setRtpSocket((RtpSocketTcp) rtpSocket);
+    }
+    rtxCache = retransmission && protocol == Protocol.UDP ? new RtxCache() : null;
+    ulpfecEncoder = fec && protocol == Protocol.UDP ? new UlpfecEncoder(this) : null;
+    if (rtcpListener != null || rtxCache != null || ulpfecEncoder != null) {
+      baseSenderReport.setRtcpReceiver(new RtcpReceiver(new RtcpReceiver.Listener() {
+        @Override
+        public void onReceiverReport(boolean isVideo, float fractionLost, long jitter, long rtt) {
+          if (rtcpListener != null) {
+            rtcpListener.onReceiverReport(isVideo, fractionLost, jitter, rtt);
+          }
+          UlpfecEncoder encoder = ulpfecEncoder;
+          if (encoder != null && isVideo) encoder.setLossRate(fractionLost);
+        }
+
+        @Override
+        public void onNack(boolean isVideo, int sequenceNumber, int lostBitmask) {
+          if (rtcpListener != null) rtcpListener.onNack(isVideo, sequenceNumber, lostBitmask);
+          if (isVideo) retransmit(sequenceNumber, lostBitmask);
+        }
+      }));
+    }
   }
 
   public void setVideoInfo(byte[] sps, byte[] pps, byte[] vps) {
-    videoPacket =
-        vps == null ? new H264Packet(sps, pps, this) : new H265Packet(sps, pps, vps, this);
+    VideoPacketCallback videoPacketCallback = ulpfecEncoder != null ? ulpfecEncoder : this;
+    videoPacket = vps == null ? new H264Packet(sps, pps, videoPacketCallback)
+        : new H265Packet(sps, pps, vps, videoPacketCallback);
   }
 
   public void setAudioInfo(int sampleRate) {
@@ -68,6 +128,63 @@ public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
     return 10 * 1024 * 1024 / RtpConstants.MTU;
   }
 
+  /**
+   * Only used with UDP protocol.
+   *
+   * @param bitrate max send bitrate in bits per second, 0 to disable pacing.
+   */
+  public void setUdpPacingBitrate(long bitrate) {
+    udpPacingBitrate = bitrate;
+    if (rtpSocket instanceof RtpSocketUdp) {
+      ((RtpSocketUdp) rtpSocket).setPacingBitrate(bitrate);
+    }
+  }
+
+  /**
+   * Only used with TCP protocol. Enabled by default.
+   *
+   * @param coalescing false to write and flush each RTP packet individually.
+   */
+  public void setTcpCoalescing(boolean coalescing) {
+    tcpCoalescing = coalescing;
+    if (rtpSocket instanceof RtpSocketTcp) {
+      ((RtpSocketTcp) rtpSocket).setCoalescing(coalescing);
+    }
+  }
+
+  /**
+   * @param rtcpListener notified with RTCP receiver reports and NACK sent by server, null to
+   * ignore RTCP packets. Applied on next connection.
+   */
+  public void setRtcpListener(RtcpReceiver.Listener rtcpListener) {
+    this.rtcpListener = rtcpListener;
+  }
+
+  /**
+   * Start reading RTCP packets if a listener was set.
+   *
+   * @param interleavedReader reader of the RTSP socket, only used with TCP protocol.
+   */
+  public void startRtcpReceiver(InterleavedReader interleavedReader) {
+    baseSenderReport.startReceiving(interleavedReader);
+  }
+
+  /**
+   * Answer RTCP NACK from server with RTX packets. Only used with UDP protocol, applied on next
+   * connection.
+   */
+  public void setRetransmission(boolean retransmission) {
+    this.retransmission = retransmission;
+  }
+
+  /**
+   * Send XOR parity packets (RFC 5109) after groups of video packets. Only used with UDP protocol,
+   * applied on next connection.
+   */
+  public void setFec(boolean fec) {
+    this.fec = fec;
+  }
+
   public void setDataStream(OutputStream outputStream, String host) {
     rtpSocket.setDataStream(outputStream, host);
     baseSenderReport.setDataStream(outputStream, host);
@@ -82,59 +199,92 @@ public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
   }
 
   public void sendVideoFrame(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+    FrameTracer.trace(FrameTracer.Stage.MUXED, true, info.presentationTimeUs / 1000);
     videoPacket.createAndSendPacket(h264Buffer, info);
   }
 
   public void sendAudioFrame(ByteBuffer aacBuffer, MediaCodec.BufferInfo info) {
+    FrameTracer.trace(FrameTracer.Stage.MUXED, false, info.presentationTimeUs / 1000);
     aacPacket.createAndSendPacket(aacBuffer, info);
   }
 
   @Override
   public void onVideoFrameCreated(RtpFrame rtpFrame) {
     try {
+      //before add, sender thread recycle the frame once sent
+      trace(FrameTracer.Stage.ENQUEUED, rtpFrame, System.nanoTime());
       rtpFrameBlockingQueue.add(rtpFrame);
     } catch (IllegalStateException e) {
       Log.i(TAG, "Video frame discarded");
-      droppedVideoFrames++;
+      droppedVideoFrames.increment();
+      rtpFrame.recycle();
     }
   }
 
   @Override
   public void onAudioFrameCreated(RtpFrame rtpFrame) {
     try {
+      //before add, sender thread recycle the frame once sent
+      trace(FrameTracer.Stage.ENQUEUED, rtpFrame, System.nanoTime());
       rtpFrameBlockingQueue.add(rtpFrame);
     } catch (IllegalStateException e) {
       Log.i(TAG, "Audio frame discarded");
-      droppedAudioFrames++;
+      droppedAudioFrames.increment();
+      rtpFrame.recycle();
     }
   }
 
   public void start() {
+    metrics.register();
     thread = new Thread(new Runnable() {
       @Override
       public void run() {
         while (!Thread.interrupted()) {
+          RtpFrame rtpFrame = null;
           try {
-            RtpFrame rtpFrame = rtpFrameBlockingQueue.poll(1, TimeUnit.SECONDS);
+            rtpFrame = rtpFrameBlockingQueue.poll(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (rtpFrame == null) {
+              //no more frames soon, send what socket could have buffered
+              rtpSocket.flush();
+              rtpFrame = rtpFrameBlockingQueue.poll(1, TimeUnit.SECONDS);
+            }
             if (rtpFrame == null) {
               Log.i(TAG, "Skipping iteration, frame null");
               continue;
             }
+            queueSize.set(rtpFrameBlockingQueue.size());
+            long startNs = System.nanoTime();
+            trace(FrameTracer.Stage.DEQUEUED, rtpFrame, startNs);
             rtpSocket.sendFrame(rtpFrame);
+            //RTX copy the marker bit of the lost packet, don't let it wait for an access unit end
+            if (isRtxPacket(rtpFrame) && !isRtxPacket(rtpFrameBlockingQueue.peek())) {
+              rtpSocket.flush();
+            }
+            long endNs = System.nanoTime();
+            writeTime.record((endNs - startNs) / 1000);
+            trace(FrameTracer.Stage.SENT, rtpFrame, endNs);
             //bytes to bits
             bitrateManager.calculateBitrate(rtpFrame.getLength() * 8);
             if (rtpFrame.isVideoFrame()) {
-              videoFramesSent++;
+              videoFramesSent.increment();
             } else {
-              audioFramesSent++;
+              audioFramesSent.increment();
+            }
+            //RTX and FEC use other SSRC, not counted in sender report
+            if (isMediaPacket(rtpFrame)) {
+              RtxCache cache = rtxCache;
+              if (cache != null && rtpFrame.isVideoFrame()) cache.store(rtpFrame);
+              baseSenderReport.update(rtpFrame);
             }
-            baseSenderReport.update(rtpFrame);
           } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
           } catch (IOException e) {
             Thread.currentThread().interrupt();
             Log.e(TAG, "send error: ", e);
             connectCheckerRtsp.onConnectionFailedRtsp("Error send packet, " + e.getMessage());
+          } finally {
+            //frame buffer is reused by packetizer after this
+            if (rtpFrame != null) rtpFrame.recycle();
           }
         }
       }
@@ -153,6 +303,7 @@ public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
       thread = null;
     }
     rtpFrameBlockingQueue.clear();
+    rtxCache = null;
     baseSenderReport.reset();
     baseSenderReport.close();
     rtpSocket.close();
@@ -163,6 +314,52 @@ public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
     resetSentVideoFrames();
     resetDroppedAudioFrames();
     resetDroppedVideoFrames();
+    metrics.unregister();
+  }
+
+  private boolean isMediaPacket(RtpFrame rtpFrame) {
+    return (rtpFrame.getBuffer()[1] & 0x7F) == RtpConstants.payloadType;
+  }
+
+  private boolean isRtxPacket(RtpFrame rtpFrame) {
+    return rtpFrame != null
+        && (rtpFrame.getBuffer()[1] & 0x7F) == RtpConstants.rtxPayloadType;
+  }
+
+  /**
+   * Stamp last packet of each video frame (marker bit) and every audio packet.
+   */
+  private void trace(FrameTracer.Stage stage, RtpFrame rtpFrame, long timeNs) {
+    if (!FrameTracer.isEnabled()) return;
+    boolean isVideo = rtpFrame.isVideoFrame();
+    if (!isMediaPacket(rtpFrame) || (isVideo && (rtpFrame.getBuffer()[1] & 0x80) == 0)) return;
+    //rtp frame timestamp is pts in ns
+    FrameTracer.trace(stage, isVideo, rtpFrame.getTimeStamp() / 1000000, timeNs);
+  }
+
+  /**
+   * Queue RTX packets for the lost packets, sender thread flushes the socket after the last one.
+   */
+  private void retransmit(int sequenceNumber, int lostBitmask) {
+    RtxCache cache = rtxCache;
+    if (cache == null) return;
+    for (int i = -1; i < 16; i++) {
+      if (i >= 0 && (lostBitmask & (1 << i)) == 0) continue;
+      RtpFrame rtpFrame = cache.createRetransmission((sequenceNumber + i + 1) & 0xFFFF);
+      if (rtpFrame != null && !rtpFrameBlockingQueue.offer(rtpFrame)) {
+        rtpFrame.recycle();
+      }
+    }
+  }
+
+  public long getRetransmittedPackets() {
+    RtxCache cache = rtxCache;
+    return cache != null ? cache.getRetransmittedPackets() : 0;
+  }
+
+  public long getMissedRetransmissions() {
+    RtxCache cache = rtxCache;
+    return cache != null ? cache.getMissedPackets() : 0;
   }
 
   public void resizeCache(int newSize) {
@@ -170,7 +367,7 @@ public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
       throw new RuntimeException("Can't fit current cache inside new cache size");
     }
 
-    BlockingQueue<RtpFrame> tempQueue = new LinkedBlockingQueue<>(newSize);
+    BlockingQueue<RtpFrame> tempQueue = new ArrayBlockingQueue<>(newSize);
     rtpFrameBlockingQueue.drainTo(tempQueue);
     rtpFrameBlockingQueue = tempQueue;
   }
@@ -180,34 +377,34 @@ public class RtspSender implements VideoPacketCallback, AudioPacketCallback {
   }
 
   public long getSentAudioFrames() {
-    return audioFramesSent;
+    return audioFramesSent.get();
   }
 
   public long getSentVideoFrames() {
-    return videoFramesSent;
+    return videoFramesSent.get();
   }
 
   public long getDroppedAudioFrames() {
-    return droppedAudioFrames;
+    return droppedAudioFrames.get();
   }
 
   public long getDroppedVideoFrames() {
-    return droppedVideoFrames;
+    return droppedVideoFrames.get();
   }
 
   public void resetSentAudioFrames() {
-    audioFramesSent = 0;
+    audioFramesSent.reset();
   }
 
   public void resetSentVideoFrames() {
-    videoFramesSent = 0;
+    videoFramesSent.reset();
   }
 
   public void resetDroppedAudioFrames() {
-    droppedAudioFrames = 0;
+    droppedAudioFrames.reset();
   }
 
   public void resetDroppedVideoFrames() {
-    droppedVideoFrames = 0;
+    droppedVideoFrames.reset();
   }
 }
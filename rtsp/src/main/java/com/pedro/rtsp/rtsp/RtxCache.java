@@ -0,0 +1,170 @@
+package com.pedro.rtsp.rtsp;
+
+import com.pedro.rtsp.utils.RtpConstants;
+import java.util.Random;
+
+/**
+ * History of sent video RTP packets indexed by sequence number, used to answer RTCP NACK with
+ * RTX packets (RFC 4588). Packets are evicted by age and when the byte budget is exceeded.
+ */
+public class RtxCache {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final long DEFAULT_MAX_AGE_MS = 1000;
+  public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+  //OSN (original sequence number) added before original payload
+  private static final int RTX_HEADER_LENGTH = RtpConstants.RTP_HEADER_LENGTH + 2;
+
+  private final byte[][] buffers;
+  private final int[] lengths;
+  private final int[] sequences;
+  private final long[] sentTimes;
+  private final int mask;
+  private final long maxAgeNs;
+  private final int maxBytes;
+  private int totalBytes = 0;
+  private int count = 0;
+  private int oldestSequence = 0;
+  private int rtpPort;
+  private int rtcpPort;
+  private byte channelIdentifier;
+  private int rtxSequence;
+  private final int rtxSsrc;
+  private final RtpFramePool rtpFramePool = new RtpFramePool(64, RtpConstants.MTU);
+  private long retransmittedPackets = 0;
+  private long missedPackets = 0;
+
+  public RtxCache() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MS, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param capacity max packets stored, rounded up to a power of two and limited to 65536.
+   * @param maxAgeMs packets older than this can't be retransmitted.
+   * @param maxBytes max bytes stored.
+   */
+  public RtxCache(int capacity, long maxAgeMs, int maxBytes) {
+    int size = Integer.highestOneBit(Math.max(1, Math.min(capacity, 65536)));
+    if (size < capacity && size < 65536) size <<= 1;
+    buffers = new byte[size][];
+    lengths = new int[size];
+    sequences = new int[size];
+    sentTimes = new long[size];
+    mask = size - 1;
+    for (int i = 0; i < size; i++) sequences[i] = -1;
+    this.maxAgeNs = maxAgeMs * 1000000L;
+    this.maxBytes = maxBytes;
+    Random random = new Random();
+    rtxSsrc = random.nextInt();
+    rtxSequence = random.nextInt(65536);
+  }
+
+  /**
+   * Copy a sent video packet. RTX and FEC packets are ignored.
+   */
+  public synchronized void store(RtpFrame rtpFrame) {
+    byte[] buffer = rtpFrame.getBuffer();
+    if ((buffer[1] & 0x7F) != RtpConstants.payloadType) return;
+    int length = rtpFrame.getLength();
+    int sequence = getSequence(buffer);
+    long now = System.nanoTime();
+    rtpPort = rtpFrame.getRtpPort();
+    rtcpPort = rtpFrame.getRtcpPort();
+    channelIdentifier = rtpFrame.getChannelIdentifier();
+    evict(now, length);
+    int index = sequence & mask;
+    if (sequences[index] != -1) remove(index);
+    if (buffers[index] == null || buffers[index].length < length) {
+      buffers[index] = new byte[Math.max(length, RtpConstants.MTU)];
+    }
+    System.arraycopy(buffer, 0, buffers[index], 0, length);
+    lengths[index] = length;
+    sequences[index] = sequence;
+    sentTimes[index] = now;
+    totalBytes += length;
+    if (count == 0) oldestSequence = sequence;
+    count++;
+  }
+
+  /**
+   * @return a RTX packet with the packet requested, null if it is not in the cache. Must be
+   * recycled after send it.
+   */
+  public synchronized RtpFrame createRetransmission(int sequence) {
+    int index = sequence & mask;
+    if (sequences[index] != sequence || System.nanoTime() - sentTimes[index] > maxAgeNs) {
+      missedPackets++;
+      return null;
+    }
+    byte[] original = buffers[index];
+    int length = lengths[index];
+    RtpFrame rtpFrame = rtpFramePool.acquire(length + 2);
+    byte[] buffer = rtpFrame.getBuffer();
+    //copy V, P, X, CC, M and timestamp, change payload type, sequence and ssrc
+    System.arraycopy(original, 0, buffer, 0, 8);
+    buffer[1] = (byte) ((original[1] & 0x80) | RtpConstants.rtxPayloadType);
+    rtxSequence = (rtxSequence + 1) & 0xFFFF;
+    buffer[2] = (byte) (rtxSequence >> 8);
+    buffer[3] = (byte) rtxSequence;
+    buffer[8] = (byte) (rtxSsrc >> 24);
+    buffer[9] = (byte) (rtxSsrc >> 16);
+    buffer[10] = (byte) (rtxSsrc >> 8);
+    buffer[11] = (byte) rtxSsrc;
+    buffer[RtpConstants.RTP_HEADER_LENGTH] = original[2];
+    buffer[RtpConstants.RTP_HEADER_LENGTH + 1] = original[3];
+    System.arraycopy(original, RtpConstants.RTP_HEADER_LENGTH, buffer, RTX_HEADER_LENGTH,
+        length - RtpConstants.RTP_HEADER_LENGTH);
+    rtpFrame.setLength(length + 2);
+    rtpFrame.setRtpPort(rtpPort);
+    rtpFrame.setRtcpPort(rtcpPort);
+    rtpFrame.setChannelIdentifier(channelIdentifier);
+    retransmittedPackets++;
+    return rtpFrame;
+  }
+
+  public synchronized void clear() {
+    for (int i = 0; i < sequences.length; i++) sequences[i] = -1;
+    totalBytes = 0;
+    count = 0;
+  }
+
+  public synchronized long getRetransmittedPackets() {
+    return retransmittedPackets;
+  }
+
+  public synchronized long getMissedPackets() {
+    return missedPackets;
+  }
+
+  public synchronized void resetRetransmittedPackets() {
+    retransmittedPackets = 0;
+  }
+
+  public synchronized void resetMissedPackets() {
+    missedPackets = 0;
+  }
+
+  /**
+   * Remove oldest packets while they are too old or the new packet doesn't fit in the budget.
+   */
+  private void evict(long now, int newLength) {
+    while (count > 0) {
+      int index = oldestSequence & mask;
+      if (sequences[index] == oldestSequence) {
+        if (now - sentTimes[index] <= maxAgeNs && totalBytes + newLength <= maxBytes) break;
+        remove(index);
+      }
+      oldestSequence = (oldestSequence + 1) & 0xFFFF;
+    }
+  }
+
+  private void remove(int index) {
+    totalBytes -= lengths[index];
+    sequences[index] = -1;
+    count--;
+  }
+
+  private int getSequence(byte[] buffer) {
+    return ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+  }
+}
@@ -1,5 +1,10 @@
 package com.pedro.rtsp.utils;
 
+import com.pedro.encoder.utils.metrics.Gauge;
+import com.pedro.encoder.utils.metrics.InstanceMetrics;
+import com.pedro.encoder.utils.metrics.MetricNames;
+import com.pedro.encoder.utils.metrics.MetricsRegistry;
+
 /**
  * Created by pedro on 10/07/19.
  *
@@ -9,17 +14,28 @@ public class BitrateManager {
 
   private long bitrate;
   private long timeStamp = System.currentTimeMillis();
+  private final Gauge bitrateGauge;
   private ConnectCheckerRtsp connectCheckerRtsp;
 
   public BitrateManager(ConnectCheckerRtsp connectCheckerRtsp) {
+    this(connectCheckerRtsp, new InstanceMetrics(MetricsRegistry.getDefault()));
+  }
+
+  /**
+   * @param metrics metrics of the sender or connection.
+   */
+  public BitrateManager(ConnectCheckerRtsp connectCheckerRtsp, InstanceMetrics metrics) {
     this.connectCheckerRtsp = connectCheckerRtsp;
+    bitrateGauge = metrics.gauge(MetricNames.RTSP_BITRATE);
   }
 
   public synchronized void calculateBitrate(long size) {
     bitrate += size;
     long timeDiff = System.currentTimeMillis() - timeStamp;
     if (timeDiff >= 1000) {
-      connectCheckerRtsp.onNewBitrateRtsp((int) (bitrate / (timeDiff / 1000f)));
+      int currentBitrate = (int) (bitrate / (timeDiff / 1000f));
+      bitrateGauge.set(currentBitrate);
+      connectCheckerRtsp.onNewBitrateRtsp(currentBitrate);
       timeStamp = System.currentTimeMillis();
       bitrate = 0;
     }
@@ -0,0 +1,84 @@
+package com.pedro.rtsp.utils;
+
+import android.util.Log;
+import com.pedro.rtsp.rtcp.RtcpReceiver;
+
+/**
+ * Send side bitrate controller driven by RTCP receiver reports, similar to loss based part of
+ * GCC. Bitrate is increased slowly while loss is low, kept with moderate loss and reduced with
+ * high loss or when RTT grows over the minimum RTT seen (queues filling in the path).
+ */
+public class LossBasedBitrateController implements RtcpReceiver.Listener {
+
+  public interface Listener {
+    void onBitrateAdapted(int bitrate);
+  }
+
+  private static final String TAG = "LossBitrateController";
+  private static final float LOW_LOSS = 0.02f;
+  private static final float HIGH_LOSS = 0.1f;
+  private static final float INCREASE_FACTOR = 1.05f;
+  private static final float DELAY_DECREASE_FACTOR = 0.85f;
+  private static final long RTT_CONGESTION_MS = 150;
+  private static final long MIN_INCREASE_INTERVAL_MS = 1000;
+  //audio and video reports come together, avoid reduce twice for the same congestion
+  private static final long MIN_DECREASE_INTERVAL_MS = 500;
+
+  private final Listener listener;
+  private final int minBitrate;
+  private final int maxBitrate;
+  private final int startBitrate;
+  private int bitrate;
+  private long minRtt = Long.MAX_VALUE;
+  private long lastIncreaseTime = 0;
+  private long lastDecreaseTime = 0;
+
+  public LossBasedBitrateController(int startBitrate, int minBitrate, int maxBitrate,
+      Listener listener) {
+    this.startBitrate = startBitrate;
+    this.minBitrate = minBitrate;
+    this.maxBitrate = maxBitrate;
+    this.listener = listener;
+    reset();
+  }
+
+  @Override
+  public synchronized void onReceiverReport(boolean isVideo, float fractionLost, long jitter,
+      long rtt) {
+    long now = System.currentTimeMillis();
+    if (rtt >= 0) minRtt = Math.min(minRtt, rtt);
+    boolean delayCongestion = rtt >= 0 && rtt - minRtt > RTT_CONGESTION_MS;
+    int newBitrate = bitrate;
+    if (fractionLost > HIGH_LOSS || delayCongestion) {
+      if (now - lastDecreaseTime < MIN_DECREASE_INTERVAL_MS) return;
+      lastDecreaseTime = now;
+      newBitrate = fractionLost > HIGH_LOSS ? (int) (bitrate * (1 - 0.5f * fractionLost))
+          : (int) (bitrate * DELAY_DECREASE_FACTOR);
+    } else if (fractionLost < LOW_LOSS) {
+      if (now - lastIncreaseTime < MIN_INCREASE_INTERVAL_MS) return;
+      lastIncreaseTime = now;
+      newBitrate = (int) (bitrate * INCREASE_FACTOR);
+    }
+    newBitrate = Math.max(minBitrate, Math.min(maxBitrate, newBitrate));
+    if (newBitrate != bitrate) {
+      Log.i(TAG, "loss: " + fractionLost + ", rtt: " + rtt + ", new bitrate: " + newBitrate);
+      bitrate = newBitrate;
+      listener.onBitrateAdapted(newBitrate);
+    }
+  }
+
+  @Override
+  public void onNack(boolean isVideo, int sequenceNumber, int lostBitmask) {
+    //loss is already reported by receiver reports
+  }
+
+  public synchronized int getBitrate() {
+    return bitrate;
+  }
+
+  public synchronized void reset() {
+    bitrate = Math.max(minBitrate, Math.min(maxBitrate, startBitrate));
+    minRtt = Long.MAX_VALUE;
+    lastIncreaseTime = lastDecreaseTime = 0;
+  }
+}
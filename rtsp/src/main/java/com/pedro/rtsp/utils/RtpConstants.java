@@ -9,6 +9,10 @@ public class RtpConstants {
   public static final int RTP_HEADER_LENGTH = 12;
   public static final int MTU = 1300;
   public static final int payloadType = 96;
+  //RFC 4588 retransmission
+  public static final int rtxPayloadType = 97;
+  //RFC 5109 parity packets
+  public static final int fecPayloadType = 98;
   //H264 IDR
   public static final int IDR = 5;
   //H265 IDR
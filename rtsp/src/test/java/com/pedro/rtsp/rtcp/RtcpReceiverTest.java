@@ -0,0 +1,166 @@
+package com.pedro.rtsp.rtcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class RtcpReceiverTest {
+
+  private static class RecordingListener implements RtcpReceiver.Listener {
+
+    private final List<int[]> nacks = new ArrayList<>();
+    private final List<Float> losses = new ArrayList<>();
+    private final List<Long> rtts = new ArrayList<>();
+    private boolean lastIsVideo;
+
+    @Override
+    public void onReceiverReport(boolean isVideo, float fractionLost, long jitter, long rtt) {
+      lastIsVideo = isVideo;
+      losses.add(fractionLost);
+      rtts.add(rtt);
+    }
+
+    @Override
+    public void onNack(boolean isVideo, int sequenceNumber, int lostBitmask) {
+      lastIsVideo = isVideo;
+      nacks.add(new int[] { sequenceNumber, lostBitmask });
+    }
+  }
+
+  @Test
+  public void nackFeedbackControlInformationIsParsed() {
+    RecordingListener listener = new RecordingListener();
+    RtcpReceiver rtcpReceiver = new RtcpReceiver(listener);
+    byte[] nack = nack(new int[] { 65535, 0x0000, 1000, 0x8001 });
+
+    rtcpReceiver.onRtcpPacket(nack, 0, nack.length, true);
+
+    assertEquals(2, listener.nacks.size());
+    assertEquals(65535, listener.nacks.get(0)[0]);
+    assertEquals(0, listener.nacks.get(0)[1]);
+    assertEquals(1000, listener.nacks.get(1)[0]);
+    assertEquals(0x8001, listener.nacks.get(1)[1]);
+    assertTrue(listener.lastIsVideo);
+    assertEquals(2, rtcpReceiver.getReceivedNacks());
+  }
+
+  @Test
+  public void compoundReceiverReportAndNackAreParsed() {
+    RecordingListener listener = new RecordingListener();
+    RtcpReceiver rtcpReceiver = new RtcpReceiver(listener);
+    byte[] rr = receiverReport(64);
+    byte[] nack = nack(new int[] { 42, 0x0003 });
+    byte[] compound = new byte[rr.length + nack.length + 3];
+    System.arraycopy(rr, 0, compound, 3, rr.length);
+    System.arraycopy(nack, 0, compound, 3 + rr.length, nack.length);
+
+    rtcpReceiver.onRtcpPacket(compound, 3, rr.length + nack.length, false);
+
+    assertEquals(1, listener.losses.size());
+    assertEquals(0.25f, listener.losses.get(0), 0.0001f);
+    //LSR 0 means no sender report received yet
+    assertEquals(-1L, (long) listener.rtts.get(0));
+    assertEquals(1, listener.nacks.size());
+    assertEquals(42, listener.nacks.get(0)[0]);
+    assertEquals(3, listener.nacks.get(0)[1]);
+    assertEquals(false, listener.lastIsVideo);
+  }
+
+  @Test
+  public void truncatedPacketIsIgnored() {
+    RecordingListener listener = new RecordingListener();
+    RtcpReceiver rtcpReceiver = new RtcpReceiver(listener);
+    byte[] nack = nack(new int[] { 1, 0, 2, 0 });
+
+    rtcpReceiver.onRtcpPacket(nack, 0, nack.length - 4, true);
+
+    assertEquals(0, listener.nacks.size());
+  }
+
+  @Test
+  public void otherFeedbackMessagesAreIgnored() {
+    RecordingListener listener = new RecordingListener();
+    RtcpReceiver rtcpReceiver = new RtcpReceiver(listener);
+    byte[] nack = nack(new int[] { 1, 0 });
+    //FMT 3 is TMMBR
+    nack[0] = (byte) 0x83;
+
+    rtcpReceiver.onRtcpPacket(nack, 0, nack.length, true);
+
+    assertEquals(0, listener.nacks.size());
+  }
+
+  @Test
+  public void rttIsCalculatedFromLsrAndDlsr() {
+    RecordingListener listener = new RecordingListener();
+    RtcpReceiver rtcpReceiver = new RtcpReceiver(listener);
+    //our SR sent 100 ms ago, held 60 ms by the receiver before its RR
+    byte[] rr = receiverReport(0);
+    setLong(rr, 24, middleNtp(System.nanoTime() - 100000000L));
+    setLong(rr, 28, 60 * 65536 / 1000);
+
+    rtcpReceiver.onRtcpPacket(rr, 0, rr.length, true);
+
+    long rtt = listener.rtts.get(0);
+    assertTrue("rtt " + rtt, rtt >= 39 && rtt < 60);
+  }
+
+  @Test
+  public void wrongLsrIsDiscarded() {
+    RecordingListener listener = new RecordingListener();
+    RtcpReceiver rtcpReceiver = new RtcpReceiver(listener);
+    //DLSR bigger than the time since LSR, rtt would be negative and wrap
+    byte[] rr = receiverReport(0);
+    setLong(rr, 24, middleNtp(System.nanoTime()));
+    setLong(rr, 28, 65536);
+
+    rtcpReceiver.onRtcpPacket(rr, 0, rr.length, true);
+
+    assertEquals(-1L, (long) listener.rtts.get(0));
+  }
+
+  /**
+   * Middle 32 bits of the NTP timestamp BaseSenderReport writes in its SR at the given time.
+   */
+  private static long middleNtp(long nanoTime) {
+    long hb = nanoTime / 1000000000;
+    long lb = ((nanoTime - hb * 1000000000) * 4294967296L) / 1000000000;
+    return ((hb & 0xFFFF) << 16) | (lb >>> 16);
+  }
+
+  private static void setLong(byte[] buffer, int offset, long value) {
+    buffer[offset] = (byte) (value >> 24);
+    buffer[offset + 1] = (byte) (value >> 16);
+    buffer[offset + 2] = (byte) (value >> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  /**
+   * Generic NACK (RFC 4585 6.2.1) with pairs of packet id and bitmask of following lost packets.
+   */
+  static byte[] nack(int[] fci) {
+    int length = 12 + fci.length * 2;
+    byte[] packet = new byte[length];
+    packet[0] = (byte) 0x81;
+    packet[1] = (byte) 205;
+    packet[2] = (byte) ((length / 4 - 1) >> 8);
+    packet[3] = (byte) (length / 4 - 1);
+    for (int i = 0; i < fci.length; i++) {
+      packet[12 + i * 2] = (byte) (fci[i] >> 8);
+      packet[13 + i * 2] = (byte) fci[i];
+    }
+    return packet;
+  }
+
+  static byte[] receiverReport(int fractionLost) {
+    byte[] packet = new byte[32];
+    packet[0] = (byte) 0x81;
+    packet[1] = (byte) 201;
+    packet[3] = 7;
+    packet[12] = (byte) fractionLost;
+    return packet;
+  }
+}
@@ -0,0 +1,97 @@
+package com.pedro.rtsp.rtcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * RTCP sent by the server to the video and audio source ports over loopback UDP reaches the
+ * receive threads and is notified with the track of the port it arrived on.
+ */
+public class SenderReportUdpTest {
+
+  @Test
+  public void receiverReportsAndNacksAreReceived() throws Exception {
+    int videoPort = freePort();
+    int audioPort = freePort();
+    RecordingListener listener = new RecordingListener();
+    SenderReportUdp senderReportUdp = new SenderReportUdp(videoPort, audioPort);
+    senderReportUdp.setRtcpReceiver(new RtcpReceiver(listener));
+    senderReportUdp.setDataStream(null, "127.0.0.1");
+    senderReportUdp.startReceiving(null);
+
+    DatagramSocket server = new DatagramSocket();
+    InetAddress loopback = InetAddress.getByName("127.0.0.1");
+    try {
+      byte[] rr = RtcpReceiverTest.receiverReport(64);
+      server.send(new DatagramPacket(rr, rr.length, loopback, videoPort));
+      byte[] nack = RtcpReceiverTest.nack(new int[] { 42, 0x0003 });
+      server.send(new DatagramPacket(nack, nack.length, loopback, audioPort));
+
+      listener.await(2);
+    } finally {
+      server.close();
+      senderReportUdp.close();
+    }
+
+    List<String> events = listener.getEvents();
+    assertTrue(events.contains("rr video 0.25"));
+    assertTrue(events.contains("nack audio 42 3"));
+    for (Thread thread : listener.getThreads()) {
+      assertNotSame(Thread.currentThread(), thread);
+    }
+  }
+
+  private static int freePort() throws Exception {
+    DatagramSocket socket = new DatagramSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    return port;
+  }
+
+  private static class RecordingListener implements RtcpReceiver.Listener {
+
+    private final List<String> events = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @Override
+    public synchronized void onReceiverReport(boolean isVideo, float fractionLost, long jitter,
+        long rtt) {
+      record("rr " + (isVideo ? "video " : "audio ") + fractionLost);
+    }
+
+    @Override
+    public synchronized void onNack(boolean isVideo, int sequenceNumber, int lostBitmask) {
+      record("nack " + (isVideo ? "video " : "audio ") + sequenceNumber + " " + lostBitmask);
+    }
+
+    private void record(String event) {
+      events.add(event);
+      threads.add(Thread.currentThread());
+      notifyAll();
+    }
+
+    synchronized void await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (events.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      assertEquals(count, events.size());
+    }
+
+    synchronized List<String> getEvents() {
+      return new ArrayList<>(events);
+    }
+
+    synchronized List<Thread> getThreads() {
+      return new ArrayList<>(threads);
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package com.pedro.rtsp.rtp.packets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import com.pedro.rtsp.rtsp.RtpFrame;
+import com.pedro.rtsp.utils.RtpConstants;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class UlpfecEncoderTest {
+
+  private static final int FEC_HEADER_LENGTH = 14;
+
+  @Test
+  public void parityRecoversAnyPacketOfTheGroup() {
+    Collector collector = new Collector();
+    UlpfecEncoder encoder = new UlpfecEncoder(collector);
+    encoder.setGroupSize(4);
+    //different lengths, marker and timestamps to check every recovered field
+    encoder.onVideoFrameCreated(newMedia(100, 1000, 300, false));
+    encoder.onVideoFrameCreated(newMedia(101, 1000, 1200, false));
+    encoder.onVideoFrameCreated(newMedia(102, 4000, 40, false));
+    encoder.onVideoFrameCreated(newMedia(103, 4000, 700, true));
+
+    assertEquals(1, collector.fec.size());
+    for (int lost = 100; lost <= 103; lost++) {
+      Map<Integer, byte[]> received = new HashMap<>(collector.media);
+      byte[] original = received.remove(lost);
+      assertArrayEquals(original, recover(collector.fec.get(0), received));
+    }
+  }
+
+  @Test
+  public void lastParityOfFrameIsSentBeforeMarkerPacket() {
+    Collector collector = new Collector();
+    UlpfecEncoder encoder = new UlpfecEncoder(collector);
+    encoder.setGroupSize(16);
+    encoder.onVideoFrameCreated(newMedia(1, 0, 500, false));
+    encoder.onVideoFrameCreated(newMedia(2, 0, 500, false));
+    encoder.onVideoFrameCreated(newMedia(3, 0, 200, true));
+
+    assertEquals(4, collector.order.size());
+    assertEquals(RtpConstants.fecPayloadType, collector.order.get(2)[1] & 0x7F);
+    assertEquals(3, getSequence(collector.order.get(3)));
+    Map<Integer, byte[]> received = new HashMap<>(collector.media);
+    byte[] original = received.remove(3);
+    assertArrayEquals(original, recover(collector.fec.get(0), received));
+  }
+
+  @Test
+  public void partialGroupIsProtectedOnSequenceGap() {
+    Collector collector = new Collector();
+    UlpfecEncoder encoder = new UlpfecEncoder(collector);
+    encoder.setGroupSize(16);
+    encoder.onVideoFrameCreated(newMedia(65534, 0, 500, false));
+    encoder.onVideoFrameCreated(newMedia(65535, 0, 600, false));
+    //packets dropped before the encoder
+    encoder.onVideoFrameCreated(newMedia(40, 0, 500, false));
+
+    assertEquals(1, collector.fec.size());
+    assertEquals(RtpConstants.fecPayloadType, collector.order.get(2)[1] & 0x7F);
+    Map<Integer, byte[]> received = new HashMap<>(collector.media);
+    byte[] original = received.remove(65535);
+    received.remove(40);
+    assertArrayEquals(original, recover(collector.fec.get(0), received));
+  }
+
+  @Test
+  public void lossyLoopbackRecoversSingleLossPerGroup() {
+    Collector collector = new Collector();
+    UlpfecEncoder encoder = new UlpfecEncoder(collector);
+    encoder.setLossRate(0.05f);
+    assertEquals(5, encoder.getGroupSize());
+    H264Packet h264Packet = new H264Packet(new byte[] { 0x67, 0x42, 0x00, 0x1f },
+        new byte[] { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 }, encoder);
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    Random random = new Random(1234);
+    for (int i = 0; i < 300; i++) {
+      int size = i % 30 == 0 ? 40000 : 2000 + random.nextInt(8000);
+      ByteBuffer frame = ByteBuffer.allocate(size);
+      frame.put(new byte[] { 0, 0, 0, 1, (byte) (i % 30 == 0 ? 0x65 : 0x41) });
+      byte[] data = new byte[size - 5];
+      random.nextBytes(data);
+      frame.put(data);
+      bufferInfo.size = size;
+      bufferInfo.presentationTimeUs = i * 33333L;
+      bufferInfo.flags = i % 30 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      h264Packet.createAndSendPacket(frame, bufferInfo);
+    }
+
+    //5% random loss of media and parity packets
+    Map<Integer, byte[]> received = new HashMap<>();
+    List<byte[]> receivedFec = new ArrayList<>();
+    int lost = 0;
+    for (byte[] packet : collector.order) {
+      if (random.nextFloat() < 0.05f) {
+        if ((packet[1] & 0x7F) != RtpConstants.fecPayloadType) lost++;
+        continue;
+      }
+      if ((packet[1] & 0x7F) == RtpConstants.fecPayloadType) {
+        receivedFec.add(packet);
+      } else {
+        received.put(getSequence(packet), packet);
+      }
+    }
+    int recovered = 0;
+    for (byte[] fec : receivedFec) {
+      byte[] packet = recover(fec, received);
+      if (packet != null) {
+        assertArrayEquals(collector.media.get(getSequence(packet)), packet);
+        received.put(getSequence(packet), packet);
+        recovered++;
+      }
+    }
+    System.out.println("ULPFEC loopback: " + collector.media.size() + " media packets, "
+        + receivedFec.size() + " parity packets received, " + lost + " lost, " + recovered
+        + " recovered");
+    assertTrue(lost > 0);
+    assertTrue(recovered > lost / 2);
+    assertEquals(collector.media.size() - lost + recovered, received.size());
+  }
+
+  /**
+   * RFC 5109 section 8 recovery of one packet protected by a FEC packet.
+   *
+   * @return recovered packet or null if none or more than one packet is missing.
+   */
+  private static byte[] recover(byte[] fec, Map<Integer, byte[]> received) {
+    int offset = RtpConstants.RTP_HEADER_LENGTH;
+    int baseSequence = ((fec[offset + 2] & 0xFF) << 8) | (fec[offset + 3] & 0xFF);
+    int protectionLength = ((fec[offset + 10] & 0xFF) << 8) | (fec[offset + 11] & 0xFF);
+    int mask = ((fec[offset + 12] & 0xFF) << 8) | (fec[offset + 13] & 0xFF);
+    int byte0 = fec[offset] & 0xFF;
+    int byte1 = fec[offset + 1] & 0xFF;
+    long timeStamp = getInt(fec, offset + 4);
+    int length = ((fec[offset + 8] & 0xFF) << 8) | (fec[offset + 9] & 0xFF);
+    byte[] payload = new byte[protectionLength];
+    System.arraycopy(fec, offset + FEC_HEADER_LENGTH, payload, 0, protectionLength);
+    int missing = -1;
+    for (int i = 0; i < 16; i++) {
+      if ((mask & (0x8000 >>> i)) == 0) continue;
+      int sequence = (baseSequence + i) & 0xFFFF;
+      byte[] media = received.get(sequence);
+      if (media == null) {
+        if (missing != -1) return null;
+        missing = sequence;
+        continue;
+      }
+      byte0 ^= media[0] & 0xFF;
+      byte1 ^= media[1] & 0xFF;
+      timeStamp ^= getInt(media, 4);
+      int payloadLength = media.length - RtpConstants.RTP_HEADER_LENGTH;
+      length ^= payloadLength;
+      for (int j = 0; j < payloadLength; j++) {
+        payload[j] ^= media[RtpConstants.RTP_HEADER_LENGTH + j];
+      }
+    }
+    if (missing == -1) return null;
+    byte[] packet = new byte[RtpConstants.RTP_HEADER_LENGTH + length];
+    packet[0] = (byte) (0x80 | (byte0 & 0x3F));
+    packet[1] = (byte) byte1;
+    packet[2] = (byte) (missing >> 8);
+    packet[3] = (byte) missing;
+    packet[4] = (byte) (timeStamp >> 24);
+    packet[5] = (byte) (timeStamp >> 16);
+    packet[6] = (byte) (timeStamp >> 8);
+    packet[7] = (byte) timeStamp;
+    //SSRC is known by the receiver, take it from any media packet
+    System.arraycopy(received.values().iterator().next(), 8, packet, 8, 4);
+    System.arraycopy(payload, 0, packet, RtpConstants.RTP_HEADER_LENGTH, length);
+    return packet;
+  }
+
+  private static RtpFrame newMedia(int sequence, long timeStamp, int payloadLength,
+      boolean marker) {
+    byte[] buffer = new byte[RtpConstants.RTP_HEADER_LENGTH + payloadLength];
+    buffer[0] = (byte) 0x80;
+    buffer[1] = (byte) (RtpConstants.payloadType | (marker ? 0x80 : 0));
+    buffer[2] = (byte) (sequence >> 8);
+    buffer[3] = (byte) sequence;
+    buffer[4] = (byte) (timeStamp >> 24);
+    buffer[5] = (byte) (timeStamp >> 16);
+    buffer[6] = (byte) (timeStamp >> 8);
+    buffer[7] = (byte) timeStamp;
+    buffer[11] = 0x55;
+    for (int i = 0; i < payloadLength; i++) {
+      buffer[RtpConstants.RTP_HEADER_LENGTH + i] = (byte) (sequence * 31 + i);
+    }
+    return new RtpFrame(buffer, timeStamp, buffer.length, 5000, 5001, (byte) 2);
+  }
+
+  private static int getSequence(byte[] packet) {
+    return ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+  }
+
+  private static long getInt(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xFFL) << 24) | ((buffer[offset + 1] & 0xFFL) << 16)
+        | ((buffer[offset + 2] & 0xFFL) << 8) | (buffer[offset + 3] & 0xFFL);
+  }
+
+  /**
+   * Copy packets in send order, frames are recycled right after like the sender does.
+   */
+  private static class Collector implements VideoPacketCallback {
+
+    private final List<byte[]> order = new ArrayList<>();
+    private final Map<Integer, byte[]> media = new HashMap<>();
+    private final List<byte[]> fec = new ArrayList<>();
+
+    @Override
+    public void onVideoFrameCreated(RtpFrame rtpFrame) {
+      byte[] packet = new byte[rtpFrame.getLength()];
+      System.arraycopy(rtpFrame.getBuffer(), 0, packet, 0, packet.length);
+      rtpFrame.recycle();
+      order.add(packet);
+      if ((packet[1] & 0x7F) == RtpConstants.fecPayloadType) {
+        fec.add(packet);
+      } else {
+        media.put(getSequence(packet), packet);
+      }
+    }
+  }
+}
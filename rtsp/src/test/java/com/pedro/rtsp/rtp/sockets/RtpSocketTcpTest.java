@@ -0,0 +1,188 @@
+package com.pedro.rtsp.rtp.sockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.pedro.rtsp.rtsp.RtpFrame;
+import com.pedro.rtsp.utils.RtpConstants;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Interleaved RTP over a loopback socket: every frame keeps its boundaries and channel, RTCP
+ * reports stay in order with the RTP packets around them, and socket writes per access unit with
+ * coalescing (default) and without it.
+ */
+public class RtpSocketTcpTest {
+
+  private static final int PACKETS_PER_ACCESS_UNIT = 20;
+  private static final int ACCESS_UNITS = 300;
+  private static final int REPORT_LENGTH = 28;
+  private static final byte VIDEO_CHANNEL = 2;
+  private static final byte AUDIO_CHANNEL = 0;
+
+  @Test
+  public void framesAndReportsKeepBoundariesAndOrder() throws Exception {
+    for (boolean coalescing : new boolean[] { true, false }) {
+      List<byte[]> sent = new ArrayList<>();
+      List<byte[]> received = sendAccessUnits(coalescing, 10, sent, new CountingOutputStream[1]);
+      assertEquals(sent.size(), received.size());
+      for (int i = 0; i < sent.size(); i++) {
+        assertArrayEquals("coalescing " + coalescing + ", frame " + i, sent.get(i),
+            received.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void benchmarkWritesWithAndWithoutCoalescing() throws Exception {
+    CountingOutputStream[] on = new CountingOutputStream[1];
+    CountingOutputStream[] off = new CountingOutputStream[1];
+    List<byte[]> sentOn = new ArrayList<>();
+    List<byte[]> sentOff = new ArrayList<>();
+    int receivedOn = sendAccessUnits(true, ACCESS_UNITS, sentOn, on).size();
+    int receivedOff = sendAccessUnits(false, ACCESS_UNITS, sentOff, off).size();
+
+    //per video access unit and the audio packet after it
+    System.out.println("RtpSocketTcp coalescing on: "
+        + (double) on[0].writes / ACCESS_UNITS + " writes, "
+        + (double) on[0].flushes / ACCESS_UNITS + " flushes; off: "
+        + (double) off[0].writes / ACCESS_UNITS + " writes, "
+        + (double) off[0].flushes / ACCESS_UNITS + " flushes per access unit");
+    assertEquals(sentOn.size(), receivedOn);
+    assertEquals(sentOff.size(), receivedOff);
+    assertEquals(on[0].bytes, off[0].bytes);
+    //header and payload of every packet and report, one write per video and audio access unit
+    //when coalescing plus a few more when the 5 ms budget expires
+    assertEquals(2 * sentOff.size(), off[0].writes);
+    assertEquals(sentOff.size(), off[0].flushes);
+    assertTrue(on[0].writes <= 2 * ACCESS_UNITS + ACCESS_UNITS / 10);
+    assertTrue(on[0].flushes <= 2 * ACCESS_UNITS + ACCESS_UNITS / 10);
+  }
+
+  /**
+   * Send access units of video packets, an audio packet after each one and a RTCP report every
+   * 10 access units, in the middle of an access unit.
+   *
+   * @param sent filled with each frame as expected by receiver: channel then payload.
+   * @param stream set to the stream wrapping the socket.
+   * @return frames received, channel then payload.
+   */
+  private static List<byte[]> sendAccessUnits(boolean coalescing, int accessUnits,
+      List<byte[]> sent, CountingOutputStream[] stream) throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    Socket serverSide = serverSocket.accept();
+    final DataInputStream input = new DataInputStream(serverSide.getInputStream());
+    final List<byte[]> received = new ArrayList<>();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            int magic = input.read();
+            if (magic == -1) return;
+            assertEquals('$', magic);
+            int channel = input.read();
+            byte[] frame = new byte[1 + input.readUnsignedShort()];
+            frame[0] = (byte) channel;
+            input.readFully(frame, 1, frame.length - 1);
+            received.add(frame);
+          }
+        } catch (IOException e) {
+          //socket closed
+        }
+      }
+    }, "RtpSocketTcpTest");
+    reader.start();
+
+    RtpSocketTcp rtpSocketTcp = new RtpSocketTcp();
+    rtpSocketTcp.setCoalescing(coalescing);
+    stream[0] = new CountingOutputStream(socket.getOutputStream());
+    rtpSocketTcp.setDataStream(stream[0], null);
+    int sequence = 0;
+    for (int i = 0; i < accessUnits; i++) {
+      for (int j = 0; j < PACKETS_PER_ACCESS_UNIT; j++) {
+        //variable sizes to catch boundary errors
+        int length = 12 + (sequence * 37) % (RtpConstants.MTU - 40);
+        rtpSocketTcp.sendFrame(newFrame(VIDEO_CHANNEL, sequence++, length,
+            j == PACKETS_PER_ACCESS_UNIT - 1, sent));
+        if (i % 10 == 0 && j == PACKETS_PER_ACCESS_UNIT / 2) {
+          byte[] report = new byte[REPORT_LENGTH];
+          report[0] = (byte) 0x80;
+          report[1] = (byte) 200;
+          report[2] = (byte) sequence;
+          rtpSocketTcp.sendReport((byte) (VIDEO_CHANNEL + 1), report, report.length);
+          sent.add(withChannel((byte) (VIDEO_CHANNEL + 1), report, report.length));
+        }
+      }
+      rtpSocketTcp.sendFrame(newFrame(AUDIO_CHANNEL, sequence++, 200, true, sent));
+    }
+    rtpSocketTcp.flush();
+    socket.shutdownOutput();
+    reader.join(10000);
+    socket.close();
+    serverSide.close();
+    serverSocket.close();
+    return received;
+  }
+
+  private static RtpFrame newFrame(byte channel, int sequence, int length, boolean marker,
+      List<byte[]> sent) {
+    byte[] buffer = new byte[length];
+    buffer[0] = (byte) 0x80;
+    buffer[1] = (byte) (RtpConstants.payloadType | (marker ? 0x80 : 0));
+    buffer[2] = (byte) (sequence >> 8);
+    buffer[3] = (byte) sequence;
+    for (int i = 12; i < length; i++) {
+      buffer[i] = (byte) (sequence + i);
+    }
+    sent.add(withChannel(channel, buffer, length));
+    return new RtpFrame(buffer, 0, length, 0, 0, channel);
+  }
+
+  private static byte[] withChannel(byte channel, byte[] buffer, int length) {
+    byte[] frame = new byte[1 + length];
+    frame[0] = channel;
+    System.arraycopy(buffer, 0, frame, 1, length);
+    return frame;
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long writes;
+    private long flushes;
+    private long bytes;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      writes++;
+      bytes += len;
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushes++;
+      out.flush();
+    }
+  }
+}
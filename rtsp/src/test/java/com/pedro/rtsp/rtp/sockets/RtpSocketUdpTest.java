@@ -0,0 +1,184 @@
+package com.pedro.rtsp.rtp.sockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.pedro.rtsp.rtsp.RtpFrame;
+import com.pedro.rtsp.utils.RtpConstants;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Sends access units to a loopback receiver, checks packets are sent in order as they arrive and
+ * compares CPU time per packet of RtpSocketUdp, of access units copied to direct buffers and sent
+ * in a burst at the marker packet, and of one DatagramSocket.send per packet.
+ */
+public class RtpSocketUdpTest {
+
+  private static final int PACKETS_PER_ACCESS_UNIT = 50;
+  private static final int ACCESS_UNITS = 600;
+  private static final int PACKET_SIZE = RtpConstants.MTU - 28;
+  private static final int ROUNDS = 4;
+
+  @Test
+  public void packetsAreSentInOrderWithoutWaitingForMarker() throws IOException {
+    DatagramChannel receiver = DatagramChannel.open();
+    receiver.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    receiver.configureBlocking(false);
+    RtpSocketUdp rtpSocketUdp = new RtpSocketUdp(0, 0);
+    rtpSocketUdp.setDataStream(null, "127.0.0.1");
+    int port = receiver.socket().getLocalPort();
+    try {
+      ByteBuffer received = ByteBuffer.allocate(RtpConstants.MTU);
+      for (int i = 0; i < 3; i++) {
+        rtpSocketUdp.sendFrame(newFrame(i, false, port));
+      }
+      for (int i = 0; i < 3; i++) {
+        received.clear();
+        assertNotNull(receiveBlocking(receiver, received));
+        assertEquals(i, received.get(3));
+        assertEquals(PACKET_SIZE, received.remaining());
+      }
+
+      rtpSocketUdp.sendFrame(newFrame(3, true, port));
+      received.clear();
+      assertNotNull(receiveBlocking(receiver, received));
+      assertEquals(3, received.get(3));
+      received.clear();
+      assertNull(receiver.receive(received));
+    } finally {
+      rtpSocketUdp.close();
+      receiver.close();
+    }
+  }
+
+  @Test
+  public void benchmarkBurstAgainstPerPacketSend() throws Exception {
+    DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    receiver.setReceiveBufferSize(4 * 1024 * 1024);
+    int port = receiver.getLocalPort();
+    AtomicInteger received = startReceiver(receiver);
+    RtpFrame[] frames = new RtpFrame[PACKETS_PER_ACCESS_UNIT];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = newFrame(i, i == frames.length - 1, port);
+    }
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    int packets = ACCESS_UNITS * PACKETS_PER_ACCESS_UNIT;
+    try {
+      RtpSocketUdp rtpSocketUdp = new RtpSocketUdp(0, 0);
+      rtpSocketUdp.setDataStream(null, "127.0.0.1");
+      DatagramChannel channel = DatagramChannel.open();
+      channel.configureBlocking(false);
+      InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+      ByteBuffer[] burst = new ByteBuffer[PACKETS_PER_ACCESS_UNIT];
+      for (int i = 0; i < burst.length; i++) {
+        burst[i] = ByteBuffer.allocateDirect(RtpConstants.MTU);
+      }
+      DatagramSocket socket = new DatagramSocket();
+      DatagramPacket datagramPacket = new DatagramPacket(new byte[] { 0 }, 1);
+      datagramPacket.setAddress(InetAddress.getLoopbackAddress());
+      long socketCpuNs = 0;
+      long burstCpuNs = 0;
+      long perPacketCpuNs = 0;
+      //alternate the paths so all of them run with the same JIT and receiver load
+      for (int round = 0; round < ROUNDS; round++) {
+        long startCpuNs = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < ACCESS_UNITS; i++) {
+          for (RtpFrame frame : frames) {
+            rtpSocketUdp.sendFrame(frame);
+          }
+        }
+        long socketEndCpuNs = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < ACCESS_UNITS; i++) {
+          for (int j = 0; j < frames.length; j++) {
+            burst[j].clear();
+            burst[j].put(frames[j].getBuffer(), 0, frames[j].getLength());
+            burst[j].flip();
+          }
+          for (ByteBuffer buffer : burst) {
+            while (channel.send(buffer, target) == 0) Thread.yield();
+          }
+        }
+        long burstEndCpuNs = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < ACCESS_UNITS; i++) {
+          for (RtpFrame frame : frames) {
+            datagramPacket.setData(frame.getBuffer());
+            datagramPacket.setPort(frame.getRtpPort());
+            datagramPacket.setLength(frame.getLength());
+            socket.send(datagramPacket);
+          }
+        }
+        long perPacketEndCpuNs = threadMXBean.getCurrentThreadCpuTime();
+        //first round is warm up
+        if (round == 0) continue;
+        socketCpuNs += socketEndCpuNs - startCpuNs;
+        burstCpuNs += burstEndCpuNs - socketEndCpuNs;
+        perPacketCpuNs += perPacketEndCpuNs - burstEndCpuNs;
+      }
+      long dropped = rtpSocketUdp.getDroppedPackets();
+      rtpSocketUdp.close();
+      channel.close();
+      socket.close();
+
+      int measured = packets * (ROUNDS - 1);
+      System.out.println("RtpSocketUdp: " + socketCpuNs / measured + " cpu ns/packet, "
+          + dropped + " dropped; copied and sent in bursts: " + burstCpuNs / measured
+          + " cpu ns/packet; DatagramSocket.send: " + perPacketCpuNs / measured
+          + " cpu ns/packet; received " + received.get() + " of " + 3 * packets * ROUNDS);
+    } finally {
+      receiver.close();
+    }
+  }
+
+  private static RtpFrame newFrame(int index, boolean marker, int port) {
+    byte[] buffer = new byte[PACKET_SIZE];
+    buffer[0] = (byte) 0x80;
+    buffer[1] = (byte) (RtpConstants.payloadType | (marker ? 0x80 : 0));
+    buffer[3] = (byte) index;
+    return new RtpFrame(buffer, 0, PACKET_SIZE, port, port + 1, (byte) 2);
+  }
+
+  private static ByteBuffer receiveBlocking(DatagramChannel channel, ByteBuffer buffer)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (System.currentTimeMillis() < deadline) {
+      if (channel.receive(buffer) != null) {
+        buffer.flip();
+        return buffer;
+      }
+      Thread.yield();
+    }
+    return null;
+  }
+
+  private static AtomicInteger startReceiver(final DatagramSocket receiver) {
+    final AtomicInteger received = new AtomicInteger();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[RtpConstants.MTU], RtpConstants.MTU);
+        try {
+          while (true) {
+            receiver.receive(packet);
+            received.incrementAndGet();
+          }
+        } catch (IOException e) {
+          //socket closed
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return received;
+  }
+}
@@ -0,0 +1,150 @@
+package com.pedro.rtsp.rtsp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import org.junit.Test;
+
+public class InterleavedReaderTest {
+
+  @Test
+  public void responseLinesDoNotConsumeFollowingFrames() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    writeAscii(stream, "RTSP/1.0 200 OK\r\nCSeq: 5\r\nSession: 1234\r\n\r\n");
+    writeFrame(stream, 3, new byte[] { 1, 2, 3 });
+    InterleavedReader interleavedReader = new InterleavedReader(new ChoppedInputStream(
+        stream.toByteArray(), new int[0]));
+    BufferedReader reader = new BufferedReader(interleavedReader);
+
+    assertEquals("RTSP/1.0 200 OK", reader.readLine());
+    assertEquals("CSeq: 5", reader.readLine());
+    assertEquals("Session: 1234", reader.readLine());
+    assertEquals("", reader.readLine());
+
+    byte[] buffer = new byte[1500];
+    assertEquals(3, interleavedReader.readFrame(buffer));
+    assertEquals(3, interleavedReader.getChannel());
+    assertEquals(3, buffer[2]);
+  }
+
+  @Test
+  public void rtspMessagesBetweenFramesAreSkippedWhole() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    writeFrame(stream, 1, new byte[] { 10 });
+    //body starts with '$' to check it is not taken as a frame
+    writeAscii(stream, "RTSP/1.0 200 OK\r\nCSeq: 9\r\nContent-Length: 6\r\n\r\n$\u0001\u0000\u0001ab");
+    writeFrame(stream, 3, new byte[] { 20, 21 });
+    InterleavedReader interleavedReader = new InterleavedReader(new ChoppedInputStream(
+        stream.toByteArray(), new int[0]));
+    byte[] buffer = new byte[1500];
+
+    assertEquals(1, interleavedReader.readFrame(buffer));
+    assertEquals(1, interleavedReader.getChannel());
+    assertEquals(-1, interleavedReader.readFrame(buffer));
+    assertEquals(2, interleavedReader.readFrame(buffer));
+    assertEquals(3, interleavedReader.getChannel());
+    assertEquals(21, buffer[1]);
+  }
+
+  @Test
+  public void timeoutInsideFrameKeepsReadingIt() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    byte[] first = new byte[100];
+    for (int i = 0; i < first.length; i++) {
+      first[i] = (byte) i;
+    }
+    writeFrame(stream, 1, first);
+    writeFrame(stream, 3, new byte[] { 7, 8 });
+    //timeouts in the middle of the header, of the data and between frames
+    InterleavedReader interleavedReader = new InterleavedReader(new ChoppedInputStream(
+        stream.toByteArray(), new int[] { 2, 50, 104 }));
+    byte[] buffer = new byte[1500];
+
+    assertEquals(100, interleavedReader.readFrame(buffer));
+    assertEquals(1, interleavedReader.getChannel());
+    for (int i = 0; i < first.length; i++) {
+      assertEquals((byte) i, buffer[i]);
+    }
+    assertEquals(-1, interleavedReader.readFrame(buffer));
+    assertEquals(2, interleavedReader.readFrame(buffer));
+    assertEquals(3, interleavedReader.getChannel());
+    assertEquals(8, buffer[1]);
+  }
+
+  @Test
+  public void frameBiggerThanBufferIsSkipped() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    writeFrame(stream, 1, new byte[2000]);
+    writeFrame(stream, 3, new byte[] { 5 });
+    InterleavedReader interleavedReader = new InterleavedReader(new ChoppedInputStream(
+        stream.toByteArray(), new int[0]));
+    byte[] buffer = new byte[1500];
+
+    assertEquals(-1, interleavedReader.readFrame(buffer));
+    assertEquals(1, interleavedReader.readFrame(buffer));
+    assertEquals(5, buffer[0]);
+  }
+
+  @Test(expected = EOFException.class)
+  public void endOfStreamIsReported() throws IOException {
+    InterleavedReader interleavedReader = new InterleavedReader(new ChoppedInputStream(
+        new byte[] { '$', 1, 0, 10, 1, 2 }, new int[0]));
+    interleavedReader.readFrame(new byte[1500]);
+  }
+
+  private static void writeFrame(ByteArrayOutputStream stream, int channel, byte[] data) {
+    stream.write('$');
+    stream.write(channel);
+    stream.write(data.length >> 8);
+    stream.write(data.length);
+    stream.write(data, 0, data.length);
+  }
+
+  private static void writeAscii(ByteArrayOutputStream stream, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      stream.write(text.charAt(i));
+    }
+  }
+
+  /**
+   * Return data a few bytes at a time, like a socket, and throw a timeout once when reaching
+   * each of the given positions.
+   */
+  private static class ChoppedInputStream extends InputStream {
+
+    private final byte[] data;
+    private final int[] timeouts;
+    private int position = 0;
+    private int nextTimeout = 0;
+
+    ChoppedInputStream(byte[] data, int[] timeouts) {
+      this.data = data;
+      this.timeouts = timeouts;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (nextTimeout < timeouts.length && position == timeouts[nextTimeout]) {
+        nextTimeout++;
+        throw new SocketTimeoutException("Read timed out");
+      }
+      if (position == data.length) return -1;
+      int limit = nextTimeout < timeouts.length ? timeouts[nextTimeout] : data.length;
+      int count = Math.min(Math.min(len, 7), limit - position);
+      System.arraycopy(data, position, b, off, count);
+      position += count;
+      return count;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.pedro.rtsp.rtsp;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import com.pedro.rtsp.rtp.packets.H264Packet;
+import com.pedro.rtsp.rtp.packets.VideoPacketCallback;
+import com.pedro.rtsp.utils.RtpConstants;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Checks frame recycling and measures bytes allocated by the H264 packetizer per frame once the
+ * pool is warm.
+ */
+public class RtpFramePoolTest {
+
+  private static final int FRAME_SIZE = 60 * 1024;
+  private static final int WARM_UP_FRAMES = 100;
+  private static final int FRAMES = 3000;
+  //buffer allocated for each packet before frames were pooled
+  private static final int UNPOOLED_PACKET_SIZE = RtpConstants.MTU - 28;
+
+  @Test
+  public void recycledFrameIsReused() {
+    RtpFramePool pool = new RtpFramePool(4, 1500);
+    RtpFrame rtpFrame = pool.acquire(1000);
+    rtpFrame.recycle();
+    assertSame(rtpFrame, pool.acquire(1200));
+  }
+
+  @Test
+  public void smallRecycledBufferIsNotReused() {
+    RtpFramePool pool = new RtpFramePool(4, 100);
+    RtpFrame rtpFrame = pool.acquire(100);
+    rtpFrame.recycle();
+    RtpFrame bigger = pool.acquire(200);
+    assertNotSame(rtpFrame, bigger);
+    assertTrue(bigger.getBuffer().length >= 200);
+  }
+
+  @Test
+  public void benchmarkAllocationsPerFrame() {
+    final int[] packets = new int[1];
+    H264Packet h264Packet = new H264Packet(new byte[] { 0x67, 0x42, 0x00, 0x1f },
+        new byte[] { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 }, new VideoPacketCallback() {
+      @Override
+      public void onVideoFrameCreated(RtpFrame rtpFrame) {
+        packets[0]++;
+        rtpFrame.recycle();
+      }
+    });
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+    frame.put(new byte[] { 0, 0, 0, 1, 0x65 });
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    bufferInfo.size = FRAME_SIZE;
+    bufferInfo.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      bufferInfo.presentationTimeUs = i * 16666L;
+      h264Packet.createAndSendPacket(frame, bufferInfo);
+    }
+    packets[0] = 0;
+    long before = allocatedBytes();
+    for (int i = 0; i < FRAMES; i++) {
+      bufferInfo.presentationTimeUs = (WARM_UP_FRAMES + i) * 16666L;
+      h264Packet.createAndSendPacket(frame, bufferInfo);
+    }
+    long allocated = allocatedBytes() - before;
+
+    long perFrame = allocated / FRAMES;
+    long withoutPool = (long) packets[0] / FRAMES * UNPOOLED_PACKET_SIZE;
+    System.out.println("H264Packet: " + packets[0] / FRAMES + " packets/frame, " + perFrame
+        + " bytes allocated/frame, about " + withoutPool + " bytes/frame without pool");
+    assertTrue(perFrame < withoutPool / 10);
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
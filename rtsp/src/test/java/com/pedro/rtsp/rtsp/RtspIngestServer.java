@@ -0,0 +1,510 @@
+package com.pedro.rtsp.rtsp;
+
+import com.pedro.rtsp.utils.RtpConstants;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * RTSP server stand-in running in the test JVM. Accepts one publisher at a time on the loopback
+ * interface, answers OPTIONS, ANNOUNCE, SETUP, RECORD and TEARDOWN and receives RTP with TCP
+ * interleaved or UDP transport. H264 (single NAL, STAP-A and FU-A) and AAC (RFC 3640 AAC-hbr)
+ * payloads are depacketized back to access units, checking sequence numbers and payload syntax.
+ */
+public class RtspIngestServer implements Closeable {
+
+  private static final Pattern TRACK_PATTERN = Pattern.compile("trackID=(\\d+)");
+  private static final Pattern INTERLEAVED_PATTERN = Pattern.compile("interleaved=(\\d+)-(\\d+)");
+  private static final Pattern CLIENT_PORT_PATTERN = Pattern.compile("client_port=(\\d+)-(\\d+)");
+  private static final String SESSION = "1185d20035702ca";
+  private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+  /**
+   * Called from the receiving thread of the track, data is only valid during the call.
+   */
+  public interface FrameListener {
+    /**
+     * @param data H264 access unit up to the RTP marker bit in Annex-B format or one AAC frame.
+     */
+    void onFrame(boolean video, long rtpTimestamp, byte[] data, int offset, int length,
+        long receivedNs);
+  }
+
+  public static class Frame {
+
+    public final boolean video;
+    public final long rtpTimestamp;
+    public final byte[] data;
+    public final long receivedNs;
+
+    Frame(boolean video, long rtpTimestamp, byte[] data, long receivedNs) {
+      this.video = video;
+      this.rtpTimestamp = rtpTimestamp;
+      this.data = data;
+      this.receivedNs = receivedNs;
+    }
+  }
+
+  private final ServerSocket serverSocket;
+  private final Thread thread;
+  private final boolean recordFrames;
+  private final List<Frame> frames = new ArrayList<>();
+  private final Track audioTrack = new Track(false);
+  private final Track videoTrack = new Track(true);
+  //track of each interleaved channel, odd channels are RTCP
+  private final Track[] channels = new Track[256];
+  private final Map<Integer, Track> controlTracks = new HashMap<>();
+  private final List<DatagramSocket> udpSockets = new ArrayList<>();
+  private volatile FrameListener frameListener;
+  private volatile Socket socket;
+  private volatile boolean recording;
+  private volatile boolean udp;
+  private volatile long rtcpPackets;
+  private volatile String sdp;
+
+  /**
+   * @param recordFrames keep a copy of every frame, see {@link #getFrames()}. Disable it for long
+   * benchmarks and use a {@link FrameListener}.
+   */
+  public RtspIngestServer(boolean recordFrames) throws IOException {
+    this.recordFrames = recordFrames;
+    serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    }, "RtspIngestServer");
+    thread.start();
+  }
+
+  public String getUrl(String app, String stream) {
+    return "rtsp://127.0.0.1:" + serverSocket.getLocalPort() + "/" + app + "/" + stream;
+  }
+
+  public void setFrameListener(FrameListener frameListener) {
+    this.frameListener = frameListener;
+  }
+
+  public boolean isRecording() {
+    return recording;
+  }
+
+  public boolean isUdp() {
+    return udp;
+  }
+
+  public String getSdp() {
+    return sdp;
+  }
+
+  public List<Frame> getFrames() {
+    synchronized (frames) {
+      return new ArrayList<>(frames);
+    }
+  }
+
+  public long getFrames(boolean video) {
+    return getTrack(video).frames;
+  }
+
+  public long getPackets(boolean video) {
+    return getTrack(video).packets;
+  }
+
+  public long getBytes(boolean video) {
+    return getTrack(video).bytes;
+  }
+
+  /**
+   * @return packets missing in the sequence numbers received.
+   */
+  public long getLostPackets(boolean video) {
+    return getTrack(video).lost;
+  }
+
+  /**
+   * @return packets with an invalid RTP header or payload, or fragments received without start.
+   */
+  public long getInvalidPackets(boolean video) {
+    return getTrack(video).invalid;
+  }
+
+  public long getRtcpPackets() {
+    return rtcpPackets;
+  }
+
+  /**
+   * Wait until count frames of the track are received.
+   *
+   * @return false on timeout.
+   */
+  public boolean awaitFrames(boolean video, long count, long timeoutMs)
+      throws InterruptedException {
+    Track track = getTrack(video);
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (track.frames < count) {
+      if (System.currentTimeMillis() >= deadline) return false;
+      Thread.sleep(1);
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    Socket currentSocket = socket;
+    if (currentSocket != null) currentSocket.close();
+    closeUdpSockets();
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Track getTrack(boolean video) {
+    return video ? videoTrack : audioTrack;
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      try {
+        socket = serverSocket.accept();
+        serve(socket);
+      } catch (IOException e) {
+        //publisher closed the connection or server closed
+      } finally {
+        recording = false;
+        closeUdpSockets();
+        Socket currentSocket = socket;
+        if (currentSocket != null) {
+          try {
+            currentSocket.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    OutputStream out = socket.getOutputStream();
+    byte[] buffer = new byte[65535];
+    Arrays.fill(channels, null);
+    while (true) {
+      int first = in.read();
+      if (first == -1) return;
+      if (first == '$') {
+        int channel = in.readUnsignedByte();
+        int length = in.readUnsignedShort();
+        in.readFully(buffer, 0, length);
+        Track track = channels[channel];
+        if (channel % 2 == 1 || track == null) {
+          rtcpPackets++;
+        } else {
+          track.onRtp(buffer, length, System.nanoTime());
+        }
+        continue;
+      }
+      String requestLine = readLine(in, first);
+      Map<String, String> headers = new HashMap<>();
+      String line;
+      while (!(line = readLine(in, in.read())).isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+      }
+      String body = "";
+      if (headers.containsKey("Content-Length")) {
+        byte[] content = new byte[Integer.parseInt(headers.get("Content-Length"))];
+        in.readFully(content);
+        body = new String(content, "UTF-8");
+      }
+      String method = requestLine.split(" ")[0];
+      String response = handleRequest(method, requestLine, headers, body);
+      out.write(("RTSP/1.0 " + response + "\r\nCSeq: " + headers.get("CSeq") + "\r\n\r\n")
+          .getBytes("UTF-8"));
+      out.flush();
+      if (method.equals("TEARDOWN")) return;
+    }
+  }
+
+  /**
+   * @return status line end and extra headers.
+   */
+  private String handleRequest(String method, String requestLine, Map<String, String> headers,
+      String body) throws IOException {
+    switch (method) {
+      case "OPTIONS":
+        return "200 OK\r\nPublic: OPTIONS, ANNOUNCE, SETUP, RECORD, TEARDOWN";
+      case "ANNOUNCE":
+        sdp = body;
+        parseSdp(body);
+        return "200 OK";
+      case "SETUP":
+        Matcher trackMatcher = TRACK_PATTERN.matcher(requestLine);
+        Track track = trackMatcher.find()
+            ? controlTracks.get(Integer.parseInt(trackMatcher.group(1))) : null;
+        String transport = headers.get("Transport");
+        if (track == null || transport == null) return "455 Method Not Valid In This State";
+        Matcher interleaved = INTERLEAVED_PATTERN.matcher(transport);
+        Matcher clientPort = CLIENT_PORT_PATTERN.matcher(transport);
+        if (interleaved.find()) {
+          channels[Integer.parseInt(interleaved.group(1))] = track;
+          return "200 OK\r\nTransport: " + transport + "\r\nSession: " + SESSION + ";timeout=60";
+        } else if (clientPort.find()) {
+          udp = true;
+          int[] serverPorts = openUdpSockets(track);
+          return "200 OK\r\nTransport: RTP/AVP/UDP;unicast;client_port=" + clientPort.group(1)
+              + "-" + clientPort.group(2) + ";server_port=" + serverPorts[0] + "-"
+              + serverPorts[1] + ";mode=record\r\nSession: " + SESSION + ";timeout=60";
+        }
+        return "461 Unsupported Transport";
+      case "RECORD":
+        recording = true;
+        return "200 OK\r\nSession: " + SESSION;
+      case "TEARDOWN":
+        recording = false;
+        return "200 OK";
+      default:
+        return "501 Not Implemented";
+    }
+  }
+
+  /**
+   * Map control urls to tracks using the media line before each of them.
+   */
+  private void parseSdp(String sdp) {
+    controlTracks.clear();
+    Track track = null;
+    for (String line : sdp.split("\r\n")) {
+      if (line.startsWith("m=")) {
+        track = line.startsWith("m=video") ? videoTrack : audioTrack;
+      } else if (line.startsWith("a=control:") && track != null) {
+        Matcher matcher = TRACK_PATTERN.matcher(line);
+        if (matcher.find()) controlTracks.put(Integer.parseInt(matcher.group(1)), track);
+      }
+    }
+  }
+
+  private int[] openUdpSockets(final Track track) throws IOException {
+    final DatagramSocket rtp = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    final DatagramSocket rtcp = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    //room for key frame bursts sent without pacing
+    rtp.setReceiveBufferSize(4 * 1024 * 1024);
+    synchronized (udpSockets) {
+      udpSockets.add(rtp);
+      udpSockets.add(rtcp);
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[65535], 65535);
+        try {
+          while (true) {
+            rtp.receive(packet);
+            track.onRtp(packet.getData(), packet.getLength(), System.nanoTime());
+          }
+        } catch (IOException e) {
+          //socket closed
+        }
+      }
+    }, "RtspIngestServer-rtp").start();
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+        try {
+          while (true) {
+            rtcp.receive(packet);
+            rtcpPackets++;
+          }
+        } catch (IOException e) {
+          //socket closed
+        }
+      }
+    }, "RtspIngestServer-rtcp").start();
+    return new int[] { rtp.getLocalPort(), rtcp.getLocalPort() };
+  }
+
+  private void closeUdpSockets() {
+    synchronized (udpSockets) {
+      for (DatagramSocket udpSocket : udpSockets) {
+        udpSocket.close();
+      }
+      udpSockets.clear();
+    }
+  }
+
+  private static String readLine(DataInputStream in, int first) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c = first;
+    while (c != '\n') {
+      if (c == -1) throw new EOFException();
+      if (c != '\r') line.append((char) c);
+      c = in.read();
+    }
+    return line.toString();
+  }
+
+  private void onFrame(boolean video, long rtpTimestamp, byte[] data, int offset, int length,
+      long receivedNs) {
+    FrameListener listener = frameListener;
+    if (listener != null) listener.onFrame(video, rtpTimestamp, data, offset, length, receivedNs);
+    if (recordFrames) {
+      byte[] copy = new byte[length];
+      System.arraycopy(data, offset, copy, 0, length);
+      synchronized (frames) {
+        frames.add(new Frame(video, rtpTimestamp, copy, receivedNs));
+      }
+    }
+  }
+
+  /**
+   * Depacketizer of one track. Only used by the thread receiving its packets.
+   */
+  private final class Track {
+
+    private final boolean video;
+    private int expectedSequence = -1;
+    private byte[] accessUnit = new byte[256 * 1024];
+    private int accessUnitLength = 0;
+    private boolean fragment = false;
+    private volatile long packets;
+    private volatile long bytes;
+    private volatile long lost;
+    private volatile long invalid;
+    private volatile long frames;
+
+    Track(boolean video) {
+      this.video = video;
+    }
+
+    void onRtp(byte[] packet, int length, long receivedNs) {
+      if (length < RtpConstants.RTP_HEADER_LENGTH || (packet[0] & 0xC0) != 0x80) {
+        invalid++;
+        return;
+      }
+      //FEC and RTX are not media of this track
+      if ((packet[1] & 0x7F) != RtpConstants.payloadType) return;
+      int sequence = (packet[2] & 0xFF) << 8 | packet[3] & 0xFF;
+      if (expectedSequence != -1 && sequence != expectedSequence) {
+        lost += (sequence - expectedSequence) & 0xFFFF;
+        //access unit in progress can't be completed
+        accessUnitLength = 0;
+        fragment = false;
+      }
+      expectedSequence = (sequence + 1) & 0xFFFF;
+      packets++;
+      bytes += length;
+      long timestamp = (packet[4] & 0xFFL) << 24 | (packet[5] & 0xFFL) << 16
+          | (packet[6] & 0xFFL) << 8 | packet[7] & 0xFFL;
+      int offset = RtpConstants.RTP_HEADER_LENGTH + 4 * (packet[0] & 0x0F);
+      boolean marker = (packet[1] & 0x80) != 0;
+      if (video) {
+        onH264(packet, offset, length, timestamp, marker, receivedNs);
+      } else {
+        onAac(packet, offset, length, timestamp, receivedNs);
+      }
+    }
+
+    private void onH264(byte[] packet, int offset, int length, long timestamp, boolean marker,
+        long receivedNs) {
+      int type = packet[offset] & 0x1F;
+      if (type >= 1 && type <= 23) {
+        appendNalUnit(packet, offset, length - offset);
+      } else if (type == 24) {
+        //STAP-A, 16 bits size before each nal unit
+        int i = offset + 1;
+        while (i < length) {
+          int size = i + 2 <= length ? (packet[i] & 0xFF) << 8 | packet[i + 1] & 0xFF : 0;
+          if (size == 0 || i + 2 + size > length) {
+            invalid++;
+            break;
+          }
+          appendNalUnit(packet, i + 2, size);
+          i += 2 + size;
+        }
+      } else if (type == 28 && length - offset > 2) {
+        //FU-A, nal unit header is rebuilt from indicator and FU header
+        int header = packet[offset + 1] & 0xFF;
+        if ((header & 0x80) != 0) {
+          append(START_CODE, 0, 4);
+          //nal unit header is the last byte of FU indicator and header, reuse it in place
+          packet[offset + 1] = (byte) (packet[offset] & 0xE0 | header & 0x1F);
+          append(packet, offset + 1, 1);
+          fragment = true;
+        } else if (!fragment) {
+          invalid++;
+          return;
+        }
+        append(packet, offset + 2, length - offset - 2);
+        if ((header & 0x40) != 0) fragment = false;
+      } else {
+        invalid++;
+      }
+      if (marker) {
+        if (fragment) invalid++;
+        frames++;
+        onFrame(true, timestamp, accessUnit, 0, accessUnitLength, receivedNs);
+        accessUnitLength = 0;
+        fragment = false;
+      }
+    }
+
+    private void onAac(byte[] packet, int offset, int length, long timestamp, long receivedNs) {
+      if (length - offset < 2) {
+        invalid++;
+        return;
+      }
+      //AU-headers-length in bits, then 13 bits size and 3 bits index for each frame
+      int headers = ((packet[offset] & 0xFF) << 8 | packet[offset + 1] & 0xFF) / 16;
+      int dataOffset = offset + 2 + headers * 2;
+      for (int i = 0; i < headers; i++) {
+        int header = offset + 2 + i * 2;
+        int size = ((packet[header] & 0xFF) << 8 | packet[header + 1] & 0xFF) >> 3;
+        if (dataOffset + size > length) {
+          invalid++;
+          return;
+        }
+        frames++;
+        onFrame(false, timestamp + i * 1024, packet, dataOffset, size, receivedNs);
+        dataOffset += size;
+      }
+    }
+
+    private void appendNalUnit(byte[] packet, int offset, int size) {
+      append(START_CODE, 0, 4);
+      append(packet, offset, size);
+    }
+
+    private void append(byte[] data, int offset, int size) {
+      if (accessUnitLength + size > accessUnit.length) {
+        byte[] bigger = new byte[Math.max(accessUnit.length * 2, accessUnitLength + size)];
+        System.arraycopy(accessUnit, 0, bigger, 0, accessUnitLength);
+        accessUnit = bigger;
+      }
+      System.arraycopy(data, offset, accessUnit, accessUnitLength, size);
+      accessUnitLength += size;
+    }
+  }
+}
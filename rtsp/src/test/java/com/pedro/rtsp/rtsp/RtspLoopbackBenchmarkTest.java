@@ -0,0 +1,382 @@
+package com.pedro.rtsp.rtsp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+import com.pedro.rtsp.utils.ConnectCheckerRtsp;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+
+/**
+ * End to end tests of {@link RtspClient} against {@link RtspIngestServer} for both transports:
+ * depacketized stream integrity, then packets/s, latency from sendVideo to reception of the last
+ * packet of the frame and allocations and GC of the client.
+ */
+public class RtspLoopbackBenchmarkTest {
+
+  private static final int FPS = 60;
+  private static final int GOP = FPS * 2;
+  private static final int IDR_SIZE = 120 * 1024;
+  private static final int P_SIZE = 12 * 1024;
+  private static final int AUDIO_SIZE = 372;
+  private static final int SAMPLE_RATE = 44100;
+  private static final int THROUGHPUT_FRAMES = FPS * 20;
+  private static final int LATENCY_FRAMES = FPS * 2;
+  private static final int WARM_UP_FRAMES = GOP * 2;
+  //RTP timestamp increment of a video frame, 90 kHz clock
+  private static final int FRAME_TICKS = 90000 / FPS;
+  private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x28 };
+  private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+  @Test
+  public void tcpStreamIsReceivedIntact() throws Exception {
+    streamIsReceivedIntact(Protocol.TCP);
+  }
+
+  @Test
+  public void udpStreamIsReceivedIntact() throws Exception {
+    streamIsReceivedIntact(Protocol.UDP);
+  }
+
+  @Test
+  public void benchmarkTcp() throws Exception {
+    benchmark(Protocol.TCP);
+  }
+
+  @Test
+  public void benchmarkUdp() throws Exception {
+    benchmark(Protocol.UDP);
+  }
+
+  private void streamIsReceivedIntact(Protocol protocol) throws Exception {
+    RtspIngestServer server = new RtspIngestServer(true);
+    AwaitingConnectChecker connectChecker = new AwaitingConnectChecker();
+    RtspClient rtspClient = createClient(server, protocol, connectChecker);
+    assertTrue(connectChecker.awaitConnection());
+    assertEquals(protocol == Protocol.UDP, server.isUdp());
+    assertTrue(server.isRecording());
+    assertTrue(server.getSdp().contains("MPEG4-GENERIC/" + SAMPLE_RATE + "/2"));
+
+    Random random = new Random(5);
+    int videoFrames = GOP + 10;
+    byte[][] videoPayloads = new byte[videoFrames][];
+    Map<Long, byte[]> audioPayloads = new HashMap<>();
+    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    long audioPts = 0;
+    for (int i = 0; i < videoFrames; i++) {
+      long videoPts = i * 1000000L / FPS;
+      while (audioPts <= videoPts) {
+        byte[] audio = new byte[AUDIO_SIZE];
+        random.nextBytes(audio);
+        audioPayloads.put(audioPts * 1000 * SAMPLE_RATE / 1000000000L, audio);
+        bufferInfo.size = audio.length;
+        bufferInfo.presentationTimeUs = audioPts;
+        bufferInfo.flags = 0;
+        rtspClient.sendAudio(ByteBuffer.wrap(audio), bufferInfo);
+        audioPts += 1024 * 1000000L / SAMPLE_RATE;
+      }
+      boolean keyFrame = i % GOP == 0;
+      //sizes around the packet size to get single nal unit and FU-A packets
+      videoPayloads[i] = new byte[i % 3 == 1 ? 200 + random.nextInt(1000)
+          : (keyFrame ? IDR_SIZE : P_SIZE) / 4 + random.nextInt(1000)];
+      random.nextBytes(videoPayloads[i]);
+      videoPayloads[i][0] = (byte) (keyFrame ? 0x65 : 0x41);
+      //no emulated start code in the payload
+      for (int j = 1; j < videoPayloads[i].length; j++) {
+        if (videoPayloads[i][j] == 0) videoPayloads[i][j] = 1;
+      }
+      ByteBuffer frame = ByteBuffer.allocate(videoPayloads[i].length + 4);
+      frame.put(new byte[] { 0, 0, 0, 1 }).put(videoPayloads[i]).flip();
+      bufferInfo.size = frame.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = videoPts;
+      rtspClient.sendVideo(frame, bufferInfo);
+      waitForCache(rtspClient);
+    }
+    //parameter sets of the key frame are an access unit of their own
+    assertTrue(server.awaitFrames(true, videoFrames + 2, 5000));
+    assertTrue(server.awaitFrames(false, audioPayloads.size(), 5000));
+    rtspClient.disconnect();
+    server.close();
+
+    assertEquals(0, server.getLostPackets(true));
+    assertEquals(0, server.getLostPackets(false));
+    assertEquals(0, server.getInvalidPackets(true));
+    assertEquals(0, server.getInvalidPackets(false));
+    assertTrue(server.getRtcpPackets() > 0);
+    int video = 0;
+    int audio = 0;
+    boolean parameterSets = false;
+    List<RtspIngestServer.Frame> frames = server.getFrames();
+    for (RtspIngestServer.Frame frame : frames) {
+      if (!frame.video) {
+        assertArrayEquals(audioPayloads.get(frame.rtpTimestamp), frame.data);
+        audio++;
+        continue;
+      }
+      long timestamp = video * 1000000L / FPS * 1000 * 90000 / 1000000000L;
+      assertEquals(timestamp, frame.rtpTimestamp);
+      if (video % GOP == 0 && !parameterSets) {
+        assertArrayEquals(annexB(SPS, PPS), frame.data);
+        parameterSets = true;
+        continue;
+      }
+      assertArrayEquals(annexB(videoPayloads[video]), frame.data);
+      parameterSets = false;
+      video++;
+    }
+    assertEquals(videoFrames, video);
+    assertEquals(audioPayloads.size(), audio);
+  }
+
+  private void benchmark(Protocol protocol) throws Exception {
+    RtspIngestServer server = new RtspIngestServer(false);
+    int frames = WARM_UP_FRAMES + THROUGHPUT_FRAMES + LATENCY_FRAMES;
+    final long[] sentNs = new long[frames];
+    final long[] receivedNs = new long[frames];
+    final long[] lastReceivedNs = new long[1];
+    server.setFrameListener(new RtspIngestServer.FrameListener() {
+      @Override
+      public void onFrame(boolean video, long rtpTimestamp, byte[] data, int offset, int length,
+          long frameReceivedNs) {
+        //frames only, not parameter sets
+        if (!video || (data[offset + 4] & 0x1F) == 7) return;
+        //pts in us truncates the timestamp, round to the frame
+        receivedNs[(int) ((rtpTimestamp + FRAME_TICKS / 2) / FRAME_TICKS)] = frameReceivedNs;
+        lastReceivedNs[0] = frameReceivedNs;
+      }
+    });
+    AwaitingConnectChecker connectChecker = new AwaitingConnectChecker();
+    RtspClient rtspClient = createClient(server, protocol, connectChecker);
+    assertTrue(connectChecker.awaitConnection());
+
+    Source source = new Source(sentNs);
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      source.send(rtspClient);
+      waitForCache(rtspClient);
+    }
+    assertTrue(server.awaitFrames(true, WARM_UP_FRAMES + WARM_UP_FRAMES / GOP, 10000));
+    long packetsBefore = server.getPackets(true) + server.getPackets(false);
+    long bytesBefore = server.getBytes(true) + server.getBytes(false);
+    long[] gcBefore = gcCountAndTime();
+    Map<Long, Long> allocatedBefore = allocatedBytes();
+    long startNs = System.nanoTime();
+    //as fast as the sender thread writes
+    for (int i = 0; i < THROUGHPUT_FRAMES; i++) {
+      source.send(rtspClient);
+      waitForCache(rtspClient);
+    }
+    int throughputFrames = WARM_UP_FRAMES + THROUGHPUT_FRAMES;
+    boolean received = server.awaitFrames(true, throughputFrames + throughputFrames / GOP, 10000);
+    long elapsedNs = lastReceivedNs[0] - startNs;
+    long allocated = allocatedSince(allocatedBefore);
+    long[] gc = gcCountAndTime();
+    long packets = server.getPackets(true) + server.getPackets(false) - packetsBefore;
+    long bytes = server.getBytes(true) + server.getBytes(false) - bytesBefore;
+
+    //paced at frame rate
+    long nextNs = System.nanoTime();
+    for (int i = 0; i < LATENCY_FRAMES; i++) {
+      LockSupport.parkNanos(nextNs - System.nanoTime());
+      source.send(rtspClient);
+      nextNs += 1000000000L / FPS;
+    }
+    server.awaitFrames(true, frames + frames / GOP, 5000);
+    rtspClient.disconnect();
+    server.close();
+
+    long[] latencies = new long[LATENCY_FRAMES];
+    int latencyCount = 0;
+    for (int i = throughputFrames; i < frames; i++) {
+      if (receivedNs[i] != 0) latencies[latencyCount++] = receivedNs[i] - sentNs[i];
+    }
+    latencies = Arrays.copyOf(latencies, latencyCount);
+    Arrays.sort(latencies);
+    System.out.println("RTSP loopback " + protocol + ": "
+        + packets * 1000000000L / elapsedNs + " packets/s, "
+        + bytes * 8 * 1000 / elapsedNs + " Mbps, "
+        + server.getLostPackets(true) + " video packets lost, "
+        + allocated / THROUGHPUT_FRAMES + " bytes allocated/frame, "
+        + (gc[0] - gcBefore[0]) + " GC in " + (gc[1] - gcBefore[1]) + " ms, latency p50 "
+        + latencies[latencyCount / 2] / 1000 + " us, p99 "
+        + latencies[latencyCount * 99 / 100] / 1000 + " us, max "
+        + latencies[latencyCount - 1] / 1000 + " us");
+    assertEquals(0, rtspClient.getDroppedVideoFrames());
+    //UDP may lose packets in the loopback queue, TCP can't
+    if (protocol == Protocol.TCP) {
+      assertTrue(received);
+      assertEquals(LATENCY_FRAMES, latencyCount);
+    }
+    assertEquals(0, server.getInvalidPackets(true));
+  }
+
+  private static RtspClient createClient(RtspIngestServer server, Protocol protocol,
+      ConnectCheckerRtsp connectChecker) {
+    RtspClient rtspClient = new RtspClient(connectChecker);
+    rtspClient.setProtocol(protocol);
+    rtspClient.setSampleRate(SAMPLE_RATE);
+    rtspClient.setIsStereo(true);
+    rtspClient.setSPSandPPS(ByteBuffer.wrap(annexB(SPS)), ByteBuffer.wrap(annexB(PPS)), null);
+    rtspClient.setUrl(server.getUrl("live", "test"));
+    rtspClient.connect();
+    return rtspClient;
+  }
+
+  private static void waitForCache(RtspClient rtspClient) {
+    //keep the queue from dropping, congestion is not measured here
+    while (rtspClient.getCacheSize() > 256) Thread.yield();
+  }
+
+  private static byte[] annexB(byte[]... nalUnits) {
+    int length = 0;
+    for (byte[] nalUnit : nalUnits) length += 4 + nalUnit.length;
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (byte[] nalUnit : nalUnits) {
+      buffer.put(new byte[] { 0, 0, 0, 1 }).put(nalUnit);
+    }
+    return buffer.array();
+  }
+
+  private static long[] gcCountAndTime() {
+    long count = 0;
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += gc.getCollectionCount();
+      time += gc.getCollectionTime();
+    }
+    return new long[] { count, time };
+  }
+
+  /**
+   * @return allocated bytes by thread id, every thread of the JVM but the server ones.
+   */
+  private static Map<Long, Long> allocatedBytes() {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long[] ids = threadMXBean.getAllThreadIds();
+    long[] allocated = threadMXBean.getThreadAllocatedBytes(ids);
+    ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(ids);
+    Map<Long, Long> result = new HashMap<>();
+    for (int i = 0; i < ids.length; i++) {
+      if (threadInfos[i] == null || allocated[i] == -1
+          || threadInfos[i].getThreadName().startsWith("RtspIngestServer")) {
+        continue;
+      }
+      result.put(ids[i], allocated[i]);
+    }
+    return result;
+  }
+
+  private static long allocatedSince(Map<Long, Long> before) {
+    long total = 0;
+    for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+      Long previous = before.get(entry.getKey());
+      total += entry.getValue() - (previous != null ? previous : 0);
+    }
+    return total;
+  }
+
+  /**
+   * Synthetic 60 fps H264 with a key frame every 2 seconds and 44.1 kHz AAC, each video frame
+   * preceded by the audio frames up to its pts.
+   */
+  private static class Source {
+
+    private final long[] sentNs;
+    private final ByteBuffer idr = createFrame(IDR_SIZE, 0x65);
+    private final ByteBuffer p = createFrame(P_SIZE, 0x41);
+    private final ByteBuffer audio = ByteBuffer.allocateDirect(AUDIO_SIZE);
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private int frame = 0;
+    private long audioPts = 0;
+
+    Source(long[] sentNs) {
+      this.sentNs = sentNs;
+      while (audio.hasRemaining()) audio.put((byte) 0x22);
+    }
+
+    void send(RtspClient rtspClient) {
+      long videoPts = frame * 1000000L / FPS;
+      while (audioPts <= videoPts) {
+        audio.clear();
+        bufferInfo.size = AUDIO_SIZE;
+        bufferInfo.flags = 0;
+        bufferInfo.presentationTimeUs = audioPts;
+        rtspClient.sendAudio(audio, bufferInfo);
+        audioPts += 1024 * 1000000L / SAMPLE_RATE;
+      }
+      boolean keyFrame = frame % GOP == 0;
+      ByteBuffer buffer = keyFrame ? idr : p;
+      bufferInfo.size = buffer.limit();
+      bufferInfo.flags = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      bufferInfo.presentationTimeUs = videoPts;
+      sentNs[frame] = System.nanoTime();
+      rtspClient.sendVideo(buffer, bufferInfo);
+      frame++;
+    }
+
+    private static ByteBuffer createFrame(int size, int nalHeader) {
+      ByteBuffer frame = ByteBuffer.allocateDirect(size);
+      frame.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1).put((byte) nalHeader);
+      while (frame.hasRemaining()) frame.put((byte) 0x11);
+      frame.flip();
+      return frame;
+    }
+  }
+
+  private static class AwaitingConnectChecker implements ConnectCheckerRtsp {
+
+    private boolean connected = false;
+    private String failure;
+
+    synchronized boolean awaitConnection() throws InterruptedException, IOException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!connected && failure == null && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      if (failure != null) throw new IOException(failure);
+      return connected;
+    }
+
+    @Override
+    public synchronized void onConnectionSuccessRtsp() {
+      connected = true;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void onConnectionFailedRtsp(String reason) {
+      //failures after disconnect are expected when the server closes
+      if (!connected) failure = reason;
+      notifyAll();
+    }
+
+    @Override
+    public void onNewBitrateRtsp(long bitrate) {
+    }
+
+    @Override
+    public void onDisconnectRtsp() {
+    }
+
+    @Override
+    public void onAuthErrorRtsp() {
+    }
+
+    @Override
+    public void onAuthSuccessRtsp() {
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.pedro.rtsp.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.pedro.rtsp.utils.RtpConstants;
+import org.junit.Test;
+
+public class RtxCacheTest {
+
+  private static final int PAYLOAD_LENGTH = 100;
+
+  @Test
+  public void retransmissionCarriesOriginalSequenceAndPayload() {
+    RtxCache rtxCache = new RtxCache();
+    rtxCache.store(newPacket(1000, true));
+
+    RtpFrame rtx = rtxCache.createRetransmission(1000);
+
+    assertNotNull(rtx);
+    byte[] buffer = rtx.getBuffer();
+    assertEquals(RtpConstants.RTP_HEADER_LENGTH + 2 + PAYLOAD_LENGTH, rtx.getLength());
+    assertEquals(RtpConstants.rtxPayloadType, buffer[1] & 0x7F);
+    //marker bit and timestamp are kept
+    assertEquals(0x80, buffer[1] & 0x80);
+    assertEquals(0x11, buffer[4]);
+    //OSN before original payload
+    assertEquals(1000, ((buffer[12] & 0xFF) << 8) | (buffer[13] & 0xFF));
+    for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+      assertEquals((byte) (1000 + i), buffer[RtpConstants.RTP_HEADER_LENGTH + 2 + i]);
+    }
+    assertEquals(1, rtxCache.getRetransmittedPackets());
+  }
+
+  @Test
+  public void rtxSequenceIncreasesForEachRetransmission() {
+    RtxCache rtxCache = new RtxCache();
+    rtxCache.store(newPacket(5, false));
+    int first = getSequence(rtxCache.createRetransmission(5));
+    int second = getSequence(rtxCache.createRetransmission(5));
+    assertEquals((first + 1) & 0xFFFF, second);
+  }
+
+  @Test
+  public void unknownSequenceIsMissed() {
+    RtxCache rtxCache = new RtxCache();
+    rtxCache.store(newPacket(10, false));
+
+    assertNull(rtxCache.createRetransmission(11));
+    assertEquals(1, rtxCache.getMissedPackets());
+  }
+
+  @Test
+  public void overwrittenSlotIsEvicted() {
+    RtxCache rtxCache = new RtxCache(4, 1000, 1024 * 1024);
+    for (int sequence = 0; sequence < 6; sequence++) {
+      rtxCache.store(newPacket(sequence, false));
+    }
+
+    assertNull(rtxCache.createRetransmission(0));
+    assertNull(rtxCache.createRetransmission(1));
+    for (int sequence = 2; sequence < 6; sequence++) {
+      assertNotNull(rtxCache.createRetransmission(sequence));
+    }
+  }
+
+  @Test
+  public void oldestPacketsAreEvictedByByteBudget() {
+    int packetLength = RtpConstants.RTP_HEADER_LENGTH + PAYLOAD_LENGTH;
+    RtxCache rtxCache = new RtxCache(64, 1000, packetLength * 3);
+    for (int sequence = 0; sequence < 5; sequence++) {
+      rtxCache.store(newPacket(sequence, false));
+    }
+
+    assertNull(rtxCache.createRetransmission(0));
+    assertNull(rtxCache.createRetransmission(1));
+    assertNotNull(rtxCache.createRetransmission(2));
+    assertNotNull(rtxCache.createRetransmission(4));
+  }
+
+  @Test
+  public void oldPacketsCanNotBeRetransmitted() throws InterruptedException {
+    RtxCache rtxCache = new RtxCache(64, 1, 1024 * 1024);
+    rtxCache.store(newPacket(7, false));
+    Thread.sleep(5);
+
+    assertNull(rtxCache.createRetransmission(7));
+  }
+
+  @Test
+  public void lookupWorksAcrossSequenceWrap() {
+    RtxCache rtxCache = new RtxCache(8, 1000, 1024 * 1024);
+    for (int i = 0; i < 6; i++) {
+      rtxCache.store(newPacket((65533 + i) & 0xFFFF, false));
+    }
+
+    assertNotNull(rtxCache.createRetransmission(65534));
+    assertNotNull(rtxCache.createRetransmission(0));
+    assertNotNull(rtxCache.createRetransmission(2));
+  }
+
+  @Test
+  public void rtxAndFecPacketsAreNotStored() {
+    RtxCache rtxCache = new RtxCache();
+    RtpFrame fec = newPacket(20, false);
+    fec.getBuffer()[1] = (byte) RtpConstants.fecPayloadType;
+    rtxCache.store(fec);
+
+    assertNull(rtxCache.createRetransmission(20));
+  }
+
+  private static RtpFrame newPacket(int sequence, boolean marker) {
+    byte[] buffer = new byte[RtpConstants.MTU];
+    buffer[0] = (byte) 0x80;
+    buffer[1] = (byte) (RtpConstants.payloadType | (marker ? 0x80 : 0));
+    buffer[2] = (byte) (sequence >> 8);
+    buffer[3] = (byte) sequence;
+    buffer[4] = 0x11;
+    for (int i = 0; i < PAYLOAD_LENGTH; i++) {
+      buffer[RtpConstants.RTP_HEADER_LENGTH + i] = (byte) (sequence + i);
+    }
+    return new RtpFrame(buffer, 0, RtpConstants.RTP_HEADER_LENGTH + PAYLOAD_LENGTH, 5000, 5001,
+        (byte) 2);
+  }
+
+  private static int getSequence(RtpFrame rtpFrame) {
+    return ((rtpFrame.getBuffer()[2] & 0xFF) << 8) | (rtpFrame.getBuffer()[3] & 0xFF);
+  }
+}
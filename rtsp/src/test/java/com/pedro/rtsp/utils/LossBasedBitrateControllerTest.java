@@ -0,0 +1,120 @@
+package com.pedro.rtsp.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Bitrate after receiver reports with low, moderate and high loss or growing RTT, clamped to the
+ * configured range, with increases and decreases spaced by their minimum intervals.
+ */
+public class LossBasedBitrateControllerTest {
+
+  private static final int START = 1000000;
+  private static final int MIN = 200000;
+  private static final int MAX = 2000000;
+
+  private final List<Integer> adapted = new ArrayList<>();
+  private final LossBasedBitrateController.Listener listener =
+      new LossBasedBitrateController.Listener() {
+        @Override
+        public void onBitrateAdapted(int bitrate) {
+          adapted.add(bitrate);
+        }
+      };
+
+  @Test
+  public void lowLossIncreasesOncePerInterval() {
+    LossBasedBitrateController controller =
+        new LossBasedBitrateController(START, MIN, MAX, listener);
+
+    controller.onReceiverReport(true, 0f, 0, -1);
+    assertEquals((int) (START * 1.05f), controller.getBitrate());
+    //audio report of the same interval
+    controller.onReceiverReport(false, 0.01f, 0, -1);
+    assertEquals((int) (START * 1.05f), controller.getBitrate());
+    assertEquals(1, adapted.size());
+    assertEquals(controller.getBitrate(), (int) adapted.get(0));
+  }
+
+  @Test
+  public void moderateLossHoldsBitrate() {
+    LossBasedBitrateController controller =
+        new LossBasedBitrateController(START, MIN, MAX, listener);
+
+    controller.onReceiverReport(true, 0.02f, 0, -1);
+    controller.onReceiverReport(true, 0.05f, 0, -1);
+    controller.onReceiverReport(true, 0.1f, 0, -1);
+
+    assertEquals(START, controller.getBitrate());
+    assertEquals(0, adapted.size());
+  }
+
+  @Test
+  public void highLossDecreasesByHalfTheLoss() {
+    LossBasedBitrateController controller =
+        new LossBasedBitrateController(START, MIN, MAX, listener);
+
+    controller.onReceiverReport(true, 0.2f, 0, -1);
+
+    assertEquals((int) (START * (1 - 0.5f * 0.2f)), controller.getBitrate());
+    assertEquals(1, adapted.size());
+  }
+
+  @Test
+  public void growingRttDecreasesWithoutLoss() {
+    LossBasedBitrateController controller =
+        new LossBasedBitrateController(START, MIN, MAX, listener);
+
+    //moderate loss so the reports only change bitrate because of RTT
+    controller.onReceiverReport(true, 0.05f, 0, 40);
+    controller.onReceiverReport(true, 0.05f, 0, 40 + 150);
+    assertEquals(START, controller.getBitrate());
+    controller.onReceiverReport(true, 0.05f, 0, 40 + 151);
+    assertEquals((int) (START * 0.85f), controller.getBitrate());
+  }
+
+  @Test
+  public void decreaseIsDebounced() throws InterruptedException {
+    LossBasedBitrateController controller =
+        new LossBasedBitrateController(START, MIN, MAX, listener);
+
+    controller.onReceiverReport(true, 0.5f, 0, -1);
+    int decreased = (int) (START * 0.75f);
+    assertEquals(decreased, controller.getBitrate());
+    //audio report of the same congestion
+    controller.onReceiverReport(false, 0.5f, 0, -1);
+    assertEquals(decreased, controller.getBitrate());
+
+    Thread.sleep(510);
+    controller.onReceiverReport(false, 0.5f, 0, -1);
+    assertEquals((int) (decreased * 0.75f), controller.getBitrate());
+    assertEquals(2, adapted.size());
+  }
+
+  @Test
+  public void bitrateIsClampedToRange() {
+    LossBasedBitrateController high =
+        new LossBasedBitrateController(MAX - 1000, MIN, MAX, listener);
+    high.onReceiverReport(true, 0f, 0, -1);
+    assertEquals(MAX, high.getBitrate());
+
+    LossBasedBitrateController low =
+        new LossBasedBitrateController(MIN + 1000, MIN, MAX, listener);
+    low.onReceiverReport(true, 1f, 0, -1);
+    assertEquals(MIN, low.getBitrate());
+
+    //start bitrate outside range, nothing notified while the clamp keeps it
+    LossBasedBitrateController outside =
+        new LossBasedBitrateController(MAX * 2, MIN, MAX, listener);
+    assertEquals(MAX, outside.getBitrate());
+    outside.onReceiverReport(true, 0f, 0, -1);
+    assertEquals(MAX, outside.getBitrate());
+    assertEquals(2, adapted.size());
+
+    outside.reset();
+    assertEquals(MAX, outside.getBitrate());
+  }
+}